@@ -31,6 +31,8 @@
 -keepattributes EnclosingMethod
 -keep class org.eclipse.paho.client.mqttv3.* { *; }
 -keep class org.eclipse.paho.client.mqttv3.*$* { *; }
+# The MQTT 5 client finds its network modules with a ServiceLoader and its logger by name
+-keep class org.eclipse.paho.mqttv5.** { *; }
 
 # GREENDAO
 -keep class **$Properties
@@ -141,7 +141,7 @@ class GoogleMapFragment internal constructor(
     }
 
     override fun removeMarkerFromMap(id: String) {
-        markers[id]?.remove()
+        markers.remove(id)?.remove()
     }
 
     override fun onResume() {
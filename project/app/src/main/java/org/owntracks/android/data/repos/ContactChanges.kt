@@ -0,0 +1,83 @@
+package org.owntracks.android.data.repos
+
+import androidx.lifecycle.LiveData
+import org.owntracks.android.model.FusedContact
+
+sealed class ContactChange(val contact: FusedContact) {
+    class Added(contact: FusedContact) : ContactChange(contact)
+    class Updated(contact: FusedContact) : ContactChange(contact)
+    class Removed(contact: FusedContact) : ContactChange(contact)
+
+    override fun toString(): String = "${javaClass.simpleName}(${contact.id})"
+}
+
+/**
+ * The contacts that have been added, updated or removed since observers last heard, delivered on
+ * the main thread as one list however many changes were made in between. Changes to the same
+ * contact are conflated, so each list has at most one change per contact: an update after an add
+ * is still an add, a remove after an add is nothing at all, and an add after a remove is an
+ * update to the new contact.
+ *
+ * Changes made while an observer is inactive aren't kept for it, so follow these with a
+ * [ContactsDeltaLiveData], which starts again from every contact each time it becomes active.
+ */
+class ContactChanges : LiveData<List<ContactChange>>() {
+    private val pending = LinkedHashMap<String, ContactChange>()
+    private var posted = false
+
+    /**
+     * Adds a change to be sent to observers the next time they're [dispatch]ed to
+     */
+    fun add(change: ContactChange) {
+        synchronized(pending) {
+            val id = change.contact.id
+            val conflated = conflate(pending[id], change)
+            if (conflated == null) {
+                pending.remove(id)
+            } else {
+                pending[id] = conflated
+            }
+        }
+    }
+
+    /**
+     * Sends every change added so far to observers on the main thread, along with any that are
+     * added before it gets there
+     */
+    fun dispatch() {
+        synchronized(pending) {
+            if (posted || pending.isEmpty()) {
+                return
+            }
+            posted = true
+        }
+        // Only a signal to drain what's pending once on the main thread
+        postValue(DRAIN)
+    }
+
+    override fun setValue(value: List<ContactChange>?) {
+        if (value !== DRAIN) {
+            super.setValue(value)
+            return
+        }
+        val drained = synchronized(pending) {
+            posted = false
+            pending.values.toList().also { pending.clear() }
+        }
+        if (drained.isNotEmpty()) {
+            super.setValue(drained)
+        }
+    }
+
+    private fun conflate(earlier: ContactChange?, later: ContactChange): ContactChange? = when {
+        earlier == null -> later
+        earlier is ContactChange.Added && later is ContactChange.Removed -> null
+        earlier is ContactChange.Added -> ContactChange.Added(later.contact)
+        earlier is ContactChange.Removed && later !is ContactChange.Removed -> ContactChange.Updated(later.contact)
+        else -> later
+    }
+
+    companion object {
+        private val DRAIN: List<ContactChange> = ArrayList(0)
+    }
+}
@@ -0,0 +1,28 @@
+package org.owntracks.android.data.repos
+
+import androidx.lifecycle.MediatorLiveData
+
+/**
+ * Changes to apply to what an observer last had. If [reset] is set, it has to start again from
+ * nothing, and the changes add every contact.
+ */
+class ContactsDelta(val reset: Boolean, val changes: List<ContactChange>)
+
+/**
+ * Follows a [ContactsRepo] for one observer: every contact when it becomes active, as it may
+ * have missed changes while it wasn't, and then only what's changed. Applying a change to a
+ * contact is expected to be the same whether or not it's been applied before, as the last
+ * changes can come again just after a reset.
+ *
+ * Only another observer becoming active resets what's sent, so give each observer its own.
+ */
+class ContactsDeltaLiveData(private val contactsRepo: ContactsRepo) : MediatorLiveData<ContactsDelta>() {
+    init {
+        addSource(contactsRepo.changes) { value = ContactsDelta(false, it) }
+    }
+
+    override fun onActive() {
+        value = ContactsDelta(true, contactsRepo.all.values.map { ContactChange.Added(it) })
+        super.onActive()
+    }
+}
@@ -6,10 +6,25 @@ import org.owntracks.android.model.messages.MessageCard
 import org.owntracks.android.model.messages.MessageLocation
 
 interface ContactsRepo {
-    val all: LiveData<MutableMap<String, FusedContact>>
+    /**
+     * A copy of every contact, by id
+     */
+    val all: Map<String, FusedContact>
+
+    /**
+     * Contacts as they're added, updated and removed. Use a [ContactsDeltaLiveData] to follow
+     * them from a full set of contacts.
+     */
+    val changes: LiveData<List<ContactChange>>
     fun getById(id: String): FusedContact?
     fun clearAll()
     fun remove(id: String)
     fun update(id: String, messageLocation: MessageLocation)
     fun update(id: String, messageCard: MessageCard)
-}
\ No newline at end of file
+
+    /**
+     * Runs [updates] as one change, so that observers of [changes] hear about it once rather than
+     * after every update in it
+     */
+    fun batch(updates: Runnable)
+}
@@ -0,0 +1,30 @@
+package org.owntracks.android.data.repos
+
+import org.owntracks.android.model.FusedContact
+
+/**
+ * Keeps the contacts in a [ContactsRepo] across runs of the app, so that they can be shown as soon
+ * as it starts rather than once they're heard from again.
+ */
+interface ContactsSnapshot {
+    /**
+     * Reads back the contacts kept from before, off the calling thread, and hands them to [restore]
+     */
+    fun load(restore: (Collection<FusedContact>) -> Unit)
+
+    /**
+     * Keeps [contact] as it is by the time it's written. Doesn't block, and saves of the same
+     * contact close together are written once.
+     */
+    fun save(contact: FusedContact)
+
+    /**
+     * Stops keeping the contact with [id]
+     */
+    fun remove(id: String)
+
+    /**
+     * Stops keeping every contact, including any saves that haven't been written yet
+     */
+    fun clear()
+}
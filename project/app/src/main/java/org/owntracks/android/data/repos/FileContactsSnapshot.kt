@@ -0,0 +1,257 @@
+package org.owntracks.android.data.repos
+
+import android.content.Context
+import dagger.hilt.android.qualifiers.ApplicationContext
+import org.owntracks.android.model.FusedContact
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.Parser
+import timber.log.Timber
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Keeps each contact in a small file of its own in the app's no-backup files, as it's only ever a
+ * cache of what the broker or friends will tell us again.
+ *
+ * What's kept of a contact is its last location, as the JSON it came in, the name on its card and
+ * its geocode. The face itself isn't kept, only a hash of it to tell whether the card has changed,
+ * as it comes again with the card.
+ *
+ * Everything touching the files happens in order on one thread, starting with finding the
+ * directory, so nothing waits on the disk at startup. Saves are collected for a moment and then
+ * written together, and only the contacts whose snapshot has actually changed are written, so a
+ * busy shared topic doesn't turn into a write per message. Each file is written alongside and then
+ * renamed into place, so a crash part way through leaves the previous snapshot of that contact.
+ */
+@Singleton
+class FileContactsSnapshot internal constructor(
+    locateDirectory: () -> File,
+    private val parser: Parser,
+    private val flushDelayMillis: Long
+) : ContactsSnapshot {
+    @Inject
+    constructor(@ApplicationContext context: Context, parser: Parser) :
+        this({ File(context.noBackupFilesDir, DIRECTORY) }, parser, FLUSH_DELAY_MILLISECONDS)
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val directory: File by lazy {
+        locateDirectory().apply {
+            if (!isDirectory && !mkdirs()) {
+                Timber.e("Unable to create contacts snapshot directory %s", this)
+            }
+        }
+    }
+
+    /**
+     * Everything that's kept of a contact apart from its location, which only changes along with
+     * [tst]
+     */
+    private data class Snapshot(
+        val contactId: String,
+        val topic: String?,
+        val tst: Long,
+        val cardName: String?,
+        val faceHash: Int,
+        val geocode: String?
+    )
+
+    // What's on disk for each contact. Only touched on the executor.
+    private val written = HashMap<String, Snapshot>()
+
+    // Contacts to write, or null for those to remove
+    private val pending = HashMap<String, FusedContact?>()
+    private var flushScheduled = false
+
+    // Whether every file is to be deleted before the pending changes are written
+    private var clearPending = false
+
+    override fun load(restore: (Collection<FusedContact>) -> Unit) {
+        executor.execute {
+            directory.listFiles { file -> file.name.endsWith(TEMPORARY_SUFFIX) }?.forEach(File::delete)
+            val contacts = directory.listFiles { file -> file.name.endsWith(SUFFIX) }?.mapNotNull { file ->
+                try {
+                    read(file)
+                } catch (e: IOException) {
+                    Timber.w(e, "Unable to read contacts snapshot %s", file)
+                    file.delete()
+                    null
+                }
+            } ?: emptyList()
+            Timber.d("Loaded %d contacts from snapshot", contacts.size)
+            restore(contacts)
+        }
+    }
+
+    override fun save(contact: FusedContact) {
+        enqueue(contact.id, contact)
+    }
+
+    override fun remove(id: String) {
+        enqueue(id, null)
+    }
+
+    override fun clear() {
+        synchronized(pending) {
+            pending.clear()
+            clearPending = true
+        }
+        // Straight away, so that the old contacts aren't back if the app is killed in the meantime
+        executor.execute(::flush)
+    }
+
+    private fun enqueue(id: String, contact: FusedContact?) {
+        synchronized(pending) {
+            pending[id] = contact
+            if (!flushScheduled) {
+                flushScheduled = true
+                executor.schedule(::flush, flushDelayMillis, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    private fun flush() {
+        val (clear, changes) = synchronized(pending) {
+            flushScheduled = false
+            (clearPending to HashMap(pending)).also {
+                clearPending = false
+                pending.clear()
+            }
+        }
+        if (clear) {
+            directory.listFiles { file -> file.name.endsWith(SUFFIX) }?.forEach(File::delete)
+            written.clear()
+        }
+        var writes = 0
+        var removes = 0
+        changes.forEach { (id, contact) ->
+            try {
+                if (contact == null) {
+                    if (written.remove(id) != null) {
+                        fileFor(id).delete()
+                        removes += 1
+                    }
+                } else {
+                    val snapshot = snapshotOf(contact)
+                    if (written[id] != snapshot) {
+                        write(fileFor(id), snapshot, contact.messageLocation)
+                        written[id] = snapshot
+                        writes += 1
+                    }
+                }
+            } catch (e: IOException) {
+                Timber.e(e, "Unable to write contacts snapshot for %s", id)
+            }
+        }
+        if (writes > 0 || removes > 0) {
+            Timber.v("Wrote %d contacts to snapshot and removed %d", writes, removes)
+        }
+    }
+
+    // Contact ids come from topics, so they're hashed into something that's safe as a file name
+    private fun fileFor(id: String) = File(directory, UUID.nameUUIDFromBytes(id.toByteArray()).toString() + SUFFIX)
+
+    private fun snapshotOf(contact: FusedContact): Snapshot {
+        val messageLocation = contact.messageLocation
+        val messageCard = contact.messageCard
+        return Snapshot(
+            contact.id,
+            messageLocation?.topic,
+            contact.tst,
+            messageCard?.name,
+            messageCard?.face?.hashCode() ?: 0,
+            messageLocation?.takeIf { it.hasGeocode }?.geocode
+        )
+    }
+
+    @Throws(IOException::class)
+    private fun write(file: File, snapshot: Snapshot, messageLocation: MessageLocation?) {
+        val temporary = File(file.path + TEMPORARY_SUFFIX)
+        DataOutputStream(BufferedOutputStream(temporary.outputStream())).use { output ->
+            output.writeByte(FORMAT_VERSION.toInt())
+            output.writeUTF(snapshot.contactId)
+            output.writeNullableUTF(snapshot.topic)
+            output.writeLong(snapshot.tst)
+            output.writeNullableUTF(snapshot.cardName)
+            output.writeInt(snapshot.faceHash)
+            output.writeNullableUTF(snapshot.geocode)
+            val location = messageLocation?.let(parser::toUnencryptedJsonBytes)
+            output.writeInt(location?.size ?: -1)
+            location?.let(output::write)
+        }
+        if (!temporary.renameTo(file)) {
+            throw IOException("Unable to replace $file")
+        }
+    }
+
+    /**
+     * Reads back a contact written by [write], and remembers what was read as what's on disk for it.
+     * Returns null if there's nothing worth showing.
+     */
+    @Throws(IOException::class)
+    private fun read(file: File): FusedContact? {
+        val (snapshot, location) = DataInputStream(BufferedInputStream(file.inputStream())).use { input ->
+            val version = input.readByte()
+            if (version != FORMAT_VERSION) {
+                throw IOException("Unsupported contacts snapshot format version $version")
+            }
+            val snapshot = Snapshot(
+                input.readUTF(),
+                input.readNullableUTF(),
+                input.readLong(),
+                input.readNullableUTF(),
+                input.readInt(),
+                input.readNullableUTF()
+            )
+            val locationSize = input.readInt()
+            if (locationSize > file.length()) {
+                throw IOException("Damaged contacts snapshot")
+            }
+            snapshot to if (locationSize < 0) null else ByteArray(locationSize).also(input::readFully)
+        }
+        written[snapshot.contactId] = snapshot
+        val messageLocation = location?.let {
+            try {
+                parser.fromUnencryptedJson(it) as? MessageLocation
+            } catch (e: Exception) {
+                Timber.w(e, "Unable to read snapshot location for %s", snapshot.contactId)
+                null
+            }
+        }
+        if (messageLocation == null && snapshot.cardName == null) {
+            return null
+        }
+        return FusedContact(snapshot.contactId).apply {
+            messageLocation?.run {
+                snapshot.topic?.let { topic = it }
+                snapshot.geocode?.let { geocode = it }
+                setMessageLocation(this)
+            }
+            snapshot.cardName?.let { name -> messageCard = MessageCard().apply { this.name = name } }
+        }
+    }
+
+    private fun DataOutputStream.writeNullableUTF(value: String?) {
+        writeBoolean(value != null)
+        value?.let(::writeUTF)
+    }
+
+    private fun DataInputStream.readNullableUTF(): String? = if (readBoolean()) readUTF() else null
+
+    companion object {
+        private const val DIRECTORY = "contacts"
+        private const val SUFFIX = ".contact"
+        private const val TEMPORARY_SUFFIX = ".tmp"
+        private const val FORMAT_VERSION: Byte = 1
+        private const val FLUSH_DELAY_MILLISECONDS = 1_000L
+    }
+}
@@ -1,10 +1,11 @@
 package org.owntracks.android.data.repos
 
 import androidx.annotation.MainThread
-import androidx.lifecycle.MutableLiveData
+import androidx.databinding.Observable
 import org.greenrobot.eventbus.EventBus
 import org.greenrobot.eventbus.Subscribe
 import org.greenrobot.eventbus.ThreadMode
+import org.owntracks.android.BR
 import org.owntracks.android.model.FusedContact
 import org.owntracks.android.model.messages.MessageCard
 import org.owntracks.android.model.messages.MessageLocation
@@ -12,92 +13,206 @@ import org.owntracks.android.support.ContactBitmapAndName
 import org.owntracks.android.support.ContactBitmapAndNameMemoryCache
 import org.owntracks.android.support.Events.*
 import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicInteger
 import javax.inject.Inject
 import javax.inject.Singleton
 
+/**
+ * Holds contacts in a concurrent map, so that they can be read from any thread without a lock and
+ * updated from several at once. A contact's location is compare-and-set on its timestamp (see
+ * [FusedContact.setMessageLocation]), so racing updates settle on the newest one, and events are
+ * only posted once an update has landed.
+ *
+ * Changes are recorded from whatever the map holds for a contact at the time, rather than from what
+ * the caller thought it did, so that an update racing a removal can't bring a removed contact back
+ * for observers of [changes], or for the [ContactsSnapshot] they're also kept in. The snapshot is
+ * restored in the background when the repo is created, and anything heard since wins over it. If the
+ * repo is cleared before then, the snapshot is from before the clear and is dropped.
+ */
 @Singleton
 class MemoryContactsRepo @Inject constructor(
     private val eventBus: EventBus,
-    private val contactsBitmapAndNameMemoryCache: ContactBitmapAndNameMemoryCache
+    private val contactsBitmapAndNameMemoryCache: ContactBitmapAndNameMemoryCache,
+    private val contactsSnapshot: ContactsSnapshot
 ) : ContactsRepo {
 
-    private val contacts = mutableMapOf<String,FusedContact>()
-    override val all = MutableLiveData(contacts)
+    // Not a ConcurrentHashMap, whose keySet() only returns a KeySetView from API 24
+    private val contacts: ConcurrentMap<String, FusedContact> = ConcurrentHashMap()
+    override val all: Map<String, FusedContact>
+        get() = HashMap(contacts)
+    override val changes = ContactChanges()
+
+    private val changeLock = Any()
+    private val batchDepth = AtomicInteger()
+
+    // How many times the repo has been cleared. Guarded by changeLock.
+    private var clears = 0
+
+    // Geocodes are resolved straight onto a contact's location, so they're only heard about here
+    private val geocodeChangedCallback = object : Observable.OnPropertyChangedCallback() {
+        override fun onPropertyChanged(sender: Observable?, propertyId: Int) {
+            if (propertyId == BR.geocodedLocation) {
+                val contact = sender as FusedContact
+                synchronized(changeLock) {
+                    if (contacts[contact.id] === contact) {
+                        contactsSnapshot.save(contact)
+                    }
+                }
+            }
+        }
+    }
 
     override fun getById(id: String): FusedContact? {
         return contacts[id]
     }
 
-    @Synchronized
-    private fun put(id: String, contact: FusedContact) {
-        Timber.v("new contact allocated id:%s, tid:%s", id, contact.trackerId)
-        contacts[id] = contact
-        all.postValue(contacts)
+    private fun notifyChanged(change: ContactChange) {
+        val id = change.contact.id
+        synchronized(changeLock) {
+            val current = contacts[id]
+            changes.add(
+                when {
+                    current == null -> ContactChange.Removed(change.contact)
+                    change is ContactChange.Removed || current !== change.contact -> ContactChange.Updated(current)
+                    else -> change
+                }
+            )
+            if (current == null) {
+                contactsSnapshot.remove(id)
+            } else {
+                contactsSnapshot.save(current)
+            }
+        }
+        if (batchDepth.get() == 0) {
+            changes.dispatch()
+        }
+    }
+
+    override fun batch(updates: Runnable) {
+        batchDepth.incrementAndGet()
+        try {
+            updates.run()
+        } finally {
+            if (batchDepth.decrementAndGet() == 0) {
+                changes.dispatch()
+            }
+        }
+    }
+
+    /**
+     * Adds [contact] unless there's already a contact with its id
+     *
+     * @return the contact that was already there, or null if [contact] was added
+     */
+    private fun putIfAbsent(contact: FusedContact): FusedContact? {
+        return contacts.putIfAbsent(contact.id, contact) ?: run {
+            onAdded(contact)
+            null
+        }
+    }
+
+    private fun onAdded(contact: FusedContact) {
+        Timber.v("new contact allocated id:%s, tid:%s", contact.id, contact.trackerId)
+        contact.addOnPropertyChangedCallback(geocodeChangedCallback)
+        notifyChanged(ContactChange.Added(contact))
+        eventBus.post(FusedContactAdded(contact))
     }
 
     @MainThread
-    @Synchronized
     override fun clearAll() {
-        contacts.clear()
+        synchronized(changeLock) {
+            clears += 1
+            contactsSnapshot.clear()
+        }
+        batch {
+            contacts.keys.forEach { id ->
+                contacts.remove(id)?.run {
+                    removeOnPropertyChangedCallback(geocodeChangedCallback)
+                    notifyChanged(ContactChange.Removed(this))
+                }
+            }
+        }
         contactsBitmapAndNameMemoryCache.evictAll()
-        all.postValue(contacts)
     }
 
-    @Synchronized
     override fun remove(id: String) {
         Timber.v("removing contact: %s", id)
-        contacts.remove(id)?.run { eventBus.post(FusedContactRemoved(this)) }
-        all.postValue(contacts)
+        contacts.remove(id)?.run {
+            removeOnPropertyChangedCallback(geocodeChangedCallback)
+            notifyChanged(ContactChange.Removed(this))
+            eventBus.post(FusedContactRemoved(this))
+        }
     }
 
-    @Synchronized
     override fun update(id: String, messageCard: MessageCard) {
-        var c = getById(id)
-        if (c != null) {
-            c.messageCard = messageCard
-            contactsBitmapAndNameMemoryCache.put(
-                c.id,
-                ContactBitmapAndName.CardBitmap(messageCard.name, null)
-            )
-            eventBus.post(c)
-        } else {
-            c = FusedContact(id)
-            c.messageCard = messageCard
-            contactsBitmapAndNameMemoryCache.put(
-                c.id,
-                ContactBitmapAndName.CardBitmap(messageCard.name, null)
-            )
-            put(id, c)
-            eventBus.post(FusedContactAdded(c))
+        contactsBitmapAndNameMemoryCache.put(id, ContactBitmapAndName.CardBitmap(messageCard.name, null))
+        val existing = contacts[id] ?: putIfAbsent(FusedContact(id).apply { this.messageCard = messageCard })
+        existing?.run {
+            this.messageCard = messageCard
+            notifyChanged(ContactChange.Updated(this))
+            eventBus.post(this)
         }
     }
 
-    @Synchronized
     override fun update(id: String, messageLocation: MessageLocation) {
-        var fusedContact = getById(id)
-        if (fusedContact != null) {
-            // If timestamp of last location message is <= the new location message, skip update. We either received an old or already known message.
-            if (fusedContact.setMessageLocation(messageLocation)) {
-                all.postValue(contacts)
-                eventBus.post(fusedContact)
+        val existing = contacts[id] ?: putIfAbsent(FusedContact(id).apply {
+            setMessageLocation(messageLocation)
+            // We may have seen this contact id before, and it may have been removed from the repo
+            // Check the cache to see if we have a name
+            contactsBitmapAndNameMemoryCache[id]?.also {
+                if (it is ContactBitmapAndName.CardBitmap && it.name != null) {
+                    this.messageCard = MessageCard().apply { name = it.name }
+                }
             }
-        } else {
-            fusedContact = FusedContact(id).apply {
-                setMessageLocation(messageLocation)
-                // We may have seen this contact id before, and it may have been removed from the repo
-                // Check the cache to see if we have a name
-                contactsBitmapAndNameMemoryCache[id]?.also {
-                    if (it is ContactBitmapAndName.CardBitmap && it.name != null) {
-                        this.messageCard = MessageCard().apply { name = it.name }
+        })
+        // Skip the update if we already have this location or a newer one, as we received an old or already known message
+        if (existing?.setMessageLocation(messageLocation) == true) {
+            notifyChanged(ContactChange.Updated(existing))
+            eventBus.post(existing)
+        }
+    }
+
+    /**
+     * Puts back the contacts from the last time the app ran. Anything heard about since is at least
+     * as new, so they only fill in what's missing, and a retained message that's already been
+     * restored is a no-op when it's replayed.
+     *
+     * [clearsBefore] is how many times the repo had been cleared when the snapshot was read. If it's
+     * been cleared since, the contacts are all from before that and nothing is restored.
+     */
+    private fun restore(restored: Collection<FusedContact>, clearsBefore: Int) {
+        batch {
+            restored.forEach { contact ->
+                val existing = synchronized(changeLock) {
+                    if (clears != clearsBefore) {
+                        return@batch
+                    }
+                    contact.messageCard?.name?.let { name ->
+                        if (contactsBitmapAndNameMemoryCache[contact.id] == null) {
+                            contactsBitmapAndNameMemoryCache.put(contact.id, ContactBitmapAndName.CardBitmap(name, null))
+                        }
+                    }
+                    contacts.putIfAbsent(contact.id, contact)
+                }
+                if (existing == null) {
+                    onAdded(contact)
+                    return@forEach
+                }
+                if (existing.messageCard == null && contact.messageCard != null) {
+                    existing.messageCard = contact.messageCard
+                    notifyChanged(ContactChange.Updated(existing))
+                }
+                contact.messageLocation?.let {
+                    if (existing.setMessageLocation(it)) {
+                        notifyChanged(ContactChange.Updated(existing))
                     }
                 }
             }
-            put(id, fusedContact)
-            eventBus.post(FusedContactAdded(fusedContact))
         }
     }
 
-
     @Subscribe(threadMode = ThreadMode.BACKGROUND)
     fun onEventMainThread(@Suppress("UNUSED_PARAMETER") e: ModeChanged?) {
         clearAll()
@@ -109,6 +224,8 @@ class MemoryContactsRepo @Inject constructor(
     }
 
     init {
+        val clearsBefore = synchronized(changeLock) { clears }
         eventBus.register(this)
+        contactsSnapshot.load { restore(it, clearsBefore) }
     }
-}
\ No newline at end of file
+}
@@ -7,6 +7,8 @@ import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
 import org.owntracks.android.App
 import org.owntracks.android.data.repos.ContactsRepo
+import org.owntracks.android.data.repos.ContactsSnapshot
+import org.owntracks.android.data.repos.FileContactsSnapshot
 import org.owntracks.android.data.repos.MemoryContactsRepo
 import org.owntracks.android.data.repos.ObjectboxWaypointsRepo
 import org.owntracks.android.data.repos.WaypointsRepo
@@ -29,4 +31,7 @@ abstract class ReposAndContextModule {
 
     @Binds
     abstract fun bindMemoryContactsRepo(memoryContactsRepo: MemoryContactsRepo): ContactsRepo
+
+    @Binds
+    abstract fun bindContactsSnapshot(fileContactsSnapshot: FileContactsSnapshot): ContactsSnapshot
 }
\ No newline at end of file
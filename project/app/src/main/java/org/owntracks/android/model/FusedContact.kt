@@ -7,13 +7,19 @@ import org.owntracks.android.location.LatLng
 import org.owntracks.android.model.messages.MessageCard
 import org.owntracks.android.model.messages.MessageLocation
 import timber.log.Timber
+import java.util.concurrent.atomic.AtomicReference
 
 class FusedContact(id: String?) : BaseObservable() {
     @get:Bindable
     val id: String = if (id != null && id.isNotEmpty()) id else "NOID"
 
+    private val latestLocation = AtomicReference<MessageLocation?>()
+
     @get:Bindable
-    var messageLocation: MessageLocation? = null
+    val messageLocation: MessageLocation?
+        get() = latestLocation.get()
+
+    @Volatile
     internal var messageCard: MessageCard? = null
 
     @get:Bindable
@@ -21,15 +27,25 @@ class FusedContact(id: String?) : BaseObservable() {
     var imageProvider = 0
 
     @get:Bindable
-    var tst: Long = 0
-        private set
+    val tst: Long
+        get() = latestLocation.get()?.timestamp ?: 0
 
+    /**
+     * Takes [messageLocation] as this contact's location, unless it already has one at least as new,
+     * as then it's an old or already known message. The location (and with it [tst]) is
+     * compare-and-set, so that updates racing each other settle on the newest whichever order they
+     * land in, without needing a lock.
+     *
+     * @return whether the location was taken
+     */
     fun setMessageLocation(messageLocation: MessageLocation): Boolean {
-        if (tst > messageLocation.timestamp) return false
+        while (true) {
+            val current = latestLocation.get()
+            if (current != null && current.timestamp >= messageLocation.timestamp) return false
+            if (latestLocation.compareAndSet(current, messageLocation)) break
+        }
         Timber.v("update contact:%s, tst:%s", id, messageLocation.timestamp)
         messageLocation.setContact(this) // Allows to update fusedLocation if geocoder of messageLocation changed
-        this.messageLocation = messageLocation
-        tst = messageLocation.timestamp
         notifyMessageLocationPropertyChanged()
         return true
     }
@@ -30,9 +30,14 @@ abstract class MessageBase : BaseObservable() {
     @JsonIgnore
     open val numberOfRetries: Int = 10
 
+    /**
+     * Identifies this message for as long as it's waiting to be sent, including across being
+     * written to and read back from the outgoing queue
+     */
     @get:JsonIgnore
     @JsonIgnore
-    val messageId = "${System.currentTimeMillis()}-${Random().nextInt(0X1000000).toHexString()}"
+    var messageId = "${System.currentTimeMillis()}-${Random().nextInt(0X1000000).toHexString()}"
+        internal set
 
     @JsonIgnore
     open var topic: String = ""
@@ -2,12 +2,17 @@ package org.owntracks.android.model.messages
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.annotation.JsonPropertyOrder
 import com.fasterxml.jackson.annotation.JsonTypeInfo
 
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.EXTERNAL_PROPERTY, property = "_type")
 @JsonIgnoreProperties(ignoreUnknown = true)
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
+@JsonPropertyOrder("kid", "data")
 class MessageEncrypted : MessageBase() {
+    // Which of the receiver's keys to decrypt with, written before the data so that it's known by
+    // the time the data is read
+    var kid: String? = null
     var data: String? = null
 
     companion object {
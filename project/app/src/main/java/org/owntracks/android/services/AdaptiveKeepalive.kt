@@ -0,0 +1,237 @@
+package org.owntracks.android.services
+
+import android.content.Context
+import dagger.hilt.android.qualifiers.ApplicationContext
+import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Learns, for each network, the longest MQTT keepalive that the network will leave an idle
+ * connection open for, so that pings wake the device and the radio as rarely as that network
+ * allows.
+ *
+ * NAT gateways and carrier middleboxes silently drop connections that have been idle for longer
+ * than their own timeout, which can be anything from a few minutes on a mobile network to hours
+ * on a home router. Starting from the configured keepalive, which is never gone below, each new
+ * connection on a network tries double the longest interval known to be safe there until one
+ * fails, and after that the middle of the gap between the two until they're close enough to stop.
+ *
+ * An interval is safe once a connection using it has stayed up for [SAFE_AFTER_INTERVALS]
+ * intervals. It has failed once connections using it have been lost [FAILURES_TO_BACK_OFF] times
+ * in a row on the same network between one and [SAFE_AFTER_INTERVALS] intervals after connecting,
+ * which is when a dropped NAT mapping shows up: the first ping after the idle period goes
+ * unanswered. A loss outside that window, or after the device has moved to another network, says
+ * nothing about the interval and is ignored.
+ */
+@Singleton
+class AdaptiveKeepalive(private val store: Store, private val clock: () -> Long) {
+    @Inject
+    constructor(@ApplicationContext context: Context) :
+            this(FileStore(File(context.noBackupFilesDir, FILENAME)), System::currentTimeMillis)
+
+    interface Store {
+        fun load(): Map<String, Learned>
+        fun save(learned: Map<String, Learned>)
+    }
+
+    /**
+     * What's known about one network: the longest interval that has been safe, the shortest that
+     * hasn't if one has been found, and how many times in a row the interval being tried has been
+     * lost.
+     */
+    data class Learned(val safeSeconds: Int, val failedSeconds: Int? = null, val strikes: Int = 0) {
+        val converged: Boolean
+            get() = safeSeconds >= MAXIMUM_KEEPALIVE ||
+                    failedSeconds != null && failedSeconds - safeSeconds <= maxOf(MINIMUM_STEP, safeSeconds / 10)
+
+        /**
+         * The interval the next connection should use
+         */
+        val nextSeconds: Int
+            get() = when {
+                converged -> safeSeconds
+                failedSeconds == null -> minOf(safeSeconds * 2, MAXIMUM_KEEPALIVE)
+                else -> (safeSeconds + failedSeconds) / 2
+            }
+
+        /**
+         * What's known once the configured keepalive is raised to [floorSeconds], which is used
+         * even if it's failed before
+         */
+        internal fun withFloor(floorSeconds: Int): Learned =
+            if (safeSeconds >= floorSeconds) this else Learned(floorSeconds, failedSeconds?.let { maxOf(it, floorSeconds) })
+    }
+
+    private class Connection(
+        val network: String,
+        val floorSeconds: Int,
+        val intervalSeconds: Int,
+        val connectedAt: Long,
+        var confirmed: Boolean = false
+    ) {
+        fun elapsedIntervals(now: Long) = (now - connectedAt).toDouble() / TimeUnit.SECONDS.toMillis(intervalSeconds.toLong())
+    }
+
+    private val learned: MutableMap<String, Learned> by lazy { store.load().toMutableMap() }
+    private var connection: Connection? = null
+
+    /**
+     * The keepalive to connect to [network] with, given the one that's configured
+     */
+    @Synchronized
+    fun intervalFor(network: String, configuredSeconds: Int): Int =
+        (learned[network] ?: Learned(configuredSeconds)).withFloor(configuredSeconds).nextSeconds
+
+    /**
+     * Starts watching a connection to [network] that's using [intervalSeconds]
+     */
+    @Synchronized
+    fun onConnected(network: String, configuredSeconds: Int, intervalSeconds: Int) {
+        connection = Connection(network, configuredSeconds, intervalSeconds, clock())
+    }
+
+    /**
+     * Tells it the connection is still up, which is all it takes to mark its interval as safe once
+     * it's been up long enough
+     */
+    @Synchronized
+    fun onStillConnected(network: String?) {
+        val current = connection ?: return
+        if (current.network == network) {
+            confirmIfSafe(current)
+        }
+    }
+
+    /**
+     * The connection was closed on purpose, so only how long it lasted counts
+     */
+    @Synchronized
+    fun onDisconnected() {
+        connection?.let(::confirmIfSafe)
+        connection = null
+    }
+
+    /**
+     * The connection was lost while the device was on [network]
+     */
+    @Synchronized
+    fun onConnectionLost(network: String?) {
+        val current = connection ?: return
+        connection = null
+        if (confirmIfSafe(current) || current.network != network) {
+            return
+        }
+        if (current.elapsedIntervals(clock()) < 1) {
+            Timber.v("Connection lost before the first keepalive on %s, not counting it", network)
+            return
+        }
+        val known = (learned[current.network] ?: Learned(current.floorSeconds)).withFloor(current.floorSeconds)
+        val strikes = known.strikes + 1
+        learned[current.network] = when {
+            strikes < FAILURES_TO_BACK_OFF -> known.copy(strikes = strikes)
+            current.intervalSeconds > known.safeSeconds -> {
+                Timber.i("Keepalive of %ss is too long for %s", current.intervalSeconds, network)
+                known.copy(failedSeconds = minOf(current.intervalSeconds, known.failedSeconds ?: Int.MAX_VALUE), strikes = 0)
+            }
+            else -> {
+                // What used to be safe isn't any more, so the network has changed. Start again below it.
+                Timber.i("Keepalive of %ss is no longer safe for %s", current.intervalSeconds, network)
+                Learned(maxOf(current.floorSeconds, current.intervalSeconds / 2), current.intervalSeconds)
+            }
+        }
+        save()
+    }
+
+    private fun confirmIfSafe(current: Connection): Boolean {
+        if (current.confirmed) {
+            return true
+        }
+        if (current.elapsedIntervals(clock()) < SAFE_AFTER_INTERVALS) {
+            return false
+        }
+        current.confirmed = true
+        val known = (learned[current.network] ?: Learned(current.floorSeconds)).withFloor(current.floorSeconds)
+        learned[current.network] = if (current.intervalSeconds > known.safeSeconds) {
+            Timber.d("Keepalive of %ss is safe for %s", current.intervalSeconds, current.network)
+            Learned(current.intervalSeconds, known.failedSeconds?.takeIf { it > current.intervalSeconds })
+        } else {
+            known.copy(strikes = 0)
+        }
+        save()
+        return true
+    }
+
+    private fun save() {
+        try {
+            store.save(learned)
+        } catch (e: IOException) {
+            Timber.e(e, "Unable to save learned keepalives")
+        }
+    }
+
+    /**
+     * Everything that's been learned so far, by network
+     */
+    @Synchronized
+    fun learned(): SortedMap<String, Learned> = learned.toSortedMap()
+
+    /**
+     * Keeps what's been learned in a properties file, replaced atomically on every change
+     */
+    class FileStore(private val file: File) : Store {
+        override fun load(): Map<String, Learned> {
+            val properties = Properties()
+            try {
+                if (file.isFile) {
+                    file.inputStream().use(properties::load)
+                }
+            } catch (e: IOException) {
+                Timber.e(e, "Unable to read learned keepalives from %s", file)
+            } catch (e: IllegalArgumentException) {
+                Timber.e(e, "Unable to read learned keepalives from %s", file)
+            }
+            return properties.stringPropertyNames().mapNotNull { network ->
+                val fields = properties.getProperty(network).split(',')
+                val safe = fields.getOrNull(0)?.toIntOrNull() ?: return@mapNotNull null
+                network to Learned(safe, fields.getOrNull(1)?.toIntOrNull(), fields.getOrNull(2)?.toIntOrNull() ?: 0)
+            }.toMap()
+        }
+
+        @Throws(IOException::class)
+        override fun save(learned: Map<String, Learned>) {
+            val properties = Properties()
+            learned.forEach { (network, value) ->
+                properties.setProperty(network, "${value.safeSeconds},${value.failedSeconds ?: ""},${value.strikes}")
+            }
+            val temporary = File(file.path + ".tmp")
+            temporary.outputStream().use { properties.store(it, null) }
+            if (!temporary.renameTo(file)) {
+                throw IOException("Unable to replace $file")
+            }
+        }
+    }
+
+    companion object {
+        private const val FILENAME = "adaptive-keepalive.properties"
+
+        /**
+         * Longer than this, a lost connection takes too long to notice
+         */
+        @JvmField
+        val MAXIMUM_KEEPALIVE = TimeUnit.HOURS.toSeconds(4).toInt()
+
+        /**
+         * Close enough to stop probing, at this or a tenth of the safe interval
+         */
+        @JvmField
+        val MINIMUM_STEP = TimeUnit.MINUTES.toSeconds(1).toInt()
+
+        const val SAFE_AFTER_INTERVALS = 3
+        const val FAILURES_TO_BACK_OFF = 2
+    }
+}
@@ -0,0 +1,76 @@
+package org.owntracks.android.services
+
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
+import okhttp3.Handshake
+import okhttp3.Protocol
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counts how often the HTTP endpoint's requests open a new connection, and do a TLS handshake on
+ * it, versus reuse one that's already open. On a cellular link the handshakes are most of the cost
+ * of sending a message, so this shows whether connection reuse is actually happening. How long
+ * each successful connect took, TLS included, is recorded in [sendMetrics].
+ */
+class HttpConnectionStats(private val sendMetrics: SendMetrics) : EventListener() {
+    private val connectStartNanos = ConcurrentHashMap<Call, Long>()
+    private val connectionsAcquired = AtomicLong()
+    private val connectsStarted = AtomicLong()
+    private val tlsHandshakesCompleted = AtomicLong()
+
+    /**
+     * Requests that were sent on a connection
+     */
+    val requests: Long
+        get() = connectionsAcquired.get()
+
+    /**
+     * New connections that were opened, whether or not they succeeded
+     */
+    val connects: Long
+        get() = connectsStarted.get()
+
+    val tlsHandshakes: Long
+        get() = tlsHandshakesCompleted.get()
+
+    /**
+     * Requests that were sent on a connection that an earlier request had already opened
+     */
+    val reused: Long
+        get() = (connectionsAcquired.get() - connectsStarted.get()).coerceAtLeast(0)
+
+    override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+        connectsStarted.incrementAndGet()
+        connectStartNanos[call] = System.nanoTime()
+    }
+
+    override fun connectEnd(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy, protocol: Protocol?) {
+        connectStartNanos.remove(call)?.let { sendMetrics.record(SendMetrics.Phase.CONNECT, System.nanoTime() - it) }
+    }
+
+    override fun connectFailed(
+        call: Call,
+        inetSocketAddress: InetSocketAddress,
+        proxy: Proxy,
+        protocol: Protocol?,
+        ioe: IOException
+    ) {
+        connectStartNanos.remove(call)
+    }
+
+    override fun secureConnectEnd(call: Call, handshake: Handshake?) {
+        tlsHandshakesCompleted.incrementAndGet()
+    }
+
+    override fun connectionAcquired(call: Call, connection: Connection) {
+        connectionsAcquired.incrementAndGet()
+    }
+
+    override fun toString(): String =
+        "requests=$requests connects=$connects tlsHandshakes=$tlsHandshakes reused=$reused"
+}
@@ -0,0 +1,57 @@
+package org.owntracks.android.services
+
+import org.owntracks.android.model.messages.MessageBase
+import java.io.ByteArrayOutputStream
+
+/**
+ * A set of messages to be sent to the HTTP endpoint in a single request, as a JSON array of their
+ * serialized forms.
+ *
+ * The batch holds at most [maxMessages] messages and, once it has more than one, at most
+ * [maxBytes] bytes of request body. The first message is always accepted, however large, so that
+ * every message can be sent. A batch of one is sent as the plain message object, exactly as it was
+ * before batching existed, so recorders that don't understand arrays keep working when batching is
+ * turned off.
+ */
+class HttpMessageBatch(private val maxMessages: Int, private val maxBytes: Int) {
+    private val body = ByteArrayOutputStream()
+    private val _messages = mutableListOf<MessageBase>()
+
+    val messages: List<MessageBase>
+        get() = _messages
+
+    val isFull: Boolean
+        get() = _messages.size >= maxMessages || body.size() + ARRAY_OVERHEAD >= maxBytes
+
+    /**
+     * Adds [message], serialized as [json], to the batch. Returns false, leaving the batch
+     * unchanged, if it doesn't fit.
+     */
+    fun add(message: MessageBase, json: ByteArray): Boolean {
+        if (_messages.isNotEmpty()) {
+            // Room for the separating comma and the enclosing brackets
+            if (_messages.size >= maxMessages || body.size() + json.size + ARRAY_OVERHEAD > maxBytes) {
+                return false
+            }
+            body.write(','.code)
+        }
+        body.write(json)
+        _messages.add(message)
+        return true
+    }
+
+    fun toByteArray(): ByteArray {
+        if (_messages.size == 1) {
+            return body.toByteArray()
+        }
+        return ByteArrayOutputStream(body.size() + 2).apply {
+            write('['.code)
+            body.writeTo(this)
+            write(']'.code)
+        }.toByteArray()
+    }
+
+    companion object {
+        private const val ARRAY_OVERHEAD = 3
+    }
+}
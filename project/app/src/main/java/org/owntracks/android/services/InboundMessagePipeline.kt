@@ -0,0 +1,201 @@
+package org.owntracks.android.services
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageClear
+import org.owntracks.android.support.Parser
+import timber.log.Timber
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Takes incoming MQTT messages off Paho's callback thread and gets them to the [Sink] in batches.
+ *
+ * [offer] only puts the raw message on a bounded queue, so Paho can get on with reading the next
+ * one. A single worker parses and decrypts them in the order they arrived, and another hands them
+ * to the sink in batches of whatever has built up, up to [maxBatchSize], so that a burst of
+ * retained messages after subscribing becomes a few large updates rather than thousands of small
+ * ones. If the queue fills up, [offer] blocks, which stops Paho reading from the socket and so
+ * slows the broker down rather than dropping anything. How often and for how long that happens is
+ * counted in [metrics].
+ */
+class InboundMessagePipeline @JvmOverloads constructor(
+    private val parser: Parser,
+    private val sink: Sink,
+    dispatcher: CoroutineDispatcher = Dispatchers.Default,
+    capacity: Int = DEFAULT_CAPACITY,
+    private val maxBatchSize: Int = DEFAULT_MAX_BATCH_SIZE
+) {
+    fun interface Sink {
+        fun onMessagesReceived(messages: List<MessageBase>)
+    }
+
+    private class Received(val topic: String, val message: MqttMessage, val arrivedNanos: Long)
+    private class Decoded(val message: MessageBase, val arrivedNanos: Long)
+
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher + CoroutineName("InboundMessagePipeline"))
+    private val received = Channel<Received>(capacity)
+    private val decoded = Channel<Decoded>(maxBatchSize)
+
+    private val receivedCount = AtomicLong()
+    private val appliedCount = AtomicLong()
+    private val discardedCount = AtomicLong()
+    private val batchCount = AtomicLong()
+    private val queueDepth = AtomicInteger()
+    private val maxQueueDepth = AtomicInteger()
+    private val backpressureCount = AtomicLong()
+    private val backpressureNanos = AtomicLong()
+    private val latency = LatencyHistogram()
+
+    init {
+        scope.launch { decode() }
+        scope.launch { apply() }
+    }
+
+    /**
+     * Queues a message that's just arrived on [topic]. Blocks while the queue is full.
+     */
+    fun offer(topic: String, message: MqttMessage) {
+        val item = Received(topic, message, System.nanoTime())
+        val depth = queueDepth.incrementAndGet()
+        var max = maxQueueDepth.get()
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get()
+        }
+        receivedCount.incrementAndGet()
+        val result = received.trySend(item)
+        if (result.isSuccess) {
+            return
+        }
+        if (result.isClosed) {
+            queueDepth.decrementAndGet()
+            return
+        }
+        backpressureCount.incrementAndGet()
+        val start = System.nanoTime()
+        try {
+            runBlocking { received.send(item) }
+        } catch (e: ClosedSendChannelException) {
+            queueDepth.decrementAndGet()
+        } finally {
+            backpressureNanos.addAndGet(System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * Stops the pipeline for good. Anything still queued is dropped.
+     */
+    fun close() {
+        received.close()
+        scope.cancel()
+    }
+
+    private suspend fun decode() {
+        for (item in received) {
+            queueDepth.decrementAndGet()
+            val message = decode(item.topic, item.message)
+            if (message == null) {
+                discardedCount.incrementAndGet()
+                continue
+            }
+            decoded.send(Decoded(message, item.arrivedNanos))
+        }
+    }
+
+    private suspend fun apply() {
+        val batch = ArrayList<Decoded>(maxBatchSize)
+        for (first in decoded) {
+            batch.add(first)
+            while (batch.size < maxBatchSize) {
+                batch.add(decoded.tryReceive().getOrNull() ?: break)
+            }
+            try {
+                sink.onMessagesReceived(batch.map { it.message })
+            } catch (e: RuntimeException) {
+                Timber.e(e, "Error processing %s incoming messages", batch.size)
+            }
+            val now = System.nanoTime()
+            batch.forEach { latency.recordNanos(now - it.arrivedNanos) }
+            appliedCount.addAndGet(batch.size.toLong())
+            batchCount.incrementAndGet()
+            batch.clear()
+        }
+    }
+
+    private fun decode(topic: String, message: MqttMessage): MessageBase? {
+        try {
+            val m = parser.fromJson(message.payload)
+            if (!m.isValidMessage()) {
+                Timber.e("message failed validation")
+                return null
+            }
+            m.topic = topic
+            m.retained = message.isRetained
+            m.qos = message.qos
+            return m
+        } catch (e: Parser.EncryptionException) {
+            Timber.e(e, "Decryption failure message: %s ", message)
+        } catch (e: IOException) {
+            if (message.payload.isEmpty()) {
+                Timber.d("clear message received: %s", topic)
+                return MessageClear().apply { this.topic = topic.replace(MessageCard.BASETOPIC_SUFFIX, "") }
+            }
+            Timber.e(e, "message: %s", message)
+        } catch (e: RuntimeException) {
+            // Including "Decryption failed. Ciphertext failed verification"
+            Timber.e(e, "Unable to read message on %s", topic)
+        }
+        return null
+    }
+
+    fun metrics() = Metrics(
+        received = receivedCount.get(),
+        applied = appliedCount.get(),
+        discarded = discardedCount.get(),
+        batches = batchCount.get(),
+        queueDepth = queueDepth.get(),
+        maxQueueDepth = maxQueueDepth.get(),
+        backpressureCount = backpressureCount.get(),
+        backpressureMillis = TimeUnit.NANOSECONDS.toMillis(backpressureNanos.get()),
+        latency = latency.snapshot()
+    )
+
+    data class Metrics(
+        val received: Long,
+        val applied: Long,
+        /**
+         * Messages that couldn't be parsed or decrypted, or weren't valid
+         */
+        val discarded: Long,
+        val batches: Long,
+        val queueDepth: Int,
+        val maxQueueDepth: Int,
+        /**
+         * How many times, and for how long in total, Paho was held up because the queue was full
+         */
+        val backpressureCount: Long,
+        val backpressureMillis: Long,
+        /**
+         * From a message arriving to it being handed to the sink
+         */
+        val latency: LatencyHistogram.Snapshot
+    )
+
+    companion object {
+        const val DEFAULT_CAPACITY = 1_000
+        const val DEFAULT_MAX_BATCH_SIZE = 200
+    }
+}
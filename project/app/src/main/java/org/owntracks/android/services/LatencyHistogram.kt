@@ -0,0 +1,116 @@
+package org.owntracks.android.services
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A fixed-size histogram of durations, bucketed like HdrHistogram: each power of two is split into
+ * [SUB_BUCKETS] / 2 linear buckets, so every recorded value is kept to within about 6% whether it's
+ * 50µs or 5 minutes, in a few kilobytes and without allocating. Recording is lock-free, so it's cheap
+ * to do on the send path; reading while values are being recorded can be very slightly out of step.
+ *
+ * Values are recorded in microseconds, and anything above [MAX_MICROS] is counted as [MAX_MICROS].
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(bucketIndex(MAX_MICROS) + 1)
+    private val totalCount = AtomicLong()
+    private val totalMicros = AtomicLong()
+    private val maxMicros = AtomicLong()
+
+    val count: Long
+        get() = totalCount.get()
+
+    fun recordNanos(nanos: Long) {
+        val micros = TimeUnit.NANOSECONDS.toMicros(nanos).coerceIn(0, MAX_MICROS)
+        counts.incrementAndGet(bucketIndex(micros))
+        totalCount.incrementAndGet()
+        totalMicros.addAndGet(micros)
+        var max = maxMicros.get()
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get()
+        }
+    }
+
+    /**
+     * The smallest recorded value, to within the bucket precision, that at least [percentile]
+     * percent of recorded values are at or below. 0 if nothing has been recorded.
+     */
+    fun percentileMicros(percentile: Double): Long {
+        val total = totalCount.get()
+        if (total == 0L) {
+            return 0
+        }
+        val target = Math.ceil(total * percentile / 100).toLong().coerceIn(1, total)
+        var seen = 0L
+        for (index in 0 until counts.length()) {
+            seen += counts.get(index)
+            if (seen >= target) {
+                return highestEquivalentValue(index).coerceAtMost(maxMicros.get())
+            }
+        }
+        return maxMicros.get()
+    }
+
+    fun snapshot(): Snapshot {
+        val total = totalCount.get()
+        return Snapshot(
+            count = total,
+            meanMicros = if (total == 0L) 0 else totalMicros.get() / total,
+            p50Micros = percentileMicros(50.0),
+            p90Micros = percentileMicros(90.0),
+            p99Micros = percentileMicros(99.0),
+            maxMicros = maxMicros.get()
+        )
+    }
+
+    fun reset() {
+        for (index in 0 until counts.length()) {
+            counts.set(index, 0)
+        }
+        totalCount.set(0)
+        totalMicros.set(0)
+        maxMicros.set(0)
+    }
+
+    data class Snapshot(
+        val count: Long,
+        val meanMicros: Long,
+        val p50Micros: Long,
+        val p90Micros: Long,
+        val p99Micros: Long,
+        val maxMicros: Long
+    )
+
+    companion object {
+        private const val SUB_BUCKETS = 32
+        private const val HALF_SUB_BUCKETS = SUB_BUCKETS / 2
+        private const val SUB_BUCKET_BITS = 5
+
+        /**
+         * About 9.5 hours
+         */
+        const val MAX_MICROS = (1L shl 35) - 1
+
+        /**
+         * Values below [SUB_BUCKETS] get a bucket each. Above that, a value whose highest bit is
+         * bit n goes in one of the [HALF_SUB_BUCKETS] buckets for 2^n, chosen by its next 4 bits.
+         */
+        internal fun bucketIndex(value: Long): Int {
+            if (value < SUB_BUCKETS) {
+                return value.toInt()
+            }
+            val shift = (63 - java.lang.Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1
+            return HALF_SUB_BUCKETS * shift + (value shr shift).toInt()
+        }
+
+        internal fun highestEquivalentValue(index: Int): Long {
+            if (index < SUB_BUCKETS) {
+                return index.toLong()
+            }
+            val shift = index / HALF_SUB_BUCKETS - 1
+            val lowest = (index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS).toLong() shl shift
+            return lowest + (1L shl shift) - 1
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.owntracks.android.services
+
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import java.util.concurrent.BlockingDeque
+import kotlin.math.asin
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * Thins out the [MessageLocation]s in an outgoing queue once it grows past [depth] messages, so
+ * that a long period offline doesn't turn into a huge replay on reconnect.
+ *
+ * The queue is walked from the newest message to the oldest. The newest location is always kept,
+ * and an older location is dropped if it's within [intervalSeconds] and within [distanceMeters] of
+ * the last location that was kept, so each run of nearby fixes collapses to its latest one. A
+ * resolution of 0 means that dimension is ignored. Only locations reported automatically (move mode
+ * fixes and pings) are ever dropped: user and cmd-response reports, region-triggered reports and
+ * every other message type, such as transitions and waypoints, are left alone.
+ *
+ * After a run the next one is deferred until the queue has grown by another tenth of [depth], so a
+ * backlog that can't be thinned any further isn't rescanned on every offer. Not thread-safe; callers
+ * serialize access along with their other queue operations.
+ */
+class LocationBacklogCompactor(
+    private val depth: Int,
+    private val intervalSeconds: Long,
+    private val distanceMeters: Int
+) {
+    private var threshold = depth
+
+    /**
+     * Compacts [queue] if it's grown past the current threshold, returning the number of messages
+     * that were dropped
+     */
+    fun maybeCompact(queue: BlockingDeque<MessageBase>): Int {
+        val size = queue.size
+        if (size <= depth) {
+            threshold = depth
+        }
+        if (size <= threshold) {
+            return 0
+        }
+        return compact(queue).also {
+            threshold = maxOf(depth, queue.size + maxOf(1, depth / 10))
+        }
+    }
+
+    /**
+     * Compacts [queue] regardless of its size, returning the number of messages that were dropped
+     */
+    fun compact(queue: BlockingDeque<MessageBase>): Int {
+        if (intervalSeconds <= 0 && distanceMeters <= 0) {
+            return 0
+        }
+        var dropped = 0
+        var kept: MessageLocation? = null
+        val iterator = queue.descendingIterator()
+        while (iterator.hasNext()) {
+            val message = iterator.next()
+            if (message !is MessageLocation || message.trigger !in DROPPABLE_TRIGGERS) {
+                continue
+            }
+            val previous = kept
+            if (previous != null && isRedundant(message, previous)) {
+                iterator.remove()
+                dropped += 1
+            } else {
+                kept = message
+            }
+        }
+        return dropped
+    }
+
+    private fun isRedundant(older: MessageLocation, newer: MessageLocation): Boolean =
+        (intervalSeconds <= 0 || newer.timestamp - older.timestamp < intervalSeconds) &&
+                (distanceMeters <= 0 || distanceBetween(older, newer) < distanceMeters)
+
+    companion object {
+        private const val EARTH_RADIUS_METERS = 6_371_008.8
+        private val DROPPABLE_TRIGGERS = setOf(
+            MessageLocation.REPORT_TYPE_DEFAULT,
+            MessageLocation.REPORT_TYPE_PING
+        )
+
+        /**
+         * Great-circle distance in metres. We can't use [android.location.Location.distanceBetween]
+         * here as this also runs off-device in unit tests, and the haversine formula is plenty
+         * accurate at the resolutions we're thinning at.
+         */
+        internal fun distanceBetween(a: MessageLocation, b: MessageLocation): Double {
+            val lat1 = Math.toRadians(a.latitude)
+            val lat2 = Math.toRadians(b.latitude)
+            val dLat = lat2 - lat1
+            val dLon = Math.toRadians(b.longitude - a.longitude)
+            val h = sin(dLat / 2) * sin(dLat / 2) + cos(lat1) * cos(lat2) * sin(dLon / 2) * sin(dLon / 2)
+            return 2 * EARTH_RADIUS_METERS * asin(sqrt(h.coerceAtMost(1.0)))
+        }
+    }
+}
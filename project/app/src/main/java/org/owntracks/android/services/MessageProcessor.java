@@ -3,6 +3,7 @@ package org.owntracks.android.services;
 import android.content.Context;
 import android.content.res.Resources;
 
+import androidx.annotation.Nullable;
 import androidx.test.espresso.idling.CountingIdlingResource;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -26,15 +27,9 @@ import org.owntracks.android.support.ServiceBridge;
 import org.owntracks.android.support.interfaces.ConfigurationIncompleteException;
 import org.owntracks.android.support.interfaces.StatefulServiceMessageProcessor;
 
-import java.io.IOException;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -63,18 +58,18 @@ public class MessageProcessor {
     private MessageProcessorEndpoint endpoint;
 
     private boolean acceptMessages = false;
-    private final BlockingDeque<MessageBase> outgoingQueue;
-    private Thread backgroundDequeueThread;
+    private final PrioritizedMessageQueue outgoingQueue;
+    private final LocationBacklogCompactor locationBacklogCompactor;
+    private final MessageSendPipeline sendPipeline;
+    private final SendMetrics sendMetrics;
+    private final AdaptiveKeepalive adaptiveKeepalive;
+    private final NetworkStateMonitor networkStateMonitor;
 
     private static final long SEND_FAILURE_BACKOFF_INITIAL_WAIT = TimeUnit.SECONDS.toMillis(1);
     private static final long SEND_FAILURE_BACKOFF_MAX_WAIT = TimeUnit.MINUTES.toMillis(2);
 
     private boolean initialized = false;
 
-    private final Object locker = new Object();
-    private ScheduledFuture<?> waitFuture = null;
-    private long retryWait = SEND_FAILURE_BACKOFF_INITIAL_WAIT;
-
     @Inject
     public MessageProcessor(
             @ApplicationContext Context applicationContext,
@@ -86,6 +81,9 @@ public class MessageProcessor {
             Scheduler scheduler,
             ServiceBridge serviceBridge,
             RunThingsOnOtherThreads runThingsOnOtherThreads,
+            NetworkStateMonitor networkStateMonitor,
+            SendMetrics sendMetrics,
+            AdaptiveKeepalive adaptiveKeepalive,
             CountingIdlingResource outgoingQueueIdlingResource,
             Lazy<LocationProcessor> locationProcessorLazy
     ) {
@@ -101,8 +99,61 @@ public class MessageProcessor {
         this.outgoingQueueIdlingResource = outgoingQueueIdlingResource;
         this.eventBus.register(this);
         this.runThingsOnOtherThreads = runThingsOnOtherThreads;
+        this.sendMetrics = sendMetrics;
+        this.adaptiveKeepalive = adaptiveKeepalive;
+        this.networkStateMonitor = networkStateMonitor;
+
+        int groupCommitWindow = preferences.getQueueGroupCommitWindowMillis();
+        outgoingQueue = new PrioritizedMessageQueue(
+                applicationContext.getFilesDir(),
+                parser,
+                groupCommitWindow > 0 ? new SegmentedLog.GroupCommit(groupCommitWindow, preferences.getQueueGroupCommitMaxBytes()) : null,
+                preferences.getQueueMaxBytes(),
+                // Transitions are rare and important, so don't let them sit in the group commit buffer
+                message -> message instanceof MessageTransition
+        );
+        int compactionDepth = preferences.getQueueCompactionDepth();
+        locationBacklogCompactor = compactionDepth > 0 ? new LocationBacklogCompactor(
+                compactionDepth,
+                preferences.getQueueCompactionIntervalSeconds(),
+                preferences.getQueueCompactionDistanceMeters()
+        ) : null;
+        /*
+        The endpoints aren't thread-safe, so every send happens on the network thread. The pipeline
+        takes messages off the queue on that thread too, so there's no handoff between threads per
+        message.
+        */
+        sendPipeline = new MessageSendPipeline(
+                runThingsOnOtherThreads.getNetworkDispatcher(),
+                new MessageSendPipeline.Queue() {
+                    @Nullable
+                    @Override
+                    public MessageBase poll(boolean metered) {
+                        return pollForSending(metered);
+                    }
+
+                    @Override
+                    public void send(MessageBase message) throws Exception {
+                        endpoint.sendMessage(message);
+                    }
+
+                    @Override
+                    public void requeue(MessageBase message) {
+                        sendMetrics.onRetry();
+                        synchronized (outgoingQueue) {
+                            requeueAtHead(message);
+                        }
+                    }
 
-        outgoingQueue = new BlockingDequeThatAlsoSometimesPersistsThingsToDiskMaybe(10000, applicationContext.getFilesDir(), parser);
+                    @Override
+                    public void onDone(MessageBase message) {
+                        decrementOutgoingQueueIdlingResource();
+                    }
+                },
+                SEND_FAILURE_BACKOFF_INITIAL_WAIT,
+                SEND_FAILURE_BACKOFF_MAX_WAIT
+        );
+        networkStateMonitor.start(sendPipeline::onNetworkStateChanged);
         synchronized (outgoingQueue) {
             for (int i = 0; i < outgoingQueue.size(); i++) {
                 outgoingQueueIdlingResource.increment();
@@ -187,23 +238,20 @@ public class MessageProcessor {
             endpoint.onDestroy();
         }
 
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()).withLaneLengths(outgoingQueue.laneSizes()));
 
         switch (preferences.getMode()) {
             case MessageProcessorEndpointHttp.MODE_ID:
-                this.endpoint = new MessageProcessorEndpointHttp(this, this.parser, this.preferences, this.scheduler, this.applicationContext);
+                this.endpoint = new MessageProcessorEndpointHttp(this, this.parser, this.preferences, this.scheduler, this.sendMetrics, this.applicationContext);
                 break;
             case MessageProcessorEndpointMqtt.MODE_ID:
             default:
-                this.endpoint = new MessageProcessorEndpointMqtt(this, this.parser, this.preferences, this.scheduler, this.eventBus, this.runThingsOnOtherThreads, this.applicationContext);
+                this.endpoint = new MessageProcessorEndpointMqtt(this, this.parser, this.preferences, this.scheduler, this.eventBus, this.runThingsOnOtherThreads, this.sendMetrics, this.adaptiveKeepalive, this.networkStateMonitor, this.applicationContext);
 
         }
 
-        if (backgroundDequeueThread == null || !backgroundDequeueThread.isAlive()) {
-            // Create the background thread that will handle outbound msgs
-            backgroundDequeueThread = new Thread(this::sendAvailableMessages, "backgroundDequeueThread");
-            backgroundDequeueThread.start();
-        }
+        // Replaces the loop that was sending to the old endpoint, once it's finished with it
+        sendPipeline.start();
 
         this.endpoint.onCreateFromProcessor();
         acceptMessages = true;
@@ -213,126 +261,120 @@ public class MessageProcessor {
         if (!acceptMessages) return;
         outgoingQueueIdlingResource.increment();
         Timber.d("Queueing messageId:%s, queueLength:%s, ThreadID: %s", message.getMessageId(), outgoingQueue.size(), Thread.currentThread());
+        PrioritizedMessageQueue.Lane lane = PrioritizedMessageQueue.Lane.of(message);
         synchronized (outgoingQueue) {
-            if (!outgoingQueue.offer(message)) {
-                MessageBase droppedMessage = outgoingQueue.poll();
+            if (locationBacklogCompactor != null) {
+                compactedAway(locationBacklogCompactor.maybeCompact(outgoingQueue.lane(PrioritizedMessageQueue.Lane.BACKGROUND)));
+            }
+            boolean queued = outgoingQueue.offer(message);
+            if (!queued && locationBacklogCompactor != null && lane == PrioritizedMessageQueue.Lane.BACKGROUND) {
+                // Thinning out the backlog is better than losing the oldest message outright
+                compactedAway(locationBacklogCompactor.compact(outgoingQueue.lane(lane)));
+                queued = outgoingQueue.offer(message);
+            }
+            if (!queued) {
+                MessageBase droppedMessage = outgoingQueue.pollFirst(lane);
                 Timber.e("Outgoing queue full. Dropping oldest message: %s", droppedMessage);
+                sendMetrics.onDropped();
                 if (!outgoingQueue.offer(message)) {
                     Timber.e("Still can't put message onto the queue. Dropping: %s", message);
+                    sendMetrics.onDropped();
                 }
             }
         }
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        sendPipeline.onMessageQueued();
+        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()).withLaneLengths(outgoingQueue.laneSizes()));
     }
 
-    // Should be on the background thread here, because we block
-    private void sendAvailableMessages() {
-        Timber.d("Starting outbound message loop. ThreadID: %s", Thread.currentThread());
-        boolean previousMessageFailed = false;
-        int retriesToGo = 0;
-
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private void compactedAway(int count) {
+        if (count > 0) {
+            Timber.i("Compacted %s location messages out of the outgoing queue", count);
+            for (int i = 0; i < count; i++) {
+                decrementOutgoingQueueIdlingResource();
+            }
+        }
+    }
 
-        while (true) {
+    private void decrementOutgoingQueueIdlingResource() {
+        synchronized (outgoingQueueIdlingResource) {
             try {
-                MessageBase message;
-                message = this.outgoingQueue.take(); // <--- blocks
-                if (!previousMessageFailed) {
-                    retriesToGo = message.getNumberOfRetries();
-                }
-
-                /*
-                We need to run the actual network sending part on a different thread because the
-                implementation might not be thread-safe. So we wrap `sendMessage()` up in a callable
-                and a FutureTask and then dispatch it off to the network thread, and block on the
-                return, handling any exceptions that might have been thrown.
-                */
-                Callable<Void> sendMessageCallable = () -> {
-                    this.endpoint.sendMessage(message);
-                    return null;
-                };
-                FutureTask<Void> futureTask = new FutureTask<>(sendMessageCallable);
-                runThingsOnOtherThreads.postOnNetworkHandlerDelayed(futureTask, 1);
-                try {
-                    try {
-                        futureTask.get();
-                    } catch (ExecutionException e) {
-                        if (e.getCause() != null) {
-                            throw e.getCause();
-                        } else {
-                            throw new Exception("sendMessage failed, but no exception actually given");
-                        }
-                    }
-                    previousMessageFailed = false;
-                    retryWait = SEND_FAILURE_BACKOFF_INITIAL_WAIT;
-                } catch (OutgoingMessageSendingException | ConfigurationIncompleteException e) {
-                    Timber.w(("Error sending message. Re-queueing"));
-                    // Let's do a little dance to hammer this failed message back onto the head of the
-                    // queue. If someone's queued something on the tail in the meantime and the queue
-                    // is now empty, then throw that latest message away.
-                    synchronized (this.outgoingQueue) {
-                        if (!this.outgoingQueue.offerFirst(message)) {
-                            MessageBase tailMessage = this.outgoingQueue.removeLast();
-                            Timber.w("Queue full when trying to re-queue failed message. Dropping last message: %s", tailMessage);
-                            if (!this.outgoingQueue.offerFirst(message)) {
-                                Timber.e("Couldn't restore failed message back onto the head of the queue, dropping: %s", message);
-                            }
-                        }
-                    }
-                    previousMessageFailed = true;
-                    retriesToGo -= 1;
-                } catch (IOException e) {
-                    retryWait = SEND_FAILURE_BACKOFF_INITIAL_WAIT;
-                    previousMessageFailed = false;
-                    // Deserialization failure, drop and move on
-                } catch (Throwable e) {
-                    Timber.e(e, "Unhandled exception in sending message");
-                    previousMessageFailed = false;
-                }
-
-                if (previousMessageFailed && retriesToGo <= 0) {
-                    previousMessageFailed = false;
+                if (!outgoingQueueIdlingResource.isIdleNow()) {
+                    outgoingQueueIdlingResource.decrement();
                 }
+            } catch (IllegalStateException e) {
+                Timber.w(e, "outgoingQueueIdlingResource is invalid");
+            }
+        }
+    }
 
-                if (previousMessageFailed) {
-                    Timber.i("Waiting for %s s before retrying", retryWait / 1000);
-                     waitFuture = scheduler.schedule(() -> {
-                        synchronized (locker) {
-                            locker.notify();
-                        }
-                    }, retryWait, TimeUnit.MILLISECONDS);
-                    synchronized (locker) {
-                        locker.wait();
-                    }
-                    retryWait = Math.min(2 * retryWait, SEND_FAILURE_BACKOFF_MAX_WAIT);
-                } else {
-                    synchronized (outgoingQueueIdlingResource) {
-                        try {
-                            if (!outgoingQueueIdlingResource.isIdleNow()) {
-                                outgoingQueueIdlingResource.decrement();
-                            }
-                        } catch (IllegalStateException e) {
-                            Timber.w(e, "outgoingQueueIdlingResource is invalid");
-                        }
-                    }
-                }
-            } catch (InterruptedException e) {
-                Timber.i(e, "Outgoing message loop interrupted");
-                break;
+    /**
+     * Let's do a little dance to hammer a failed message back onto the head of the queue. If
+     * someone's queued something on the tail in the meantime and the queue is now full, then throw
+     * that latest message away. Callers hold the lock on the outgoing queue.
+     */
+    private void requeueAtHead(MessageBase message) {
+        if (!this.outgoingQueue.offerFirst(message)) {
+            MessageBase tailMessage = this.outgoingQueue.pollLast(PrioritizedMessageQueue.Lane.of(message));
+            Timber.w("Queue full when trying to re-queue failed message. Dropping last message: %s", tailMessage);
+            sendMetrics.onDropped();
+            if (!this.outgoingQueue.offerFirst(message)) {
+                Timber.e("Couldn't restore failed message back onto the head of the queue, dropping: %s", message);
+                sendMetrics.onDropped();
             }
         }
-        scheduler.shutdown();
-        Timber.w("Exiting outgoingmessage loop");
     }
 
-    public void resetMessageSleepBlock() {
-        if (waitFuture!=null && waitFuture.cancel(false)) {
-            Timber.d("Resetting message send loop wait. Thread: %s", Thread.currentThread());
-            retryWait = SEND_FAILURE_BACKOFF_INITIAL_WAIT;
-            synchronized (locker) {
-                locker.notify();
+    /**
+     * Puts messages that were taken off the queue but never delivered, such as publishes that were
+     * never acknowledged or the rest of a failed batch, back onto the head of the queue, ahead of
+     * anything queued since and in the order they were originally sent.
+     */
+    void requeueMessages(List<? extends MessageBase> messages) {
+        synchronized (this.outgoingQueue) {
+            ListIterator<? extends MessageBase> iterator = messages.listIterator(messages.size());
+            while (iterator.hasPrevious()) {
+                outgoingQueueIdlingResource.increment();
+                requeueAtHead(iterator.previous());
             }
         }
+        sendPipeline.onMessageQueued();
+        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()).withLaneLengths(outgoingQueue.laneSizes()));
+    }
+
+    /**
+     * Takes the next message that's waiting to be sent without blocking, so that an endpoint can
+     * send it along with the one it's been given
+     */
+    @Nullable
+    MessageBase pollQueuedMessage() {
+        MessageBase message = pollForSending(!networkStateMonitor.getState().getUnmetered());
+        if (message != null) {
+            decrementOutgoingQueueIdlingResource();
+        }
+        return message;
+    }
+
+    /**
+     * Takes the next message to send. On a metered network, a background backlog that's grown past
+     * the limit is left for a cheaper one.
+     */
+    @Nullable
+    private MessageBase pollForSending(boolean metered) {
+        int backlogLimit = preferences.getQueueMeteredBacklogLimit();
+        if (metered && backlogLimit > 0 && outgoingQueue.lane(PrioritizedMessageQueue.Lane.BACKGROUND).size() > backlogLimit) {
+            return outgoingQueue.pollExcept(PrioritizedMessageQueue.Lane.BACKGROUND);
+        }
+        return outgoingQueue.poll();
+    }
+
+    public SendMetrics.Snapshot getSendMetricsSnapshot() {
+        synchronized (outgoingQueue) {
+            return sendMetrics.snapshot(outgoingQueue.size(), outgoingQueue.oldestTimestamp());
+        }
+    }
+
+    public void resetMessageSleepBlock() {
+        sendPipeline.retryNow();
     }
 
     @SuppressWarnings("UnusedParameters")
@@ -351,18 +393,18 @@ public class MessageProcessor {
 
     void onMessageDelivered(MessageBase messageBase) {
         Timber.d("onMessageDelivered in MessageProcessor Noop. ThreadID: %s", Thread.currentThread());
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()).withLaneLengths(outgoingQueue.laneSizes()));
         eventBus.post(messageBase);
     }
 
     void onMessageDeliveryFailedFinal(String messageId) {
         Timber.e("Message delivery failed, not retryable. :%s", messageId);
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()).withLaneLengths(outgoingQueue.laneSizes()));
     }
 
     void onMessageDeliveryFailed(String messageId) {
         Timber.e("Message delivery failed. queueLength: %s, messageId: %s", outgoingQueue.size() + 1, messageId);
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size() + 1)); // Failed message hasn't been re-queued yet, so add 1
+        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size() + 1).withLaneLengths(outgoingQueue.laneSizes())); // Failed message hasn't been re-queued yet, so add 1
     }
 
     void onEndpointStateChanged(EndpointState newState) {
@@ -370,6 +412,17 @@ public class MessageProcessor {
         eventBus.postSticky(newState);
     }
 
+    /**
+     * Processes several incoming messages in order, with the changes to contacts applied as one
+     */
+    public void processIncomingMessages(List<MessageBase> messages) {
+        contactsRepo.batch(() -> {
+            for (MessageBase message : messages) {
+                processIncomingMessage(message);
+            }
+        });
+    }
+
     public void processIncomingMessage(MessageBase message) {
         Timber.i("Received incoming message: %s on %s", message.getClass().getSimpleName(), message.getContactKey());
         if (message instanceof MessageClear) {
@@ -473,8 +526,8 @@ public class MessageProcessor {
     }
 
     public void stopSendingMessages() {
-        Timber.d("Interrupting background sending thread");
-        backgroundDequeueThread.interrupt();
+        Timber.d("Stopping outbound message loop");
+        sendPipeline.stop();
     }
 
     public enum EndpointState {
@@ -5,6 +5,8 @@ import org.owntracks.android.support.interfaces.ConfigurationIncompleteException
 import org.owntracks.android.support.interfaces.OutgoingMessageProcessor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class MessageProcessorEndpoint implements OutgoingMessageProcessor {
     final MessageProcessor messageProcessor;
@@ -19,6 +21,16 @@ public abstract class MessageProcessorEndpoint implements OutgoingMessageProcess
         messageProcessor.processIncomingMessage(onFinalizeMessage(message));
     }
 
+    void onMessagesReceived(List<? extends MessageBase> messages) {
+        List<MessageBase> finalized = new ArrayList<>(messages.size());
+        for (MessageBase message : messages) {
+            message.setIncoming();
+            message.setModeId(getModeId());
+            finalized.add(onFinalizeMessage(message));
+        }
+        messageProcessor.processIncomingMessages(finalized);
+    }
+
     protected abstract MessageBase onFinalizeMessage(MessageBase message);
 
     abstract int getModeId();
@@ -15,12 +15,14 @@ import org.owntracks.android.services.worker.Scheduler;
 import org.owntracks.android.support.Parser;
 import org.owntracks.android.support.Preferences;
 import org.owntracks.android.support.SocketFactory;
+import org.owntracks.android.support.SocketFactoryCache;
 import org.owntracks.android.support.interfaces.ConfigurationIncompleteException;
 import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
@@ -45,6 +47,8 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
     static final String HEADER_USERNAME = "X-Limit-U";
     static final String HEADER_DEVICE = "X-Limit-D";
     private static final String HEADER_USERAGENT = "User-Agent";
+    static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
     static final String METHOD = "POST";
 
     static final String HEADER_AUTHORIZATION = "Authorization";
@@ -53,7 +57,12 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
     private static String httpEndpointHeaderDevice = "";
     private static String httpEndpointHeaderPassword = "";
 
-    private static OkHttpClient mHttpClient;
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+
+    private OkHttpClient mHttpClient;
+    private final SendMetrics sendMetrics;
+    private final HttpConnectionStats connectionStats;
+    private final SocketFactoryCache socketFactoryCache = new SocketFactoryCache();
     private static final MediaType JSON  = MediaType.parse("application/json; charset=utf-8");
 
     public static final String USERAGENT = "Owntracks-Android/"+ BuildConfig.VERSION_CODE;
@@ -64,12 +73,16 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
     private final Scheduler scheduler;
     private final Context applicationContext;
     private HttpUrl httpEndpoint;
+    // Set once the endpoint has refused a compressed request body, until the URL or compression settings change
+    private boolean compressionRejected = false;
 
-    public MessageProcessorEndpointHttp(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, Context applicationContext) {
+    public MessageProcessorEndpointHttp(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, SendMetrics sendMetrics, Context applicationContext) {
         super(messageProcessor);
         this.parser = parser;
         this.preferences = preferences;
         this.scheduler = scheduler;
+        this.sendMetrics = sendMetrics;
+        this.connectionStats = new HttpConnectionStats(sendMetrics);
         this.applicationContext = applicationContext;
 
         preferences.registerOnPreferenceChangedListener(this);
@@ -94,12 +107,13 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
             return null;
         }
 
-        SocketFactory.SocketFactoryOptions socketFactoryOptions = new SocketFactory.SocketFactoryOptions();
+        byte[] caCrt = null;
+        byte[] clientCrt = null;
 
         if (tlsCaCrt.length() > 0) {
             try {
-                socketFactoryOptions.withCaInputStream(applicationContext.openFileInput(tlsCaCrt));
-            } catch (FileNotFoundException e) {
+                caCrt = SocketFactoryCache.readFile(applicationContext, tlsCaCrt);
+            } catch (IOException e) {
                 Timber.e(e);
                 return null;
             }
@@ -107,21 +121,22 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
 
         if (tlsClientCrt.length() > 0)	{
             try {
-                socketFactoryOptions.withClientP12InputStream(applicationContext.openFileInput(tlsClientCrt)).withClientP12Password(preferences.getTlsClientCrtPassword());
-            } catch (FileNotFoundException e1) {
+                clientCrt = SocketFactoryCache.readFile(applicationContext, tlsClientCrt);
+            } catch (IOException e1) {
                 Timber.e(e1);
                 return null;
             }
         }
 
         try {
-            return new SocketFactory(socketFactoryOptions);
+            // The same factory for the same files, so that connections can resume earlier TLS sessions
+            return socketFactoryCache.get(caCrt, clientCrt, clientCrt != null ? preferences.getTlsClientCrtPassword() : null).getSocketFactory();
         } catch (Exception e) {
             return null;
         }
     }
 
-    private OkHttpClient getHttpClient() {
+    OkHttpClient getHttpClient() {
         if(preferences.getDontReuseHttpClient()) {
             return createHttpClient();
         }
@@ -137,15 +152,33 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
     private OkHttpClient createHttpClient() {
         Timber.d("creating new HTTP client instance");
         SocketFactory f = getSocketFactory();
+        int keepaliveSeconds = preferences.getHttpKeepaliveSeconds();
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
                 .followRedirects(true)
                 .followSslRedirects(true)
                 .connectTimeout(preferences.getConnectionTimeoutSeconds(), TimeUnit.SECONDS)
-                .connectionPool(new ConnectionPool(1, 1, TimeUnit.MICROSECONDS))
-                .retryOnConnectionFailure(false)
-                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .eventListener(connectionStats)
                 .cache(null);
 
+        if (keepaliveSeconds > 0) {
+            // Keep connections open between messages so that each one doesn't pay for a new TCP
+            // and TLS handshake. A pooled connection can have been closed by the server while idle,
+            // so let OkHttp retry on a fresh one rather than fail the message.
+            builder.connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, keepaliveSeconds, TimeUnit.SECONDS))
+                    .retryOnConnectionFailure(true);
+        } else {
+            // With no idle connections allowed, each one is closed as soon as its request is done
+            builder.connectionPool(new ConnectionPool(0, 1, TimeUnit.SECONDS))
+                    .retryOnConnectionFailure(false);
+        }
+
+        // HTTP/2 is negotiated with ALPN, so this only makes a difference for https URLs
+        if (preferences.getHttp2()) {
+            builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        } else {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
+
         if(f != null) {
             builder.sslSocketFactory(f, (X509TrustManager) f.getTrustManagers()[0]);
         }
@@ -154,6 +187,7 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
 
 
     private void loadEndpointUrl() {
+        compressionRejected = false;
         try {
             httpEndpointHeaderUser = preferences.getUsername();
             httpEndpointHeaderDevice = preferences.getDeviceId();
@@ -175,27 +209,20 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
     }
 
     @Nullable
-    Request getRequest(MessageBase message) {
-        try {
-            this.checkConfigurationComplete();
-        } catch (ConfigurationIncompleteException e) {
-            return null;
-        }
-        Timber.d("url:%s, messageId:%s", this.httpEndpoint, message.getMessageId());
-
-        String body;
-        try {
-            body = message.toJson(parser);
-        } catch (IOException e) { // Message serialization failed. This shouldn't happen.
-            messageProcessor.onEndpointStateChanged(EndpointState.ERROR.withMessage(e.getMessage()));
-            return null;
-        }
-
-
+    Request getRequest(byte[] body) {
         // Any exception here (invalid header value, invalid URL, etc) will persist for all future messages until configuration is fixed.
         // Setting httpEndpoint to null will make sure no message can be send until the problem is corrected.
         try {
-            Request.Builder request = new Request.Builder().url(this.httpEndpoint).header(HEADER_USERAGENT,USERAGENT).method(METHOD, RequestBody.create(JSON, body));
+            Request.Builder request = new Request.Builder().url(this.httpEndpoint).header(HEADER_USERAGENT,USERAGENT);
+
+            String contentEncoding = getContentEncoding(body);
+            if (contentEncoding != null) {
+                byte[] compressed = RequestBodyCompression.compress(body, contentEncoding);
+                Timber.d("Compressed request body with %s from %d to %d bytes", contentEncoding, body.length, compressed.length);
+                request.method(METHOD, RequestBody.create(JSON, compressed)).header(HEADER_CONTENT_ENCODING, contentEncoding);
+            } else {
+                request.method(METHOD, RequestBody.create(JSON, body));
+            }
 
             if(isSet(httpEndpointHeaderUser) && isSet(httpEndpointHeaderPassword)) {
                 request.header(HEADER_AUTHORIZATION, Credentials.basic(httpEndpointHeaderUser, httpEndpointHeaderPassword));
@@ -221,28 +248,116 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
     }
 
 
+    @Nullable
+    private String getContentEncoding(byte[] body) {
+        String encoding = preferences.getHttpCompression();
+        if (compressionRejected || Preferences.HTTP_COMPRESSION_NONE.equals(encoding) || body.length < preferences.getHttpCompressionMinBytes()) {
+            return null;
+        }
+        return encoding;
+    }
+
+    /**
+     * Executes [request]. If it had a compressed body and the endpoint says it can't handle that,
+     * it's sent again uncompressed, and so is everything after it.
+     */
+    private Response execute(Request request, byte[] body) throws IOException {
+        Response response = getHttpClient().newCall(request).execute();
+        if (response.code() != HTTP_UNSUPPORTED_MEDIA_TYPE || request.header(HEADER_CONTENT_ENCODING) == null) {
+            return response;
+        }
+        response.close();
+        Timber.w("HTTP endpoint doesn't accept %s request bodies. Sending uncompressed", request.header(HEADER_CONTENT_ENCODING));
+        compressionRejected = true;
+        Request uncompressed = request.newBuilder()
+                .removeHeader(HEADER_CONTENT_ENCODING)
+                .method(METHOD, RequestBody.create(JSON, body))
+                .build();
+        return getHttpClient().newCall(uncompressed).execute();
+    }
+
     private static boolean isSet(String str) {
         return str != null && str.length() > 0;
     }
 
-    void sendMessage(MessageBase message) throws OutgoingMessageSendingException {
+    @Nullable
+    private byte[] prepareMessage(MessageBase message) {
         message.addMqttPreferences(preferences);
         // HTTP messages carry the topic field in the body of the message, rather than MQTT which
         // simply publishes the message to that topic.
         message.setTopicVisible();
+        try {
+            return message.toJsonBytes(parser);
+        } catch (IOException e) { // Message serialization failed. This shouldn't happen.
+            messageProcessor.onEndpointStateChanged(EndpointState.ERROR.withMessage(e.getMessage()));
+            messageProcessor.onMessageDeliveryFailedFinal(message.getMessageId());
+            return null;
+        }
+    }
+
+    /**
+     * Starts a batch with [message] and, if batching is enabled, tops it up with whatever else is
+     * already waiting in the outgoing queue. A message that doesn't fit goes straight back.
+     */
+    @Nullable
+    private HttpMessageBatch collectBatch(MessageBase message) {
+        HttpMessageBatch batch = new HttpMessageBatch(preferences.getHttpBatchMaxMessages(), preferences.getHttpBatchMaxBytes());
+        byte[] json = prepareMessage(message);
+        if (json == null) {
+            return null;
+        }
+        batch.add(message, json);
+        while (!batch.isFull()) {
+            MessageBase next = messageProcessor.pollQueuedMessage();
+            if (next == null) {
+                break;
+            }
+            json = prepareMessage(next);
+            if (json != null && !batch.add(next, json)) {
+                messageProcessor.requeueMessages(Collections.singletonList(next));
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Sends [message], along with anything else that's queued if batching is enabled. If the request
+     * fails, the other messages in the batch are put back on the queue ahead of anything else, and
+     * the caller re-queues [message] ahead of them, so the batch is retried as a whole and in order.
+     */
+    void sendMessage(MessageBase message) throws OutgoingMessageSendingException {
         String messageId = message.getMessageId();
         long startTime = System.nanoTime();
-        Request request = getRequest(message);
+        if (this.httpEndpoint == null) {
+            messageProcessor.onMessageDeliveryFailedFinal(messageId);
+            return;
+        }
+        HttpMessageBatch batch = collectBatch(message);
+        if (batch == null) {
+            return;
+        }
+        List<MessageBase> messages = batch.getMessages();
+        Timber.d("url:%s, messageId:%s, batch size:%d", this.httpEndpoint, messageId, messages.size());
+        byte[] body = batch.toByteArray();
+        Request request = getRequest(body);
         if(request == null) {
-            messageProcessor.onMessageDeliveryFailedFinal(message.getMessageId());
+            for (MessageBase batched : messages) {
+                messageProcessor.onMessageDeliveryFailedFinal(batched.getMessageId());
+            }
             return;
         }
-        try(Response response = getHttpClient().newCall(request).execute()) {
+        long requestStartTime = System.nanoTime();
+        try(Response response = execute(request, body)) {
             // Message was send. Handle delivered message
             if((response.isSuccessful())) {
                 long endTime = System.nanoTime();
                 long duration = (endTime - startTime);
-                Timber.i("Message id=%s sent in %dms", messageId, TimeUnit.NANOSECONDS.toMillis(duration));
+                sendMetrics.record(SendMetrics.Phase.PUBLISH, endTime - requestStartTime);
+                sendMetrics.onBytesSent(response.request().body().contentLength());
+                sendMetrics.onDelivered(messages.size());
+                Timber.i("Message id=%s sent with %d others in %dms", messageId, messages.size() - 1, TimeUnit.NANOSECONDS.toMillis(duration));
+                Timber.d("HTTP connections: %s", connectionStats);
                 // Handle response
                 if(response.body() != null ) {
                     try {
@@ -265,6 +380,7 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
                 Exception httpException = new Exception(String.format("HTTP request failed. Status: %s", response.code()));
                 Timber.e(httpException);
                 messageProcessor.onEndpointStateChanged(EndpointState.ERROR.withMessage(String.format(Locale.ROOT, "HTTP code %d", response.code())));
+                requeueRestOfBatch(messages);
                 messageProcessor.onMessageDeliveryFailed(messageId);
                 throw new OutgoingMessageSendingException(httpException);
             }
@@ -272,14 +388,33 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
         } catch (IOException e) {
             Timber.e(e, "HTTP Delivery failed ");
             messageProcessor.onEndpointStateChanged(EndpointState.ERROR.withError(e));
+            requeueRestOfBatch(messages);
             messageProcessor.onMessageDeliveryFailed(messageId);
             throw new OutgoingMessageSendingException(e);
         }
-        messageProcessor.onMessageDelivered(message);
+        for (MessageBase batched : messages) {
+            messageProcessor.onMessageDelivered(batched);
+        }
+    }
+
+    private void requeueRestOfBatch(List<MessageBase> messages) {
+        if (messages.size() > 1) {
+            messageProcessor.requeueMessages(messages.subList(1, messages.size()));
+        }
+    }
+
+    /**
+     * How often requests have had to open a new connection rather than reuse one
+     */
+    HttpConnectionStats getConnectionStats() {
+        return connectionStats;
     }
 
     @Override
     public void onDestroy() {
+        if (mHttpClient != null) {
+            mHttpClient.connectionPool().evictAll();
+        }
         scheduler.cancelHttpTasks();
         preferences.unregisterOnPreferenceChangedListener(this);
 
@@ -299,10 +434,22 @@ public class MessageProcessorEndpointHttp extends MessageProcessorEndpoint imple
                         || preferences.getPreferenceKey(R.string.preferenceKeyDeviceId).equals(key)) {
             messageProcessor.resetMessageSleepBlock();
             loadEndpointUrl();
+            if (mHttpClient != null) {
+                // Don't keep connections to the old endpoint open
+                mHttpClient.connectionPool().evictAll();
+            }
         } else if (preferences.getPreferenceKey(R.string.preferenceKeyTLSClientCrt).equals(key)
                 || preferences.getPreferenceKey(R.string.preferenceKeyTLSClientCrtPassword).equals(key)
-                || preferences.getPreferenceKey(R.string.preferenceKeyTLSCaCrt).equals(key)) {
+                || preferences.getPreferenceKey(R.string.preferenceKeyTLSCaCrt).equals(key)
+                || preferences.getPreferenceKey(R.string.preferenceKeyConnectionTimeoutSeconds).equals(key)
+                || preferences.getPreferenceKey(R.string.preferenceKeyHttpKeepaliveSeconds).equals(key)
+                || preferences.getPreferenceKey(R.string.preferenceKeyHttp2).equals(key)) {
+            if (mHttpClient != null) {
+                mHttpClient.connectionPool().evictAll();
+            }
             mHttpClient = null;
+        } else if (preferences.getPreferenceKey(R.string.preferenceKeyHttpCompression).equals(key)) {
+            compressionRejected = false;
         }
     }
 
@@ -10,6 +10,7 @@ import android.os.Looper;
 
 import androidx.annotation.WorkerThread;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
@@ -18,40 +19,34 @@ import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.greenrobot.eventbus.EventBus;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.owntracks.android.R;
 import org.owntracks.android.model.messages.MessageBase;
-import org.owntracks.android.model.messages.MessageCard;
-import org.owntracks.android.model.messages.MessageClear;
 import org.owntracks.android.services.MessageProcessor.EndpointState;
 import org.owntracks.android.services.worker.Scheduler;
 import org.owntracks.android.support.Events;
 import org.owntracks.android.support.Parser;
 import org.owntracks.android.support.Preferences;
 import org.owntracks.android.support.RunThingsOnOtherThreads;
-import org.owntracks.android.support.SocketFactory;
+import org.owntracks.android.support.SocketFactoryCache;
 import org.owntracks.android.support.interfaces.ConfigurationIncompleteException;
 import org.owntracks.android.support.interfaces.StatefulServiceMessageProcessor;
 import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.Semaphore;
@@ -61,11 +56,20 @@ import timber.log.Timber;
 
 public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint implements StatefulServiceMessageProcessor, OnModeChangedPreferenceChangedListener {
     public static final int MODE_ID = 0;
+    private static final long SEND_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final String PERSISTENCE_DIRECTORY = "mqtt";
+    private static final String MQTT5_PERSISTENCE_DIRECTORY = "mqtt5";
+    // The lowest SUBACK return code that refuses a subscription, in both MQTT 3 and 5
+    private static final int SUBSCRIPTION_FAILED = 0x80;
 
     private IMqttAsyncClient mqttClient;
+    private MqttInFlightWindow inFlightWindow;
+    private volatile IMqttToken connectToken;
 
     private String lastConnectionId;
     private static MessageProcessor.EndpointState state;
+    // The sessions whose persisted outgoing messages have been taken since the app started
+    private static final Set<String> takenOutboundSessions = Collections.synchronizedSet(new HashSet<>());
 
     private final MessageProcessor messageProcessor;
     private final RunThingsOnOtherThreads runThingsOnOtherThreads;
@@ -75,15 +79,27 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
     private final Preferences preferences;
     private final Scheduler scheduler;
     private final EventBus eventBus;
+    private final SendMetrics sendMetrics;
+    private final AdaptiveKeepalive adaptiveKeepalive;
+    private final NetworkStateMonitor networkStateMonitor;
+
+    // The keepalive the current connection was made with, and the network it was worked out for
+    private int keepaliveSeconds;
+    private String keepaliveNetwork;
 
     private final Semaphore connectingLock = new Semaphore(1);
+    private final SocketFactoryCache socketFactoryCache = new SocketFactoryCache();
+    private volatile InboundMessagePipeline inboundPipeline;
 
-    MessageProcessorEndpointMqtt(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, EventBus eventBus, RunThingsOnOtherThreads runThingsOnOtherThreads, Context applicationContext) {
+    MessageProcessorEndpointMqtt(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, EventBus eventBus, RunThingsOnOtherThreads runThingsOnOtherThreads, SendMetrics sendMetrics, AdaptiveKeepalive adaptiveKeepalive, NetworkStateMonitor networkStateMonitor, Context applicationContext) {
         super(messageProcessor);
         this.parser = parser;
         this.preferences = preferences;
         this.scheduler = scheduler;
         this.eventBus = eventBus;
+        this.sendMetrics = sendMetrics;
+        this.adaptiveKeepalive = adaptiveKeepalive;
+        this.networkStateMonitor = networkStateMonitor;
         this.messageProcessor = messageProcessor;
         this.runThingsOnOtherThreads = runThingsOnOtherThreads;
         this.applicationContext = applicationContext;
@@ -100,6 +116,8 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         try {
             if (!checkConnection()) {
                 reconnect();
+            } else if (isAdaptiveKeepaliveEnabled()) {
+                adaptiveKeepalive.onStillConnected(networkStateMonitor.currentNetworkName());
             }
         } finally {
             if (completionNotifier != null) {
@@ -125,12 +143,24 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         }
 
         try {
-            IMqttDeliveryToken pubToken = this.mqttClient.publish(m.getTopic(), m.toJsonBytes(parser), m.getQos(), m.getRetained());
+            byte[] payload = m.toJsonBytes(parser);
+            if (inFlightWindow != null) {
+                if (!inFlightWindow.publish(this.mqttClient, m, payload, SEND_TIMEOUT_MILLIS)) {
+                    Timber.w("%s messages still awaiting acknowledgement after %dms", inFlightWindow.getSize(), SEND_TIMEOUT_MILLIS);
+                    throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+                }
+                sendMetrics.onBytesSent(payload.length);
+                return;
+            }
             long startTime = System.nanoTime();
-            pubToken.waitForCompletion(TimeUnit.SECONDS.toMillis(30));
+            IMqttDeliveryToken pubToken = this.mqttClient.publish(m.getTopic(), payload, m.getQos(), m.getRetained());
+            pubToken.waitForCompletion(SEND_TIMEOUT_MILLIS);
             long endTime = System.nanoTime();
             long duration = (endTime - startTime);
             Timber.i("%s id=%s sent in %dms", m.getClass().getSimpleName(), messageId, TimeUnit.NANOSECONDS.toMillis(duration));
+            sendMetrics.record(SendMetrics.Phase.PUBLISH, duration);
+            sendMetrics.onBytesSent(payload.length);
+            sendMetrics.onDelivered(1);
             messageProcessor.onMessageDelivered(m);
         } catch (MqttException e) {
             Timber.e(e, "MQTT Exception delivering message");
@@ -141,6 +171,41 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
             Timber.e(e, "JSON serialization failed for message %s. Message will be dropped", m.getMessageId());
             messageProcessor.onMessageDeliveryFailedFinal(messageId);
             throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            messageProcessor.onMessageDeliveryFailed(messageId);
+            throw new OutgoingMessageSendingException(e);
+        }
+    }
+
+    private final MqttInFlightWindow.Listener inFlightListener = new MqttInFlightWindow.Listener() {
+        @Override
+        public void onAcknowledged(@NotNull MessageBase message, long elapsedNanos) {
+            Timber.i("%s id=%s acknowledged in %dms", message.getClass().getSimpleName(), message.getMessageId(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            sendMetrics.record(SendMetrics.Phase.PUBLISH, elapsedNanos);
+            sendMetrics.onDelivered(1);
+            messageProcessor.onMessageDelivered(message);
+        }
+
+        @Override
+        public void onFailed(@NotNull List<? extends MessageBase> unacknowledged, Throwable cause) {
+            Timber.e(cause, "MQTT Exception delivering pipelined message. Re-queueing %s unacknowledged messages", unacknowledged.size());
+            messageProcessor.requeueMessages(unacknowledged);
+        }
+    };
+
+    /**
+     * Puts anything published on the current client that hasn't been acknowledged yet back on the
+     * queue. Once the client is gone its tokens will never complete.
+     */
+    private void requeueInFlightMessages() {
+        if (inFlightWindow == null) {
+            return;
+        }
+        List<MessageBase> unacknowledged = inFlightWindow.drain();
+        if (!unacknowledged.isEmpty()) {
+            Timber.w("Re-queueing %s unacknowledged messages", unacknowledged.size());
+            messageProcessor.requeueMessages(unacknowledged);
         }
     }
 
@@ -159,7 +224,11 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         @Override
         public void connectionLost(Throwable cause) {
             Timber.e(cause, "connectionLost error");
+            if (isAdaptiveKeepaliveEnabled()) {
+                adaptiveKeepalive.onConnectionLost(networkStateMonitor.currentNetworkName());
+            }
             scheduler.cancelMqttPing();
+            requeueInFlightMessages();
             changeState(EndpointState.DISCONNECTED.withError(cause));
             Timber.d("Releasing connectinglock");
             connectingLock.release();
@@ -168,40 +237,16 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
 
         @Override
         public void messageArrived(String topic, MqttMessage message) {
-            try {
-                MessageBase m = parser.fromJson(message.getPayload());
-                if (!m.isValidMessage()) {
-                    Timber.e("message failed validation");
-                    return;
-                }
-                m.setTopic(topic);
-                m.setRetained(message.isRetained());
-                m.setQos(message.getQos());
-                onMessageReceived(m);
-            } catch (Parser.EncryptionException e) {
-                Timber.e(e, "Decryption failure message: %s ", message);
-            } catch (IOException e) {
-                if (message.getPayload().length == 0) {
-                    Timber.d("clear message received: %s", topic);
-                    MessageClear m = new MessageClear();
-                    m.setTopic(topic.replace(MessageCard.BASETOPIC_SUFFIX, ""));
-                    onMessageReceived(m);
-                } else {
-                    Timber.e(e, "message: %s", message);
-                }
-            } catch (RuntimeException e) {
-                if (e.getMessage() != null && e.getMessage().equals("Decryption failed. Ciphertext failed verification")) {
-                    Timber.e(e);
-                } else {
-                    throw e;
-                }
-            }
+            inboundPipeline.offer(topic, message);
         }
     };
 
-    private IMqttAsyncClient buildMqttClient() throws URISyntaxException, MqttException {
-        Timber.d("Initializing new mqttClient");
-
+    /**
+     * Returns the current client if it's for the same broker and client id, so that its threads,
+     * session state and message ids carry over to the next connection, and otherwise replaces it
+     * with a new one.
+     */
+    private IMqttAsyncClient getMqttClient() throws URISyntaxException, MqttException {
         String scheme = "tcp";
         if (preferences.getTls()) {
             if (preferences.getWs()) {
@@ -214,12 +259,44 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         }
 
         String cid = preferences.getClientId();
+        boolean mqtt5 = preferences.getMqttProtocolLevel() == Mqtt5AsyncClient.MQTT_VERSION_5;
 
         String connectString = new URI(scheme, null, preferences.getHost(), preferences.getPort(), null, null, null).toString();
-        Timber.d("client id :%s, connect string: %s", cid, connectString);
-        try {
+        Timber.d("client id :%s, connect string: %s, MQTT 5: %s", cid, connectString, mqtt5);
+        if (mqttClient != null) {
+            if (connectString.equals(mqttClient.getServerURI()) && cid.equals(mqttClient.getClientId()) &&
+                    mqtt5 == (mqttClient instanceof Mqtt5AsyncClient)) {
+                // Anything that was in flight has already been requeued, so don't let paho resend it.
+                // Paho's MQTT 5 client can't drop a message, so it's only reused with none in flight.
+                boolean removed = true;
+                if (mqttClient instanceof Mqtt5AsyncClient) {
+                    removed = mqttClient.getPendingDeliveryTokens().length == 0;
+                } else {
+                    for (IMqttDeliveryToken token : mqttClient.getPendingDeliveryTokens()) {
+                        removed &= mqttClient.removeMessage(token);
+                    }
+                }
+                if (removed) {
+                    Timber.d("Reusing mqttClient");
+                    return mqttClient;
+                }
+                Timber.d("Unable to drop in-flight messages from mqttClient, replacing it");
+            }
+            closeMqttClient();
+        }
 
-            IMqttAsyncClient mqttClient = new MqttAsyncClient(connectString, cid, new MemoryPersistence());
+        Timber.d("Initializing new mqttClient");
+        try {
+            File persistenceDirectory = getPersistenceDirectory(mqtt5);
+            MqttFilePersistence persistence = new MqttFilePersistence(persistenceDirectory);
+            List<byte[]> unacknowledged = persistence.takeOutbound(cid, connectString, mqtt5);
+            // Anything that was in flight on a client from this run of the app has already been
+            // requeued, or is still being retried by the send pipeline. What was in flight when the
+            // app was last killed is only on disk.
+            if (takenOutboundSessions.add(persistenceDirectory.getPath() + "/" + cid + "/" + connectString)) {
+                requeuePersistedMessages(unacknowledged);
+            }
+            IMqttAsyncClient mqttClient = mqtt5 ? new Mqtt5AsyncClient(connectString, cid, persistence) : new MqttAsyncClient(connectString, cid, persistence);
             mqttClient.setCallback(iCallbackClient);
             return mqttClient;
         } catch (IllegalArgumentException e) {
@@ -227,6 +304,38 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         }
     }
 
+    private File getPersistenceDirectory(boolean mqtt5) {
+        // The two clients persist their session state in different formats
+        return new File(applicationContext.getNoBackupFilesDir(), mqtt5 ? MQTT5_PERSISTENCE_DIRECTORY : PERSISTENCE_DIRECTORY);
+    }
+
+    private void requeuePersistedMessages(List<byte[]> payloads) {
+        List<MessageBase> messages = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads) {
+            try {
+                messages.add(parser.fromJson(payload));
+            } catch (IOException | Parser.EncryptionException e) {
+                Timber.e(e, "Unable to read persisted outgoing MQTT message. Dropping it");
+            }
+        }
+        if (!messages.isEmpty()) {
+            Timber.w("Re-queueing %s messages left in flight when the app was last stopped", messages.size());
+            messageProcessor.requeueMessages(messages);
+        }
+    }
+
+    private void closeMqttClient() {
+        if (mqttClient == null) {
+            return;
+        }
+        try {
+            mqttClient.close();
+        } catch (MqttException e) {
+            Timber.w(e, "Error closing mqtt client");
+        }
+        mqttClient = null;
+    }
+
     private int sendMessageConnectPressure = 0;
 
     @WorkerThread
@@ -275,7 +384,10 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
                     }
                 }
             }
-            this.mqttClient = buildMqttClient();
+            requeueInFlightMessages();
+            this.mqttClient = getMqttClient();
+            int maxInflight = preferences.getMqttMaxInflight();
+            this.inFlightWindow = maxInflight > 1 ? new MqttInFlightWindow(maxInflight, inFlightListener) : null;
         } catch (URISyntaxException | MqttException e) {
             Timber.e(e, "Error creating MQTT client");
             Timber.d("Releasing connectinglock");
@@ -287,11 +399,29 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         try {
             MqttConnectOptions mqttConnectOptions = getMqttConnectOptions();
             Timber.v("MQTT connecting synchronously");
-            IMqttToken token = this.mqttClient.connect(mqttConnectOptions);
-            token.waitForCompletion();
+            long startTime = System.nanoTime();
+            // Never leave the previous connection's token for onConnect to find
+            connectToken = null;
+            connectToken = this.mqttClient.connect(mqttConnectOptions);
+            connectToken.waitForCompletion();
+            sendMetrics.record(SendMetrics.Phase.CONNECT, System.nanoTime() - startTime);
+            if (inFlightWindow != null && this.mqttClient instanceof Mqtt5AsyncClient) {
+                // Paho's MQTT 5 client fails any publish beyond what the broker says it'll take
+                int serverReceiveMaximum = ((Mqtt5AsyncClient) this.mqttClient).getServerReceiveMaximum();
+                if (serverReceiveMaximum < inFlightWindow.getCapacity()) {
+                    Timber.d("Broker takes %s messages in flight, not %s", serverReceiveMaximum, inFlightWindow.getCapacity());
+                    inFlightWindow = serverReceiveMaximum > 1 ? new MqttInFlightWindow(serverReceiveMaximum, inFlightListener) : null;
+                }
+            }
         } catch (MqttException e) {
             if (e.getReasonCode() != 32100) {
                 // Client is not already connected
+                if (e.getReasonCode() == MqttException.REASON_CODE_CONNECT_IN_PROGRESS ||
+                        e.getReasonCode() == MqttException.REASON_CODE_CLIENT_DISCONNECTING ||
+                        e.getReasonCode() == MqttException.REASON_CODE_CLIENT_CLOSED) {
+                    // The client is stuck part way through something. Start again with a new one.
+                    closeMqttClient();
+                }
                 Timber.d("Releasing connectinglock");
                 changeState(EndpointState.ERROR.withError(e));
                 throw new MqttConnectionException(e);
@@ -316,36 +446,20 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
             connectOptions.setPassword(preferences.getPassword().toCharArray());
         }
 
-        connectOptions.setMqttVersion(preferences.getMqttProtocolLevel());
-        InputStream clientCaInputStream = null;
-        InputStream clientCertInputStream = null;
-        try {
-            if (preferences.getTls()) {
-                String tlsCaCrt = preferences.getTlsCaCrt();
-                String tlsClientCrt = preferences.getTlsClientCrt();
-
-                SocketFactory.SocketFactoryOptions socketFactoryOptions = new SocketFactory.SocketFactoryOptions();
+        // There's no MQTT 5 in the MQTT 3 options. The MQTT 5 client knows which version it speaks.
+        if (preferences.getMqttProtocolLevel() != Mqtt5AsyncClient.MQTT_VERSION_5) {
+            connectOptions.setMqttVersion(preferences.getMqttProtocolLevel());
+        }
+        if (preferences.getTls()) {
+            String tlsCaCrt = preferences.getTlsCaCrt();
+            String tlsClientCrt = preferences.getTlsClientCrt();
+            byte[] caCrt = null;
+            byte[] clientCrt = null;
 
+            try {
                 if (tlsCaCrt.length() > 0) {
                     try {
-                        clientCaInputStream = applicationContext.openFileInput(tlsCaCrt);
-                        socketFactoryOptions.withCaInputStream(clientCaInputStream);
-
-                        /* The default for paho is to validate hostnames as per the HTTPS spec. However, this causes
-                        a bit of a breakage for some users using self-signed certificates, where the verification of
-                        the hostname is unnecessary under certain circumstances. Specifically when the fingerprint of
-                        the server leaf certificate is the same as the certificate supplied as the CA (as would be the
-                        case using self-signed certs.
-
-                        So we turn off HTTPS behaviour and supply our own hostnameverifier that knows about the self-signed
-                        case.
-                         */
-
-                        connectOptions.setHttpsHostnameVerificationEnabled(false);
-                        try (FileInputStream caFileInputStream = applicationContext.openFileInput(tlsCaCrt)) {
-                            X509Certificate ca = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(caFileInputStream);
-                            connectOptions.setSSLHostnameVerifier(new MqttHostnameVerifier(ca));
-                        }
+                        caCrt = SocketFactoryCache.readFile(applicationContext, tlsCaCrt);
                     } catch (FileNotFoundException e) {
                         Timber.e(e);
                     }
@@ -353,31 +467,32 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
 
                 if (tlsClientCrt.length() > 0) {
                     try {
-                        clientCertInputStream = applicationContext.openFileInput(tlsClientCrt);
-                        socketFactoryOptions.withClientP12InputStream(clientCertInputStream).withClientP12Password(preferences.getTlsClientCrtPassword());
+                        clientCrt = SocketFactoryCache.readFile(applicationContext, tlsClientCrt);
                     } catch (FileNotFoundException e) {
                         Timber.e(e);
                     }
                 }
 
-                connectOptions.setSocketFactory(new SocketFactory(socketFactoryOptions));
-            }
+                SocketFactoryCache.Entry tls = socketFactoryCache.get(caCrt, clientCrt, clientCrt != null ? preferences.getTlsClientCrtPassword() : null);
+                if (tls.getCaCertificate() != null) {
+                    /* The default for paho is to validate hostnames as per the HTTPS spec. However, this causes
+                    a bit of a breakage for some users using self-signed certificates, where the verification of
+                    the hostname is unnecessary under certain circumstances. Specifically when the fingerprint of
+                    the server leaf certificate is the same as the certificate supplied as the CA (as would be the
+                    case using self-signed certs.
 
-        } catch (CertificateException | NoSuchAlgorithmException | UnrecoverableKeyException | KeyStoreException | KeyManagementException | IOException e) {
-            changeState(EndpointState.ERROR.withError(e).withMessage("TLS setup failed"));
-            throw new MqttConnectionException(e);
-        } finally {
-            try {
-                if (clientCaInputStream != null) {
-                    clientCaInputStream.close();
-                }
-                if (clientCertInputStream != null) {
-                    clientCertInputStream.close();
+                    So we turn off HTTPS behaviour and supply our own hostnameverifier that knows about the self-signed
+                    case.
+                     */
+
+                    connectOptions.setHttpsHostnameVerificationEnabled(false);
+                    connectOptions.setSSLHostnameVerifier(new MqttHostnameVerifier(tls.getCaCertificate()));
                 }
-            } catch (IOException e) {
-                Timber.e(e);
+                connectOptions.setSocketFactory(tls.getSocketFactory());
+            } catch (GeneralSecurityException | IOException e) {
+                changeState(EndpointState.ERROR.withError(e).withMessage("TLS setup failed"));
+                throw new MqttConnectionException(e);
             }
-
         }
 
         setWill(connectOptions);
@@ -385,7 +500,14 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         // Autoconnect in paho is *hilariously* buggy. Expect much sadness and many race conditions
         // if you think enabling this is a good idea
         connectOptions.setAutomaticReconnect(false);
-        connectOptions.setKeepAliveInterval(preferences.getKeepalive());
+        keepaliveSeconds = preferences.getKeepalive();
+        keepaliveNetwork = isAdaptiveKeepaliveEnabled() ? networkStateMonitor.currentNetworkName() : null;
+        if (keepaliveNetwork != null) {
+            keepaliveSeconds = adaptiveKeepalive.intervalFor(keepaliveNetwork, preferences.getKeepalive());
+            Timber.d("Using a keepalive of %ss on %s", keepaliveSeconds, keepaliveNetwork);
+        }
+        connectOptions.setKeepAliveInterval(keepaliveSeconds);
+        connectOptions.setMaxInflight(Math.max(preferences.getMqttMaxInflight(), MqttConnectOptions.MAX_INFLIGHT_DEFAULT));
         connectOptions.setConnectionTimeout(preferences.getConnectionTimeoutSeconds());
 
         connectOptions.setCleanSession(preferences.getCleanSession());
@@ -408,7 +530,10 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
 
     private void onConnect() {
         Timber.d("MQTT connected!. Running onconnect handler (threadID %s)", Thread.currentThread());
-        scheduler.scheduleMqttMaybeReconnectAndPing(preferences.getKeepalive());
+        scheduler.scheduleMqttMaybeReconnectAndPing(keepaliveSeconds);
+        if (keepaliveNetwork != null) {
+            adaptiveKeepalive.onConnected(keepaliveNetwork, preferences.getKeepalive(), keepaliveSeconds);
+        }
 
         Timber.d("Releasing connectinglock");
         connectingLock.release();
@@ -437,7 +562,16 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         // Receive commands for us
         topics.add(preferences.getPubTopicBase() + preferences.getPubTopicCommandsPart());
 
-        subscribe(topics.toArray(new String[0]));
+        // Subscribing again would have the broker resend every retained message we already have
+        MqttFilePersistence.Subscriptions subscriptions = new MqttFilePersistence.Subscriptions(topics, preferences.getSubQos());
+        MqttFilePersistence persistence = new MqttFilePersistence(getPersistenceDirectory(mqttClient instanceof Mqtt5AsyncClient));
+        IMqttToken token = connectToken;
+        if (!preferences.getCleanSession() && token != null && token.getSessionPresent()
+                && subscriptions.equals(persistence.readSubscriptions(mqttClient.getClientId(), mqttClient.getServerURI()))) {
+            Timber.d("Broker kept our session, not resubscribing to %s", topics);
+        } else {
+            subscribe(subscriptions, persistence);
+        }
 
         messageProcessor.resetMessageSleepBlock();
     }
@@ -460,25 +594,49 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         return topics;
     }
 
-    private void subscribe(String[] topics) {
+    /**
+     * Subscribes to the given topics and, once the broker has granted all of them, records them
+     * alongside the session as what it's subscribed to
+     */
+    private void subscribe(MqttFilePersistence.Subscriptions subscriptions, MqttFilePersistence persistence) {
         if (!isConnected()) {
             Timber.e("subscribe when not connected");
             return;
         }
+        String clientId = mqttClient.getClientId();
+        String serverURI = mqttClient.getServerURI();
+        // Until the broker has answered, what it has on record for us isn't known
+        persistence.writeSubscriptions(clientId, serverURI, null);
         try {
-            int[] qos = getSubTopicsQos(topics);
-            this.mqttClient.subscribe(topics, qos);
+            String[] topics = subscriptions.getTopics().toArray(new String[0]);
+            int[] qos = new int[topics.length];
+            Arrays.fill(qos, subscriptions.getQos());
+            this.mqttClient.subscribe(topics, qos, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    int[] grantedQos = asyncActionToken.getGrantedQos();
+                    if (grantedQos == null) {
+                        return;
+                    }
+                    for (int granted : grantedQos) {
+                        if (granted >= SUBSCRIPTION_FAILED) {
+                            Timber.w("Broker refused a subscription to one of %s", subscriptions.getTopics());
+                            return;
+                        }
+                    }
+                    persistence.writeSubscriptions(clientId, serverURI, subscriptions);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    Timber.e(exception, "Subscribe failed");
+                }
+            });
         } catch (MqttException e) {
             changeState(EndpointState.ERROR.withError(e).withMessage("Subscribe failed"));
         }
     }
 
-    private int[] getSubTopicsQos(String[] topics) {
-        int[] qos = new int[topics.length];
-        Arrays.fill(qos, preferences.getSubQos());
-        return qos;
-    }
-
     private void disconnect() {
         Timber.d("disconnect. ThreadID: %s", Thread.currentThread());
         if (isConnecting()) {
@@ -495,6 +653,10 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         } catch (MqttException | IllegalArgumentException e) {
             Timber.e(e, "Error disconnecting from broker");
         } finally {
+            if (isAdaptiveKeepaliveEnabled()) {
+                adaptiveKeepalive.onDisconnected();
+            }
+            requeueInFlightMessages();
             changeState(EndpointState.DISCONNECTED);
             scheduler.cancelMqttPing();
             scheduler.cancelMqttReconnect();
@@ -539,6 +701,10 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         return isConnected();
     }
 
+    private boolean isAdaptiveKeepaliveEnabled() {
+        return adaptiveKeepalive != null && preferences.isExperimentalFeatureEnabled(Preferences.EXPERIMENTAL_FEATURE_ADAPTIVE_KEEPALIVE);
+    }
+
     private void changeState(EndpointState newState) {
         if (state == newState)
             return;
@@ -573,11 +739,16 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
     @Override
     public void onDestroy() {
         disconnect();
+        closeMqttClient();
+        if (inboundPipeline != null) {
+            inboundPipeline.close();
+        }
         scheduler.cancelMqttTasks();
     }
 
     @Override
     public void onCreateFromProcessor() {
+        inboundPipeline = new InboundMessagePipeline(parser, this::onMessagesReceived);
         try {
             checkConfigurationComplete();
             scheduler.scheduleMqttReconnect();
@@ -597,6 +768,7 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
             return;
         }
         if (preferences.getPreferenceKey(R.string.preferenceKeyMqttProtocolLevel).equals(key) ||
+                preferences.getPreferenceKey(R.string.preferenceKeyMqttMaxInflight).equals(key) ||
                 preferences.getPreferenceKey(R.string.preferenceKeyHost).equals(key) ||
                 preferences.getPreferenceKey(R.string.preferenceKeyPassword).equals(key) ||
                 preferences.getPreferenceKey(R.string.preferenceKeyPort).equals(key) ||
@@ -613,6 +785,14 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         }
     }
 
+    /**
+     * How incoming messages are getting on, and how often they've arrived faster than they can be
+     * processed
+     */
+    InboundMessagePipeline.Metrics getInboundMetrics() {
+        return inboundPipeline != null ? inboundPipeline.metrics() : null;
+    }
+
     @Override
     int getModeId() {
         return MODE_ID;
@@ -0,0 +1,317 @@
+package org.owntracks.android.services
+
+import org.owntracks.android.model.BatteryStatus
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import org.owntracks.android.model.messages.MessageWaypoint
+import org.owntracks.android.model.messages.MessageWaypoints
+import org.owntracks.android.model.messages.MessageWithCreatedAt
+import org.owntracks.android.support.MessageWaypointCollection
+import org.owntracks.android.support.Parser
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Encodes outgoing messages into the form that's persisted in the [SegmentedMessageQueue]'s log
+ *
+ * Every record starts with a format version byte, a type byte and the message's
+ * [MessageBase.messageId]. The common message types (locations, transitions, waypoints and cards)
+ * then have their fields written in a fixed order, using variable-length integers and
+ * length-prefixed UTF-8 strings. Every other type is followed by the plain JSON that the queue used
+ * to store. Bare JSON always starts with `{`, which is never a valid version byte, so records
+ * written before this codec existed still decode, as do records from before the message id was
+ * kept; both get a new id.
+ *
+ * Only fields that the JSON form round-tripped are persisted; topic, qos and retain are applied by
+ * the endpoint at send time.
+ */
+class MessageQueueCodec(private val parser: Parser) {
+    @Throws(IOException::class)
+    fun encode(message: MessageBase): ByteArray {
+        val type = when (message) {
+            is MessageLocation -> TYPE_LOCATION
+            is MessageTransition -> TYPE_TRANSITION
+            is MessageWaypoint -> TYPE_WAYPOINT
+            is MessageWaypoints -> TYPE_WAYPOINTS
+            is MessageCard -> TYPE_CARD
+            else -> TYPE_JSON
+        }
+        return Writer().apply {
+            writeByte(FORMAT_VERSION)
+            writeByte(type)
+            writeString(message.messageId)
+            when (message) {
+                is MessageLocation -> writeLocation(message)
+                is MessageTransition -> writeTransition(message)
+                is MessageWaypoint -> writeWaypoint(message)
+                is MessageWaypoints -> writeWaypoints(message)
+                is MessageCard -> writeCard(message)
+                else -> write(parser.toUnencryptedJsonBytes(message))
+            }
+        }.toByteArray()
+    }
+
+    @Throws(IOException::class)
+    fun decode(bytes: ByteArray): MessageBase {
+        if (bytes.isNotEmpty() && bytes[0] == JSON_OBJECT_START) {
+            return parser.fromUnencryptedJson(bytes)
+        }
+        val reader = Reader(bytes)
+        val version = reader.readByte()
+        if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_ID) {
+            throw IOException("Unsupported queue entry format version $version")
+        }
+        val type = reader.readByte()
+        val messageId = if (version == FORMAT_VERSION) reader.readString() else null
+        return when (type) {
+            TYPE_LOCATION -> reader.readLocation()
+            TYPE_TRANSITION -> reader.readTransition()
+            TYPE_WAYPOINT -> reader.readWaypoint()
+            TYPE_WAYPOINTS -> reader.readWaypoints()
+            TYPE_CARD -> reader.readCard()
+            TYPE_JSON -> parser.fromUnencryptedJson(reader.readRemaining())
+            else -> throw IOException("Unknown queue entry type $type")
+        }.apply {
+            messageId?.let { this.messageId = it }
+        }
+    }
+
+    private fun Writer.writeLocation(message: MessageLocation) {
+        writeVarLong(message.createdAt)
+        writeString(message.trackerId)
+        writeString(message.trigger)
+        writeVarLong(message.battery.toLong())
+        writeVarLong(message.batteryStatus?.value?.toLong() ?: -1)
+        writeVarLong(message.accuracy.toLong())
+        writeVarLong(message.verticalAccuracy.toLong())
+        writeDouble(message.latitude)
+        writeDouble(message.longitude)
+        writeVarLong(message.altitude.toLong())
+        writeVarLong(message.velocity.toLong())
+        writeVarLong(message.timestamp)
+        writeNullableInt(message.monitoringMode)
+        writeString(message.conn)
+        writeStringList(message.inregions)
+        writeString(message.bssid)
+        writeString(message.ssid)
+    }
+
+    private fun Reader.readLocation(): MessageLocation {
+        val created = readVarLong()
+        return MessageLocation(object : MessageWithCreatedAt {
+            override val createdAt: Long = created
+        }).apply {
+            trackerId = readString()
+            trigger = readString()
+            battery = readVarLong().toInt()
+            batteryStatus = readVarLong().let { value -> BatteryStatus.values().firstOrNull { it.value.toLong() == value } }
+            accuracy = readVarLong().toInt()
+            verticalAccuracy = readVarLong().toInt()
+            latitude = readDouble()
+            longitude = readDouble()
+            altitude = readVarLong().toInt()
+            velocity = readVarLong().toInt()
+            timestamp = readVarLong()
+            monitoringMode = readNullableInt()
+            conn = readString()
+            inregions = readStringList()
+            bssid = readString()
+            ssid = readString()
+        }
+    }
+
+    private fun Writer.writeTransition(message: MessageTransition) {
+        writeString(message.trackerId)
+        writeString(message.event)
+        writeString(message.description)
+        writeString(message.trigger)
+        writeVarLong(message.timestamp)
+        writeVarLong(message.waypointTimestamp)
+        writeFloat(message.accuracy)
+        writeDouble(message.latitude)
+        writeDouble(message.longitude)
+    }
+
+    private fun Reader.readTransition(): MessageTransition = MessageTransition().apply {
+        trackerId = readString()
+        event = readString()
+        description = readString()
+        trigger = readString()
+        timestamp = readVarLong()
+        waypointTimestamp = readVarLong()
+        accuracy = readFloat()
+        latitude = readDouble()
+        longitude = readDouble()
+    }
+
+    private fun Writer.writeWaypoint(message: MessageWaypoint) {
+        writeString(message.trackerId)
+        writeString(message.description)
+        writeDouble(message.latitude)
+        writeDouble(message.longitude)
+        writeVarLong(message.timestamp)
+        writeNullableInt(message.radius)
+    }
+
+    private fun Reader.readWaypoint(): MessageWaypoint = MessageWaypoint().apply {
+        trackerId = readString()
+        description = readString()
+        latitude = readDouble()
+        longitude = readDouble()
+        timestamp = readVarLong()
+        radius = readNullableInt()
+    }
+
+    private fun Writer.writeWaypoints(message: MessageWaypoints) {
+        writeString(message.trackerId)
+        val waypoints = message.waypoints
+        writeVarLong(waypoints?.size?.toLong() ?: -1)
+        waypoints?.forEach { writeWaypoint(it) }
+    }
+
+    private fun Reader.readWaypoints(): MessageWaypoints = MessageWaypoints().apply {
+        trackerId = readString()
+        val count = readVarLong()
+        waypoints = if (count < 0) null else MessageWaypointCollection().apply {
+            repeat(count.toInt()) { add(readWaypoint()) }
+        }
+    }
+
+    private fun Writer.writeCard(message: MessageCard) {
+        writeString(message.trackerId)
+        writeString(message.name)
+        writeString(message.face)
+    }
+
+    private fun Reader.readCard(): MessageCard = MessageCard().apply {
+        trackerId = readString()
+        name = readString()
+        face = readString()
+    }
+
+    private class Writer : ByteArrayOutputStream(64) {
+        fun writeByte(value: Byte) {
+            write(value.toInt())
+        }
+
+        /**
+         * Zig-zag encodes [value] so that small negative numbers stay short, then writes it 7 bits at
+         * a time
+         */
+        fun writeVarLong(value: Long) {
+            var remaining = (value shl 1) xor (value shr 63)
+            while (remaining and 0x7FL.inv() != 0L) {
+                write(((remaining and 0x7F) or 0x80).toInt())
+                remaining = remaining ushr 7
+            }
+            write(remaining.toInt())
+        }
+
+        fun writeDouble(value: Double) {
+            write(ByteBuffer.allocate(8).putDouble(value).array())
+        }
+
+        fun writeFloat(value: Float) {
+            write(ByteBuffer.allocate(4).putFloat(value).array())
+        }
+
+        fun writeNullableInt(value: Int?) {
+            if (value == null) {
+                write(0)
+            } else {
+                write(1)
+                writeVarLong(value.toLong())
+            }
+        }
+
+        /**
+         * Writes the UTF-8 length plus one, so that a null string can be told apart from an empty one
+         */
+        fun writeString(value: String?) {
+            if (value == null) {
+                writeVarLong(0)
+            } else {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                writeVarLong(bytes.size + 1L)
+                write(bytes)
+            }
+        }
+
+        fun writeStringList(value: List<String>?) {
+            writeVarLong(value?.size?.toLong() ?: -1)
+            value?.forEach(::writeString)
+        }
+    }
+
+    private class Reader(bytes: ByteArray) {
+        private val buffer = ByteBuffer.wrap(bytes)
+
+        private inline fun <T> read(block: ByteBuffer.() -> T): T = try {
+            buffer.block()
+        } catch (e: RuntimeException) {
+            throw EOFException("Truncated queue entry")
+        }
+
+        fun readByte(): Byte = read { get() }
+
+        fun readVarLong(): Long {
+            var raw = 0L
+            var shift = 0
+            while (true) {
+                val byte = readByte().toLong()
+                raw = raw or ((byte and 0x7F) shl shift)
+                if (byte and 0x80 == 0L) {
+                    break
+                }
+                shift += 7
+                if (shift > 63) {
+                    throw IOException("Malformed variable-length integer")
+                }
+            }
+            return (raw ushr 1) xor -(raw and 1)
+        }
+
+        fun readDouble(): Double = read { double }
+
+        fun readFloat(): Float = read { float }
+
+        fun readNullableInt(): Int? = if (readByte() == 0.toByte()) null else readVarLong().toInt()
+
+        fun readString(): String? {
+            val length = readVarLong() - 1
+            if (length < 0) {
+                return null
+            }
+            if (length > buffer.remaining()) {
+                throw EOFException("Truncated queue entry")
+            }
+            return String(buffer.array(), buffer.position(), length.toInt(), Charsets.UTF_8).also {
+                buffer.position(buffer.position() + length.toInt())
+            }
+        }
+
+        fun readRemaining(): ByteArray =
+            buffer.array().copyOfRange(buffer.position(), buffer.limit()).also { buffer.position(buffer.limit()) }
+
+        fun readStringList(): List<String>? {
+            val count = readVarLong()
+            return if (count < 0) null else (0 until count).map { readString() ?: "" }
+        }
+    }
+
+    companion object {
+        private const val FORMAT_VERSION: Byte = 2
+        private const val FORMAT_VERSION_WITHOUT_ID: Byte = 1
+        private const val JSON_OBJECT_START: Byte = 0x7B // '{'
+        private const val TYPE_JSON: Byte = 0
+        private const val TYPE_LOCATION: Byte = 1
+        private const val TYPE_TRANSITION: Byte = 2
+        private const val TYPE_WAYPOINT: Byte = 3
+        private const val TYPE_WAYPOINTS: Byte = 4
+        private const val TYPE_CARD: Byte = 5
+    }
+}
@@ -0,0 +1,216 @@
+package org.owntracks.android.services
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.support.interfaces.ConfigurationIncompleteException
+import timber.log.Timber
+import java.io.IOException
+import kotlin.random.Random
+
+/**
+ * Takes messages off the outgoing queue and hands them to the endpoint, one at a time, retrying
+ * failed sends with exponential backoff.
+ *
+ * The whole loop runs as a single coroutine on [dispatcher], which should be confined to one
+ * thread because the endpoints aren't thread-safe. Taking a message off the queue and sending it
+ * happen on that same thread, with no hop between them. While the queue is empty, or while waiting
+ * to retry, the coroutine is suspended rather than blocking the thread, so other work posted to it
+ * still runs.
+ *
+ * The pipeline is paused for as long as [onNetworkStateChanged] says there's no network, rather
+ * than burning retries and waking up to fail. When a network comes back it resumes straight away,
+ * cutting short any backoff. Backoff waits are jittered, so that devices that lost the same
+ * network don't all retry in step.
+ *
+ * [start] replaces any loop that's already running. The new loop doesn't start until the old one
+ * has finished its current send and exited, so two loops never send at once.
+ */
+class MessageSendPipeline @JvmOverloads constructor(
+    dispatcher: CoroutineDispatcher,
+    private val queue: Queue,
+    private val initialBackoffMillis: Long,
+    private val maxBackoffMillis: Long,
+    private val random: Random = Random.Default
+) {
+    interface Queue {
+        /**
+         * Takes the next message to send, or returns null if there isn't one. [metered] is true if
+         * the only network available is metered, so that a backlog can be left for a cheaper one.
+         */
+        fun poll(metered: Boolean): MessageBase?
+
+        @Throws(Exception::class)
+        fun send(message: MessageBase)
+
+        /**
+         * Puts a message that failed to send back onto the head of the queue
+         */
+        fun requeue(message: MessageBase)
+
+        /**
+         * Called once the pipeline is finished with a message, whether or not it was sent
+         */
+        fun onDone(message: MessageBase)
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher + CoroutineName("MessageSendPipeline"))
+    private val messagesQueued = Channel<Unit>(Channel.CONFLATED)
+    private val retryRequested = Channel<Unit>(Channel.CONFLATED)
+    private val networkState = MutableStateFlow(NetworkState.ASSUMED_ONLINE)
+    private var job: Job? = null
+
+    @Volatile
+    private var waitingToRetry = false
+
+    @Synchronized
+    fun start() {
+        val previous = job
+        job = scope.launch {
+            previous?.cancelAndJoin()
+            run()
+        }
+    }
+
+    @Synchronized
+    fun stop() {
+        job?.cancel()
+    }
+
+    /**
+     * Stops the pipeline for good
+     */
+    fun close() {
+        scope.cancel()
+    }
+
+    /**
+     * Wakes the pipeline up if it's waiting for something to be queued
+     */
+    fun onMessageQueued() {
+        messagesQueued.trySend(Unit)
+    }
+
+    /**
+     * If the pipeline is waiting to retry a failed send, retries it now and resets the backoff.
+     * Returns whether it was waiting.
+     */
+    fun retryNow(): Boolean {
+        if (!waitingToRetry) {
+            return false
+        }
+        retryRequested.trySend(Unit)
+        return true
+    }
+
+    fun onNetworkStateChanged(state: NetworkState) {
+        val previous = networkState.value
+        networkState.value = state
+        if (state.online && (!previous.online || (state.unmetered && !previous.unmetered))) {
+            // Whatever we're backing off from most likely happened while the network was down
+            retryNow()
+            // Anything held back for an unmetered network may now be sendable
+            onMessageQueued()
+        }
+    }
+
+    private suspend fun run() {
+        Timber.d("Starting outbound message loop. ThreadID: %s", Thread.currentThread())
+        var previousMessageFailed = false
+        var failedMessageId: String? = null
+        var retriesToGo = 0
+        var retryWait = initialBackoffMillis
+        try {
+            while (true) {
+                val message = next()
+                // A higher priority lane may have jumped in ahead of the message that failed. The
+                // queue may also have read the failed one back from disk as a new object.
+                if (!previousMessageFailed || message.messageId != failedMessageId) {
+                    retriesToGo = message.numberOfRetries
+                }
+                try {
+                    queue.send(message)
+                    previousMessageFailed = false
+                    retryWait = initialBackoffMillis
+                } catch (e: OutgoingMessageSendingException) {
+                    onSendFailed(message)
+                    previousMessageFailed = true
+                } catch (e: ConfigurationIncompleteException) {
+                    onSendFailed(message)
+                    previousMessageFailed = true
+                } catch (e: IOException) {
+                    // Deserialization failure, drop and move on
+                    retryWait = initialBackoffMillis
+                    previousMessageFailed = false
+                } catch (e: Exception) {
+                    Timber.e(e, "Unhandled exception in sending message")
+                    previousMessageFailed = false
+                }
+
+                if (previousMessageFailed) {
+                    failedMessageId = message.messageId
+                    retriesToGo -= 1
+                    if (retriesToGo <= 0) {
+                        previousMessageFailed = false
+                    }
+                }
+
+                if (previousMessageFailed) {
+                    // Somewhere between half and all of the backoff
+                    val jitteredWait = retryWait / 2 + random.nextLong(retryWait / 2 + 1)
+                    Timber.i("Waiting for %s ms before retrying", jitteredWait)
+                    retryWait = if (waitToRetry(jitteredWait)) {
+                        Timber.d("Resetting message send loop wait. Thread: %s", Thread.currentThread())
+                        initialBackoffMillis
+                    } else {
+                        (2 * retryWait).coerceAtMost(maxBackoffMillis)
+                    }
+                } else {
+                    queue.onDone(message)
+                }
+            }
+        } finally {
+            Timber.w("Exiting outgoing message loop")
+        }
+    }
+
+    private fun onSendFailed(message: MessageBase) {
+        Timber.w("Error sending message. Re-queueing")
+        queue.requeue(message)
+    }
+
+    private suspend fun next(): MessageBase {
+        while (true) {
+            val network = networkState.value.takeIf { it.online } ?: run {
+                Timber.d("Waiting for a network before sending")
+                networkState.first { it.online }
+            }
+            queue.poll(!network.unmetered)?.let { return it }
+            messagesQueued.receive()
+        }
+    }
+
+    /**
+     * Returns true if [retryNow] cut the wait short
+     */
+    private suspend fun waitToRetry(millis: Long): Boolean {
+        // Drop any request that came in after the last wait had already ended
+        retryRequested.tryReceive()
+        waitingToRetry = true
+        try {
+            return withTimeoutOrNull(millis) { retryRequested.receive() } != null
+        } finally {
+            waitingToRetry = false
+        }
+    }
+}
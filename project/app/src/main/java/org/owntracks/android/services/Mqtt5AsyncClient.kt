@@ -0,0 +1,445 @@
+package org.owntracks.android.services
+
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions
+import org.eclipse.paho.client.mqttv3.IMqttActionListener
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener
+import org.eclipse.paho.client.mqttv3.IMqttToken
+import org.eclipse.paho.client.mqttv3.MqttCallback
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.MqttException
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage
+import org.eclipse.paho.mqttv5.client.MqttActionListener
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse
+import org.eclipse.paho.mqttv5.common.MqttSubscription
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties
+import org.eclipse.paho.mqttv5.common.packet.MqttReturnCode
+import timber.log.Timber
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.TimeUnit
+import org.eclipse.paho.mqttv5.client.DisconnectedBufferOptions as Mqtt5BufferOptions
+import org.eclipse.paho.mqttv5.client.IMqttMessageListener as Mqtt5MessageListener
+import org.eclipse.paho.mqttv5.client.IMqttToken as Mqtt5Token
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient as Mqtt5Client
+import org.eclipse.paho.mqttv5.client.MqttCallback as Mqtt5Callback
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence as Mqtt5Persistence
+import org.eclipse.paho.mqttv5.client.internal.MqttPersistentData as Mqtt5PersistentData
+import org.eclipse.paho.mqttv5.common.MqttException as Mqtt5Exception
+import org.eclipse.paho.mqttv5.common.MqttMessage as Mqtt5Message
+import org.eclipse.paho.mqttv5.common.MqttPersistable as Mqtt5Persistable
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException as Mqtt5PersistenceException
+
+/**
+ * Paho's MQTT 5 client behind the same [IMqttAsyncClient] as its MQTT 3 one, so that the endpoint
+ * and [MqttInFlightWindow] only need to know which one to build. What MQTT 5 gets us:
+ *
+ * - Topic aliases. If the broker takes them, Paho sends the topic with an alias the first time it's
+ *   published to on a connection and only the two byte alias after that, so the locations topic
+ *   isn't repeated in every publish. The broker may do the same for up to [TOPIC_ALIAS_MAXIMUM]
+ *   topics it sends to us.
+ * - Session expiry. A session that isn't clean is kept by the broker for [sessionExpiryInterval]
+ *   seconds after we go away, rather than for ever, so it's safe to resume sessions by default.
+ * - Receive maximum. We tell the broker to send us at most [receiveMaximum] unacknowledged QoS 1
+ *   and 2 messages at once, and it tells us how many it'll take in [serverReceiveMaximum]. Paho
+ *   fails any publish over the broker's limit rather than waiting, so publishers need to keep
+ *   within it.
+ *
+ * The MQTT 3 options are translated as they are, apart from the protocol version and the maximum
+ * in flight, which the broker now decides. A message can't be taken back once it's been published,
+ * so [removeMessage] never removes anything.
+ */
+class Mqtt5AsyncClient @JvmOverloads @Throws(MqttException::class) constructor(
+    serverURI: String,
+    clientId: String,
+    persistence: MqttFilePersistence,
+    private val sessionExpiryInterval: Long = DEFAULT_SESSION_EXPIRY_INTERVAL,
+    private val receiveMaximum: Int = DEFAULT_RECEIVE_MAXIMUM
+) : IMqttAsyncClient {
+    private val client = translating { Mqtt5Client(serverURI, clientId, Persistence(persistence, serverURI)) }
+
+    @Volatile
+    private var connectToken: Mqtt5Token? = null
+
+    /**
+     * How many unacknowledged QoS 1 and 2 publishes the broker said it'll take when we last
+     * connected
+     */
+    val serverReceiveMaximum: Int
+        get() = connectToken?.responseProperties?.receiveMaximum ?: MAXIMUM_RECEIVE_MAXIMUM
+
+    /**
+     * How many topic aliases the broker said it'll take when we last connected. None means that
+     * every publish carries its topic in full.
+     */
+    val serverTopicAliasMaximum: Int
+        get() = connectToken?.responseProperties?.topicAliasMaximum ?: 0
+
+    override fun connect(): IMqttToken = connect(MqttConnectOptions(), null, null)
+
+    override fun connect(options: MqttConnectOptions): IMqttToken = connect(options, null, null)
+
+    override fun connect(userContext: Any?, callback: IMqttActionListener?): IMqttToken =
+        connect(MqttConnectOptions(), userContext, callback)
+
+    override fun connect(options: MqttConnectOptions, userContext: Any?, callback: IMqttActionListener?): IMqttToken =
+        translating {
+            connectToken = null
+            Token(client.connect(connectionOptions(options), userContext, callback?.let(::ActionListener)).also {
+                connectToken = it
+            })
+        }
+
+    private fun connectionOptions(options: MqttConnectOptions) = MqttConnectionOptions().apply {
+        options.userName?.let { userName = it }
+        options.password?.let { password = String(it).toByteArray() }
+        options.willDestination?.let { setWill(it, translate(options.willMessage)) }
+        options.socketFactory?.let { socketFactory = it }
+        options.sslProperties?.let { sslProperties = it }
+        options.sslHostnameVerifier?.let { sslHostnameVerifier = it }
+        isHttpsHostnameVerificationEnabled = options.isHttpsHostnameVerificationEnabled
+        isAutomaticReconnect = options.isAutomaticReconnect
+        keepAliveInterval = options.keepAliveInterval
+        connectionTimeout = options.connectionTimeout
+        isCleanStart = options.isCleanSession
+        // A clean session still ends with the connection, as it did with MQTT 3
+        sessionExpiryInterval = if (options.isCleanSession) 0 else this@Mqtt5AsyncClient.sessionExpiryInterval
+        receiveMaximum = this@Mqtt5AsyncClient.receiveMaximum
+        topicAliasMaximum = TOPIC_ALIAS_MAXIMUM
+    }
+
+    override fun disconnect(): IMqttToken = translating { Token(client.disconnect()) }
+
+    override fun disconnect(quiesceTimeout: Long): IMqttToken = translating { Token(client.disconnect(quiesceTimeout)) }
+
+    override fun disconnect(userContext: Any?, callback: IMqttActionListener?): IMqttToken =
+        translating { Token(client.disconnect(userContext, callback?.let(::ActionListener))) }
+
+    override fun disconnect(quiesceTimeout: Long, userContext: Any?, callback: IMqttActionListener?): IMqttToken =
+        translating {
+            Token(
+                client.disconnect(
+                    quiesceTimeout,
+                    userContext,
+                    callback?.let(::ActionListener),
+                    MqttReturnCode.RETURN_CODE_SUCCESS,
+                    MqttProperties()
+                )
+            )
+        }
+
+    override fun disconnectForcibly() = translating { client.disconnectForcibly() }
+
+    override fun disconnectForcibly(disconnectTimeout: Long) = translating { client.disconnectForcibly(disconnectTimeout) }
+
+    override fun disconnectForcibly(quiesceTimeout: Long, disconnectTimeout: Long) =
+        translating { client.disconnectForcibly(quiesceTimeout, disconnectTimeout, true) }
+
+    override fun isConnected(): Boolean = client.isConnected
+
+    override fun getClientId(): String = client.clientId
+
+    override fun getServerURI(): String = client.serverURI
+
+    override fun publish(topic: String, payload: ByteArray, qos: Int, retained: Boolean): IMqttDeliveryToken =
+        publish(topic, payload, qos, retained, null, null)
+
+    override fun publish(
+        topic: String,
+        payload: ByteArray,
+        qos: Int,
+        retained: Boolean,
+        userContext: Any?,
+        callback: IMqttActionListener?
+    ): IMqttDeliveryToken =
+        translating { Token(client.publish(topic, payload, qos, retained, userContext, callback?.let(::ActionListener))) }
+
+    override fun publish(topic: String, message: MqttMessage): IMqttDeliveryToken = publish(topic, message, null, null)
+
+    override fun publish(
+        topic: String,
+        message: MqttMessage,
+        userContext: Any?,
+        callback: IMqttActionListener?
+    ): IMqttDeliveryToken =
+        translating { Token(client.publish(topic, translate(message), userContext, callback?.let(::ActionListener))) }
+
+    override fun subscribe(topicFilter: String, qos: Int): IMqttToken =
+        subscribe(arrayOf(topicFilter), intArrayOf(qos), null, null)
+
+    override fun subscribe(topicFilter: String, qos: Int, userContext: Any?, callback: IMqttActionListener?): IMqttToken =
+        subscribe(arrayOf(topicFilter), intArrayOf(qos), userContext, callback)
+
+    override fun subscribe(topicFilters: Array<String>, qos: IntArray): IMqttToken =
+        subscribe(topicFilters, qos, null, null)
+
+    override fun subscribe(
+        topicFilters: Array<String>,
+        qos: IntArray,
+        userContext: Any?,
+        callback: IMqttActionListener?
+    ): IMqttToken =
+        translating { Token(client.subscribe(topicFilters, qos, userContext, callback?.let(::ActionListener))) }
+
+    override fun subscribe(
+        topicFilter: String,
+        qos: Int,
+        userContext: Any?,
+        callback: IMqttActionListener?,
+        messageListener: IMqttMessageListener?
+    ): IMqttToken = subscribe(arrayOf(topicFilter), intArrayOf(qos), userContext, callback, messageListener?.let { arrayOf(it) })
+
+    override fun subscribe(topicFilter: String, qos: Int, messageListener: IMqttMessageListener?): IMqttToken =
+        subscribe(arrayOf(topicFilter), intArrayOf(qos), null, null, messageListener?.let { arrayOf(it) })
+
+    override fun subscribe(
+        topicFilters: Array<String>,
+        qos: IntArray,
+        messageListeners: Array<IMqttMessageListener>?
+    ): IMqttToken = subscribe(topicFilters, qos, null, null, messageListeners)
+
+    override fun subscribe(
+        topicFilters: Array<String>,
+        qos: IntArray,
+        userContext: Any?,
+        callback: IMqttActionListener?,
+        messageListeners: Array<IMqttMessageListener>?
+    ): IMqttToken {
+        if (messageListeners == null) {
+            return subscribe(topicFilters, qos, userContext, callback)
+        }
+        require(topicFilters.size == qos.size && topicFilters.size == messageListeners.size) {
+            "Topic filters, QoS and message listeners must be the same length"
+        }
+        return translating {
+            Token(
+                client.subscribe(
+                    Array(topicFilters.size) { MqttSubscription(topicFilters[it], qos[it]) },
+                    userContext,
+                    callback?.let(::ActionListener),
+                    Array<Mqtt5MessageListener>(messageListeners.size) { MessageListener(messageListeners[it]) },
+                    MqttProperties()
+                )
+            )
+        }
+    }
+
+    override fun unsubscribe(topicFilter: String): IMqttToken = unsubscribe(arrayOf(topicFilter), null, null)
+
+    override fun unsubscribe(topicFilters: Array<String>): IMqttToken = unsubscribe(topicFilters, null, null)
+
+    override fun unsubscribe(topicFilter: String, userContext: Any?, callback: IMqttActionListener?): IMqttToken =
+        unsubscribe(arrayOf(topicFilter), userContext, callback)
+
+    override fun unsubscribe(topicFilters: Array<String>, userContext: Any?, callback: IMqttActionListener?): IMqttToken =
+        translating {
+            Token(client.unsubscribe(topicFilters, userContext, callback?.let(::ActionListener), MqttProperties()))
+        }
+
+    /**
+     * Paho's MQTT 5 client has no way of dropping a message once it's been handed over, so this
+     * never removes anything and always returns false. A client with publishes in flight can't be
+     * reused for that reason.
+     */
+    override fun removeMessage(token: IMqttDeliveryToken): Boolean = false
+
+    override fun setCallback(callback: MqttCallback?) {
+        client.setCallback(callback?.let(::Callback))
+    }
+
+    override fun getPendingDeliveryTokens(): Array<IMqttDeliveryToken> =
+        client.pendingTokens.map<Mqtt5Token, IMqttDeliveryToken>(::Token).toTypedArray()
+
+    override fun setManualAcks(manualAcks: Boolean) {
+        client.setManualAcks(manualAcks)
+    }
+
+    override fun reconnect() = translating { client.reconnect() }
+
+    override fun messageArrivedComplete(messageId: Int, qos: Int) =
+        translating { client.messageArrivedComplete(messageId, qos) }
+
+    override fun setBufferOpts(bufferOpts: DisconnectedBufferOptions) {
+        client.setBufferOpts(Mqtt5BufferOptions().apply {
+            bufferSize = bufferOpts.bufferSize
+            isBufferEnabled = bufferOpts.isBufferEnabled
+            isPersistBuffer = bufferOpts.isPersistBuffer
+            isDeleteOldestMessages = bufferOpts.isDeleteOldestMessages
+        })
+    }
+
+    override fun getBufferedMessageCount(): Int = client.bufferedMessageCount
+
+    override fun getBufferedMessage(bufferIndex: Int): MqttMessage = translate(client.getBufferedMessage(bufferIndex))
+
+    override fun deleteBufferedMessage(bufferIndex: Int) {
+        client.deleteBufferedMessage(bufferIndex)
+    }
+
+    override fun getInFlightMessageCount(): Int = client.inFlightMessageCount
+
+    override fun close() = translating { client.close() }
+
+    private inner class Token(private val token: Mqtt5Token) : IMqttDeliveryToken {
+        override fun waitForCompletion() = translating { token.waitForCompletion() }
+
+        override fun waitForCompletion(timeout: Long) = translating { token.waitForCompletion(timeout) }
+
+        override fun isComplete(): Boolean = token.isComplete
+
+        override fun getException(): MqttException? = token.exception?.let(::translate)
+
+        override fun setActionCallback(listener: IMqttActionListener?) {
+            token.actionCallback = listener?.let(::ActionListener)
+        }
+
+        override fun getActionCallback(): IMqttActionListener? = (token.actionCallback as? ActionListener)?.listener
+
+        override fun getClient(): IMqttAsyncClient = this@Mqtt5AsyncClient
+
+        override fun getTopics(): Array<String>? = token.topics
+
+        override fun setUserContext(userContext: Any?) {
+            token.userContext = userContext
+        }
+
+        override fun getUserContext(): Any? = token.userContext
+
+        override fun getMessageId(): Int = token.messageId
+
+        override fun getGrantedQos(): IntArray? = token.grantedQos
+
+        override fun getSessionPresent(): Boolean = token.sessionPresent
+
+        // Paho's MQTT 3 wire messages can't represent an MQTT 5 response
+        override fun getResponse(): MqttWireMessage? = null
+
+        override fun getMessage(): MqttMessage? = translating { token.message?.let(::translate) }
+    }
+
+    private inner class ActionListener(val listener: IMqttActionListener) : MqttActionListener {
+        override fun onSuccess(asyncActionToken: Mqtt5Token) {
+            listener.onSuccess(Token(asyncActionToken))
+        }
+
+        override fun onFailure(asyncActionToken: Mqtt5Token, exception: Throwable?) {
+            listener.onFailure(Token(asyncActionToken), (exception as? Mqtt5Exception)?.let(::translate) ?: exception)
+        }
+    }
+
+    private class MessageListener(private val listener: IMqttMessageListener) : Mqtt5MessageListener {
+        override fun messageArrived(topic: String, message: Mqtt5Message) {
+            listener.messageArrived(topic, translate(message))
+        }
+    }
+
+    private inner class Callback(private val callback: MqttCallback) : Mqtt5Callback {
+        override fun disconnected(response: MqttDisconnectResponse) {
+            callback.connectionLost(
+                response.exception?.let(::translate) ?: MqttException(
+                    MqttException.REASON_CODE_CONNECTION_LOST.toInt(),
+                    IOException("Disconnected by the broker: $response")
+                )
+            )
+        }
+
+        override fun mqttErrorOccurred(exception: Mqtt5Exception) {
+            Timber.e(exception, "MQTT error")
+        }
+
+        override fun messageArrived(topic: String, message: Mqtt5Message) {
+            callback.messageArrived(topic, translate(message))
+        }
+
+        override fun deliveryComplete(token: Mqtt5Token) {
+            callback.deliveryComplete(Token(token))
+        }
+
+        override fun connectComplete(reconnect: Boolean, serverURI: String) {
+            (callback as? MqttCallbackExtended)?.connectComplete(reconnect, serverURI)
+        }
+
+        override fun authPacketArrived(reasonCode: Int, properties: MqttProperties?) {}
+    }
+
+    /**
+     * Paho's MQTT 5 client opens its persistence by client id alone, and its entries are MQTT 5
+     * packets, so [files] should have a different root from any used by an MQTT 3 client
+     */
+    private class Persistence(private val files: MqttFilePersistence, private val serverURI: String) :
+        Mqtt5Persistence {
+        override fun open(clientId: String) = persisting { files.open(clientId, serverURI) }
+
+        override fun close() = persisting { files.close() }
+
+        override fun put(key: String, persistable: Mqtt5Persistable) = persisting {
+            files.put(
+                key,
+                MqttPersistentData(
+                    key,
+                    persistable.headerBytes, persistable.headerOffset, persistable.headerLength,
+                    persistable.payloadBytes, persistable.payloadOffset, persistable.payloadLength
+                )
+            )
+        }
+
+        override fun get(key: String): Mqtt5Persistable = persisting {
+            files.get(key).let {
+                Mqtt5PersistentData(
+                    key,
+                    it.headerBytes, it.headerOffset, it.headerLength,
+                    it.payloadBytes, it.payloadOffset, it.payloadLength
+                )
+            }
+        }
+
+        override fun remove(key: String) = persisting { files.remove(key) }
+
+        override fun keys(): Enumeration<String> = persisting { files.keys() }
+
+        override fun clear() = persisting { files.clear() }
+
+        override fun containsKey(key: String): Boolean = persisting { files.containsKey(key) }
+
+        private inline fun <T> persisting(block: () -> T): T = try {
+            block()
+        } catch (e: MqttPersistenceException) {
+            throw Mqtt5PersistenceException(e.reasonCode, e)
+        }
+    }
+
+    companion object {
+        const val MQTT_VERSION_5 = 5
+
+        // What a broker that doesn't say is taken to have
+        private const val MAXIMUM_RECEIVE_MAXIMUM = 65_535
+
+        val DEFAULT_SESSION_EXPIRY_INTERVAL = TimeUnit.DAYS.toSeconds(7)
+        const val DEFAULT_RECEIVE_MAXIMUM = 100
+        const val TOPIC_ALIAS_MAXIMUM = 32
+
+        // The client-side reason codes are the same in both of Paho's clients
+        private fun translate(e: Mqtt5Exception) = MqttException(e.reasonCode, e)
+
+        private fun translate(message: Mqtt5Message) = MqttMessage(message.payload).apply {
+            qos = message.qos
+            isRetained = message.isRetained
+            id = message.id
+        }
+
+        private fun translate(message: MqttMessage) =
+            Mqtt5Message(message.payload, message.qos, message.isRetained, MqttProperties())
+
+        private inline fun <T> translating(block: () -> T): T = try {
+            block()
+        } catch (e: Mqtt5Exception) {
+            throw translate(e)
+        }
+    }
+}
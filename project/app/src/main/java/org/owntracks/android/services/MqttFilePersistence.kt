@@ -0,0 +1,209 @@
+package org.owntracks.android.services
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence
+import org.eclipse.paho.client.mqttv3.MqttException
+import org.eclipse.paho.client.mqttv3.MqttPersistable
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage
+import timber.log.Timber
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.*
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish as Mqtt5Publish
+import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage as Mqtt5WireMessage
+
+/**
+ * Keeps Paho's session state in files under [root], one directory per client id and server, so
+ * that in-flight QoS 1 and 2 exchanges survive the client being rebuilt or the app being
+ * restarted. Each entry is written to a temporary file and renamed into place, so a crash part
+ * way through a write leaves the previous entry rather than a truncated one.
+ *
+ * Outgoing messages are taken off the [MessageProcessor]'s own durable queue as they're published,
+ * so Paho's copies are all there is of anything in flight if the app is killed. [takeOutbound]
+ * hands those back to be queued again before a new client is built, rather than letting Paho
+ * resend them behind the queue's back; the incoming QoS 2 state is kept, which is what stops the
+ * broker's redeliveries being handed to us again.
+ *
+ * What the client last subscribed to is kept alongside its session, so that once the app has been
+ * restarted it can still tell whether a session the broker kept needs subscribing again.
+ */
+class MqttFilePersistence(private val root: File) : MqttClientPersistence {
+    /**
+     * The topic filters a client is subscribed to, all at [qos]
+     */
+    data class Subscriptions(val topics: Set<String>, val qos: Int)
+
+    private var directory: File? = null
+
+    @Throws(MqttPersistenceException::class)
+    override fun open(clientId: String, serverURI: String) {
+        val directory = directoryFor(clientId, serverURI)
+        if (!directory.isDirectory && !directory.mkdirs()) {
+            throw MqttPersistenceException(IOException("Unable to create $directory"))
+        }
+        // A leftover from a write that never finished
+        directory.listFiles { file -> file.name.endsWith(TEMPORARY_SUFFIX) }?.forEach(File::delete)
+        this.directory = directory
+    }
+
+    override fun close() {
+        directory = null
+    }
+
+    @Throws(MqttPersistenceException::class)
+    override fun put(key: String, persistable: MqttPersistable) {
+        val file = fileFor(key)
+        val temporary = File(file.path + TEMPORARY_SUFFIX)
+        try {
+            FileOutputStream(temporary).use {
+                it.write(persistable.headerBytes, persistable.headerOffset, persistable.headerLength)
+                persistable.payloadBytes?.run {
+                    it.write(this, persistable.payloadOffset, persistable.payloadLength)
+                }
+                it.fd.sync()
+            }
+            if (!temporary.renameTo(file)) {
+                throw IOException("Unable to rename ${temporary.name} to ${file.name}")
+            }
+        } catch (e: IOException) {
+            temporary.delete()
+            throw MqttPersistenceException(e)
+        }
+    }
+
+    @Throws(MqttPersistenceException::class)
+    override fun get(key: String): MqttPersistable {
+        try {
+            val bytes = fileFor(key).readBytes()
+            return MqttPersistentData(key, bytes, 0, bytes.size, null, 0, 0)
+        } catch (e: IOException) {
+            throw MqttPersistenceException(e)
+        }
+    }
+
+    @Throws(MqttPersistenceException::class)
+    override fun remove(key: String) {
+        fileFor(key).delete()
+    }
+
+    @Throws(MqttPersistenceException::class)
+    override fun keys(): Enumeration<String> = Collections.enumeration(entries().map(File::getName))
+
+    @Throws(MqttPersistenceException::class)
+    override fun clear() {
+        entries().forEach(File::delete)
+    }
+
+    @Throws(MqttPersistenceException::class)
+    override fun containsKey(key: String): Boolean = fileFor(key).isFile
+
+    /**
+     * Takes any outgoing messages left over from an earlier client for [clientId] on [serverURI],
+     * which Paho would otherwise resend as soon as the session is resumed. [mqtt5] says which of
+     * Paho's clients wrote them, as their packets differ.
+     *
+     * @return the payloads of those the broker may not have had, oldest first. Those it's already
+     * received and only has still to be released are dropped.
+     */
+    fun takeOutbound(clientId: String, serverURI: String, mqtt5: Boolean): List<ByteArray> {
+        val outbound = directoryFor(clientId, serverURI).listFiles { file ->
+            OUTBOUND_PREFIXES.any { file.name.startsWith(it) } && !file.name.endsWith(TEMPORARY_SUFFIX)
+        }?.sortedWith(compareBy<File>({ it.lastModified() }, { it.name.substringAfter('-').toIntOrNull() })) ?: return emptyList()
+        val payloads = outbound.filterNot { it.name.startsWith(RELEASE_PENDING_PREFIX) }.mapNotNull { file ->
+            try {
+                payloadOf(file.readBytes(), mqtt5)
+            } catch (e: Exception) {
+                Timber.w(e, "Unable to read persisted outgoing MQTT message %s", file.name)
+                null
+            }
+        }
+        val discarded = outbound.count(File::delete)
+        if (discarded > 0) {
+            Timber.d("Took %s persisted outgoing MQTT messages, %s of them unacknowledged", discarded, payloads.size)
+        }
+        return payloads
+    }
+
+    /**
+     * @return what [clientId] last subscribed to on [serverURI], as recorded by
+     * [writeSubscriptions], or null if that isn't known
+     */
+    fun readSubscriptions(clientId: String, serverURI: String): Subscriptions? {
+        val file = subscriptionsFileFor(clientId, serverURI)
+        if (!file.isFile) {
+            return null
+        }
+        return try {
+            val lines = file.readLines()
+            Subscriptions(lines.drop(1).toSet(), lines.first().toInt())
+        } catch (e: Exception) {
+            Timber.w(e, "Unable to read MQTT subscriptions from %s", file.name)
+            null
+        }
+    }
+
+    /**
+     * Records [subscriptions] as what [clientId] is subscribed to on [serverURI], next to its
+     * session so that it outlives the app, or forgets what was recorded if they're null
+     */
+    fun writeSubscriptions(clientId: String, serverURI: String, subscriptions: Subscriptions?) {
+        val file = subscriptionsFileFor(clientId, serverURI)
+        if (subscriptions == null) {
+            file.delete()
+            return
+        }
+        val temporary = File(file.path + TEMPORARY_SUFFIX)
+        try {
+            if (!root.isDirectory && !root.mkdirs()) {
+                throw IOException("Unable to create $root")
+            }
+            temporary.writeText((listOf(subscriptions.qos.toString()) + subscriptions.topics).joinToString("\n"))
+            if (!temporary.renameTo(file)) {
+                throw IOException("Unable to rename ${temporary.name} to ${file.name}")
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Unable to record MQTT subscriptions")
+            temporary.delete()
+            file.delete()
+        }
+    }
+
+    @Throws(MqttPersistenceException::class)
+    private fun entries(): List<File> =
+        openDirectory().listFiles { file -> !file.name.endsWith(TEMPORARY_SUFFIX) }?.toList() ?: emptyList()
+
+    @Throws(MqttPersistenceException::class)
+    private fun fileFor(key: String) = File(openDirectory(), key)
+
+    @Throws(MqttPersistenceException::class)
+    private fun openDirectory(): File =
+        directory ?: throw MqttPersistenceException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED.toInt())
+
+    private fun directoryFor(clientId: String, serverURI: String) =
+        File(root, "$clientId-$serverURI".replace(UNSAFE_CHARACTERS, "_"))
+
+    private fun subscriptionsFileFor(clientId: String, serverURI: String) =
+        File(root, directoryFor(clientId, serverURI).name + SUBSCRIPTIONS_SUFFIX)
+
+    companion object {
+        private const val TEMPORARY_SUFFIX = ".tmp"
+        private const val SUBSCRIPTIONS_SUFFIX = ".subscriptions"
+        private val UNSAFE_CHARACTERS = Regex("[^A-Za-z0-9._-]")
+
+        /**
+         * Paho's keys for sent, PUBREL-pending and buffered outgoing messages. Incoming QoS 2
+         * messages are kept under "r-".
+         */
+        private val OUTBOUND_PREFIXES = listOf("s-", "sc-", "sb-")
+        private const val RELEASE_PENDING_PREFIX = "sc-"
+
+        private fun payloadOf(entry: ByteArray, mqtt5: Boolean): ByteArray? = if (mqtt5) {
+            (Mqtt5WireMessage.createWireMessage(entry) as? Mqtt5Publish)?.message?.payload
+        } else {
+            (MqttWireMessage.createWireMessage(entry) as? MqttPublish)?.message?.payload
+        }
+    }
+}
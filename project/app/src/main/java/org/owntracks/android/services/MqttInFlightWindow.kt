@@ -0,0 +1,105 @@
+package org.owntracks.android.services
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient
+import org.eclipse.paho.client.mqttv3.IMqttToken
+import org.eclipse.paho.client.mqttv3.MqttException
+import org.owntracks.android.model.messages.MessageBase
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Publishes messages without waiting for each one to be acknowledged before sending the next, so
+ * that draining a backlog costs one broker round trip per [capacity] messages rather than per
+ * message.
+ *
+ * Every publish carries its own entry as the token's user context, so acknowledgements are matched
+ * to messages per token, whatever order they arrive in. When a publish fails (or the connection it
+ * went out on is lost and the owner calls [drain]), every message that hasn't been acknowledged yet
+ * is handed back in the order it was published, so it can be put back on the queue exactly once and
+ * in order. An acknowledgement that arrives for a message that has already been handed back is
+ * ignored; that message will be sent again, which is fine for QoS 1.
+ */
+class MqttInFlightWindow(val capacity: Int, private val listener: Listener) {
+    interface Listener {
+        fun onAcknowledged(message: MessageBase, elapsedNanos: Long)
+
+        /**
+         * Called with the unacknowledged messages, oldest first, after a publish failed
+         */
+        fun onFailed(unacknowledged: List<MessageBase>, cause: Throwable?)
+    }
+
+    private class Entry(val message: MessageBase, val startNanos: Long)
+
+    private val lock = ReentrantLock()
+    private val notFull = lock.newCondition()
+
+    // LinkedHashSet keeps publish order, and entries are compared by identity
+    private val inFlight = LinkedHashSet<Entry>()
+
+    private val actionListener = object : IMqttActionListener {
+        override fun onSuccess(asyncActionToken: IMqttToken) {
+            val entry = asyncActionToken.userContext as Entry
+            if (remove(entry)) {
+                listener.onAcknowledged(entry.message, System.nanoTime() - entry.startNanos)
+            }
+        }
+
+        override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable?) {
+            val unacknowledged = drain()
+            if (unacknowledged.isNotEmpty()) {
+                listener.onFailed(unacknowledged, exception)
+            }
+        }
+    }
+
+    val size: Int
+        get() = lock.withLock { inFlight.size }
+
+    /**
+     * Publishes [message] on [client], first waiting up to [timeoutMillis] for a free slot in the
+     * window. Returns false, without publishing, if no slot became free in time.
+     */
+    @Throws(MqttException::class, InterruptedException::class)
+    fun publish(
+        client: IMqttAsyncClient,
+        message: MessageBase,
+        payload: ByteArray,
+        timeoutMillis: Long
+    ): Boolean {
+        val entry = Entry(message, System.nanoTime())
+        lock.withLock {
+            var remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+            while (inFlight.size >= capacity) {
+                if (remaining <= 0) {
+                    return false
+                }
+                remaining = notFull.awaitNanos(remaining)
+            }
+            inFlight.add(entry)
+        }
+        try {
+            client.publish(message.topic, payload, message.qos, message.retained, entry, actionListener)
+        } catch (e: MqttException) {
+            remove(entry)
+            throw e
+        }
+        return true
+    }
+
+    /**
+     * Removes and returns every message that hasn't been acknowledged, oldest first
+     */
+    fun drain(): List<MessageBase> = lock.withLock {
+        inFlight.map { it.message }.also {
+            inFlight.clear()
+            notFull.signalAll()
+        }
+    }
+
+    private fun remove(entry: Entry): Boolean = lock.withLock {
+        inFlight.remove(entry).also { if (it) notFull.signal() }
+    }
+}
@@ -0,0 +1,136 @@
+package org.owntracks.android.services
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
+import android.os.Build
+import android.telephony.TelephonyManager
+import dagger.hilt.android.qualifiers.ApplicationContext
+import timber.log.Timber
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Whether the device has a usable network, and whether any usable network is unmetered.
+ */
+data class NetworkState(val online: Boolean, val unmetered: Boolean) {
+    companion object {
+        /**
+         * What's assumed until the system says otherwise, so that nothing is held back if it never does
+         */
+        @JvmField
+        val ASSUMED_ONLINE = NetworkState(online = true, unmetered = true)
+    }
+}
+
+/**
+ * Tracks every network that claims internet access through [ConnectivityManager] callbacks, and
+ * tells the listener whenever the overall [NetworkState] changes. On API 23 and later a network only
+ * counts once the system has validated that it actually reaches the internet, so a captive portal
+ * or a Wi-Fi network with no uplink doesn't count as being online.
+ *
+ * Before API 26 the system doesn't report the capabilities of networks that are already up when
+ * the callback is registered, so they're looked up as each network is made available.
+ */
+@Singleton
+class NetworkStateMonitor internal constructor(
+    private val context: Context,
+    private val wifiInfoProvider: WifiInfoProvider,
+    private val buildNetworkRequest: () -> NetworkRequest
+) {
+    @Inject
+    constructor(@ApplicationContext context: Context, wifiInfoProvider: WifiInfoProvider) : this(
+        context,
+        wifiInfoProvider,
+        { NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build() }
+    )
+
+    fun interface Listener {
+        fun onNetworkStateChanged(state: NetworkState)
+    }
+
+    private val usableNetworks = mutableMapOf<Network, Boolean>()
+    private var listener: Listener? = null
+
+    @Volatile
+    var state: NetworkState = NetworkState.ASSUMED_ONLINE
+        private set
+
+    private val callback = object : ConnectivityManager.NetworkCallback() {
+        override fun onAvailable(network: Network) {
+            val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+            connectivityManager.getNetworkCapabilities(network)?.let { onCapabilitiesChanged(network, it) }
+        }
+
+        override fun onCapabilitiesChanged(network: Network, networkCapabilities: NetworkCapabilities) {
+            val usable = networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) &&
+                    (Build.VERSION.SDK_INT < Build.VERSION_CODES.M ||
+                            networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED))
+            val unmetered = networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+            update {
+                if (usable) {
+                    usableNetworks[network] = unmetered
+                } else {
+                    usableNetworks.remove(network)
+                }
+            }
+        }
+
+        override fun onLost(network: Network) {
+            update { usableNetworks.remove(network) }
+        }
+    }
+
+    @Synchronized
+    private fun update(change: () -> Unit) {
+        change()
+        val newState = NetworkState(usableNetworks.isNotEmpty(), usableNetworks.containsValue(true))
+        if (newState != state) {
+            Timber.d("Network state changed to %s", newState)
+            state = newState
+            listener?.onNetworkStateChanged(newState)
+        }
+    }
+
+    /**
+     * A name for the network the device is using, to tell networks apart for as long as they last:
+     * the SSID on Wi-Fi, the operator's MCC and MNC on mobile data, or just the kind of network
+     * otherwise. Null when there's no network.
+     */
+    fun currentNetworkName(): String? {
+        val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        @Suppress("DEPRECATION")
+        val networkInfo = connectivityManager.activeNetworkInfo?.takeIf { it.isConnected } ?: return null
+        @Suppress("DEPRECATION")
+        return when (networkInfo.type) {
+            ConnectivityManager.TYPE_WIFI -> "wifi:${wifiInfoProvider.getSSID() ?: ""}"
+            ConnectivityManager.TYPE_MOBILE ->
+                "mobile:${(context.getSystemService(Context.TELEPHONY_SERVICE) as TelephonyManager).networkOperator}"
+            else -> networkInfo.typeName.lowercase()
+        }
+    }
+
+    /**
+     * Starts watching the network, and tells [listener] about the current state straight away
+     */
+    @Synchronized
+    fun start(listener: Listener) {
+        val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        this.listener = listener
+        @Suppress("DEPRECATION")
+        val connected = connectivityManager.activeNetworkInfo?.isConnected ?: false
+        // The callback only hears about networks that exist, so start from what's there now
+        state = NetworkState(connected, connected && !connectivityManager.isActiveNetworkMetered)
+        listener.onNetworkStateChanged(state)
+        try {
+            connectivityManager.registerNetworkCallback(buildNetworkRequest(), callback)
+        } catch (e: RuntimeException) {
+            // Some devices throw a SecurityException here; see DeviceMetricsProvider
+            Timber.e(e, "Unable to watch network state. Assuming the network is always available")
+            state = NetworkState.ASSUMED_ONLINE
+            listener.onNetworkStateChanged(state)
+        }
+    }
+}
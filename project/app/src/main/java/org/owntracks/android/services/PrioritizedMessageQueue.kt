@@ -0,0 +1,174 @@
+package org.owntracks.android.services
+
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import org.owntracks.android.support.Parser
+import timber.log.Timber
+import java.io.File
+import java.util.*
+import java.util.concurrent.BlockingDeque
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * The outgoing message queue, split into a [Lane] per class of message so that a transition or a
+ * reply to a `reportLocation` command doesn't have to wait behind a backlog of periodic locations.
+ *
+ * Each lane is its own [SegmentedMessageQueue], with its own directory on disk and its own
+ * capacity, and is FIFO within itself. [poll] picks between lanes with weighted round-robin: each
+ * lane gets [Lane.weight] messages per round, served in priority order, and a new round only starts
+ * once no lane that still has credit has anything waiting. So higher lanes win under contention,
+ * but every non-empty lane is served at least once per round and nothing starves.
+ *
+ * If [maxBytes] is set, the lanes are bounded by their [Lane.byteShare] of that many bytes of
+ * encoded messages instead of by message count, and keep nothing but an index in memory: each
+ * message is read back from disk just before it's sent.
+ *
+ * Messages in the single queue used by earlier versions are moved into their lanes on first start.
+ */
+class PrioritizedMessageQueue @JvmOverloads constructor(
+    path: File,
+    parser: Parser,
+    groupCommit: SegmentedLog.GroupCommit? = null,
+    maxBytes: Long = 0,
+    flushImmediately: (MessageBase) -> Boolean = { false }
+) {
+    enum class Lane(val capacity: Int, val weight: Int, val byteShare: Int) {
+        TRANSITIONS(1_000, 8, 10),
+        RESPONSES(100, 8, 5),
+        INTERACTIVE(1_000, 4, 25),
+        BACKGROUND(10_000, 1, 60);
+
+        companion object {
+            @JvmStatic
+            fun of(message: MessageBase): Lane = when (message) {
+                is MessageTransition -> TRANSITIONS
+                is MessageLocation -> when (message.trigger) {
+                    // Sent alongside a transition, so keep it with them
+                    MessageLocation.REPORT_TYPE_CIRCULAR -> TRANSITIONS
+                    MessageLocation.REPORT_TYPE_RESPONSE -> RESPONSES
+                    MessageLocation.REPORT_TYPE_USER -> INTERACTIVE
+                    else -> BACKGROUND
+                }
+                else -> INTERACTIVE
+            }
+        }
+    }
+
+    private val lock = ReentrantLock()
+    private val lanes: Map<Lane, SegmentedMessageQueue> = Lane.values().associateWithTo(EnumMap(Lane::class.java)) {
+        val directory = path.resolve(LANES_DIRECTORY).resolve(it.name.lowercase(Locale.ROOT))
+        if (maxBytes > 0) {
+            SegmentedMessageQueue(
+                Int.MAX_VALUE,
+                directory,
+                parser,
+                groupCommit,
+                residentWindow = 0,
+                maxBytes = maxBytes * it.byteShare / 100,
+                flushImmediately = flushImmediately
+            )
+        } else {
+            SegmentedMessageQueue(it.capacity, directory, parser, groupCommit, flushImmediately = flushImmediately)
+        }
+    }
+    private val credits = EnumMap<Lane, Int>(Lane::class.java)
+
+    init {
+        migrateSingleQueue(path, parser)
+    }
+
+    private fun migrateSingleQueue(path: File, parser: Parser) {
+        val singleQueueDirectory = path.resolve(SegmentedMessageQueue.QUEUE_DIRECTORY)
+        if (!singleQueueDirectory.exists() &&
+            SegmentedMessageQueue.LEGACY_QUEUE_FILES.none { path.resolve(it).exists() }
+        ) {
+            return
+        }
+        // This also picks up anything still in the tape-backed queue files. A crash part way through
+        // means the migration runs again, so a message may be sent twice, but it won't be lost.
+        val singleQueue = SegmentedMessageQueue(Int.MAX_VALUE, path, parser, residentWindow = Int.MAX_VALUE)
+        Timber.i("Migrating ${singleQueue.size} messages into prioritized queue lanes")
+        singleQueue.forEach {
+            if (!offer(it)) {
+                Timber.w("Lane ${Lane.of(it)} is full. Dropping migrated message: $it")
+            }
+        }
+        lanes.values.forEach(SegmentedMessageQueue::flush)
+        singleQueue.close()
+        singleQueueDirectory.deleteRecursively()
+    }
+
+    /**
+     * The queue backing [lane], for callers that need to trim it directly
+     */
+    fun lane(lane: Lane): BlockingDeque<MessageBase> = lanes.getValue(lane)
+
+    fun offer(message: MessageBase): Boolean = lanes.getValue(Lane.of(message)).offer(message)
+
+    /**
+     * Puts [message] back at the head of its lane, e.g. after it failed to send
+     */
+    fun offerFirst(message: MessageBase): Boolean = lanes.getValue(Lane.of(message)).offerFirst(message)
+
+    fun pollFirst(lane: Lane): MessageBase? = lanes.getValue(lane).pollFirst()
+
+    fun pollLast(lane: Lane): MessageBase? = lanes.getValue(lane).pollLast()
+
+    /**
+     * Takes the next message to send, or returns null straight away if there isn't one
+     */
+    fun poll(): MessageBase? = lock.withLock { pollScheduled(null) }
+
+    /**
+     * Like [poll], but leaves anything in [heldBack] where it is
+     */
+    fun pollExcept(heldBack: Lane): MessageBase? = lock.withLock { pollScheduled(heldBack) }
+
+    private fun pollScheduled(heldBack: Lane?): MessageBase? {
+        repeat(2) {
+            Lane.values().forEach { lane ->
+                val credit = credits[lane] ?: 0
+                if (credit > 0 && lane != heldBack) {
+                    lanes.getValue(lane).poll()?.let {
+                        credits[lane] = credit - 1
+                        return it
+                    }
+                }
+            }
+            // Every lane with messages waiting has used up its share, so start a new round
+            Lane.values().forEach { credits[it] = it.weight }
+        }
+        return null
+    }
+
+    fun size(): Int = lanes.values.sumOf { it.size }
+
+    /**
+     * The timestamp, in epoch seconds, of the oldest location or transition at the head of a lane,
+     * or null if there isn't one. Other kinds of message don't carry a timestamp.
+     */
+    fun oldestTimestamp(): Long? = lanes.values.mapNotNull {
+        when (val head = it.peekFirst()) {
+            is MessageLocation -> head.timestamp
+            is MessageTransition -> head.timestamp
+            else -> null
+        }
+    }.minOrNull()
+
+    fun laneSizes(): Map<Lane, Int> = lanes.mapValuesTo(EnumMap(Lane::class.java)) { it.value.size }
+
+    /**
+     * The total encoded size of the queued messages
+     */
+    fun sizeInBytes(): Long = lanes.values.sumOf { it.sizeInBytes() }
+
+    fun flush() {
+        lanes.values.forEach(SegmentedMessageQueue::flush)
+    }
+
+    companion object {
+        const val LANES_DIRECTORY = "outgoingLanes"
+    }
+}
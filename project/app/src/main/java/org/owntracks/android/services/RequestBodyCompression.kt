@@ -0,0 +1,24 @@
+package org.owntracks.android.services
+
+import org.owntracks.android.support.Preferences
+import java.io.ByteArrayOutputStream
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Compresses HTTP request bodies for a given `Content-Encoding`. Only the encodings that the JDK
+ * (and so every Android version) can produce are supported: `gzip`, and `deflate`, which in HTTP
+ * means the zlib format.
+ */
+object RequestBodyCompression {
+    @JvmStatic
+    fun compress(body: ByteArray, encoding: String): ByteArray {
+        val output = ByteArrayOutputStream(body.size / 2 + 32)
+        when (encoding) {
+            Preferences.HTTP_COMPRESSION_GZIP -> GZIPOutputStream(output)
+            Preferences.HTTP_COMPRESSION_DEFLATE -> DeflaterOutputStream(output)
+            else -> throw IllegalArgumentException("Unsupported content encoding $encoding")
+        }.use { it.write(body) }
+        return output.toByteArray()
+    }
+}
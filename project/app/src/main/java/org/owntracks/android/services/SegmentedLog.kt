@@ -0,0 +1,420 @@
+package org.owntracks.android.services
+
+import timber.log.Timber
+import java.io.BufferedInputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+/**
+ * An append-only record log split across a number of segment files, with a separately persisted
+ * commit pointer.
+ *
+ * Every record carries a sequence number. Records with a sequence number lower than the commit
+ * pointer are considered consumed, and a segment file is deleted once every record in it has been
+ * consumed. Records are never modified in place: a record can be superseded by appending another
+ * record with the same sequence number (last write wins), or removed by appending a tombstone.
+ * This means that pushing a record back onto the head of the log is a single append plus a commit
+ * pointer update.
+ *
+ * Each record is checksummed, so a torn write at the end of a segment is detected on open and the
+ * segment is truncated back to the last complete record. Opening the log only verifies the records
+ * and builds an index of where each unconsumed one lives; payloads are read on demand with [read].
+ *
+ * By default every append is written and synced to disk before it returns. With a [GroupCommit]
+ * set, appends are buffered in memory and written together in a single write and sync when the
+ * commit window elapses, when the buffered bytes exceed the byte budget, or when [flush] or
+ * [commit] is called. An append that returned is therefore durable at most one window later, and a
+ * process crash loses at most the appends still buffered at that point.
+ */
+class SegmentedLog(
+    private val directory: File,
+    private val maxSegmentBytes: Long = DEFAULT_MAX_SEGMENT_BYTES
+) : Closeable {
+    class GroupCommit(val windowMillis: Long, val maxBytes: Int)
+
+    private class Segment(val id: Long, val file: File) {
+        var maxSequence = Long.MIN_VALUE
+        var size = 0L
+    }
+
+    private class RecordLocation(val segment: Segment, val offset: Long, val payloadSize: Int)
+
+    private val segments = LinkedList<Segment>()
+    private lateinit var activeChannel: FileChannel
+    private val commitPointer: CommitPointer
+    private val index = TreeMap<Long, RecordLocation>()
+    private val pending = ArrayList<ByteBuffer>()
+    private var pendingBytes = 0
+    private var flushExecutor: ScheduledExecutorService? = null
+    private var scheduledFlush: ScheduledFuture<*>? = null
+
+    @set:Synchronized
+    var groupCommit: GroupCommit? = null
+        set(value) {
+            field = value
+            if (value == null) {
+                flush()
+            }
+        }
+
+    /**
+     * The sequence number of the first unconsumed record
+     */
+    var committed: Long
+        private set
+
+    /**
+     * One greater than the highest sequence number that has been written to the log
+     */
+    var nextSequence: Long
+        private set
+
+    init {
+        if (!directory.isDirectory && !directory.mkdirs()) {
+            throw IOException("Unable to create log directory $directory")
+        }
+        commitPointer = CommitPointer(directory.resolve(COMMIT_FILENAME))
+        committed = commitPointer.read() ?: Long.MIN_VALUE
+
+        directory.listFiles { file -> file.name.endsWith(SEGMENT_SUFFIX) }
+            ?.mapNotNull { file ->
+                file.name.removeSuffix(SEGMENT_SUFFIX).toLongOrNull()?.let { Segment(it, file) }
+            }
+            ?.sortedBy { it.id }
+            ?.forEach {
+                scanSegment(it)
+                segments.add(it)
+            }
+
+        nextSequence = (segments.maxOfOrNull { it.maxSequence } ?: Long.MIN_VALUE)
+            .let { if (it == Long.MIN_VALUE) 0 else it + 1 }
+            .coerceAtLeast(if (committed == Long.MIN_VALUE) 0 else committed)
+
+        if (segments.isEmpty()) {
+            segments.add(Segment(0, segmentFile(0)))
+        }
+        openActiveSegment()
+    }
+
+    /**
+     * The sequence numbers of all unconsumed records, in order
+     */
+    @Synchronized
+    fun sequences(): List<Long> = index.keys.toList()
+
+    /**
+     * The payload size of the unconsumed record with the given sequence number, or null if there
+     * isn't one
+     */
+    @Synchronized
+    fun payloadSize(sequence: Long): Int? = index[sequence]?.payloadSize
+
+    /**
+     * Reads the payload of the unconsumed record with the given sequence number, or returns null if
+     * there isn't one.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun read(sequence: Long): ByteArray? {
+        val location = index[sequence] ?: return null
+        if (location.segment === segments.last) {
+            flush()
+        }
+        val payload = ByteBuffer.allocate(location.payloadSize)
+        val position = location.offset + HEADER_SIZE
+        if (location.segment === segments.last) {
+            readFully(activeChannel, payload, position)
+        } else {
+            RandomAccessFile(location.segment.file, "r").use { readFully(it.channel, payload, position) }
+        }
+        return payload.array()
+    }
+
+    private fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long) {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw EOFException()
+            }
+        }
+    }
+
+    @Synchronized
+    @Throws(IOException::class)
+    fun append(sequence: Long, payload: ByteArray) {
+        write(TYPE_ENTRY, sequence, payload)
+    }
+
+    @Synchronized
+    @Throws(IOException::class)
+    fun appendTombstone(sequence: Long) {
+        write(TYPE_TOMBSTONE, sequence, EMPTY)
+    }
+
+    /**
+     * Writes and syncs any appends buffered by [groupCommit]
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun flush() {
+        scheduledFlush?.cancel(false)
+        scheduledFlush = null
+        if (pending.isEmpty()) {
+            return
+        }
+        val startPosition = activeChannel.position()
+        try {
+            val buffers = pending.toTypedArray()
+            while (buffers.last().hasRemaining()) {
+                activeChannel.write(buffers)
+            }
+            activeChannel.force(false)
+        } catch (e: IOException) {
+            activeChannel.truncate(startPosition)
+            // The index points at the records that were just lost, and has already dropped whatever
+            // they superseded or tombstoned, so put it back to what's actually on disk
+            rebuildIndex()
+            throw e
+        } finally {
+            pending.clear()
+            pendingBytes = 0
+        }
+    }
+
+    private fun rebuildIndex() {
+        index.clear()
+        segments.forEach {
+            it.maxSequence = Long.MIN_VALUE
+            scanSegment(it)
+        }
+    }
+
+    /**
+     * Marks every record with a sequence number lower than [sequence] as consumed, and deletes any
+     * segment that no longer holds an unconsumed record.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun commit(sequence: Long) {
+        flush()
+        commitPointer.write(sequence)
+        committed = sequence
+        index.headMap(sequence).clear()
+        val iterator = segments.iterator()
+        while (iterator.hasNext()) {
+            val segment = iterator.next()
+            if (segment !== segments.last && segment.maxSequence < sequence) {
+                iterator.remove()
+                if (!segment.file.delete()) {
+                    Timber.w("Unable to delete consumed segment ${segment.file}")
+                }
+            }
+        }
+        val active = segments.last
+        if (active.size > 0 && active.maxSequence < sequence) {
+            rollSegment()
+            segments.remove(active)
+            active.file.delete()
+        }
+    }
+
+    @Synchronized
+    override fun close() {
+        try {
+            flush()
+        } finally {
+            flushExecutor?.shutdown()
+        }
+        activeChannel.close()
+        commitPointer.close()
+    }
+
+    private fun write(type: Byte, sequence: Long, payload: ByteArray) {
+        if (segments.last.size > 0 && segments.last.size + HEADER_SIZE + payload.size > maxSegmentBytes) {
+            rollSegment()
+        }
+        val buffer = ByteBuffer.allocate(HEADER_SIZE + payload.size)
+            .putInt(payload.size)
+            .putInt(checksum(type, sequence, payload))
+            .put(type)
+            .putLong(sequence)
+            .put(payload)
+        buffer.flip()
+        val groupCommit = groupCommit
+        if (groupCommit == null) {
+            try {
+                while (buffer.hasRemaining()) {
+                    activeChannel.write(buffer)
+                }
+                activeChannel.force(false)
+            } catch (e: IOException) {
+                // Don't leave a partial record for the next append to be written after
+                activeChannel.truncate(segments.last.size)
+                throw e
+            }
+        } else {
+            pending.add(buffer)
+            pendingBytes += buffer.limit()
+        }
+        segments.last.run {
+            when (type) {
+                TYPE_ENTRY -> index[sequence] = RecordLocation(this, size, payload.size)
+                TYPE_TOMBSTONE -> index.remove(sequence)
+            }
+            size += HEADER_SIZE + payload.size
+            maxSequence = maxOf(maxSequence, sequence)
+        }
+        nextSequence = maxOf(nextSequence, sequence + 1)
+        if (groupCommit != null) {
+            if (pendingBytes >= groupCommit.maxBytes) {
+                flush()
+            } else if (scheduledFlush == null) {
+                scheduleFlush(groupCommit.windowMillis)
+            }
+        }
+    }
+
+    private fun scheduleFlush(delayMillis: Long) {
+        val executor = flushExecutor ?: Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "segmentedLogFlush").apply { isDaemon = true }
+        }.also { flushExecutor = it }
+        scheduledFlush = executor.schedule({
+            try {
+                flush()
+            } catch (e: IOException) {
+                Timber.e(e, "Error flushing queue log to disk")
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS)
+    }
+
+    private fun rollSegment() {
+        flush()
+        activeChannel.close()
+        val id = segments.last.id + 1
+        segments.add(Segment(id, segmentFile(id)))
+        openActiveSegment()
+    }
+
+    private fun openActiveSegment() {
+        activeChannel = RandomAccessFile(segments.last.file, "rw").channel.apply {
+            position(size())
+        }
+    }
+
+    private fun segmentFile(id: Long) = directory.resolve(String.format(Locale.ROOT, "%020d%s", id, SEGMENT_SUFFIX))
+
+    private fun scanSegment(segment: Segment) {
+        var offset = 0L
+        DataInputStream(BufferedInputStream(FileInputStream(segment.file))).use { input ->
+            val length = segment.file.length()
+            while (offset < length) {
+                try {
+                    val payloadSize = input.readInt()
+                    val crc = input.readInt()
+                    val type = input.readByte()
+                    val sequence = input.readLong()
+                    if (payloadSize < 0 || offset + HEADER_SIZE + payloadSize > length) {
+                        throw EOFException()
+                    }
+                    val payload = ByteArray(payloadSize)
+                    input.readFully(payload)
+                    if (checksum(type, sequence, payload) != crc) {
+                        throw IOException("Checksum mismatch")
+                    }
+                    if (sequence >= committed) {
+                        when (type) {
+                            TYPE_ENTRY -> index[sequence] = RecordLocation(segment, offset, payloadSize)
+                            TYPE_TOMBSTONE -> index.remove(sequence)
+                        }
+                    }
+                    segment.maxSequence = maxOf(segment.maxSequence, sequence)
+                    offset += HEADER_SIZE + payloadSize
+                } catch (e: IOException) {
+                    Timber.w("Damaged record in ${segment.file} at offset $offset, truncating")
+                    break
+                }
+            }
+        }
+        if (offset < segment.file.length()) {
+            RandomAccessFile(segment.file, "rw").use { it.setLength(offset) }
+        }
+        segment.size = offset
+    }
+
+    private fun checksum(type: Byte, sequence: Long, payload: ByteArray): Int =
+        CRC32().apply {
+            update(type.toInt())
+            update(ByteBuffer.allocate(8).putLong(sequence).array())
+            update(payload)
+        }.value.toInt()
+
+    /**
+     * Stores the commit pointer in two alternating slots, each with a generation counter and a
+     * checksum, so that a torn write of one slot still leaves the previous value readable.
+     */
+    private class CommitPointer(file: File) : Closeable {
+        private val channel = RandomAccessFile(file, "rw").channel
+        private var generation = 0L
+
+        fun read(): Long? {
+            return (0 until 2).mapNotNull { slot ->
+                val buffer = ByteBuffer.allocate(SLOT_SIZE)
+                if (channel.read(buffer, slot * SLOT_SIZE.toLong()) < SLOT_SIZE) {
+                    return@mapNotNull null
+                }
+                buffer.flip()
+                val slotGeneration = buffer.long
+                val value = buffer.long
+                if (buffer.int == slotChecksum(slotGeneration, value)) Pair(slotGeneration, value) else null
+            }.maxByOrNull { it.first }?.let {
+                generation = it.first
+                it.second
+            }
+        }
+
+        fun write(value: Long) {
+            generation += 1
+            val buffer = ByteBuffer.allocate(SLOT_SIZE)
+                .putLong(generation)
+                .putLong(value)
+                .putInt(slotChecksum(generation, value))
+            buffer.flip()
+            channel.write(buffer, (generation % 2) * SLOT_SIZE)
+            channel.force(false)
+        }
+
+        private fun slotChecksum(generation: Long, value: Long): Int =
+            CRC32().apply { update(ByteBuffer.allocate(16).putLong(generation).putLong(value).array()) }
+                .value.toInt()
+
+        override fun close() {
+            channel.close()
+        }
+
+        companion object {
+            private const val SLOT_SIZE = 20
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_SEGMENT_BYTES = 1024L * 1024L
+        const val SEGMENT_SUFFIX = ".seg"
+        const val COMMIT_FILENAME = "commit"
+        private const val HEADER_SIZE = 4 + 4 + 1 + 8
+        private const val TYPE_ENTRY: Byte = 0
+        private const val TYPE_TOMBSTONE: Byte = 1
+        private val EMPTY = ByteArray(0)
+    }
+}
@@ -0,0 +1,513 @@
+package org.owntracks.android.services
+
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageEncrypted
+import org.owntracks.android.model.messages.MessageUnknown
+import org.owntracks.android.support.Parser
+import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.util.AbstractQueue
+import java.util.concurrent.BlockingDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * A [java.util.concurrent.BlockingDeque] of outgoing messages that is persisted to a [SegmentedLog]
+ *
+ * Each message is assigned a sequence number: messages added to the tail get increasing numbers,
+ * and a message pushed back onto the head gets one less than the current head. Taking a message
+ * from the head just advances the log's commit pointer, and removing one from anywhere else writes
+ * a tombstone, so nothing on disk is ever rewritten in place. Messages are stored in the form
+ * produced by [MessageQueueCodec].
+ *
+ * All access goes through a single lock, so that the in-memory order and the sequence numbers never
+ * disagree.
+ *
+ * If [groupCommit] is given, writes are batched as described on [SegmentedLog]. Messages matching
+ * [flushImmediately] are always synced to disk before the offer returns, along with anything
+ * buffered ahead of them.
+ *
+ * Only the first [residentWindow] messages are deserialized and held in memory. The rest of the
+ * queue is just a list of sequence numbers, and those messages are read back from the log as the
+ * head is drained. This keeps startup with a large backlog cheap. [size] and [remainingCapacity]
+ * account for the whole queue, and everything that visits the messages (`contains`, `toArray`,
+ * `toString`, `forEach` and so on) goes through [iterator], so it reads the paged-out messages too.
+ * With a [residentWindow] of 0 nothing but the sequence numbers is kept in memory, and each message
+ * is only read back from disk as it's taken.
+ *
+ * As well as the message count [capacity], the queue can be bounded by [maxBytes], the total encoded
+ * size of the queued messages. This only applies while the queue has a log to measure against.
+ */
+class SegmentedMessageQueue @JvmOverloads constructor(
+    private val capacity: Int,
+    path: File,
+    private val parser: Parser,
+    groupCommit: SegmentedLog.GroupCommit? = null,
+    residentWindow: Int = DEFAULT_RESIDENT_WINDOW,
+    private val maxBytes: Long = 0,
+    private val flushImmediately: (MessageBase) -> Boolean = { false }
+) : AbstractQueue<MessageBase>(), BlockingDeque<MessageBase> {
+    private val lock = ReentrantLock()
+    private val notEmpty = lock.newCondition()
+    private val notFull = lock.newCondition()
+
+    // The resident messages, alongside their sequence numbers
+    private val resident = ArrayDeque<MessageBase>()
+    private val sequences = ArrayDeque<Long>()
+    private val paged = ArrayDeque<Long>()
+    private val codec = MessageQueueCodec(parser)
+    private val log: SegmentedLog? = try {
+        SegmentedLog(path.resolve(QUEUE_DIRECTORY))
+    } catch (e: IOException) {
+        Timber.e(e, "Error initializing queue storage at $path. Using in-memory queue")
+        null
+    }
+    // Without a log there's nowhere to page messages out to
+    private val residentWindow = if (log == null) Int.MAX_VALUE else residentWindow.coerceAtLeast(0)
+    private var tailSequence = log?.nextSequence ?: 0
+    private var queuedBytes = 0L
+
+    init {
+        log?.run {
+            sequences().forEach {
+                val payloadSize = payloadSize(it) ?: 0
+                if (!hasRoomFor(payloadSize)) {
+                    Timber.w("Dropping message recovered from queue beyond capacity: $it")
+                    persist { appendTombstone(it) }
+                } else {
+                    paged.addLast(it)
+                    queuedBytes += payloadSize
+                }
+            }
+        }
+        pageIn()
+        migrateLegacyQueue(path)
+        log?.groupCommit = groupCommit
+    }
+
+    /**
+     * Syncs any writes that are being held back by group commit
+     */
+    fun flush() {
+        lock.withLock { persist { flush() } }
+    }
+
+    /**
+     * Syncs any buffered writes and releases the log's files. The queue mustn't be used afterwards.
+     */
+    fun close() {
+        lock.withLock { persist { close() } }
+    }
+
+    private fun migrateLegacyQueue(path: File) {
+        val legacyFiles = LEGACY_QUEUE_FILES.map(path::resolve).filter(File::exists)
+        if (legacyFiles.isEmpty()) {
+            return
+        }
+        val legacyQueue = BlockingDequeThatAlsoSometimesPersistsThingsToDiskMaybe(
+            Int.MAX_VALUE,
+            path,
+            parser
+        )
+        Timber.i("Migrating ${legacyQueue.size} messages from legacy queue storage")
+        legacyQueue.forEach {
+            if (!offerLast(it)) {
+                Timber.w("Legacy queue contains message that won't fit into queue. Dropping: $it")
+            }
+        }
+        legacyFiles.forEach(File::delete)
+    }
+
+    private inline fun persist(action: SegmentedLog.() -> Unit): Boolean = try {
+        log?.action()
+        true
+    } catch (e: IOException) {
+        Timber.e(e, "Error writing to disk queue")
+        false
+    }
+
+    /**
+     * Reads a paged-out message back from the log, returning null if it's missing or can't be sent
+     */
+    private fun load(sequence: Long): MessageBase? {
+        val bytes = try {
+            log?.read(sequence)
+        } catch (e: IOException) {
+            Timber.e(e, "Error reading message $sequence from disk queue")
+            null
+        } ?: return null
+        val message = try {
+            codec.decode(bytes)
+        } catch (e: Exception) {
+            Timber.w(e, "Unable to recover message $sequence from queue")
+            return null
+        }
+        return if (message is MessageEncrypted || message is MessageUnknown) null else message
+    }
+
+    /**
+     * Tops the resident window back up from the paged-out messages
+     */
+    private fun pageIn() {
+        while (resident.size < residentWindow && paged.isNotEmpty()) {
+            val sequence = paged.removeFirst()
+            val message = load(sequence)
+            if (message == null) {
+                Timber.w("Dropping message $sequence from queue")
+                release(sequence)
+                persist { appendTombstone(sequence) }
+                notFull.signal()
+            } else {
+                resident.addLast(message)
+                sequences.addLast(sequence)
+            }
+        }
+    }
+
+    private fun headSequence(): Long = sequences.firstOrNull() ?: paged.firstOrNull() ?: tailSequence
+
+    override val size: Int
+        get() = lock.withLock { resident.size + paged.size }
+
+    /**
+     * The number of free message slots, or 0 if the byte budget has been used up
+     */
+    override fun remainingCapacity(): Int = lock.withLock {
+        if (maxBytes > 0 && log != null && queuedBytes >= maxBytes) 0 else capacity - size
+    }
+
+    /**
+     * The total encoded size of the queued messages
+     */
+    fun sizeInBytes(): Long = lock.withLock { queuedBytes }
+
+    private fun hasRoomFor(byteCount: Int): Boolean =
+        size < capacity && (maxBytes <= 0 || log == null || queuedBytes + byteCount <= maxBytes)
+
+    /**
+     * Takes a message's bytes off the budget. Must be called before the log forgets about it.
+     */
+    private fun release(sequence: Long) {
+        queuedBytes -= log?.payloadSize(sequence) ?: 0
+    }
+
+    private fun encode(messageBase: MessageBase): ByteArray? = try {
+        codec.encode(messageBase)
+    } catch (e: IOException) {
+        Timber.e(e, "Unable to serialize message for disk queue: $messageBase")
+        null
+    }
+
+    private fun insert(messageBase: MessageBase, bytes: ByteArray, atHead: Boolean): Boolean {
+        if (!hasRoomFor(bytes.size)) {
+            return false
+        }
+        if (atHead) {
+            val sequence = headSequence() - 1
+            if (!persist { append(sequence, bytes); commit(sequence) }) {
+                return false
+            }
+            resident.addFirst(messageBase)
+            sequences.addFirst(sequence)
+            if (resident.size > residentWindow) {
+                resident.removeLast()
+                paged.addFirst(sequences.removeLast())
+            }
+        } else {
+            if (!persist {
+                    append(tailSequence, bytes)
+                    if (flushImmediately(messageBase)) flush()
+                }) {
+                return false
+            }
+            if (paged.isEmpty() && resident.size < residentWindow) {
+                resident.addLast(messageBase)
+                sequences.addLast(tailSequence)
+            } else {
+                paged.addLast(tailSequence)
+            }
+            tailSequence += 1
+        }
+        if (log != null) {
+            queuedBytes += bytes.size
+        }
+        notEmpty.signal()
+        return true
+    }
+
+    private fun removed(index: Int) {
+        val sequence = sequences.removeAt(index)
+        release(sequence)
+        if (index == 0) {
+            persist { commit(headSequence()) }
+        } else {
+            persist { appendTombstone(sequence) }
+        }
+        notFull.signal()
+        pageIn()
+    }
+
+    private fun removeSequence(sequence: Long): Boolean {
+        val index = sequences.indexOf(sequence)
+        if (index >= 0) {
+            resident.removeAt(index)
+            removed(index)
+            return true
+        }
+        if (paged.remove(sequence)) {
+            release(sequence)
+            persist { appendTombstone(sequence) }
+            notFull.signal()
+            return true
+        }
+        return false
+    }
+
+    private fun removeFirstLocked(): MessageBase? {
+        resident.removeFirstOrNull()?.let {
+            removed(0)
+            return it
+        }
+        // Nothing is resident, which is always the case with an index-only queue
+        while (paged.isNotEmpty()) {
+            val sequence = paged.removeFirst()
+            val message = load(sequence)
+            release(sequence)
+            persist { commit(headSequence()) }
+            notFull.signal()
+            if (message != null) {
+                return message
+            }
+        }
+        return null
+    }
+
+    private fun removeLastLocked(): MessageBase? {
+        while (paged.isNotEmpty()) {
+            val sequence = paged.removeLast()
+            val message = load(sequence)
+            release(sequence)
+            persist { appendTombstone(sequence) }
+            notFull.signal()
+            if (message != null) {
+                return message
+            }
+        }
+        return resident.removeLastOrNull()?.also { removed(sequences.lastIndex) }
+    }
+
+    override fun peek(): MessageBase? = peekFirst()
+
+    override fun getFirst(): MessageBase = peekFirst() ?: throw NoSuchElementException()
+
+    override fun getLast(): MessageBase = peekLast() ?: throw NoSuchElementException()
+
+    override fun peekFirst(): MessageBase? = lock.withLock {
+        resident.firstOrNull() ?: paged.firstOrNull()?.let(::load)
+    }
+
+    override fun peekLast(): MessageBase? = lock.withLock {
+        paged.lastOrNull()?.let(::load) ?: resident.lastOrNull()
+    }
+
+    override fun offer(messageBase: MessageBase): Boolean = offerLast(messageBase)
+
+    override fun push(messageBase: MessageBase) {
+        addFirst(messageBase)
+    }
+
+    override fun addFirst(messageBase: MessageBase) {
+        check(offerFirst(messageBase)) { "Deque full" }
+    }
+
+    override fun addLast(messageBase: MessageBase) {
+        check(offerLast(messageBase)) { "Deque full" }
+    }
+
+    override fun offerFirst(messageBase: MessageBase): Boolean {
+        val bytes = encode(messageBase) ?: return false
+        return lock.withLock { insert(messageBase, bytes, true) }
+    }
+
+    override fun offerLast(messageBase: MessageBase): Boolean {
+        val bytes = encode(messageBase) ?: return false
+        return lock.withLock { insert(messageBase, bytes, false) }
+    }
+
+    override fun put(messageBase: MessageBase) {
+        putLast(messageBase)
+    }
+
+    override fun putFirst(messageBase: MessageBase) {
+        offerBlocking(messageBase, true, Long.MAX_VALUE)
+    }
+
+    override fun putLast(messageBase: MessageBase) {
+        offerBlocking(messageBase, false, Long.MAX_VALUE)
+    }
+
+    override fun offer(messageBase: MessageBase, timeout: Long, unit: TimeUnit): Boolean =
+        offerLast(messageBase, timeout, unit)
+
+    override fun offerFirst(messageBase: MessageBase, timeout: Long, unit: TimeUnit): Boolean =
+        offerBlocking(messageBase, true, unit.toNanos(timeout))
+
+    override fun offerLast(messageBase: MessageBase, timeout: Long, unit: TimeUnit): Boolean =
+        offerBlocking(messageBase, false, unit.toNanos(timeout))
+
+    private fun offerBlocking(messageBase: MessageBase, atHead: Boolean, timeoutNanos: Long): Boolean {
+        val bytes = encode(messageBase) ?: return false
+        var nanos = timeoutNanos
+        lock.lockInterruptibly()
+        try {
+            while (!hasRoomFor(bytes.size)) {
+                if (nanos <= 0) {
+                    return false
+                }
+                if (timeoutNanos == Long.MAX_VALUE) notFull.await() else nanos = notFull.awaitNanos(nanos)
+            }
+            return insert(messageBase, bytes, atHead)
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    override fun poll(): MessageBase? = pollFirst()
+
+    override fun pop(): MessageBase = removeFirst()
+
+    override fun removeFirst(): MessageBase = pollFirst() ?: throw NoSuchElementException()
+
+    override fun removeLast(): MessageBase = pollLast() ?: throw NoSuchElementException()
+
+    override fun pollFirst(): MessageBase? = lock.withLock { removeFirstLocked() }
+
+    override fun pollLast(): MessageBase? = lock.withLock { removeLastLocked() }
+
+    override fun take(): MessageBase = takeFirst()
+
+    override fun takeFirst(): MessageBase = takeBlocking(true, Long.MAX_VALUE)!!
+
+    override fun takeLast(): MessageBase = takeBlocking(false, Long.MAX_VALUE)!!
+
+    override fun poll(timeout: Long, unit: TimeUnit): MessageBase? = pollFirst(timeout, unit)
+
+    override fun pollFirst(timeout: Long, unit: TimeUnit): MessageBase? =
+        takeBlocking(true, unit.toNanos(timeout))
+
+    override fun pollLast(timeout: Long, unit: TimeUnit): MessageBase? =
+        takeBlocking(false, unit.toNanos(timeout))
+
+    private fun takeBlocking(fromHead: Boolean, timeoutNanos: Long): MessageBase? {
+        var nanos = timeoutNanos
+        lock.lockInterruptibly()
+        try {
+            while (true) {
+                val message = if (fromHead) removeFirstLocked() else removeLastLocked()
+                if (message != null || nanos <= 0) {
+                    return message
+                }
+                if (timeoutNanos == Long.MAX_VALUE) notEmpty.await() else nanos = notEmpty.awaitNanos(nanos)
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    override fun removeFirstOccurrence(other: Any?): Boolean = lock.withLock {
+        removeResidentAt(resident.indexOfFirst { it === other })
+    }
+
+    override fun removeLastOccurrence(other: Any?): Boolean = lock.withLock {
+        removeResidentAt(resident.indexOfLast { it === other })
+    }
+
+    private fun removeResidentAt(index: Int): Boolean {
+        if (index < 0) {
+            return false
+        }
+        resident.removeAt(index)
+        removed(index)
+        return true
+    }
+
+    override fun removeAll(elements: Collection<MessageBase>): Boolean =
+        removeMatching { elements.contains(it) }
+
+    override fun retainAll(elements: Collection<MessageBase>): Boolean =
+        removeMatching { !elements.contains(it) }
+
+    private fun removeMatching(predicate: (MessageBase) -> Boolean): Boolean = lock.withLock {
+        var removed = false
+        val iterator = iterator()
+        while (iterator.hasNext()) {
+            if (predicate(iterator.next())) {
+                iterator.remove()
+                removed = true
+            }
+        }
+        removed
+    }
+
+    override fun clear() {
+        lock.withLock {
+            resident.clear()
+            sequences.clear()
+            paged.clear()
+            queuedBytes = 0
+            persist { commit(tailSequence) }
+            notFull.signalAll()
+        }
+    }
+
+    override fun drainTo(c: MutableCollection<in MessageBase>): Int = drainTo(c, Int.MAX_VALUE)
+
+    override fun drainTo(c: MutableCollection<in MessageBase>, maxElements: Int): Int = lock.withLock {
+        var drained = 0
+        while (drained < maxElements) {
+            c.add(removeFirstLocked() ?: break)
+            drained += 1
+        }
+        drained
+    }
+
+    /**
+     * Iterates over a snapshot of the queue, reading paged-out messages from disk as it reaches them
+     */
+    override fun iterator(): MutableIterator<MessageBase> = snapshotIterator(false)
+
+    /**
+     * Iterates over a snapshot of the queue from the tail, reading paged-out messages from disk as it
+     * reaches them
+     */
+    override fun descendingIterator(): MutableIterator<MessageBase> = snapshotIterator(true)
+
+    private fun snapshotIterator(descending: Boolean): MutableIterator<MessageBase> = lock.withLock {
+        val entries: List<Pair<MessageBase?, Long>> =
+            (resident.zip(sequences) + paged.map { Pair(null, it) })
+                .let { if (descending) it.asReversed() else it }
+        object : MutableIterator<MessageBase> {
+            private val delegate = entries.asSequence()
+                .mapNotNull { (message, sequence) ->
+                    (message ?: lock.withLock { load(sequence) })?.let { Pair(it, sequence) }
+                }
+                .iterator()
+            private var last: Long? = null
+            override fun hasNext(): Boolean = delegate.hasNext()
+            override fun next(): MessageBase = delegate.next().also { last = it.second }.first
+            override fun remove() {
+                val sequence = last ?: throw IllegalStateException()
+                lock.withLock { removeSequence(sequence) }
+                last = null
+            }
+        }
+    }
+
+    companion object {
+        const val QUEUE_DIRECTORY = "outgoingQueue"
+        const val DEFAULT_RESIDENT_WINDOW = 100
+        internal val LEGACY_QUEUE_FILES = listOf("messageQueue.dat", "messageQueueHead.dat")
+    }
+}
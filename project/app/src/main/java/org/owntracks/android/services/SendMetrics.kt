@@ -0,0 +1,168 @@
+package org.owntracks.android.services
+
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.databind.ObjectMapper
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Counters and latency histograms for the outgoing send path, shared by the [MessageProcessor],
+ * the [Parser][org.owntracks.android.support.Parser] and whichever endpoint is active. Everything
+ * is cheap enough to record on every message, and [snapshot] turns it into something that can be
+ * shown on the status screen or exported as JSON to compare builds and networks.
+ */
+@Singleton
+class SendMetrics(private val nanoTime: () -> Long) {
+    @Inject
+    constructor() : this(System::nanoTime)
+
+    enum class Phase(val key: String) {
+        SERIALIZE("serialize"),
+        ENCRYPT("encrypt"),
+
+        /**
+         * Opening a connection to the broker or HTTP endpoint, including the TLS handshake
+         */
+        CONNECT("connect"),
+
+        /**
+         * From handing a publish or POST to the client to its acknowledgement or response
+         */
+        PUBLISH("publish")
+    }
+
+    private val histograms = Phase.values().associateWithTo(EnumMap(Phase::class.java)) { LatencyHistogram() }
+    private val messagesDelivered = AtomicLong()
+    private val bytesSent = AtomicLong()
+    private val retries = AtomicLong()
+    private val dropped = AtomicLong()
+    private val recentMessages = RateWindow()
+    private val recentBytes = RateWindow()
+
+    @Volatile
+    private var startedNanos = nanoTime()
+
+    fun record(phase: Phase, elapsedNanos: Long) {
+        histograms.getValue(phase).recordNanos(elapsedNanos)
+    }
+
+    fun histogram(phase: Phase): LatencyHistogram = histograms.getValue(phase)
+
+    fun onDelivered(messages: Int) {
+        messagesDelivered.addAndGet(messages.toLong())
+        recentMessages.add(messages.toLong(), nowSeconds())
+    }
+
+    fun onBytesSent(bytes: Long) {
+        bytesSent.addAndGet(bytes)
+        recentBytes.add(bytes, nowSeconds())
+    }
+
+    /**
+     * A send failed and the message went back on the queue to be tried again
+     */
+    fun onRetry() {
+        retries.incrementAndGet()
+    }
+
+    /**
+     * A message was thrown away because the outgoing queue was full
+     */
+    fun onDropped() {
+        dropped.incrementAndGet()
+    }
+
+    fun reset() {
+        histograms.values.forEach(LatencyHistogram::reset)
+        messagesDelivered.set(0)
+        bytesSent.set(0)
+        retries.set(0)
+        dropped.set(0)
+        recentMessages.reset()
+        recentBytes.reset()
+        startedNanos = nanoTime()
+    }
+
+    private fun nowSeconds() = TimeUnit.NANOSECONDS.toSeconds(nanoTime())
+
+    /**
+     * [oldestQueuedMessageTimestamp] is the timestamp, in epoch seconds, of the oldest message still
+     * waiting to be sent, if there is one
+     */
+    fun snapshot(queueLength: Int, oldestQueuedMessageTimestamp: Long?): Snapshot {
+        val now = nowSeconds()
+        val wallClockMillis = System.currentTimeMillis()
+        return Snapshot(
+            takenAt = wallClockMillis,
+            periodSeconds = now - TimeUnit.NANOSECONDS.toSeconds(startedNanos),
+            phases = Phase.values().associateTo(LinkedHashMap()) { it.key to histograms.getValue(it).snapshot() },
+            messagesDelivered = messagesDelivered.get(),
+            bytesSent = bytesSent.get(),
+            messagesPerSecond = recentMessages.perSecond(now),
+            bytesPerSecond = recentBytes.perSecond(now),
+            retries = retries.get(),
+            dropped = dropped.get(),
+            queueLength = queueLength,
+            oldestQueuedMessageAgeSeconds = oldestQueuedMessageTimestamp?.let {
+                (TimeUnit.MILLISECONDS.toSeconds(wallClockMillis) - it).coerceAtLeast(0)
+            }
+        )
+    }
+
+    data class Snapshot(
+        val takenAt: Long,
+        val periodSeconds: Long,
+        val phases: Map<String, LatencyHistogram.Snapshot>,
+        val messagesDelivered: Long,
+        val bytesSent: Long,
+        /**
+         * Over the last [RateWindow.SECONDS] seconds
+         */
+        val messagesPerSecond: Double,
+        val bytesPerSecond: Double,
+        val retries: Long,
+        val dropped: Long,
+        val queueLength: Int,
+        val oldestQueuedMessageAgeSeconds: Long?
+    ) {
+        @Throws(JsonProcessingException::class)
+        fun toJson(): String = ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(this)
+    }
+
+    /**
+     * Totals for each of the last [SECONDS] seconds, in a ring indexed by second
+     */
+    private class RateWindow {
+        private val seconds = LongArray(SECONDS) { NONE }
+        private val totals = LongArray(SECONDS)
+
+        @Synchronized
+        fun add(amount: Long, now: Long) {
+            // nanoTime, and so now, may be negative
+            val slot = now.mod(SECONDS.toLong()).toInt()
+            if (seconds[slot] != now) {
+                seconds[slot] = now
+                totals[slot] = 0
+            }
+            totals[slot] += amount
+        }
+
+        @Synchronized
+        fun perSecond(now: Long): Double =
+            seconds.indices.filter { seconds[it] > now - SECONDS }.sumOf { totals[it] }.toDouble() / SECONDS
+
+        @Synchronized
+        fun reset() {
+            seconds.fill(NONE)
+            totals.fill(0)
+        }
+
+        companion object {
+            const val SECONDS = 60
+            private const val NONE = Long.MIN_VALUE
+        }
+    }
+}
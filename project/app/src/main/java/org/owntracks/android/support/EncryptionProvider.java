@@ -2,114 +2,438 @@ package org.owntracks.android.support;
 
 
 import android.content.SharedPreferences;
-import android.util.Base64;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import org.libsodium.jni.crypto.Random;
-import org.libsodium.jni.crypto.SecretBox;
+import org.libsodium.jni.Sodium;
 import org.owntracks.android.R;
+import org.owntracks.android.model.messages.MessageEncrypted;
+
 import javax.inject.Singleton;
 import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener;
 
 import javax.inject.Inject;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import timber.log.Timber;
 
+import static org.libsodium.jni.SodiumConstants.BOXZERO_BYTES;
 import static org.libsodium.jni.SodiumConstants.XSALSA20_POLY1305_SECRETBOX_KEYBYTES;
 import static org.libsodium.jni.SodiumConstants.XSALSA20_POLY1305_SECRETBOX_NONCEBYTES;
+import static org.libsodium.jni.SodiumConstants.ZERO_BYTES;
 
+/**
+ * Encrypts and decrypts payloads with the configured key, and decrypts with any previous keys
+ * too so that messages from devices that haven't been moved on to a new key yet can still be
+ * read during a key rotation.
+ *
+ * The keys are held in an immutable {@link KeyRing} that's replaced as a whole when they change,
+ * so the send loop and the thread receiving messages never see half of an update and never wait
+ * on each other. Everything else they need is kept per thread.
+ */
 @Singleton
 public class EncryptionProvider {
     private static final int crypto_secretbox_NONCEBYTES = XSALSA20_POLY1305_SECRETBOX_NONCEBYTES;
     private static final int crypto_secretbox_KEYBYTES = XSALSA20_POLY1305_SECRETBOX_KEYBYTES;
+    private static final int crypto_secretbox_MACBYTES = ZERO_BYTES - BOXZERO_BYTES;
 
-    private static SecretBox b;
-    private static Random r;
-    private static boolean enabled;
-    private final Preferences preferences;
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
 
-    public boolean isPayloadEncryptionEnabled() {
-        return enabled;
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64_ALPHABET.length; i++) {
+            BASE64_VALUES[BASE64_ALPHABET[i]] = i;
+        }
     }
 
-    private void initializeSecretBox() {
-        String encryptionKey = preferences.getEncryptionKey();
-
-        enabled = encryptionKey != null && !encryptionKey.isEmpty();
-        Timber.v("encryption enabled: %s", enabled);
-        if (!enabled) {
-            return;
+    // Encrypting and decrypting happen on whichever thread the message is sent or arrives on, so
+    // each keeps its own buffers
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
         }
+    };
 
-        byte[] encryptionKeyBytes = encryptionKey != null ? encryptionKey.getBytes() : new byte[0];
-        byte[] encryptionKeyBytesPadded = new byte[crypto_secretbox_KEYBYTES];
+    private final Preferences preferences;
+    private volatile KeyRing keyRing = KeyRing.EMPTY;
 
-        if (encryptionKeyBytes.length == 0 ) {
-            Timber.e("encryption key is too short or too long. Has %s bytes", encryptionKeyBytes.length);
-            enabled = false;
-            return;
-        }
-        int copyBytes = encryptionKeyBytes.length;
-        if( copyBytes > crypto_secretbox_KEYBYTES) {
-            copyBytes = crypto_secretbox_KEYBYTES;
-        }
+    public boolean isPayloadEncryptionEnabled() {
+        return keyRing.primary != null;
+    }
 
-        System.arraycopy(encryptionKeyBytes, 0, encryptionKeyBytesPadded, 0, copyBytes);
+    private void initializeKeyRing() {
+        setKeys(preferences.getEncryptionKey(), preferences.getPreviousEncryptionKeys());
+    }
 
-        b = new SecretBox(encryptionKeyBytesPadded);
-        r = new Random();
+    /**
+     * Encrypts with {@code encryptionKey} from now on, and decrypts with it or any of the
+     * {@code previousKeys}
+     */
+    void setKeys(@Nullable String encryptionKey, @NonNull List<String> previousKeys) {
+        KeyRing keyRing = KeyRing.of(encryptionKey, previousKeys);
+        Timber.v("encryption enabled: %s, keys to decrypt with: %s", keyRing.primary != null, keyRing.keys.size());
+        this.keyRing = keyRing;
     }
 
     @Inject
     public EncryptionProvider(Preferences preferences) {
         this.preferences = preferences;
-        preferences.registerOnPreferenceChangedListener(new SecretBoxManager());
-        initializeSecretBox();
+        preferences.registerOnPreferenceChangedListener(new KeyRingManager());
+        initializeKeyRing();
     }
 
-    String decrypt(String cyphertextb64) throws Parser.EncryptionException {
-        byte[] onTheWire = Base64.decode(cyphertextb64.getBytes(), Base64.DEFAULT);
-        byte[] nonce = new byte[crypto_secretbox_NONCEBYTES];
-        if (onTheWire.length<=crypto_secretbox_NONCEBYTES) {
+    Plaintext decrypt(@NonNull String cyphertextb64, @Nullable String keyId) throws Parser.EncryptionException {
+        return decrypt(cyphertextb64.toCharArray(), 0, cyphertextb64.length(), keyId);
+    }
+
+    /**
+     * Decrypts {@code length} chars of Base64 from {@code offset}, which are the nonce followed by
+     * the cyphertext, decoding them straight into this thread's buffers rather than into a new
+     * array that's then split in two.
+     *
+     * A message that says which key it was encrypted with is only tried with that key. One that
+     * doesn't, as messages from other clients never do, is tried with the current key first and
+     * then each previous one.
+     *
+     * The plaintext that's returned is only valid until this thread decrypts something else.
+     */
+    Plaintext decrypt(@NonNull char[] cyphertextb64, int offset, int length, @Nullable String keyId) throws Parser.EncryptionException {
+        KeyRing keyRing = this.keyRing;
+        List<Key> candidates;
+        if (keyId == null) {
+            candidates = keyRing.keys;
+        } else {
+            Key key = keyRing.byId(keyId);
+            if (key == null) {
+                throw new Parser.EncryptionException("No key with id " + keyId);
+            }
+            candidates = Collections.singletonList(key);
+        }
+        if (candidates.isEmpty()) {
+            throw new Parser.EncryptionException("No key to decrypt with");
+        }
+
+        Scratch buffers = scratch.get();
+        buffers.ensureCyphertextCapacity(length / 4 * 3 + 3 - crypto_secretbox_NONCEBYTES);
+        int decoded = decodeBase64(cyphertextb64, offset, length, buffers.nonce, buffers.cyphertext);
+        if (decoded <= crypto_secretbox_NONCEBYTES) {
             throw new Parser.EncryptionException("Message length shorter than nonce");
         }
-        byte[] cyphertext = new byte[onTheWire.length - crypto_secretbox_NONCEBYTES];
+        int cyphertextLength = decoded - crypto_secretbox_NONCEBYTES;
+        if (cyphertextLength < crypto_secretbox_MACBYTES) {
+            throw new Parser.EncryptionException("Message length shorter than MAC");
+        }
+        Plaintext plaintext = buffers.plaintext;
+        plaintext.ensureCapacity(cyphertextLength - crypto_secretbox_MACBYTES);
+        for (int i = 0; i < candidates.size(); i++) {
+            if (open(plaintext.buffer, buffers.cyphertext, cyphertextLength, buffers.nonce, candidates.get(i).bytes)) {
+                plaintext.length = cyphertextLength - crypto_secretbox_MACBYTES;
+                return plaintext;
+            }
+        }
+        throw new Parser.EncryptionException("Decryption failed. Ciphertext failed verification");
+    }
+
+    /**
+     * Opens the first {@code cyphertextLength} bytes of the cyphertext into the plaintext,
+     * returning whether they were authentic
+     */
+    boolean open(byte[] plaintext, byte[] cyphertext, int cyphertextLength, byte[] nonce, byte[] key) {
+        return Sodium.crypto_secretbox_open_easy(plaintext, cyphertext, cyphertextLength, nonce, key) == 0;
+    }
+
+    /**
+     * Seals the first {@code plaintextLength} bytes of the plaintext into the cyphertext, which
+     * comes out {@code crypto_secretbox_MACBYTES} longer
+     */
+    void seal(byte[] cyphertext, byte[] plaintext, int plaintextLength, byte[] nonce, byte[] key) {
+        Sodium.crypto_secretbox_easy(cyphertext, plaintext, plaintextLength, nonce, key);
+    }
+
+    void randomNonce(byte[] nonce) {
+        Sodium.randombytes_buf(nonce, nonce.length);
+    }
 
-        System.arraycopy(onTheWire, 0, nonce, 0, crypto_secretbox_NONCEBYTES);
-        System.arraycopy(onTheWire, crypto_secretbox_NONCEBYTES, cyphertext, 0, onTheWire.length - crypto_secretbox_NONCEBYTES);
-        return new String(b.decrypt(nonce, cyphertext));
+    /**
+     * Decodes Base64 into {@code first} until it's full and then into {@code rest}, skipping line
+     * breaks and stopping at padding as android.util.Base64.DEFAULT does
+     */
+    static int decodeBase64(char[] input, int offset, int length, byte[] first, byte[] rest) throws Parser.EncryptionException {
+        int end = offset + length;
+        int i = offset;
+        int decoded = 0;
+        // Four chars at a time until the end, or anything else such as a line break or padding
+        while (i + 4 <= end) {
+            char c0 = input[i], c1 = input[i + 1], c2 = input[i + 2], c3 = input[i + 3];
+            if ((c0 | c1 | c2 | c3) >= BASE64_VALUES.length) {
+                break;
+            }
+            // Any invalid char makes this negative
+            int group = BASE64_VALUES[c0] << 18 | BASE64_VALUES[c1] << 12 | BASE64_VALUES[c2] << 6 | BASE64_VALUES[c3];
+            if (group < 0) {
+                break;
+            }
+            if (decoded >= first.length) {
+                int index = decoded - first.length;
+                rest[index] = (byte) (group >> 16);
+                rest[index + 1] = (byte) (group >> 8);
+                rest[index + 2] = (byte) group;
+                decoded += 3;
+            } else {
+                decoded = put(first, rest, decoded, (byte) (group >> 16));
+                decoded = put(first, rest, decoded, (byte) (group >> 8));
+                decoded = put(first, rest, decoded, (byte) group);
+            }
+            i += 4;
+        }
+        int bits = 0;
+        int pendingBits = 0;
+        for (; i < end; i++) {
+            char c = input[i];
+            if (c == '=') {
+                break;
+            }
+            int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                if (c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+                    continue;
+                }
+                throw new Parser.EncryptionException("Message is not valid Base64");
+            }
+            bits = (bits << 6) | value;
+            pendingBits += 6;
+            if (pendingBits >= 8) {
+                pendingBits -= 8;
+                decoded = put(first, rest, decoded, (byte) (bits >> pendingBits));
+                bits &= (1 << pendingBits) - 1;
+            }
+        }
+        return decoded;
+    }
+
+    private static int put(byte[] first, byte[] rest, int index, byte value) {
+        if (index < first.length) {
+            first[index] = value;
+        } else {
+            rest[index - first.length] = value;
+        }
+        return index + 1;
     }
 
-    String encrypt(@NonNull String plaintext) {
+    @Nullable
+    MessageEncrypted encrypt(@NonNull String plaintext) {
         return encrypt(plaintext.getBytes());
     }
 
-    String encrypt(@NonNull byte[] plaintext) {
-        byte[] nonce = r.randomBytes(crypto_secretbox_NONCEBYTES);
-        byte[] cyphertext = b.encrypt(nonce, plaintext);
-        byte[] out = new byte[crypto_secretbox_NONCEBYTES + cyphertext.length];
+    /**
+     * The plaintext encrypted with the current key, along with the key's id, or null if there's
+     * no longer a key to encrypt with
+     */
+    @Nullable
+    MessageEncrypted encrypt(@NonNull byte[] plaintext) {
+        Key key = keyRing.primary;
+        if (key == null) {
+            return null;
+        }
+        Scratch buffers = scratch.get();
+        randomNonce(buffers.nonce);
+        buffers.ensureCyphertextCapacity(plaintext.length + crypto_secretbox_MACBYTES);
+        seal(buffers.cyphertext, plaintext, plaintext.length, buffers.nonce, key.bytes);
+
+        MessageEncrypted message = new MessageEncrypted();
+        message.setKid(key.id);
+        message.setData(encodeBase64(buffers.nonce, buffers.cyphertext, plaintext.length + crypto_secretbox_MACBYTES));
+        return message;
+    }
+
+    /**
+     * Encodes all of {@code first} followed by {@code restLength} bytes of {@code rest} as Base64,
+     * with padding and without line breaks as android.util.Base64.NO_WRAP does
+     */
+    static String encodeBase64(byte[] first, byte[] rest, int restLength) {
+        int length = first.length + restLength;
+        char[] encoded = new char[(length + 2) / 3 * 4];
+        int e = 0;
+        for (int i = 0; i < length; i += 3) {
+            int remaining = length - i;
+            int group = (get(first, rest, i) & 0xff) << 16;
+            if (remaining > 1) {
+                group |= (get(first, rest, i + 1) & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                group |= get(first, rest, i + 2) & 0xff;
+            }
+            encoded[e++] = BASE64_ALPHABET[group >> 18 & 0x3f];
+            encoded[e++] = BASE64_ALPHABET[group >> 12 & 0x3f];
+            encoded[e++] = remaining > 1 ? BASE64_ALPHABET[group >> 6 & 0x3f] : '=';
+            encoded[e++] = remaining > 2 ? BASE64_ALPHABET[group & 0x3f] : '=';
+        }
+        return new String(encoded);
+    }
+
+    private static byte get(byte[] first, byte[] rest, int index) {
+        return index < first.length ? first[index] : rest[index - first.length];
+    }
+
+    /**
+     * A key padded to the length the cipher needs, and a short id for it that's sent along with
+     * messages so that the receiver knows which key to decrypt them with
+     */
+    static final class Key {
+        final byte[] bytes;
+        final String id;
+
+        private Key(byte[] bytes, String id) {
+            this.bytes = bytes;
+            this.id = id;
+        }
+
+        @Nullable
+        static Key of(@Nullable String encryptionKey) {
+            byte[] encryptionKeyBytes = encryptionKey != null ? encryptionKey.getBytes() : new byte[0];
+            if (encryptionKeyBytes.length == 0) {
+                return null;
+            }
+            // Keys are cut off, and padded with zeroes, to the length the cipher needs
+            byte[] padded = Arrays.copyOf(encryptionKeyBytes, crypto_secretbox_KEYBYTES);
+            return new Key(padded, idOf(padded));
+        }
+
+        /**
+         * The first bytes of a hash of the key, which says nothing about the key that a message
+         * encrypted with it doesn't already
+         */
+        private static String idOf(byte[] key) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(KEY_ID_CONTEXT);
+                byte[] hash = digest.digest(key);
+                StringBuilder id = new StringBuilder(KEY_ID_BYTES * 2);
+                for (int i = 0; i < KEY_ID_BYTES; i++) {
+                    id.append(Character.forDigit(hash[i] >> 4 & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+                }
+                return id.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static final byte[] KEY_ID_CONTEXT = "owntracks-key-id".getBytes(StandardCharsets.UTF_8);
+        private static final int KEY_ID_BYTES = 4;
+    }
+
+    /**
+     * The key to encrypt with, if there is one, and every key to decrypt with, that one first
+     */
+    static final class KeyRing {
+        static final KeyRing EMPTY = new KeyRing(null, Collections.<Key>emptyList());
+
+        @Nullable
+        final Key primary;
+        final List<Key> keys;
+
+        private KeyRing(@Nullable Key primary, List<Key> keys) {
+            this.primary = primary;
+            this.keys = keys;
+        }
+
+        static KeyRing of(@Nullable String encryptionKey, List<String> previousKeys) {
+            Key primary = Key.of(encryptionKey);
+            List<Key> keys = new ArrayList<>(previousKeys.size() + 1);
+            if (primary != null) {
+                keys.add(primary);
+            }
+            for (String previousKey : previousKeys) {
+                Key key = Key.of(previousKey);
+                if (key != null && byId(keys, key.id) == null) {
+                    keys.add(key);
+                }
+            }
+            return new KeyRing(primary, Collections.unmodifiableList(keys));
+        }
+
+        @Nullable
+        Key byId(String id) {
+            return byId(keys, id);
+        }
+
+        @Nullable
+        private static Key byId(List<Key> keys, String id) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (keys.get(i).id.equals(id)) {
+                    return keys.get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A decrypted message, in a buffer that's reused by the thread that decrypted it
+     */
+    public static final class Plaintext {
+        private byte[] buffer;
+        private int length;
+
+        Plaintext(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
 
-        System.arraycopy(nonce, 0, out, 0, crypto_secretbox_NONCEBYTES);
-        System.arraycopy(cyphertext, 0, out, crypto_secretbox_NONCEBYTES, cyphertext.length);
+        public byte[] getBuffer() {
+            return buffer;
+        }
+
+        public int getLength() {
+            return length;
+        }
 
-        return Base64.encodeToString(out, Base64.NO_WRAP);
+        private void ensureCapacity(int capacity) {
+            if (buffer.length < capacity) {
+                buffer = new byte[Math.max(capacity, buffer.length * 2)];
+            }
+        }
+    }
+
+    private static final class Scratch {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        final byte[] nonce = new byte[crypto_secretbox_NONCEBYTES];
+        byte[] cyphertext = new byte[INITIAL_CAPACITY];
+        final Plaintext plaintext = new Plaintext(new byte[INITIAL_CAPACITY], 0);
+
+        void ensureCyphertextCapacity(int capacity) {
+            if (cyphertext.length < capacity) {
+                cyphertext = new byte[Math.max(capacity, cyphertext.length * 2)];
+            }
+        }
     }
 
-    private class SecretBoxManager implements OnModeChangedPreferenceChangedListener {
-        SecretBoxManager() {
+    private class KeyRingManager implements OnModeChangedPreferenceChangedListener {
+        KeyRingManager() {
             preferences.registerOnPreferenceChangedListener(this);
         }
 
         @Override
         public void onAttachAfterModeChanged() {
-            initializeSecretBox();
+            initializeKeyRing();
         }
 
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-            if (preferences.getPreferenceKey(R.string.preferenceKeyEncryptionKey).equals(key))
-                initializeSecretBox();
+            if (preferences.getPreferenceKey(R.string.preferenceKeyEncryptionKey).equals(key) ||
+                    preferences.getPreferenceKey(R.string.preferenceKeyPreviousEncryptionKeys).equals(key))
+                initializeKeyRing();
         }
     }
 }
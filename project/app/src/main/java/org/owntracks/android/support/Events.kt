@@ -2,6 +2,7 @@ package org.owntracks.android.support
 
 import org.owntracks.android.data.WaypointModel
 import org.owntracks.android.model.FusedContact
+import org.owntracks.android.services.PrioritizedMessageQueue
 import java.util.*
 
 class Events {
@@ -15,10 +16,16 @@ class Events {
     class ServiceStarted : E()
     class QueueChanged : E() {
         var newLength = 0
+        var laneLengths: Map<PrioritizedMessageQueue.Lane, Int> = emptyMap()
         fun withNewLength(length: Int): QueueChanged {
             newLength = length
             return this
         }
+
+        fun withLaneLengths(lengths: Map<PrioritizedMessageQueue.Lane, Int>): QueueChanged {
+            laneLengths = lengths
+            return this
+        }
     }
 
     open class WaypointEvent internal constructor(val waypointModel: WaypointModel) : E()
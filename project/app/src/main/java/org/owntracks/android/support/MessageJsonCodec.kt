@@ -0,0 +1,366 @@
+package org.owntracks.android.support
+
+import com.fasterxml.jackson.core.JsonEncoding
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.core.SerializableString
+import com.fasterxml.jackson.core.io.SerializedString
+import com.fasterxml.jackson.core.util.ByteArrayBuilder
+import org.owntracks.android.model.BatteryStatus
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageEncrypted
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import java.io.IOException
+
+/**
+ * Hand-written JSON for the messages that are sent and received most: locations, transitions and
+ * cards. Every location is serialized at least twice, once for the disk queue and once to send it,
+ * and going through the [Parser]'s polymorphic mapper means working out the type, looking up its
+ * serializer and sorting its properties each time.
+ *
+ * The output is byte for byte what the mapper writes: `_type` first, then the properties in
+ * alphabetical order, leaving out the same empty values as the `@JsonInclude` annotations on each
+ * class. Reading only handles the simple case of `_type` coming first and every value having the
+ * type it's written with. Anything else, from `_type` coming later to a number in a string, is
+ * left to the mapper by returning null, so that it's read, coerced or rejected exactly as before.
+ */
+class MessageJsonCodec(private val jsonFactory: JsonFactory) {
+    /**
+     * The JSON for [message], or null if it isn't one of the types handled here
+     */
+    @Throws(IOException::class)
+    fun write(message: MessageBase): ByteArray? {
+        // Exact classes only, as a subclass may have more properties
+        val writer: (JsonGenerator) -> Unit = when (message.javaClass) {
+            MessageLocation::class.java -> { generator -> writeLocation(generator, message as MessageLocation) }
+            MessageTransition::class.java -> { generator -> writeTransition(generator, message as MessageTransition) }
+            MessageCard::class.java -> { generator -> writeCard(generator, message as MessageCard) }
+            else -> return null
+        }
+        val output = ByteArrayBuilder(jsonFactory._getBufferRecycler())
+        try {
+            jsonFactory.createGenerator(output, JsonEncoding.UTF8).use { generator ->
+                generator.writeStartObject()
+                writer(generator)
+                generator.writeEndObject()
+            }
+            return output.toByteArray()
+        } finally {
+            output.release()
+        }
+    }
+
+    private fun writeLocation(generator: JsonGenerator, message: MessageLocation) {
+        generator.writeStringField(NAME_TYPE, TYPE_LOCATION)
+        generator.writeNonEmptyString(NAME_BSSID, message.bssid)
+        generator.writeNonEmptyString(NAME_SSID, message.ssid)
+        generator.writeNumberField(NAME_ACC, message.accuracy)
+        generator.writeNumberField(NAME_ALT, message.altitude)
+        generator.writeNumberField(NAME_BATT, message.battery)
+        message.batteryStatus?.let { generator.writeNumberField(NAME_BS, it.value) }
+        generator.writeNonEmptyString(NAME_CONN, message.conn)
+        generator.writeNumberField(NAME_CREATED_AT, message.createdAt)
+        message.inregions?.takeIf { it.isNotEmpty() }?.let { regions ->
+            generator.writeArrayFieldStart(NAME_INREGIONS)
+            regions.forEach(generator::writeString)
+            generator.writeEndArray()
+        }
+        generator.writeNumberField(NAME_LAT, message.latitude)
+        generator.writeNumberField(NAME_LON, message.longitude)
+        message.monitoringMode?.let { generator.writeNumberField(NAME_M, it) }
+        generator.writeNonEmptyString(NAME_T, message.trigger)
+        message.trackerId?.let { generator.writeStringField(NAME_TID, it) }
+        generator.writeNonEmptyString(NAME_TOPIC, message.visibleTopic)
+        generator.writeNumberField(NAME_TST, message.timestamp)
+        generator.writeNumberField(NAME_VAC, message.verticalAccuracy)
+        generator.writeNumberField(NAME_VEL, message.velocity)
+    }
+
+    private fun writeTransition(generator: JsonGenerator, message: MessageTransition) {
+        generator.writeStringField(NAME_TYPE, TYPE_TRANSITION)
+        generator.writeNumberField(NAME_ACC, message.accuracy)
+        generator.writeNonEmptyString(NAME_DESC, message.description)
+        generator.writeNonEmptyString(NAME_EVENT, message.event)
+        generator.writeNumberField(NAME_LAT, message.latitude)
+        generator.writeNumberField(NAME_LON, message.longitude)
+        generator.writeNonEmptyString(NAME_T, message.trigger)
+        generator.writeNonEmptyString(NAME_TID, message.trackerId)
+        generator.writeNonEmptyString(NAME_TOPIC, message.visibleTopic)
+        generator.writeNumberField(NAME_TST, message.timestamp)
+        generator.writeNumberField(NAME_WTST, message.waypointTimestamp)
+    }
+
+    private fun writeCard(generator: JsonGenerator, message: MessageCard) {
+        generator.writeStringField(NAME_TYPE, TYPE_CARD)
+        generator.writeNonEmptyString(NAME_FACE, message.face)
+        generator.writeNonEmptyString(NAME_NAME, message.name)
+        message.trackerId?.let { generator.writeStringField(NAME_TID, it) }
+        generator.writeNonEmptyString(NAME_TOPIC, message.visibleTopic)
+    }
+
+    private fun JsonGenerator.writeNonEmptyString(name: SerializableString, value: String?) {
+        if (!value.isNullOrEmpty()) {
+            writeStringField(name, value)
+        }
+    }
+
+    // The generator only takes pre-encoded names on their own, not with a value
+    private fun JsonGenerator.writeStringField(name: SerializableString, value: SerializableString) {
+        writeFieldName(name)
+        writeString(value)
+    }
+
+    private fun JsonGenerator.writeStringField(name: SerializableString, value: String) {
+        writeFieldName(name)
+        writeString(value)
+    }
+
+    private fun JsonGenerator.writeNumberField(name: SerializableString, value: Int) {
+        writeFieldName(name)
+        writeNumber(value)
+    }
+
+    private fun JsonGenerator.writeNumberField(name: SerializableString, value: Long) {
+        writeFieldName(name)
+        writeNumber(value)
+    }
+
+    private fun JsonGenerator.writeNumberField(name: SerializableString, value: Float) {
+        writeFieldName(name)
+        writeNumber(value)
+    }
+
+    private fun JsonGenerator.writeNumberField(name: SerializableString, value: Double) {
+        writeFieldName(name)
+        writeNumber(value)
+    }
+
+    private fun JsonGenerator.writeArrayFieldStart(name: SerializableString) {
+        writeFieldName(name)
+        writeStartArray()
+    }
+
+    /**
+     * The message in [input], or null if it's something the mapper should read instead
+     */
+    @Throws(IOException::class)
+    fun read(input: ByteArray): MessageBase? = read(input, 0, input.size)
+
+    /**
+     * The message in [length] bytes of [input] from [offset], or null if it's something the mapper
+     * should read instead
+     */
+    @Throws(IOException::class)
+    fun read(input: ByteArray, offset: Int, length: Int): MessageBase? {
+        try {
+            jsonFactory.createParser(input, offset, length).use { parser ->
+                if (!parser.startsWithType()) {
+                    return null
+                }
+                return when (parser.text) {
+                    MessageLocation.TYPE -> readFields(parser, MessageLocation(), ::readLocationField)
+                    MessageTransition.TYPE -> readFields(parser, MessageTransition(), ::readTransitionField)
+                    MessageCard.TYPE -> readFields(parser, MessageCard(), ::readCardField)
+                    else -> null
+                }
+            }
+        } catch (e: UnexpectedValue) {
+            return null
+        } catch (e: JsonProcessingException) {
+            // Let the mapper fail with its own error
+            return null
+        }
+    }
+
+    /**
+     * Decrypts the data of the encrypted message in [input] with [encryptionProvider], straight
+     * from the parser's buffer without making a string of it, or returns null if it's something
+     * the mapper should read instead. The key id is only used if it comes before the data.
+     */
+    @Throws(IOException::class, Parser.EncryptionException::class)
+    fun readEncrypted(input: ByteArray, encryptionProvider: EncryptionProvider): EncryptionProvider.Plaintext? {
+        try {
+            jsonFactory.createParser(input).use { parser ->
+                if (!parser.startsWithType() || parser.text != MessageEncrypted.TYPE) {
+                    return null
+                }
+                var keyId: String? = null
+                var plaintext: EncryptionProvider.Plaintext? = null
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    when (parser.currentName) {
+                        "kid" -> keyId = if (parser.nextToken() == JsonToken.VALUE_STRING) parser.text else return null
+                        "data" -> plaintext = if (plaintext == null && parser.nextToken() == JsonToken.VALUE_STRING) {
+                            encryptionProvider.decrypt(parser.textCharacters, parser.textOffset, parser.textLength, keyId)
+                        } else {
+                            return null
+                        }
+                        else -> {
+                            parser.nextToken()
+                            parser.skipChildren()
+                        }
+                    }
+                }
+                return if (parser.currentToken() == JsonToken.END_OBJECT) plaintext else null
+            }
+        } catch (e: JsonProcessingException) {
+            return null
+        }
+    }
+
+    private fun JsonParser.startsWithType() =
+        nextToken() == JsonToken.START_OBJECT &&
+                nextToken() == JsonToken.FIELD_NAME && currentName == TYPE &&
+                nextToken() == JsonToken.VALUE_STRING
+
+    private fun <T : MessageBase> readFields(parser: JsonParser, message: T, readField: (JsonParser, T, String) -> Boolean): T {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val name = parser.currentName
+            if (name == "topic") {
+                message.visibleTopic = parser.nextString() ?: throw UnexpectedValue
+            } else if (!readField(parser, message, name)) {
+                parser.nextToken()
+                parser.skipChildren()
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT) {
+            throw UnexpectedValue
+        }
+        return message
+    }
+
+    private fun readLocationField(parser: JsonParser, message: MessageLocation, name: String): Boolean {
+        when (name) {
+            "BSSID" -> message.bssid = parser.nextString()
+            "SSID" -> message.ssid = parser.nextString()
+            "acc" -> message.accuracy = parser.nextInt()
+            "alt" -> message.altitude = parser.nextInt()
+            "batt" -> message.battery = parser.nextInt()
+            "bs" -> message.batteryStatus = parser.nextNullableInt()?.let { value ->
+                BatteryStatus.values().firstOrNull { it.value == value } ?: throw UnexpectedValue
+            }
+            "conn" -> message.conn = parser.nextString()
+            "inregions" -> message.inregions = parser.nextStringList()
+            "lat" -> message.latitude = parser.nextDouble()
+            "lon" -> message.longitude = parser.nextDouble()
+            "m" -> message.monitoringMode = parser.nextNullableInt()
+            "t" -> message.trigger = parser.nextString()
+            "tid" -> message.trackerId = parser.nextString()
+            "tst" -> message.timestamp = parser.nextLong()
+            "vac" -> message.verticalAccuracy = parser.nextInt()
+            "vel" -> message.velocity = parser.nextInt()
+            else -> return false
+        }
+        return true
+    }
+
+    private fun readTransitionField(parser: JsonParser, message: MessageTransition, name: String): Boolean {
+        when (name) {
+            "acc" -> message.accuracy = parser.nextDouble().toFloat()
+            "desc" -> message.description = parser.nextString()
+            "event" -> message.event = parser.nextString()
+            "lat" -> message.latitude = parser.nextDouble()
+            "lon" -> message.longitude = parser.nextDouble()
+            "t" -> message.trigger = parser.nextString()
+            "tid" -> message.trackerId = parser.nextString()
+            "tst" -> message.timestamp = parser.nextLong()
+            "wtst" -> message.waypointTimestamp = parser.nextLong()
+            else -> return false
+        }
+        return true
+    }
+
+    private fun readCardField(parser: JsonParser, message: MessageCard, name: String): Boolean {
+        when (name) {
+            "face" -> message.face = parser.nextString()
+            "name" -> message.name = parser.nextString()
+            "tid" -> message.trackerId = parser.nextString()
+            else -> return false
+        }
+        return true
+    }
+
+    private fun JsonParser.nextString(): String? = when (nextToken()) {
+        JsonToken.VALUE_STRING -> text
+        JsonToken.VALUE_NULL -> null
+        else -> throw UnexpectedValue
+    }
+
+    private fun JsonParser.nextStringList(): List<String>? = when (nextToken()) {
+        JsonToken.START_ARRAY -> ArrayList<String>().also { list ->
+            while (nextToken() == JsonToken.VALUE_STRING) {
+                list.add(text)
+            }
+            if (currentToken() != JsonToken.END_ARRAY) {
+                throw UnexpectedValue
+            }
+        }
+        JsonToken.VALUE_NULL -> null
+        else -> throw UnexpectedValue
+    }
+
+    private fun JsonParser.nextNullableInt(): Int? = when (nextToken()) {
+        JsonToken.VALUE_NUMBER_INT -> if (numberType == JsonParser.NumberType.INT) intValue else throw UnexpectedValue
+        JsonToken.VALUE_NULL -> null
+        else -> throw UnexpectedValue
+    }
+
+    private fun JsonParser.nextInt(): Int = nextNullableInt() ?: throw UnexpectedValue
+
+    private fun JsonParser.nextLong(): Long =
+        if (nextToken() == JsonToken.VALUE_NUMBER_INT && numberType != JsonParser.NumberType.BIG_INTEGER) {
+            longValue
+        } else {
+            throw UnexpectedValue
+        }
+
+    private fun JsonParser.nextDouble(): Double = when (nextToken()) {
+        JsonToken.VALUE_NUMBER_FLOAT -> doubleValue
+        JsonToken.VALUE_NUMBER_INT -> if (numberType != JsonParser.NumberType.BIG_INTEGER) doubleValue else throw UnexpectedValue
+        else -> throw UnexpectedValue
+    }
+
+    /**
+     * A value the mapper might read differently, for instance by coercing it
+     */
+    private object UnexpectedValue : RuntimeException() {
+        override fun fillInStackTrace(): Throwable = this
+    }
+
+    companion object {
+        private const val TYPE = "_type"
+
+        // Encoded once, as Jackson's own serializers do
+        private val NAME_TYPE = SerializedString(TYPE)
+        private val TYPE_LOCATION = SerializedString(MessageLocation.TYPE)
+        private val TYPE_TRANSITION = SerializedString(MessageTransition.TYPE)
+        private val TYPE_CARD = SerializedString(MessageCard.TYPE)
+        private val NAME_ACC = SerializedString("acc")
+        private val NAME_ALT = SerializedString("alt")
+        private val NAME_BATT = SerializedString("batt")
+        private val NAME_BS = SerializedString("bs")
+        private val NAME_BSSID = SerializedString("BSSID")
+        private val NAME_CONN = SerializedString("conn")
+        private val NAME_CREATED_AT = SerializedString("created_at")
+        private val NAME_DESC = SerializedString("desc")
+        private val NAME_EVENT = SerializedString("event")
+        private val NAME_FACE = SerializedString("face")
+        private val NAME_INREGIONS = SerializedString("inregions")
+        private val NAME_LAT = SerializedString("lat")
+        private val NAME_LON = SerializedString("lon")
+        private val NAME_M = SerializedString("m")
+        private val NAME_NAME = SerializedString("name")
+        private val NAME_SSID = SerializedString("SSID")
+        private val NAME_T = SerializedString("t")
+        private val NAME_TID = SerializedString("tid")
+        private val NAME_TOPIC = SerializedString("topic")
+        private val NAME_TST = SerializedString("tst")
+        private val NAME_VAC = SerializedString("vac")
+        private val NAME_VEL = SerializedString("vel")
+        private val NAME_WTST = SerializedString("wtst")
+    }
+}
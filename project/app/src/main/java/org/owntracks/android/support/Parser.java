@@ -4,13 +4,17 @@ import androidx.annotation.NonNull;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
 import org.owntracks.android.model.messages.MessageBase;
 import org.owntracks.android.model.messages.MessageEncrypted;
+import org.owntracks.android.services.SendMetrics;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -19,49 +23,91 @@ import javax.inject.Singleton;
 public class Parser {
     private final ObjectMapper defaultMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
     private final ObjectMapper arrayCompatMapper = new ObjectMapper().configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true).configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    // Looked up once rather than on every call
+    private final ObjectWriter defaultWriter = defaultMapper.writer();
+    private final ObjectWriter prettyWriter = defaultMapper.writerWithDefaultPrettyPrinter();
+    private final ObjectReader messageReader = defaultMapper.readerFor(MessageBase.class);
+    private final ObjectReader messageArrayReader = defaultMapper.readerFor(MessageBase[].class);
+    private final ObjectReader arrayCompatReader = arrayCompatMapper.readerFor(MessageBase[].class);
+    private final MessageJsonCodec codec = new MessageJsonCodec(defaultMapper.getFactory());
     private final EncryptionProvider encryptionProvider;
+    private final SendMetrics sendMetrics;
 
-    @Inject
     public Parser(EncryptionProvider encryptionProvider) {
+        this(encryptionProvider, new SendMetrics());
+    }
+
+    @Inject
+    public Parser(EncryptionProvider encryptionProvider, SendMetrics sendMetrics) {
         this.encryptionProvider = encryptionProvider;
+        this.sendMetrics = sendMetrics;
     }
 
     public String toUnencryptedJsonPretty(@NonNull MessageBase message) throws IOException {
-        return defaultMapper.writerWithDefaultPrettyPrinter().writeValueAsString(message).replaceAll("\\r\\n", "\n");
+        return prettyWriter.writeValueAsString(message).replaceAll("\\r\\n", "\n");
     }
 
     public String toUnencryptedJson(@NonNull MessageBase message) throws IOException {
-        return defaultMapper.writeValueAsString(message);
+        byte[] json = codec.write(message);
+        return json != null ? new String(json, StandardCharsets.UTF_8) : defaultWriter.writeValueAsString(message);
     }
 
     public byte[] toUnencryptedJsonBytes(@NonNull MessageBase message) throws IOException {
-        return defaultMapper.writeValueAsBytes(message);
+        byte[] json = codec.write(message);
+        return json != null ? json : defaultWriter.writeValueAsBytes(message);
     }
 
     public String toJson(@NonNull MessageBase message) throws IOException {
         return encryptString(toUnencryptedJson(message));
     }
 
+    /**
+     * Serializes a message to be sent, so the time spent serializing and encrypting it is recorded
+     * in the send metrics
+     */
     public byte[] toJsonBytes(@NonNull MessageBase message) throws IOException {
-        return encryptBytes(toUnencryptedJsonBytes(message));
+        long startTime = System.nanoTime();
+        byte[] json = toUnencryptedJsonBytes(message);
+        long serializedTime = System.nanoTime();
+        sendMetrics.record(SendMetrics.Phase.SERIALIZE, serializedTime - startTime);
+        if (encryptionProvider != null && encryptionProvider.isPayloadEncryptionEnabled()) {
+            byte[] encrypted = encryptBytes(json);
+            sendMetrics.record(SendMetrics.Phase.ENCRYPT, System.nanoTime() - serializedTime);
+            return encrypted;
+        }
+        return json;
     }
 
     public MessageBase fromJson(@NonNull String input) throws IOException, EncryptionException {
-        return decrypt(defaultMapper.readValue(input, MessageBase.class));
+        return fromJson(input.getBytes(StandardCharsets.UTF_8));
     }
 
 
     public MessageBase fromUnencryptedJson(@NonNull byte[] input) throws IOException {
-        return defaultMapper.readValue(input, MessageBase.class);
+        return fromUnencryptedJson(input, 0, input.length);
+    }
+
+    private MessageBase fromUnencryptedJson(@NonNull byte[] input, int offset, int length) throws IOException {
+        MessageBase message = codec.read(input, offset, length);
+        return message != null ? message : messageReader.readValue(input, offset, length);
     }
 
     public MessageBase fromJson(@NonNull byte[] input) throws IOException, EncryptionException {
-        return decrypt(fromUnencryptedJson(input));
+        // Encrypted messages go from the Base64 in the payload to the plaintext and on to the
+        // message without a string in between
+        if (encryptionProvider != null && encryptionProvider.isPayloadEncryptionEnabled()) {
+            EncryptionProvider.Plaintext plaintext = codec.readEncrypted(input, encryptionProvider);
+            if (plaintext != null) {
+                return fromUnencryptedJson(plaintext.getBuffer(), 0, plaintext.getLength());
+            }
+        }
+        MessageBase message = codec.read(input);
+        return message != null ? message : decrypt(messageReader.<MessageBase>readValue(input));
     }
 
     // Accepts 1) [{plain},{plain},...], 2) {plain}, 3) {encrypted, data:[{plain}, {plain}, ...]} as input stream
     public MessageBase[] fromJson(@NonNull InputStream input) throws IOException, EncryptionException {
-        return decrypt(arrayCompatMapper.readValue(input, MessageBase[].class));
+        return decrypt(arrayCompatReader.<MessageBase[]>readValue(input));
     }
 
     private MessageBase[] decrypt(MessageBase[] a) throws IOException, EncryptionException {
@@ -72,7 +118,9 @@ public class Parser {
         if (a.length == 1 && a[0] instanceof MessageEncrypted) {
             if (encryptionProvider == null || !encryptionProvider.isPayloadEncryptionEnabled())
                 throw new EncryptionException("received encrypted message but payload encryption is not enabled");
-            return defaultMapper.readValue(encryptionProvider.decrypt(((MessageEncrypted) a[0]).getData()), MessageBase[].class);
+            MessageEncrypted encrypted = (MessageEncrypted) a[0];
+            EncryptionProvider.Plaintext plaintext = encryptionProvider.decrypt(encrypted.getData(), encrypted.getKid());
+            return messageArrayReader.readValue(plaintext.getBuffer(), 0, plaintext.getLength());
         } else { // single message wrapped in array by mapper or array of messages
             return a;
         }
@@ -82,7 +130,9 @@ public class Parser {
         if (m instanceof MessageEncrypted) {
             if (encryptionProvider == null || !encryptionProvider.isPayloadEncryptionEnabled())
                 throw new EncryptionException("received encrypted message but payload encryption is not enabled");
-            return defaultMapper.readValue(encryptionProvider.decrypt(((MessageEncrypted) m).getData()), MessageBase.class);
+            MessageEncrypted encrypted = (MessageEncrypted) m;
+            EncryptionProvider.Plaintext plaintext = encryptionProvider.decrypt(encrypted.getData(), encrypted.getKid());
+            return fromUnencryptedJson(plaintext.getBuffer(), 0, plaintext.getLength());
         }
         return m;
     }
@@ -90,18 +140,21 @@ public class Parser {
 
     private String encryptString(@NonNull String input) throws IOException {
         if (encryptionProvider != null && encryptionProvider.isPayloadEncryptionEnabled()) {
-            MessageEncrypted m = new MessageEncrypted();
-            m.setData(encryptionProvider.encrypt(input));
-            return defaultMapper.writeValueAsString(m);
+            // Null if the key has been removed since
+            MessageEncrypted m = encryptionProvider.encrypt(input);
+            if (m != null) {
+                return defaultWriter.writeValueAsString(m);
+            }
         }
         return input;
     }
 
     private byte[] encryptBytes(@NonNull byte[] input) throws IOException {
         if (encryptionProvider != null && encryptionProvider.isPayloadEncryptionEnabled()) {
-            MessageEncrypted m = new MessageEncrypted();
-            m.setData(encryptionProvider.encrypt(input));
-            return defaultMapper.writeValueAsBytes(m);
+            MessageEncrypted m = encryptionProvider.encrypt(input);
+            if (m != null) {
+                return defaultWriter.writeValueAsBytes(m);
+            }
         }
         return input;
     }
@@ -14,6 +14,7 @@ import org.owntracks.android.BuildConfig
 import org.owntracks.android.R
 import org.owntracks.android.model.messages.MessageConfiguration
 import org.owntracks.android.services.LocationProcessor
+import org.owntracks.android.services.Mqtt5AsyncClient
 import org.owntracks.android.services.MessageProcessorEndpointHttp
 import org.owntracks.android.services.MessageProcessorEndpointMqtt
 import org.owntracks.android.services.worker.Scheduler
@@ -263,6 +264,102 @@ class Preferences @Inject constructor(
             setBoolean(R.string.preferenceKeyDontReuseHttpClient, newValue)
         }
 
+    // Unit is seconds. How long an idle connection to the HTTP endpoint is kept open for the next
+    // message. 0 closes the connection after every request
+    @get:Export(
+        keyResId = R.string.preferenceKeyHttpKeepaliveSeconds,
+        exportModeMqtt = false,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyHttpKeepaliveSeconds)
+    var httpKeepaliveSeconds: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyHttpKeepaliveSeconds,
+            R.integer.valHttpKeepaliveSeconds
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyHttpKeepaliveSeconds, newValue.coerceAtLeast(0))
+        }
+
+    @get:Export(
+        keyResId = R.string.preferenceKeyHttp2,
+        exportModeMqtt = false,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyHttp2)
+    var http2: Boolean
+        get() = getBooleanOrDefault(R.string.preferenceKeyHttp2, R.bool.valFalse)
+        set(newValue) {
+            setBoolean(R.string.preferenceKeyHttp2, newValue)
+        }
+
+    // Content-Encoding used to compress request bodies in HTTP mode: none, gzip or deflate
+    @get:Export(
+        keyResId = R.string.preferenceKeyHttpCompression,
+        exportModeMqtt = false,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyHttpCompression)
+    var httpCompression: String
+        get() = getStringOrDefault(R.string.preferenceKeyHttpCompression, R.string.valHttpCompression)
+            .takeIf { HTTP_COMPRESSIONS.contains(it) } ?: HTTP_COMPRESSION_NONE
+        set(newValue) {
+            setString(
+                R.string.preferenceKeyHttpCompression,
+                if (HTTP_COMPRESSIONS.contains(newValue)) newValue else HTTP_COMPRESSION_NONE
+            )
+        }
+
+    // Unit is bytes. Request bodies smaller than this are sent uncompressed, as compressing them
+    // saves little or nothing
+    @get:Export(
+        keyResId = R.string.preferenceKeyHttpCompressionMinBytes,
+        exportModeMqtt = false,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyHttpCompressionMinBytes)
+    var httpCompressionMinBytes: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyHttpCompressionMinBytes,
+            R.integer.valHttpCompressionMinBytes
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyHttpCompressionMinBytes, newValue.coerceAtLeast(0))
+        }
+
+    // 1 sends each message in its own request. Recorders that accept a JSON array of messages can
+    // take up to this many per request instead
+    @get:Export(
+        keyResId = R.string.preferenceKeyHttpBatchMaxMessages,
+        exportModeMqtt = false,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyHttpBatchMaxMessages)
+    var httpBatchMaxMessages: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyHttpBatchMaxMessages,
+            R.integer.valHttpBatchMaxMessages
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyHttpBatchMaxMessages, newValue.coerceIn(1, 1000))
+        }
+
+    // Unit is bytes of request body. A single message larger than this is still sent on its own
+    @get:Export(
+        keyResId = R.string.preferenceKeyHttpBatchMaxBytes,
+        exportModeMqtt = false,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyHttpBatchMaxBytes)
+    var httpBatchMaxBytes: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyHttpBatchMaxBytes,
+            R.integer.valHttpBatchMaxBytes
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyHttpBatchMaxBytes, newValue.coerceAtLeast(1))
+        }
+
     @get:Export(
         keyResId = R.string.preferenceKeyOpencageGeocoderApiKey,
         exportModeMqtt = true,
@@ -314,6 +411,116 @@ class Preferences @Inject constructor(
             setInt(R.string.preferenceKeyConnectionTimeoutSeconds, newValue.coerceAtLeast(1))
         }
 
+    // Unit is milliseconds. 0 disables group commit, so every queued message is synced to disk on its own
+    @get:Export(
+        keyResId = R.string.preferenceKeyQueueGroupCommitWindowMillis,
+        exportModeMqtt = true,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyQueueGroupCommitWindowMillis)
+    var queueGroupCommitWindowMillis: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyQueueGroupCommitWindowMillis,
+            R.integer.valQueueGroupCommitWindowMillis
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyQueueGroupCommitWindowMillis, newValue.coerceIn(0, 10_000))
+        }
+
+    @get:Export(
+        keyResId = R.string.preferenceKeyQueueGroupCommitMaxBytes,
+        exportModeMqtt = true,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyQueueGroupCommitMaxBytes)
+    var queueGroupCommitMaxBytes: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyQueueGroupCommitMaxBytes,
+            R.integer.valQueueGroupCommitMaxBytes
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyQueueGroupCommitMaxBytes, newValue.coerceAtLeast(1))
+        }
+
+    @get:Export(
+        keyResId = R.string.preferenceKeyQueueCompactionDepth,
+        exportModeMqtt = true,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyQueueCompactionDepth)
+    var queueCompactionDepth: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyQueueCompactionDepth,
+            R.integer.valQueueCompactionDepth
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyQueueCompactionDepth, newValue.coerceIn(0, 10_000))
+        }
+
+    @get:Export(
+        keyResId = R.string.preferenceKeyQueueCompactionIntervalSeconds,
+        exportModeMqtt = true,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyQueueCompactionIntervalSeconds)
+    var queueCompactionIntervalSeconds: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyQueueCompactionIntervalSeconds,
+            R.integer.valQueueCompactionIntervalSeconds
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyQueueCompactionIntervalSeconds, newValue.coerceAtLeast(0))
+        }
+
+    @get:Export(
+        keyResId = R.string.preferenceKeyQueueCompactionDistanceMeters,
+        exportModeMqtt = true,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyQueueCompactionDistanceMeters)
+    var queueCompactionDistanceMeters: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyQueueCompactionDistanceMeters,
+            R.integer.valQueueCompactionDistanceMeters
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyQueueCompactionDistanceMeters, newValue.coerceAtLeast(0))
+        }
+
+    @get:Export(
+        keyResId = R.string.preferenceKeyQueueMaxBytes,
+        exportModeMqtt = true,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyQueueMaxBytes)
+    var queueMaxBytes: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyQueueMaxBytes,
+            R.integer.valQueueMaxBytes
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyQueueMaxBytes, newValue.coerceAtLeast(0))
+        }
+
+    /**
+     * While only a metered network is available, background locations aren't sent if more than this
+     * many are queued, so that a large backlog waits for an unmetered one. 0 sends them regardless.
+     */
+    @get:Export(
+        keyResId = R.string.preferenceKeyQueueMeteredBacklogLimit,
+        exportModeMqtt = true,
+        exportModeHttp = true
+    )
+    @set:Import(keyResId = R.string.preferenceKeyQueueMeteredBacklogLimit)
+    var queueMeteredBacklogLimit: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyQueueMeteredBacklogLimit,
+            R.integer.valQueueMeteredBacklogLimit
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyQueueMeteredBacklogLimit, newValue.coerceAtLeast(0))
+        }
+
 
     @get:Export(
         keyResId = R.string.preferenceKeyPublishExtendedData,
@@ -527,6 +734,7 @@ class Preferences @Inject constructor(
         clearKey(R.string.preferenceKeyPort)
     }
 
+    // 3 and 4 are MQTT 3.1 and 3.1.1. 5 uses an MQTT 5 client instead
     @get:Export(keyResId = R.string.preferenceKeyMqttProtocolLevel, exportModeMqtt = true)
     @set:Import(keyResId = R.string.preferenceKeyMqttProtocolLevel)
     var mqttProtocolLevel: Int
@@ -539,11 +747,25 @@ class Preferences @Inject constructor(
                 R.string.preferenceKeyMqttProtocolLevel, if (
                     mqttProtocolLevel == MqttConnectOptions.MQTT_VERSION_DEFAULT ||
                     mqttProtocolLevel == MqttConnectOptions.MQTT_VERSION_3_1 ||
-                    mqttProtocolLevel == MqttConnectOptions.MQTT_VERSION_3_1_1
+                    mqttProtocolLevel == MqttConnectOptions.MQTT_VERSION_3_1_1 ||
+                    mqttProtocolLevel == Mqtt5AsyncClient.MQTT_VERSION_5
                 ) mqttProtocolLevel else MqttConnectOptions.MQTT_VERSION_DEFAULT
             )
         }
 
+    // Number of QoS 1/2 publishes that may be awaiting an acknowledgement at once. 1 waits for each
+    // message to be acknowledged before sending the next
+    @get:Export(keyResId = R.string.preferenceKeyMqttMaxInflight, exportModeMqtt = true)
+    @set:Import(keyResId = R.string.preferenceKeyMqttMaxInflight)
+    var mqttMaxInflight: Int
+        get() = getIntOrDefault(
+            R.string.preferenceKeyMqttMaxInflight,
+            R.integer.valMqttMaxInflight
+        )
+        set(newValue) {
+            setInt(R.string.preferenceKeyMqttMaxInflight, newValue.coerceIn(1, 65535))
+        }
+
     // Unit is seconds
     // Minimum time is 15minutes because work manager cannot schedule any faster
     @get:Export(keyResId = R.string.preferenceKeyKeepalive, exportModeMqtt = true)
@@ -967,6 +1189,13 @@ class Preferences @Inject constructor(
     val encryptionKey: String
         get() = getStringOrDefault(R.string.preferenceKeyEncryptionKey, R.string.valEmpty)
 
+    // One per line. Messages are still decrypted with these, but never encrypted, so that devices
+    // can be moved on to a new encryption key one at a time
+    val previousEncryptionKeys: List<String>
+        get() = getStringOrDefault(R.string.preferenceKeyPreviousEncryptionKeys, R.string.valEmpty)
+            .lines()
+            .filter { it.isNotEmpty() }
+
     // sharedPreferences because the value is independent from the selected mode
     val isSetupCompleted: Boolean
         get() =// sharedPreferences because the value is independent from the selected mode
@@ -1160,13 +1389,15 @@ class Preferences @Inject constructor(
         const val EXPERIMENTAL_FEATURE_USE_OSM_MAP = "useOSMMap"
         const val EXPERIMENTAL_FEATURE_BEARING_ARROW_FOLLOWS_DEVICE_ORIENTATION =
             "bearingArrowFollowsDeviceOrientation"
+        const val EXPERIMENTAL_FEATURE_ADAPTIVE_KEEPALIVE = "adaptiveKeepalive"
 
         internal val EXPERIMENTAL_FEATURES = setOf(
             EXPERIMENTAL_FEATURE_SHOW_EXPERIMENTAL_PREFERENCE_UI,
             EXPERIMENTAL_FEATURE_ALLOW_SMALL_KEEPALIVE,
             EXPERIMENTAL_FEATURE_USE_OSM_MAP,
             EXPERIMENTAL_FEATURE_USE_AOSP_LOCATION_PROVIDER,
-            EXPERIMENTAL_FEATURE_BEARING_ARROW_FOLLOWS_DEVICE_ORIENTATION
+            EXPERIMENTAL_FEATURE_BEARING_ARROW_FOLLOWS_DEVICE_ORIENTATION,
+            EXPERIMENTAL_FEATURE_ADAPTIVE_KEEPALIVE
 
         )
         const val REVERSE_GEOCODE_PROVIDER_NONE = "None"
@@ -1178,6 +1409,15 @@ class Preferences @Inject constructor(
             REVERSE_GEOCODE_PROVIDER_OPENCAGE
         )
 
+        const val HTTP_COMPRESSION_NONE = "none"
+        const val HTTP_COMPRESSION_GZIP = "gzip"
+        const val HTTP_COMPRESSION_DEFLATE = "deflate"
+        val HTTP_COMPRESSIONS = setOf(
+            HTTP_COMPRESSION_NONE,
+            HTTP_COMPRESSION_GZIP,
+            HTTP_COMPRESSION_DEFLATE
+        )
+
         const val NIGHT_MODE_DISABLE = 0
         const val NIGHT_MODE_ENABLE = 1
         const val NIGHT_MODE_AUTO = 2
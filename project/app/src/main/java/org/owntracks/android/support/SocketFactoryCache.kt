@@ -0,0 +1,85 @@
+package org.owntracks.android.support
+
+import android.content.Context
+import timber.log.Timber
+import java.io.ByteArrayInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+import java.security.MessageDigest
+import java.security.cert.CertificateFactory
+import java.security.cert.X509Certificate
+
+/**
+ * Holds on to the [SocketFactory] built from the configured CA certificate and client PKCS#12
+ * file, and hands the same one back for as long as the files' contents and the password are
+ * unchanged. Building one means parsing the certificates and setting up key stores, trust managers
+ * and an [javax.net.ssl.SSLContext], which is slow on a phone. More importantly, the TLS session
+ * cache lives on the [javax.net.ssl.SSLContext], so reusing it is what lets a reconnect resume the
+ * previous TLS session rather than doing a full handshake.
+ */
+class SocketFactoryCache internal constructor(
+    private val newSocketFactory: (SocketFactory.SocketFactoryOptions) -> SocketFactory
+) {
+    constructor() : this(::SocketFactory)
+
+    class Entry(val socketFactory: SocketFactory, val caCertificate: X509Certificate?)
+
+    private var digest: ByteArray? = null
+    private var entry: Entry? = null
+
+    /**
+     * [caCrt] and [clientP12] are the contents of the files, or null if there isn't one
+     */
+    @Synchronized
+    @Throws(GeneralSecurityException::class, IOException::class)
+    fun get(caCrt: ByteArray?, clientP12: ByteArray?, clientP12Password: String?): Entry {
+        val digest = digestOf(caCrt, clientP12, clientP12Password)
+        entry?.let {
+            if (digest.contentEquals(this.digest)) {
+                return it
+            }
+        }
+        Timber.d("TLS material changed, building a new socket factory")
+        val options = SocketFactory.SocketFactoryOptions()
+        caCrt?.run { options.withCaInputStream(ByteArrayInputStream(this)) }
+        clientP12?.run {
+            options.withClientP12InputStream(ByteArrayInputStream(this)).withClientP12Password(clientP12Password)
+        }
+        val caCertificate = caCrt?.let {
+            CertificateFactory.getInstance("X.509").generateCertificate(ByteArrayInputStream(it)) as X509Certificate
+        }
+        return Entry(newSocketFactory(options), caCertificate).also {
+            this.entry = it
+            this.digest = digest
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        entry = null
+        digest = null
+    }
+
+    private fun digestOf(vararg parts: Any?): ByteArray {
+        val sha256 = MessageDigest.getInstance("SHA-256")
+        parts.forEach {
+            val bytes = when (it) {
+                is ByteArray -> it
+                is String -> it.toByteArray()
+                else -> null
+            }
+            // Length-prefixed, with -1 for a missing part, so that no two combinations collide
+            sha256.update(ByteBuffer.allocate(4).putInt(bytes?.size ?: -1).array())
+            bytes?.run(sha256::update)
+        }
+        return sha256.digest()
+    }
+
+    companion object {
+        @JvmStatic
+        @Throws(FileNotFoundException::class, IOException::class)
+        fun readFile(context: Context, name: String): ByteArray = context.openFileInput(name).use { it.readBytes() }
+    }
+}
@@ -6,6 +6,8 @@ import android.view.View
 import androidx.recyclerview.widget.LinearLayoutManager
 import dagger.hilt.android.AndroidEntryPoint
 import org.owntracks.android.R
+import org.owntracks.android.data.repos.ContactChange
+import org.owntracks.android.data.repos.ContactsDelta
 import org.owntracks.android.databinding.UiContactsBinding
 import org.owntracks.android.model.FusedContact
 import org.owntracks.android.ui.base.BaseActivity
@@ -25,9 +27,11 @@ class ContactsActivity : BaseActivity<UiContactsBinding?, ContactsMvvm.ViewModel
         bindAndAttachContentView(R.layout.ui_contacts, savedInstanceState)
         setSupportToolbar(binding!!.appbar.toolbar)
         setDrawer(binding!!.appbar.toolbar)
-        binding!!.vm!!.contacts.observe({ this.lifecycle }, { contacts: Map<String, FusedContact> ->
-            contactsAdapter.setContactList(contacts.values)
-            binding!!.vm!!.refreshGeocodes()
+        binding!!.vm!!.contacts.observe({ this.lifecycle }, { delta: ContactsDelta ->
+            contactsAdapter.applyChanges(delta)
+            binding!!.vm!!.refreshGeocodes(
+                delta.changes.filterNot { it is ContactChange.Removed }.map { it.contact }
+            )
         })
         binding!!.recyclerView.layoutManager = LinearLayoutManager(this)
         binding!!.recyclerView.adapter = contactsAdapter
@@ -4,16 +4,19 @@ import android.view.LayoutInflater
 import android.view.ViewGroup
 import androidx.databinding.DataBindingUtil
 import androidx.databinding.ViewDataBinding
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import org.owntracks.android.BR
 import org.owntracks.android.R
+import org.owntracks.android.data.repos.ContactChange
+import org.owntracks.android.data.repos.ContactsDelta
 import org.owntracks.android.model.FusedContact
 import org.owntracks.android.ui.base.BaseAdapter
-import java.util.*
 
 internal class ContactsAdapter(private val clickListener: BaseAdapter.ClickListener<FusedContact?>) :
-    RecyclerView.Adapter<FusedContactViewHolder>() {
-    private lateinit var contactList: List<FusedContact>
+    ListAdapter<FusedContact, FusedContactViewHolder>(DIFF_CALLBACK) {
+    private val contacts = LinkedHashMap<String, FusedContact>()
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): FusedContactViewHolder {
         val binding = DataBindingUtil.inflate<ViewDataBinding>(
             LayoutInflater.from(parent.context),
@@ -25,16 +28,49 @@ internal class ContactsAdapter(private val clickListener: BaseAdapter.ClickListe
     }
 
     override fun onBindViewHolder(holder: FusedContactViewHolder, position: Int) {
-        holder.bind(contactList[position], clickListener)
+        holder.bind(getItem(position), clickListener)
     }
 
-    override fun getItemCount(): Int {
-        return contactList.size
+    /**
+     * Applies a delta to the list shown, so that only the rows that have changed are touched.
+     * Location changes come through the bound [FusedContact] by themselves, but updated contacts
+     * are still rebound in case their card changed, which the row's image doesn't follow.
+     */
+    fun applyChanges(delta: ContactsDelta) {
+        if (delta.reset) {
+            contacts.clear()
+        }
+        val updated = HashSet<String>()
+        delta.changes.forEach {
+            when (it) {
+                is ContactChange.Added -> contacts[it.contact.id] = it.contact
+                is ContactChange.Updated -> {
+                    contacts[it.contact.id] = it.contact
+                    updated.add(it.contact.id)
+                }
+                is ContactChange.Removed -> contacts.remove(it.contact.id)
+            }
+        }
+        submitList(ArrayList(contacts.values)) {
+            if (updated.isNotEmpty()) {
+                currentList.forEachIndexed { position, contact ->
+                    if (contact.id in updated) {
+                        notifyItemChanged(position)
+                    }
+                }
+            }
+        }
     }
 
-    fun setContactList(contacts: Collection<FusedContact>) {
-        contactList = ArrayList(contacts)
-        notifyDataSetChanged()
+    companion object {
+        private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<FusedContact>() {
+            override fun areItemsTheSame(oldItem: FusedContact, newItem: FusedContact): Boolean =
+                oldItem.id == newItem.id
+
+            // Rows are bound to the contact itself, and follow its changes while it's the same one
+            override fun areContentsTheSame(oldItem: FusedContact, newItem: FusedContact): Boolean =
+                oldItem === newItem
+        }
     }
 }
 
@@ -5,6 +5,8 @@ import androidx.lifecycle.LiveData
 import dagger.hilt.android.scopes.ActivityScoped
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.launch
+import org.owntracks.android.data.repos.ContactsDelta
+import org.owntracks.android.data.repos.ContactsDeltaLiveData
 import org.owntracks.android.data.repos.ContactsRepo
 import org.owntracks.android.geocoding.GeocoderProvider
 import org.owntracks.android.model.FusedContact
@@ -22,18 +24,13 @@ class ContactsViewModel @Inject constructor(
         super.attachView(savedInstanceState, view!!)
     }
 
-    fun refreshGeocodes() {
-        Timber.i("Refreshing contacts geocodes")
+    fun refreshGeocodes(contacts: Collection<FusedContact>) {
+        Timber.i("Refreshing geocodes for %d contacts", contacts.size)
         mainScope.launch {
-            contactsRepo.all.value?.run {
-                map { it.value.messageLocation }
-                    .filterNotNull()
-                    .iterator()
-                    .forEach { geocoderProvider.resolve(it) }
-            }
+            contacts.mapNotNull { it.messageLocation }
+                .forEach { geocoderProvider.resolve(it) }
         }
     }
 
-    override val contacts: LiveData<MutableMap<String, FusedContact>>
-        get() = contactsRepo.all
+    override val contacts: LiveData<ContactsDelta> = ContactsDeltaLiveData(contactsRepo)
 }
\ No newline at end of file
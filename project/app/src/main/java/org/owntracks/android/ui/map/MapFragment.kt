@@ -13,6 +13,7 @@ import androidx.lifecycle.lifecycleScope
 import androidx.preference.PreferenceManager
 import kotlinx.coroutines.launch
 import org.osmdroid.config.Configuration
+import org.owntracks.android.data.repos.ContactChange
 import org.owntracks.android.location.LatLng
 import org.owntracks.android.model.FusedContact
 import org.owntracks.android.support.ContactImageBindingAdapter
@@ -29,6 +30,7 @@ abstract class MapFragment<V : ViewDataBinding> internal constructor(
     abstract fun removeMarkerFromMap(id: String)
     abstract fun initMap()
     protected val viewModel: MapViewModel by activityViewModels()
+    private val contactsOnMap = mutableSetOf<String>()
 
     override fun onCreateView(
         inflater: LayoutInflater,
@@ -51,11 +53,25 @@ abstract class MapFragment<V : ViewDataBinding> internal constructor(
         viewModel.mapCenter.observe(viewLifecycleOwner, { latLng: LatLng ->
             updateCamera(latLng)
         })
-        viewModel.allContacts.observe(viewLifecycleOwner, { contacts ->
-            contacts.values.forEach {
-                updateMarkerForContact(it)
-                if (it == viewModel.currentContact.value) {
-                    viewModel.refreshGeocodeForContact(it)
+        viewModel.contactChanges.observe(viewLifecycleOwner, { delta ->
+            if (delta.reset) {
+                // Anything we've drawn that isn't in the reset was removed while we weren't looking
+                val ids = delta.changes.mapTo(HashSet()) { it.contact.id }
+                contactsOnMap.filterNot(ids::contains).forEach(::removeMarkerFromMap)
+                contactsOnMap.retainAll(ids)
+            }
+            delta.changes.forEach {
+                when (it) {
+                    is ContactChange.Removed -> {
+                        contactsOnMap.remove(it.contact.id)
+                        removeMarkerFromMap(it.contact.id)
+                    }
+                    else -> {
+                        updateMarkerForContact(it.contact)
+                        if (it.contact == viewModel.currentContact.value) {
+                            viewModel.refreshGeocodeForContact(it.contact)
+                        }
+                    }
                 }
             }
         })
@@ -72,6 +88,7 @@ abstract class MapFragment<V : ViewDataBinding> internal constructor(
             return
         }
         Timber.v("updating marker for contact: %s", contact.id)
+        contactsOnMap.add(contact.id)
         lifecycleScope.launch {
             contactImageBindingAdapter.run {
                 updateMarkerOnMap(contact.id, contact.latLng!!, getBitmapFromCache(contact))
@@ -11,6 +11,8 @@ import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.launch
+import org.owntracks.android.data.repos.ContactsDelta
+import org.owntracks.android.data.repos.ContactsDeltaLiveData
 import org.owntracks.android.data.repos.ContactsRepo
 import org.owntracks.android.geocoding.GeocoderProvider
 import org.owntracks.android.location.*
@@ -60,7 +62,7 @@ class MapViewModel @Inject constructor(
     val myLocationEnabled: LiveData<Boolean>
         get() = mutableMyLocationEnabled
 
-    val allContacts = contactsRepo.all
+    val contactChanges: LiveData<ContactsDelta> = ContactsDeltaLiveData(contactsRepo)
     val locationIdlingResource = SimpleIdlingResource("locationIdlingResource", false)
 
     private var viewMode: ViewMode = ViewMode.Device
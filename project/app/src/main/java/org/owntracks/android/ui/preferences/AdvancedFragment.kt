@@ -2,6 +2,7 @@ package org.owntracks.android.ui.preferences
 
 import android.os.Build
 import android.os.Bundle
+import android.text.InputType
 import androidx.preference.EditTextPreference
 import androidx.preference.ListPreference
 import androidx.preference.Preference
@@ -51,6 +52,10 @@ class AdvancedFragment @Inject constructor() : AbstractPreferenceFragment() {
             false
         }
 
+        findPreference<EditTextPreference>(getString(R.string.preferenceKeyPreviousEncryptionKeys))?.setOnBindEditTextListener {
+            it.inputType = InputType.TYPE_CLASS_TEXT or InputType.TYPE_TEXT_FLAG_MULTI_LINE
+        }
+
         findPreference<Preference>("autostartWarning")?.isVisible =
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
     }
@@ -39,5 +39,7 @@ class StatusActivity : BaseActivity<UiStatusBinding?, StatusMvvm.ViewModel<Statu
     override fun onResume() {
         super.onResume()
         viewModel?.refreshDozeModeWhitelisted()
+        viewModel?.refreshSendMetrics()
+        viewModel?.refreshAdaptiveKeepalive()
     }
 }
\ No newline at end of file
@@ -22,5 +22,9 @@ public interface StatusMvvm {
         Date getServiceStarted();
         LiveData<Boolean> getDozeWhitelisted();
         void refreshDozeModeWhitelisted();
+        String getSendMetricsSummary();
+        void refreshSendMetrics();
+        String getAdaptiveKeepaliveSummary();
+        void refreshAdaptiveKeepalive();
     }
 }
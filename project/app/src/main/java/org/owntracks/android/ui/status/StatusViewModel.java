@@ -13,14 +13,23 @@ import androidx.databinding.Bindable;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+
 import org.greenrobot.eventbus.Subscribe;
 import org.owntracks.android.BR;
+import org.owntracks.android.R;
+import org.owntracks.android.services.AdaptiveKeepalive;
+import org.owntracks.android.services.LatencyHistogram;
 import org.owntracks.android.services.MessageProcessor;
+import org.owntracks.android.services.SendMetrics;
 import org.owntracks.android.support.Events;
+import org.owntracks.android.support.Preferences;
 import org.owntracks.android.ui.base.viewmodel.BaseViewModel;
 import org.owntracks.android.ui.status.logs.LogViewerActivity;
 
 import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -33,17 +42,25 @@ import timber.log.Timber;
 @ActivityScoped
 public class StatusViewModel extends BaseViewModel<StatusMvvm.View> implements StatusMvvm.ViewModel<StatusMvvm.View> {
     private final Context context;
+    private final MessageProcessor messageProcessor;
+    private final AdaptiveKeepalive adaptiveKeepalive;
+    private final Preferences preferences;
     private MessageProcessor.EndpointState endpointState;
     private String endpointMessage;
 
     private Date serviceStarted;
     private long locationUpdated;
     private int queueLength;
+    private String sendMetricsSummary;
+    private String adaptiveKeepaliveSummary;
     private final MutableLiveData<Boolean> isDozeWhitelisted = new MutableLiveData<>();
 
     @Inject
-    public StatusViewModel(@ApplicationContext Context context) {
+    public StatusViewModel(@ApplicationContext Context context, MessageProcessor messageProcessor, AdaptiveKeepalive adaptiveKeepalive, Preferences preferences) {
         this.context = context;
+        this.messageProcessor = messageProcessor;
+        this.adaptiveKeepalive = adaptiveKeepalive;
+        this.preferences = preferences;
     }
 
     public void attachView(@Nullable Bundle savedInstanceState, @NonNull StatusMvvm.View view) {
@@ -89,6 +106,66 @@ public class StatusViewModel extends BaseViewModel<StatusMvvm.View> implements S
                 ((PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE)).isIgnoringBatteryOptimizations(context.getApplicationContext().getPackageName());
     }
 
+    @Override
+    @Bindable
+    public String getSendMetricsSummary() {
+        return sendMetricsSummary;
+    }
+
+    @Override
+    public void refreshSendMetrics() {
+        SendMetrics.Snapshot snapshot = messageProcessor.getSendMetricsSnapshot();
+        LatencyHistogram.Snapshot publish = snapshot.getPhases().get(SendMetrics.Phase.PUBLISH.getKey());
+        LatencyHistogram.Snapshot connect = snapshot.getPhases().get(SendMetrics.Phase.CONNECT.getKey());
+        Long oldestAge = snapshot.getOldestQueuedMessageAgeSeconds();
+        sendMetricsSummary = context.getString(
+                R.string.status_send_metrics_summary,
+                formatMicros(publish.getP50Micros()),
+                formatMicros(publish.getP99Micros()),
+                formatMicros(connect.getP50Micros()),
+                snapshot.getMessagesPerSecond(),
+                snapshot.getRetries(),
+                snapshot.getDropped(),
+                oldestAge != null ? oldestAge : 0
+        );
+        notifyPropertyChanged(BR.sendMetricsSummary);
+    }
+
+    @Override
+    @Bindable
+    public String getAdaptiveKeepaliveSummary() {
+        return adaptiveKeepaliveSummary;
+    }
+
+    @Override
+    public void refreshAdaptiveKeepalive() {
+        if (!preferences.isExperimentalFeatureEnabled(Preferences.EXPERIMENTAL_FEATURE_ADAPTIVE_KEEPALIVE)) {
+            adaptiveKeepaliveSummary = null;
+        } else {
+            StringBuilder summary = new StringBuilder();
+            for (Map.Entry<String, AdaptiveKeepalive.Learned> entry : adaptiveKeepalive.learned().entrySet()) {
+                AdaptiveKeepalive.Learned learned = entry.getValue();
+                if (summary.length() > 0) {
+                    summary.append('\n');
+                }
+                summary.append(learned.getConverged() ?
+                        context.getString(R.string.status_adaptive_keepalive_converged, entry.getKey(), learned.getSafeSeconds()) :
+                        context.getString(R.string.status_adaptive_keepalive_learning, entry.getKey(), learned.getSafeSeconds(), learned.getNextSeconds()));
+            }
+            adaptiveKeepaliveSummary = summary.length() > 0 ? summary.toString() : null;
+        }
+        notifyPropertyChanged(BR.adaptiveKeepaliveSummary);
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return String.format(Locale.ROOT, "%dµs", micros);
+        } else if (micros < 1_000_000) {
+            return String.format(Locale.ROOT, "%.1fms", micros / 1000.0);
+        }
+        return String.format(Locale.ROOT, "%.1fs", micros / 1_000_000.0);
+    }
+
     @Override
     @Bindable
     public long getLocationUpdated() {
@@ -120,6 +197,22 @@ public class StatusViewModel extends BaseViewModel<StatusMvvm.View> implements S
         Timber.v("queue changed %s", e.getNewLength());
         this.queueLength = e.getNewLength();
         notifyPropertyChanged(BR.endpointQueue);
+        refreshSendMetrics();
+    }
+
+    public void exportSendMetrics() {
+        String json;
+        try {
+            json = messageProcessor.getSendMetricsSnapshot().toJson();
+        } catch (JsonProcessingException e) {
+            Timber.e(e, "Unable to export send metrics");
+            return;
+        }
+        Intent intent = new Intent(Intent.ACTION_SEND)
+                .setType("text/plain")
+                .putExtra(Intent.EXTRA_SUBJECT, context.getString(R.string.exportSendMetricsSubject))
+                .putExtra(Intent.EXTRA_TEXT, json);
+        context.startActivity(Intent.createChooser(intent, context.getString(R.string.exportSendMetrics)).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
     }
 
     public void viewLogs() {
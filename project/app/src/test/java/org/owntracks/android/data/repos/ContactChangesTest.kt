@@ -0,0 +1,95 @@
+package org.owntracks.android.data.repos
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule
+import androidx.lifecycle.Observer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.owntracks.android.model.FusedContact
+
+class ContactChangesTest {
+    @get:Rule
+    val instantTaskExecutorRule = InstantTaskExecutorRule()
+
+    private val changes = ContactChanges()
+    private val received = mutableListOf<List<ContactChange>>()
+    private val observer = Observer<List<ContactChange>> { received.add(it) }
+    private val first = FusedContact("first")
+    private val second = FusedContact("second")
+
+    @Before
+    fun setup() {
+        changes.observeForever(observer)
+    }
+
+    @After
+    fun teardown() {
+        changes.removeObserver(observer)
+    }
+
+    private fun received() = received.flatten().map { it.toString() }
+
+    @Test
+    fun `given changes to different contacts, when dispatched, then they're sent together in order`() {
+        changes.add(ContactChange.Added(first))
+        changes.add(ContactChange.Removed(second))
+        changes.dispatch()
+
+        assertEquals(1, received.size)
+        assertEquals(listOf("Added(first)", "Removed(second)"), received())
+    }
+
+    @Test
+    fun `given a contact that's added and then updated, when dispatched, then it's added with the update`() {
+        val updated = FusedContact("first")
+        changes.add(ContactChange.Added(first))
+        changes.add(ContactChange.Updated(updated))
+        changes.dispatch()
+
+        assertEquals(listOf("Added(first)"), received())
+        assertSame(updated, received.single().single().contact)
+    }
+
+    @Test
+    fun `given a contact that's added and then removed, when dispatched, then nothing is sent`() {
+        changes.add(ContactChange.Added(first))
+        changes.add(ContactChange.Updated(first))
+        changes.add(ContactChange.Removed(first))
+        changes.dispatch()
+
+        assertTrue(received.isEmpty())
+    }
+
+    @Test
+    fun `given a contact that's removed and then added again, when dispatched, then it's updated`() {
+        changes.add(ContactChange.Removed(first))
+        changes.add(ContactChange.Added(FusedContact("first")))
+        changes.dispatch()
+
+        assertEquals(listOf("Updated(first)"), received())
+    }
+
+    @Test
+    fun `given a contact that's updated and then removed, when dispatched, then it's removed`() {
+        changes.add(ContactChange.Updated(first))
+        changes.add(ContactChange.Updated(first))
+        changes.add(ContactChange.Removed(first))
+        changes.dispatch()
+
+        assertEquals(listOf("Removed(first)"), received())
+    }
+
+    @Test
+    fun `given nothing has changed, when dispatched, then nothing is sent`() {
+        changes.dispatch()
+        changes.add(ContactChange.Updated(first))
+        changes.dispatch()
+        changes.dispatch()
+
+        assertEquals(listOf("Updated(first)"), received())
+    }
+}
@@ -0,0 +1,128 @@
+package org.owntracks.android.data.repos
+
+import androidx.arch.core.executor.ArchTaskExecutor
+import androidx.arch.core.executor.TaskExecutor
+import org.greenrobot.eventbus.EventBus
+import org.junit.After
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.ContactBitmapAndNameMemoryCache
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+import kotlin.random.Random
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares ingesting locations for lots of contacts from several threads at once with the way the
+ * repo used to do it, with every update made and posted while holding the repo's monitor. A reader
+ * looks contacts up throughout, as the UI does.
+ */
+@Ignore("Benchmark")
+class ContactsRepoBenchmark {
+    private lateinit var main: ExecutorService
+
+    /**
+     * The repo as it was: every update under the one monitor, events posted while holding it
+     */
+    private class LockedContactsRepo(private val contactsRepo: ContactsRepo) : ContactsRepo by contactsRepo {
+        @Synchronized
+        override fun update(id: String, messageLocation: MessageLocation) = contactsRepo.update(id, messageLocation)
+
+        @Synchronized
+        override fun update(id: String, messageCard: MessageCard) = contactsRepo.update(id, messageCard)
+
+        @Synchronized
+        override fun remove(id: String) = contactsRepo.remove(id)
+    }
+
+    @Before
+    fun setup() {
+        main = Executors.newSingleThreadExecutor()
+        val mainThread = main.submit(Callable { Thread.currentThread() }).get()
+        ArchTaskExecutor.getInstance().setDelegate(object : TaskExecutor() {
+            override fun executeOnDiskIO(runnable: Runnable) = runnable.run()
+            override fun postToMainThread(runnable: Runnable) = main.execute(runnable)
+            override fun isMainThread() = Thread.currentThread() === mainThread
+        })
+    }
+
+    @After
+    fun teardown() {
+        ArchTaskExecutor.getInstance().setDelegate(null)
+        main.shutdown()
+    }
+
+    private fun newRepo() = MemoryContactsRepo(
+        EventBus.builder().logNoSubscriberMessages(false).sendNoSubscriberEvent(false).build(),
+        ContactBitmapAndNameMemoryCache(),
+        InMemoryContactsSnapshot()
+    )
+
+    private fun ingest(contactsRepo: ContactsRepo, messages: List<List<Pair<String, MessageLocation>>>): Long {
+        val workers = Executors.newFixedThreadPool(THREADS)
+        val reading = AtomicBoolean(true)
+        val reader = thread {
+            val random = Random(0)
+            while (reading.get()) {
+                contactsRepo.getById("contact${random.nextInt(CONTACTS)}")
+            }
+        }
+        val nanos = measureNanoTime {
+            workers.invokeAll(messages.map { thread ->
+                Callable { thread.forEach { (id, location) -> contactsRepo.update(id, location) } }
+            }).forEach { it.get() }
+        }
+        reading.set(false)
+        reader.join()
+        workers.shutdown()
+        return nanos
+    }
+
+    private fun messages(round: Int) = List(THREADS) { worker ->
+        val random = Random(round * THREADS + worker)
+        List(MESSAGES_PER_THREAD) { i ->
+            "contact${random.nextInt(CONTACTS)}" to MessageLocation().apply {
+                timestamp = round * MESSAGES_PER_THREAD.toLong() + i
+                latitude = 51.5 + random.nextDouble() / 100
+                longitude = -0.1 + random.nextDouble() / 100
+            }
+        }
+    }
+
+    @Test
+    fun `ingesting locations from several threads`() {
+        repeat(WARMUP) {
+            ingest(LockedContactsRepo(newRepo()), messages(it))
+            ingest(newRepo(), messages(it))
+        }
+        var lockedNanos = 0L
+        var concurrentNanos = 0L
+        repeat(ITERATIONS) {
+            lockedNanos += ingest(LockedContactsRepo(newRepo()), messages(WARMUP + it))
+            concurrentNanos += ingest(newRepo(), messages(WARMUP + it))
+        }
+        val count = ITERATIONS * THREADS * MESSAGES_PER_THREAD
+        println(
+            "%d threads, %d contacts: %dns per location under the monitor, %dns concurrently".format(
+                THREADS,
+                CONTACTS,
+                lockedNanos / count,
+                concurrentNanos / count
+            )
+        )
+    }
+
+    companion object {
+        private const val THREADS = 4
+        private const val CONTACTS = 2_000
+        private const val MESSAGES_PER_THREAD = 50_000
+        private const val WARMUP = 5
+        private const val ITERATIONS = 10
+    }
+}
@@ -0,0 +1,119 @@
+package org.owntracks.android.data.repos
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.owntracks.android.model.FusedContact
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.Parser
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+class FileContactsSnapshotTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private fun snapshot() = FileContactsSnapshot({ folder.root }, Parser(null), 0)
+
+    private fun load(snapshot: FileContactsSnapshot): Map<String, FusedContact> {
+        val loaded = CompletableFuture<Collection<FusedContact>>()
+        snapshot.load { loaded.complete(it) }
+        return loaded.get(5, TimeUnit.SECONDS).associateBy { it.id }
+    }
+
+    private fun contact(id: String, timestamp: Long) = FusedContact(id).apply {
+        setMessageLocation(MessageLocation().apply {
+            latitude = 51.5
+            longitude = -0.1
+            this.timestamp = timestamp
+            topic = "owntracks/$id/phone"
+        })
+    }
+
+    /**
+     * Waits until everything saved so far has been written, as a load runs after any flush that's
+     * already due
+     */
+    private fun settle(snapshot: FileContactsSnapshot) {
+        load(snapshot)
+    }
+
+    @Test
+    fun `given saved contacts, when loading again then they are restored`() {
+        val first = snapshot()
+        load(first)
+        first.save(contact("a", 1_600_000_000).apply { messageLocation!!.geocode = "Somewhere" })
+        first.save(FusedContact("b").apply { messageCard = MessageCard().apply { name = "Bee" } })
+        settle(first)
+
+        val restored = load(snapshot())
+        assertEquals(setOf("a", "b"), restored.keys)
+        restored.getValue("a").messageLocation!!.run {
+            assertEquals(1_600_000_000, timestamp)
+            assertEquals(51.5, latitude, 0.0)
+            assertEquals("owntracks/a/phone", topic)
+            assertEquals("Somewhere", geocode)
+        }
+        assertEquals("Bee", restored.getValue("b").messageCard?.name)
+        assertNull(restored.getValue("b").messageLocation)
+    }
+
+    @Test
+    fun `given a saved contact, when it is removed then it is not restored`() {
+        val first = snapshot()
+        load(first)
+        first.save(contact("a", 1))
+        first.save(contact("b", 1))
+        settle(first)
+        first.remove("a")
+        settle(first)
+
+        assertEquals(setOf("b"), load(snapshot()).keys)
+    }
+
+    @Test
+    fun `given saved contacts, when cleared then none are restored but later saves are`() {
+        val first = snapshot()
+        load(first)
+        first.save(contact("a", 1))
+        settle(first)
+        first.save(contact("b", 1))
+        first.clear()
+        first.save(contact("c", 1))
+        settle(first)
+
+        assertEquals(setOf("c"), load(snapshot()).keys)
+    }
+
+    @Test
+    fun `given a contact saved again, when loading then the latest is restored`() {
+        val first = snapshot()
+        load(first)
+        val contact = contact("a", 1)
+        first.save(contact)
+        settle(first)
+        contact.setMessageLocation(MessageLocation().apply { timestamp = 2 })
+        first.save(contact)
+        settle(first)
+
+        assertEquals(2L, load(snapshot()).getValue("a").tst)
+    }
+
+    @Test
+    fun `given a damaged snapshot file, when loading then it is skipped and deleted`() {
+        val first = snapshot()
+        load(first)
+        first.save(contact("a", 1))
+        first.save(contact("b", 1))
+        settle(first)
+        val damaged = folder.root.listFiles()!!.first()
+        damaged.writeBytes(damaged.readBytes().copyOf(10))
+
+        assertEquals(1, load(snapshot()).size)
+        assertTrue(!damaged.exists())
+    }
+}
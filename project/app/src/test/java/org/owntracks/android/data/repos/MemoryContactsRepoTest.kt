@@ -3,7 +3,10 @@ package org.owntracks.android.data.repos
 import android.content.Context
 import android.content.res.Resources
 import android.util.DisplayMetrics
+import androidx.arch.core.executor.ArchTaskExecutor
+import androidx.arch.core.executor.TaskExecutor
 import androidx.arch.core.executor.testing.InstantTaskExecutorRule
+import androidx.lifecycle.Observer
 import com.nhaarman.mockitokotlin2.any
 import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.mock
@@ -12,12 +15,55 @@ import org.junit.Assert.*
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
+import org.owntracks.android.model.FusedContact
 import org.owntracks.android.model.messages.MessageCard
 import org.owntracks.android.model.messages.MessageLocation
 import org.owntracks.android.support.ContactBitmapAndName
 import org.owntracks.android.support.ContactBitmapAndNameMemoryCache
 import org.owntracks.android.support.Events.EndpointChanged
 import org.owntracks.android.support.Events.ModeChanged
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+/**
+ * Keeps contacts in memory rather than on disk, handing back [restored] when it's loaded, or once
+ * [finishLoading] is called if [deferLoad] is set
+ */
+internal class InMemoryContactsSnapshot(
+    private val restored: Collection<FusedContact> = emptyList(),
+    private val deferLoad: Boolean = false
+) : ContactsSnapshot {
+    val saved = ConcurrentHashMap<String, FusedContact>()
+    private var restore: ((Collection<FusedContact>) -> Unit)? = null
+
+    override fun load(restore: (Collection<FusedContact>) -> Unit) {
+        if (deferLoad) {
+            this.restore = restore
+        } else {
+            restore(restored)
+        }
+    }
+
+    fun finishLoading() {
+        restore?.invoke(restored)
+    }
+
+    override fun save(contact: FusedContact) {
+        saved[contact.id] = contact
+    }
+
+    override fun remove(id: String) {
+        saved.remove(id)
+    }
+
+    override fun clear() {
+        saved.clear()
+    }
+}
 
 class MemoryContactsRepoTest {
 
@@ -29,6 +75,7 @@ class MemoryContactsRepoTest {
     private lateinit var messageLocation: MessageLocation
     private lateinit var eventBus: EventBus
     private lateinit var contactBitmapAndNameMemoryCache: ContactBitmapAndNameMemoryCache
+    private lateinit var contactsSnapshot: InMemoryContactsSnapshot
     private var contactsRepo: ContactsRepo? = null
 
     @Before
@@ -56,7 +103,8 @@ class MemoryContactsRepoTest {
 
         contactBitmapAndNameMemoryCache = ContactBitmapAndNameMemoryCache()
 
-        contactsRepo = MemoryContactsRepo(eventBus, contactBitmapAndNameMemoryCache)
+        contactsSnapshot = InMemoryContactsSnapshot()
+        contactsRepo = MemoryContactsRepo(eventBus, contactBitmapAndNameMemoryCache, contactsSnapshot)
     }
 
     @Test
@@ -114,17 +162,256 @@ class MemoryContactsRepoTest {
     fun `given a non-empty repo, when the mode change event is called, the repo is emptied`() {
         contactsRepo!!.update(CONTACT_ID, messageLocation)
         (contactsRepo as MemoryContactsRepo?)!!.onEventMainThread(ModeChanged(1))
-        assertTrue(contactsRepo!!.all.value!!.isEmpty())
+        assertTrue(contactsRepo!!.all.isEmpty())
     }
 
     @Test
     fun `given a non-empty repo, when the endpoint change event is called, the repo is emptied`() {
         contactsRepo!!.update(CONTACT_ID, messageLocation)
         (contactsRepo as MemoryContactsRepo?)!!.onEventMainThread(EndpointChanged())
-        assertTrue(contactsRepo!!.all.value!!.isEmpty())
+        assertTrue(contactsRepo!!.all.isEmpty())
+    }
+
+    @Test
+    fun `given a batch of updates to several contacts, when it is applied, then observers are notified once`() {
+        val notifications = mutableListOf<List<ContactChange>>()
+        val observer = Observer<List<ContactChange>> { notifications.add(it) }
+        contactsRepo!!.changes.observeForever(observer)
+
+        contactsRepo!!.batch {
+            (1..10).forEach { contactsRepo!!.update("contact$it", MessageLocation().apply { timestamp = it.toLong() }) }
+            contactsRepo!!.remove("contact1")
+        }
+
+        assertEquals(1, notifications.size)
+        assertEquals(9, notifications[0].size)
+        assertTrue(notifications[0].all { it is ContactChange.Added })
+        assertEquals(9, contactsRepo!!.all.size)
+        contactsRepo!!.changes.removeObserver(observer)
+    }
+
+    @Test
+    fun `given contacts in the repo, when they change, then observers are told only about those contacts`() {
+        (1..10).forEach { contactsRepo!!.update("contact$it", MessageLocation().apply { timestamp = 1 }) }
+        val notifications = mutableListOf<List<ContactChange>>()
+        val observer = Observer<List<ContactChange>> { notifications.add(it) }
+        contactsRepo!!.changes.observeForever(observer)
+        notifications.clear()
+
+        contactsRepo!!.update("contact2", MessageLocation().apply { timestamp = 2 })
+        contactsRepo!!.update("contact3", MessageLocation().apply { timestamp = 0 })
+        contactsRepo!!.update("contact4", MessageCard().apply { name = "Someone" })
+        contactsRepo!!.remove("contact5")
+
+        assertEquals(
+            listOf("Updated(contact2)", "Updated(contact4)", "Removed(contact5)"),
+            notifications.flatten().map { it.toString() }
+        )
+        contactsRepo!!.changes.removeObserver(observer)
+    }
+
+    @Test
+    fun `given a non-empty repo, when it is cleared, then observers are told every contact was removed`() {
+        (1..3).forEach { contactsRepo!!.update("contact$it", messageLocation) }
+        val notifications = mutableListOf<List<ContactChange>>()
+        val observer = Observer<List<ContactChange>> { notifications.add(it) }
+        contactsRepo!!.changes.observeForever(observer)
+        notifications.clear()
+
+        contactsRepo!!.clearAll()
+
+        assertEquals(
+            setOf("Removed(contact1)", "Removed(contact2)", "Removed(contact3)"),
+            notifications.single().map { it.toString() }.toSet()
+        )
+        contactsRepo!!.changes.removeObserver(observer)
+    }
+
+    @Test
+    fun `given an observer that was inactive, when it becomes active again, then it starts again from every contact`() {
+        val deltas = ContactsDeltaLiveData(contactsRepo!!)
+        val received = mutableListOf<ContactsDelta>()
+        val observer = Observer<ContactsDelta> { received.add(it) }
+        deltas.observeForever(observer)
+        contactsRepo!!.update("contact1", messageLocation)
+        deltas.removeObserver(observer)
+
+        contactsRepo!!.update("contact2", messageLocation)
+        contactsRepo!!.remove("contact1")
+        received.clear()
+        deltas.observeForever(observer)
+
+        assertTrue(received.first().reset)
+        assertEquals(listOf("Added(contact2)"), received.first().changes.map { it.toString() })
+        deltas.removeObserver(observer)
+    }
+
+    @Test
+    fun `given a snapshot from before, when the repo is created, then its contacts are restored`() {
+        val restoredLocation = MessageLocation().apply {
+            timestamp = 100
+            geocode = "Somewhere"
+        }
+        val restored = FusedContact(CONTACT_ID).apply {
+            setMessageLocation(restoredLocation)
+            messageCard = MessageCard().apply { name = "TestName" }
+        }
+        contactsRepo = MemoryContactsRepo(eventBus, contactBitmapAndNameMemoryCache, InMemoryContactsSnapshot(listOf(restored)))
+
+        val c = contactsRepo!!.getById(CONTACT_ID)!!
+        assertEquals(100, c.tst)
+        assertEquals("Somewhere", c.geocodedLocation)
+        assertEquals("TestName", c.fusedName)
+        assertEquals(
+            "TestName",
+            (contactBitmapAndNameMemoryCache[CONTACT_ID] as ContactBitmapAndName.CardBitmap).name
+        )
+    }
+
+    @Test
+    fun `given a restored contact, when its retained location is replayed, then nothing changes`() {
+        val restored = FusedContact(CONTACT_ID).apply {
+            setMessageLocation(MessageLocation().apply {
+                timestamp = 100
+                geocode = "Somewhere"
+            })
+        }
+        contactsRepo = MemoryContactsRepo(eventBus, contactBitmapAndNameMemoryCache, InMemoryContactsSnapshot(listOf(restored)))
+        val notifications = mutableListOf<List<ContactChange>>()
+        val observer = Observer<List<ContactChange>> { notifications.add(it) }
+        contactsRepo!!.changes.observeForever(observer)
+        notifications.clear()
+
+        contactsRepo!!.update(CONTACT_ID, MessageLocation().apply { timestamp = 100 })
+
+        assertTrue(notifications.isEmpty())
+        assertEquals("Somewhere", contactsRepo!!.getById(CONTACT_ID)!!.geocodedLocation)
+        contactsRepo!!.changes.removeObserver(observer)
+    }
+
+    @Test
+    fun `given a snapshot that's still loading, when the repo is cleared, then its contacts are not restored`() {
+        val restored = FusedContact(CONTACT_ID).apply {
+            setMessageLocation(MessageLocation().apply { timestamp = 100 })
+            messageCard = MessageCard().apply { name = "TestName" }
+        }
+        val snapshot = InMemoryContactsSnapshot(listOf(restored), deferLoad = true)
+        contactsRepo = MemoryContactsRepo(eventBus, contactBitmapAndNameMemoryCache, snapshot)
+        contactsRepo!!.update("other", MessageLocation().apply { timestamp = 1 })
+
+        (contactsRepo as MemoryContactsRepo).onEventMainThread(ModeChanged(1))
+        snapshot.finishLoading()
+
+        assertTrue(contactsRepo!!.all.isEmpty())
+        assertTrue(snapshot.saved.isEmpty())
+        assertNull(contactBitmapAndNameMemoryCache[CONTACT_ID])
+    }
+
+    @Test
+    fun `given contacts in the repo, when they change, then they're saved to the snapshot`() {
+        contactsRepo!!.update(CONTACT_ID, messageLocation)
+        contactsRepo!!.update("other", MessageLocation().apply { timestamp = 1 })
+        assertEquals(setOf(CONTACT_ID, "other"), contactsSnapshot.saved.keys)
+
+        contactsSnapshot.saved.clear()
+        messageLocation.geocode = "Somewhere"
+        assertSame(contactsRepo!!.getById(CONTACT_ID), contactsSnapshot.saved[CONTACT_ID])
+
+        contactsRepo!!.remove(CONTACT_ID)
+        assertNull(contactsSnapshot.saved[CONTACT_ID])
+        // Nor is its geocode saved once it's been removed
+        messageLocation.geocode = "Somewhere else"
+        assertNull(contactsSnapshot.saved[CONTACT_ID])
+    }
+
+    @Test
+    fun `given many threads updating the same contacts, when they settle, then each contact has its newest location`() {
+        val newest = AtomicLongArray(CONTACTS)
+        val workers = List(THREADS) { worker ->
+            thread {
+                val random = Random(worker)
+                repeat(OPERATIONS_PER_THREAD) {
+                    val contact = random.nextInt(CONTACTS)
+                    val timestamp = random.nextLong(1, 1_000_000)
+                    newest.accumulateAndGet(contact, timestamp, ::maxOf)
+                    contactsRepo!!.update("contact$contact", MessageLocation().apply { this.timestamp = timestamp })
+                }
+            }
+        }
+        workers.forEach { it.join() }
+
+        (0 until CONTACTS).forEach {
+            val contact = contactsRepo!!.getById("contact$it")!!
+            assertEquals(newest[it], contact.tst)
+            assertEquals(newest[it], contact.messageLocation!!.timestamp)
+        }
+    }
+
+    @Test
+    fun `given many threads updating and removing the same contacts, when they settle, then observers have what the repo has`() {
+        val main = Executors.newSingleThreadExecutor()
+        val mainThread = main.submit(Callable { Thread.currentThread() }).get()
+        ArchTaskExecutor.getInstance().setDelegate(object : TaskExecutor() {
+            override fun executeOnDiskIO(runnable: Runnable) = runnable.run()
+            override fun postToMainThread(runnable: Runnable) = main.execute(runnable)
+            override fun isMainThread() = Thread.currentThread() === mainThread
+        })
+        val seen = HashMap<String, FusedContact>()
+        main.submit {
+            ContactsDeltaLiveData(contactsRepo!!).observeForever { delta ->
+                if (delta.reset) {
+                    seen.clear()
+                }
+                delta.changes.forEach {
+                    when (it) {
+                        is ContactChange.Removed -> seen.remove(it.contact.id)
+                        else -> seen[it.contact.id] = it.contact
+                    }
+                }
+            }
+        }.get()
+
+        // Short rounds, each checked once it settles, as it's the last changes to a contact that race
+        val workers = Executors.newFixedThreadPool(THREADS)
+        repeat(ROUNDS) { round ->
+            workers.invokeAll(List(THREADS) { worker ->
+                Callable {
+                    val random = Random(round * THREADS + worker)
+                    repeat(OPERATIONS_PER_ROUND) { i ->
+                        val id = "contact${random.nextInt(RACING_CONTACTS)}"
+                        when (random.nextInt(4)) {
+                            0 -> contactsRepo!!.remove(id)
+                            1 -> contactsRepo!!.update(id, MessageCard().apply { name = "card $worker $i" })
+                            2 -> contactsRepo!!.batch {
+                                repeat(3) {
+                                    contactsRepo!!.update(id, MessageLocation().apply { timestamp = random.nextLong(1000) })
+                                }
+                            }
+                            else -> contactsRepo!!.update(id, MessageLocation().apply { timestamp = random.nextLong(1000) })
+                        }
+                    }
+                }
+            }).forEach { it.get() }
+            // Changes are posted to the main thread, and draining them there can't post any more
+            main.submit {}.get()
+
+            val contacts = contactsRepo!!.all
+            main.submit {
+                assertEquals("round $round", contacts.keys, seen.keys)
+                contacts.forEach { (id, contact) -> assertSame("round $round", contact, seen[id]) }
+            }.get()
+        }
+        workers.shutdown()
+        main.shutdown()
     }
 
     companion object {
         private const val CONTACT_ID = "abcd1234"
+        private const val THREADS = 8
+        private const val OPERATIONS_PER_THREAD = 20_000
+        private const val CONTACTS = 50
+        private const val ROUNDS = 2_000
+        private const val OPERATIONS_PER_ROUND = 20
+        private const val RACING_CONTACTS = 4
     }
 }
\ No newline at end of file
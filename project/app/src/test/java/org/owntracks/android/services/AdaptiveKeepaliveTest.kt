@@ -0,0 +1,161 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+class AdaptiveKeepaliveTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private class MemoryStore : AdaptiveKeepalive.Store {
+        var saved: Map<String, AdaptiveKeepalive.Learned> = emptyMap()
+        override fun load() = saved
+        override fun save(learned: Map<String, AdaptiveKeepalive.Learned>) {
+            saved = learned.toMap()
+        }
+    }
+
+    private var now = 0L
+    private val store = MemoryStore()
+    private val configured = 900
+    private val wifi = "wifi:Home"
+    private val mobile = "mobile:23415"
+
+    private fun keepalive(store: AdaptiveKeepalive.Store = this.store) = AdaptiveKeepalive(store) { now }
+
+    private fun advance(seconds: Int) {
+        now += TimeUnit.SECONDS.toMillis(seconds.toLong())
+    }
+
+    /**
+     * Connects to [network] through a NAT that drops idle connections after [natTimeoutSeconds],
+     * and runs the connection until it's lost or has been up for long enough to be safe
+     */
+    private fun connect(keepalive: AdaptiveKeepalive, network: String, natTimeoutSeconds: Int): Int {
+        val interval = keepalive.intervalFor(network, configured)
+        keepalive.onConnected(network, configured, interval)
+        if (interval >= natTimeoutSeconds) {
+            // The first ping goes nowhere, and its response never comes
+            advance(interval * 2)
+            keepalive.onConnectionLost(network)
+        } else {
+            advance(interval * AdaptiveKeepalive.SAFE_AFTER_INTERVALS)
+            keepalive.onStillConnected(network)
+            keepalive.onDisconnected()
+        }
+        return interval
+    }
+
+    @Test
+    fun `given a new network, when connecting then it starts by trying double the configured keepalive`() {
+        assertEquals(configured * 2, keepalive().intervalFor(wifi, configured))
+    }
+
+    @Test
+    fun `given a NAT timeout, when connecting repeatedly then it converges on the longest interval below it`() {
+        val keepalive = keepalive()
+        val natTimeout = 5000
+        val intervals = (1..20).map { connect(keepalive, wifi, natTimeout) }
+
+        val learned = keepalive.learned().getValue(wifi)
+        assertTrue(learned.converged)
+        assertTrue("$learned", learned.safeSeconds < natTimeout)
+        assertTrue("$learned", natTimeout - learned.safeSeconds <= natTimeout / 10)
+        assertEquals(learned.safeSeconds, keepalive.intervalFor(wifi, configured))
+        // Once it's converged, it stops probing
+        assertTrue(intervals.takeLast(5).all { it == learned.safeSeconds })
+    }
+
+    @Test
+    fun `given a network that keeps connections open for ever, when connecting repeatedly then it stops at the maximum`() {
+        val keepalive = keepalive()
+        repeat(10) { connect(keepalive, wifi, Int.MAX_VALUE) }
+
+        assertEquals(AdaptiveKeepalive.MAXIMUM_KEEPALIVE, keepalive.intervalFor(wifi, configured))
+        assertTrue(keepalive.learned().getValue(wifi).converged)
+    }
+
+    @Test
+    fun `given a single loss, when connecting again then the same interval is tried once more`() {
+        val keepalive = keepalive()
+        keepalive.onConnected(wifi, configured, 1800)
+        advance(2000)
+        keepalive.onConnectionLost(wifi)
+
+        assertEquals(1800, keepalive.intervalFor(wifi, configured))
+        assertNull(keepalive.learned().getValue(wifi).failedSeconds)
+    }
+
+    @Test
+    fun `given losses that aren't down to the interval, when learning then they are ignored`() {
+        val keepalive = keepalive()
+        repeat(3) {
+            // Lost before it ever had to ping
+            keepalive.onConnected(wifi, configured, 1800)
+            advance(60)
+            keepalive.onConnectionLost(wifi)
+            // Lost after moving to another network
+            keepalive.onConnected(wifi, configured, 1800)
+            advance(2000)
+            keepalive.onConnectionLost(mobile)
+        }
+
+        assertTrue(keepalive.learned().isEmpty())
+        assertEquals(1800, keepalive.intervalFor(wifi, configured))
+    }
+
+    @Test
+    fun `given two networks, when learning then each has its own keepalive`() {
+        val keepalive = keepalive()
+        repeat(20) {
+            connect(keepalive, wifi, Int.MAX_VALUE)
+            connect(keepalive, mobile, 1000)
+        }
+
+        assertEquals(AdaptiveKeepalive.MAXIMUM_KEEPALIVE, keepalive.learned().getValue(wifi).safeSeconds)
+        val mobileKeepalive = keepalive.learned().getValue(mobile)
+        assertTrue("$mobileKeepalive", mobileKeepalive.converged && mobileKeepalive.safeSeconds in configured until 1000)
+    }
+
+    @Test
+    fun `given a safe interval that starts failing, when connecting then it backs off below it`() {
+        val keepalive = keepalive()
+        repeat(20) { connect(keepalive, wifi, 5000) }
+        val safe = keepalive.learned().getValue(wifi).safeSeconds
+
+        repeat(2) { connect(keepalive, wifi, 3000) }
+
+        val learned = keepalive.learned().getValue(wifi)
+        assertEquals(safe, learned.failedSeconds)
+        assertTrue("$learned", learned.safeSeconds < 3000)
+    }
+
+    @Test
+    fun `given a configured keepalive above what was learned, when connecting then the configured one is used`() {
+        val keepalive = keepalive()
+        repeat(20) { connect(keepalive, mobile, 1000) }
+
+        assertEquals(1200, keepalive.intervalFor(mobile, 1200))
+    }
+
+    @Test
+    fun `given what was learned, when the process restarts then it carries on from there`() {
+        val file = File(folder.root, "keepalive.properties")
+        val keepalive = keepalive(AdaptiveKeepalive.FileStore(file))
+        repeat(3) { connect(keepalive, "wifi:Café = \"home\"", 5000) }
+        repeat(20) { connect(keepalive, mobile, 1000) }
+
+        val restarted = keepalive(AdaptiveKeepalive.FileStore(file))
+
+        assertEquals(keepalive.learned(), restarted.learned())
+        assertFalse(restarted.learned().getValue("wifi:Café = \"home\"").converged)
+        assertEquals(keepalive.intervalFor(mobile, configured), restarted.intervalFor(mobile, configured))
+    }
+}
@@ -0,0 +1,153 @@
+package org.owntracks.android.services
+
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient
+import org.eclipse.paho.client.mqttv3.MqttCallback
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageClear
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.EncryptionProvider
+import org.owntracks.android.support.LocalMqttBroker
+import org.owntracks.android.support.Parser
+import org.owntracks.android.support.awaitCondition
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+class InboundMessagePipelineTest {
+    private val encryptionProvider: EncryptionProvider = mock { on { isPayloadEncryptionEnabled } doReturn false }
+    private val parser = Parser(encryptionProvider)
+    private val batches = CopyOnWriteArrayList<List<MessageBase>>()
+    private val pipelines = mutableListOf<InboundMessagePipeline>()
+
+    @After
+    fun tearDown() {
+        pipelines.forEach(InboundMessagePipeline::close)
+    }
+
+    private fun pipeline(
+        capacity: Int = InboundMessagePipeline.DEFAULT_CAPACITY,
+        maxBatchSize: Int = InboundMessagePipeline.DEFAULT_MAX_BATCH_SIZE,
+        sink: InboundMessagePipeline.Sink = InboundMessagePipeline.Sink { batches.add(it) }
+    ) = InboundMessagePipeline(parser, sink, capacity = capacity, maxBatchSize = maxBatchSize).also { pipelines.add(it) }
+
+    private fun location(timestamp: Int) =
+        MqttMessage("{\"_type\":\"location\",\"lat\":51.5,\"lon\":-0.1,\"tid\":\"ab\",\"tst\":$timestamp}".toByteArray())
+
+    private fun received() = batches.flatten()
+
+    @Test
+    fun `given a burst of messages, when they are offered then they are handed over in order and in batches`() {
+        val firstBatch = CountDownLatch(1)
+        val pipeline = pipeline(sink = {
+            firstBatch.await()
+            batches.add(it)
+        })
+        (1..500).forEach { pipeline.offer("owntracks/user/device", location(it)) }
+        firstBatch.countDown()
+        awaitCondition { received().size == 500 }
+
+        assertEquals((1..500).map(Int::toLong), received().map { (it as MessageLocation).timestamp })
+        assertTrue(received().all { it.topic == "owntracks/user/device" })
+        assertTrue("${batches.size} batches", batches.size < 500)
+        assertTrue(batches.all { it.size <= InboundMessagePipeline.DEFAULT_MAX_BATCH_SIZE })
+        assertEquals(batches.size.toLong(), pipeline.metrics().batches)
+    }
+
+    @Test
+    fun `given an empty payload on a card topic, when it is offered then the contact is cleared`() {
+        val pipeline = pipeline()
+        pipeline.offer("owntracks/user/device/info", MqttMessage(ByteArray(0)))
+        awaitCondition { received().size == 1 }
+
+        val message = received().single()
+        assertTrue(message is MessageClear)
+        assertEquals("owntracks/user/device", message.topic)
+    }
+
+    @Test
+    fun `given unreadable and invalid payloads, when they are offered then they are discarded and counted`() {
+        val pipeline = pipeline()
+        pipeline.offer("owntracks/user/device", MqttMessage("not json".toByteArray()))
+        pipeline.offer("owntracks/user/device", location(0))
+        pipeline.offer("owntracks/user/device", location(1))
+        awaitCondition { received().size == 1 }
+
+        assertEquals(1L, (received().single() as MessageLocation).timestamp)
+        assertEquals(2L, pipeline.metrics().discarded)
+        assertEquals(3L, pipeline.metrics().received)
+    }
+
+    @Test
+    fun `given a slow sink and a small queue, when a burst arrives then the sender is held up and nothing is dropped`() {
+        val pipeline = pipeline(capacity = 10, maxBatchSize = 5, sink = {
+            Thread.sleep(2)
+            batches.add(it)
+        })
+        (1..200).forEach { pipeline.offer("owntracks/user/device", location(it)) }
+        awaitCondition { received().size == 200 }
+
+        val metrics = pipeline.metrics()
+        assertEquals((1..200).map(Int::toLong), received().map { (it as MessageLocation).timestamp })
+        assertTrue(metrics.backpressureCount > 0)
+        assertTrue(metrics.maxQueueDepth >= 10)
+        assertEquals(0, metrics.queueDepth)
+    }
+
+    @Test
+    fun `given 10k retained messages on the broker, when subscribing then they are all processed without holding up the client`() {
+        val count = 10_000
+        LocalMqttBroker().use { broker ->
+            (1..count).forEach {
+                broker.retain(
+                    "owntracks/user$it/device",
+                    "{\"_type\":\"location\",\"acc\":10,\"alt\":20,\"batt\":80,\"conn\":\"w\",\"lat\":51.5,\"lon\":-0.1,\"tid\":\"ab\",\"tst\":$it}".toByteArray()
+                )
+            }
+            val applied = AtomicLong()
+            val pipeline = pipeline(sink = {
+                // Stand in for updating the contacts and whoever is watching them
+                Thread.sleep(1)
+                batches.add(it)
+                applied.addAndGet(it.size.toLong())
+            })
+            val callbackNanos = AtomicLong()
+            val client = MqttAsyncClient(broker.uri, "test", MemoryPersistence())
+            client.setCallback(object : MqttCallback {
+                override fun connectionLost(cause: Throwable?) {}
+                override fun deliveryComplete(token: IMqttDeliveryToken?) {}
+                override fun messageArrived(topic: String, message: MqttMessage) {
+                    val start = System.nanoTime()
+                    pipeline.offer(topic, message)
+                    callbackNanos.addAndGet(System.nanoTime() - start)
+                }
+            })
+            client.connect(MqttConnectOptions().apply { isAutomaticReconnect = false }).waitForCompletion(5_000)
+
+            client.subscribe("owntracks/#", 0).waitForCompletion(5_000)
+            awaitCondition(60_000) { applied.get() == count.toLong() }
+            client.disconnect().waitForCompletion(5_000)
+            client.close()
+
+            val metrics = pipeline.metrics()
+            assertEquals((1..count).map(Int::toLong), received().map { (it as MessageLocation).timestamp })
+            assertEquals("owntracks/user$count/device", received().last().topic)
+            assertTrue(received().all { it.retained })
+            // A batch per message would mean a sleep per message
+            assertTrue("${metrics.batches} batches", metrics.batches < count / 10)
+            // The sink sleeps for a millisecond a batch, which the client's callback mustn't wait on
+            val callbackMillis = TimeUnit.NANOSECONDS.toMillis(callbackNanos.get())
+            assertTrue("${callbackMillis}ms in the client callback", callbackMillis < count / 10)
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class LatencyHistogramTest {
+    @Test
+    fun `given any value, when bucketing then the bucket covers it to within the precision`() {
+        var value = 0L
+        while (value <= LatencyHistogram.MAX_MICROS) {
+            val upper = LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIndex(value))
+            assertTrue("$value -> $upper", upper >= value)
+            assertTrue("$value -> $upper", upper - value <= value / 16)
+            value = value * 5 / 4 + 1
+        }
+    }
+
+    @Test
+    fun `given consecutive values, when bucketing then the buckets are contiguous`() {
+        (0L..100_000L).zipWithNext().forEach { (a, b) ->
+            val step = LatencyHistogram.bucketIndex(b) - LatencyHistogram.bucketIndex(a)
+            assertTrue("$a -> $b", step == 0 || step == 1)
+        }
+    }
+
+    @Test
+    fun `given recorded durations, when taking percentiles then they are within the precision`() {
+        val histogram = LatencyHistogram()
+        (1L..1000L).forEach { histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(it)) }
+
+        val snapshot = histogram.snapshot()
+        assertEquals(1000, snapshot.count)
+        assertEquals(500_500, snapshot.meanMicros)
+        assertEquals(1_000_000, snapshot.maxMicros)
+        listOf(50 to snapshot.p50Micros, 90 to snapshot.p90Micros, 99 to snapshot.p99Micros).forEach { (percentile, micros) ->
+            val exact = percentile * 10_000L
+            assertTrue("p$percentile = $micros", micros >= exact && micros <= exact + exact / 16)
+        }
+    }
+
+    @Test
+    fun `given an empty or reset histogram, when taking percentiles then they are zero`() {
+        val histogram = LatencyHistogram()
+        assertEquals(0, histogram.percentileMicros(99.0))
+        histogram.recordNanos(TimeUnit.SECONDS.toNanos(5))
+        histogram.reset()
+        assertEquals(LatencyHistogram.Snapshot(0, 0, 0, 0, 0, 0), histogram.snapshot())
+    }
+
+    @Test
+    fun `given a duration beyond the range, when recording then it is clamped`() {
+        val histogram = LatencyHistogram()
+        histogram.recordNanos(TimeUnit.DAYS.toNanos(2))
+        assertEquals(LatencyHistogram.MAX_MICROS, histogram.percentileMicros(100.0))
+    }
+}
@@ -0,0 +1,108 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCmd
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import org.owntracks.android.model.messages.MessageWaypoint
+import org.owntracks.android.support.Parser
+import java.nio.file.Files
+import java.util.concurrent.BlockingDeque
+import java.util.concurrent.LinkedBlockingDeque
+
+class LocationBacklogCompactorTest {
+    // Roughly 11m per step at these coordinates
+    private fun location(minute: Int, step: Int = 0, trigger: String? = null) = MessageLocation().apply {
+        timestamp = 1_640_000_000L + minute * 60
+        latitude = 51.0 + step * 0.0001
+        longitude = 0.0
+        this.trigger = trigger
+    }
+
+    private fun BlockingDeque<MessageBase>.timestamps() =
+        map { (it as? MessageLocation)?.timestamp?.minus(1_640_000_000L)?.div(60) }
+
+    @Test
+    fun `given a stationary backlog, when compacting by time then one location per interval is kept`() {
+        val queue = LinkedBlockingDeque<MessageBase>()
+        (0 until 20).forEach { queue.add(location(it)) }
+
+        val dropped = LocationBacklogCompactor(5, 5 * 60, 0).compact(queue)
+
+        assertEquals(16, dropped)
+        assertEquals(listOf(4L, 9L, 14L, 19L), queue.timestamps())
+    }
+
+    @Test
+    fun `given a moving backlog, when compacting by time and distance then distant locations are kept`() {
+        val queue = LinkedBlockingDeque<MessageBase>()
+        (0 until 10).forEach { queue.add(location(it, it * 10)) }
+
+        LocationBacklogCompactor(5, 60 * 60, 200).compact(queue)
+
+        // 10 steps is ~111m, so every second location is far enough from the one after it
+        assertEquals(listOf(1L, 3L, 5L, 7L, 9L), queue.timestamps())
+    }
+
+    @Test
+    fun `given a backlog with other messages, when compacting then only automatic locations are dropped`() {
+        val queue = LinkedBlockingDeque<MessageBase>()
+        val transition = MessageTransition()
+        val cmd = MessageCmd()
+        val waypoint = MessageWaypoint()
+        queue.add(location(0))
+        queue.add(transition)
+        queue.add(location(1, trigger = MessageLocation.REPORT_TYPE_USER))
+        queue.add(location(2, trigger = MessageLocation.REPORT_TYPE_RESPONSE))
+        queue.add(cmd)
+        queue.add(location(3, trigger = MessageLocation.REPORT_TYPE_PING))
+        queue.add(waypoint)
+        queue.add(location(4))
+
+        LocationBacklogCompactor(1, 60 * 60, 0).compact(queue)
+
+        assertEquals(listOf(transition, cmd, waypoint), queue.filter { it !is MessageLocation })
+        assertEquals(listOf(null, 1L, 2L, null, null, 4L), queue.timestamps())
+    }
+
+    @Test
+    fun `given a queue below the depth, when maybe compacting then nothing is dropped`() {
+        val queue = LinkedBlockingDeque<MessageBase>()
+        (0 until 5).forEach { queue.add(location(it)) }
+
+        assertEquals(0, LocationBacklogCompactor(5, 60 * 60, 0).maybeCompact(queue))
+        assertEquals(5, queue.size)
+    }
+
+    @Test
+    fun `given a backlog that can't be thinned, when maybe compacting then it isn't rescanned on every offer`() {
+        val queue = LinkedBlockingDeque<MessageBase>()
+        val compactor = LocationBacklogCompactor(10, 60, 0)
+        (0 until 11).forEach { queue.add(location(it * 2)) }
+        assertEquals(0, compactor.maybeCompact(queue))
+
+        // The threshold is now 12, so the first duplicate isn't noticed until the queue grows past it
+        queue.add(location(20))
+        assertEquals(0, compactor.maybeCompact(queue))
+        queue.add(location(20))
+        assertEquals(2, compactor.maybeCompact(queue))
+    }
+
+    @Test
+    fun `given a paged segmented queue, when compacting then the dropped locations are not recovered`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val parser = Parser(null)
+        val queue = SegmentedMessageQueue(100, dir, parser, residentWindow = 5)
+        (0 until 20).forEach { queue.add(location(it)) }
+
+        LocationBacklogCompactor(5, 5 * 60, 0).compact(queue)
+
+        assertEquals(listOf(4L, 9L, 14L, 19L), queue.timestamps())
+        assertEquals(
+            listOf(4L, 9L, 14L, 19L),
+            SegmentedMessageQueue(100, dir, parser, residentWindow = 5).timestamps()
+        )
+    }
+}
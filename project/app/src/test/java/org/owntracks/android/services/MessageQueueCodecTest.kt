@@ -0,0 +1,151 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.BatteryStatus
+import org.owntracks.android.model.CommandAction
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageCmd
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import org.owntracks.android.model.messages.MessageWaypoint
+import org.owntracks.android.model.messages.MessageWaypoints
+import org.owntracks.android.support.MessageWaypointCollection
+import org.owntracks.android.support.Parser
+import java.io.IOException
+
+class MessageQueueCodecTest {
+    private val parser = Parser(null)
+    private val codec = MessageQueueCodec(parser)
+
+    private val location = MessageLocation().apply {
+        trackerId = "ab"
+        trigger = MessageLocation.REPORT_TYPE_PING
+        battery = 30
+        batteryStatus = BatteryStatus.CHARGING
+        accuracy = 10
+        verticalAccuracy = -1
+        latitude = 50.1
+        longitude = -60.2
+        altitude = 20
+        velocity = 5
+        timestamp = 1_640_000_000
+        monitoringMode = 1
+        conn = MessageLocation.CONN_TYPE_WIFI
+        inregions = listOf("home", "wörk")
+        bssid = "12:34:56:78"
+        ssid = "Wifi SSID"
+    }
+
+    private val waypoint = MessageWaypoint().apply {
+        description = "home"
+        latitude = 51.0
+        longitude = 0.1
+        timestamp = 1_640_000_000
+        radius = 100
+    }
+
+    private fun assertRoundTrips(message: MessageBase) {
+        val decoded = codec.decode(codec.encode(message))
+        assertEquals(message.javaClass, decoded.javaClass)
+        assertEquals(parser.toUnencryptedJson(message), parser.toUnencryptedJson(decoded))
+    }
+
+    @Test
+    fun `given a location message, when encoding and decoding then the JSON is unchanged`() {
+        assertRoundTrips(location)
+        assertRoundTrips(MessageLocation())
+    }
+
+    @Test
+    fun `given a location message, when decoding then its creation time is preserved`() {
+        val decoded = codec.decode(codec.encode(location)) as MessageLocation
+        assertEquals(location.createdAt, decoded.createdAt)
+    }
+
+    @Test
+    fun `given a transition message, when encoding and decoding then the JSON is unchanged`() {
+        assertRoundTrips(MessageTransition().apply {
+            trackerId = "ab"
+            setTransition(1)
+            description = "home"
+            trigger = MessageTransition.TRIGGER_CIRCULAR
+            timestamp = 1_640_000_000
+            waypointTimestamp = 1_600_000_000
+            accuracy = 12.5f
+            latitude = 50.1
+            longitude = 60.2
+        })
+    }
+
+    @Test
+    fun `given waypoint messages, when encoding and decoding then the JSON is unchanged`() {
+        assertRoundTrips(waypoint)
+        assertRoundTrips(MessageWaypoints().apply {
+            waypoints = MessageWaypointCollection().apply {
+                add(waypoint)
+                add(MessageWaypoint().apply { description = "no radius" })
+            }
+        })
+        assertNull((codec.decode(codec.encode(MessageWaypoints())) as MessageWaypoints).waypoints)
+    }
+
+    @Test
+    fun `given a card message, when encoding and decoding then the JSON is unchanged`() {
+        assertRoundTrips(MessageCard().apply {
+            name = "Name"
+            face = "x".repeat(100_000)
+        })
+    }
+
+    @Test
+    fun `given a message without a binary form, when encoding then JSON is used`() {
+        val cmd = MessageCmd().apply { action = CommandAction.REPORT_LOCATION }
+        val encoded = codec.encode(cmd)
+        assertTrue(encoded.toString(Charsets.UTF_8).endsWith(parser.toUnencryptedJson(cmd)))
+        assertRoundTrips(cmd)
+    }
+
+    @Test
+    fun `given any message, when decoding then its message id is preserved`() {
+        listOf(location, waypoint, MessageCmd().apply { action = CommandAction.REPORT_LOCATION }).forEach {
+            assertEquals(it.messageId, codec.decode(codec.encode(it)).messageId)
+        }
+    }
+
+    @Test
+    fun `given an entry written before the message id was kept, when decoding then it is parsed`() {
+        val encoded = codec.encode(waypoint)
+        val idLength = waypoint.messageId.length + 1
+        val legacy = byteArrayOf(1, encoded[1]) + encoded.copyOfRange(2 + idLength, encoded.size)
+        val decoded = codec.decode(legacy) as MessageWaypoint
+        assertEquals(waypoint.description, decoded.description)
+        assertEquals(waypoint.radius, decoded.radius)
+    }
+
+    @Test
+    fun `given a JSON entry written before the binary codec, when decoding then it is parsed`() {
+        val decoded = codec.decode(parser.toUnencryptedJsonBytes(location)) as MessageLocation
+        assertEquals(location.latitude, decoded.latitude, 0.0)
+        assertEquals(location.inregions, decoded.inregions)
+    }
+
+    @Test
+    fun `given a location message, when encoding then it is much smaller than the JSON`() {
+        assertTrue(codec.encode(location).size * 2 < parser.toUnencryptedJsonBytes(location).size)
+    }
+
+    @Test(expected = IOException::class)
+    fun `given a truncated entry, when decoding then an IOException is thrown`() {
+        val encoded = codec.encode(location)
+        codec.decode(encoded.copyOf(encoded.size - 3))
+    }
+
+    @Test(expected = IOException::class)
+    fun `given an unknown format version, when decoding then an IOException is thrown`() {
+        codec.decode(byteArrayOf(99, 1))
+    }
+}
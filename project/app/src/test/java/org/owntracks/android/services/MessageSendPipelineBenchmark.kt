@@ -0,0 +1,83 @@
+package org.owntracks.android.services
+
+import kotlinx.coroutines.asCoroutineDispatcher
+import org.junit.Ignore
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the per-message overhead of the send pipeline against the dequeue thread it replaced,
+ * which took each message off the queue on its own thread and then posted the send to the network
+ * thread, 1ms delayed, blocking until it was done. The endpoint here does nothing, so the times are
+ * all overhead. A single thread executor stands in for the network handler thread.
+ */
+@Ignore("Benchmark")
+class MessageSendPipelineBenchmark {
+    private val messages = (1..MESSAGES).map { MessageLocation().apply { timestamp = it.toLong() } }
+
+    private fun report(name: String, nanos: Long) {
+        println("$name: ${nanos / 1_000_000}ms for $MESSAGES messages, ${nanos / MESSAGES / 1_000}µs per message")
+    }
+
+    private fun dequeueThread(postDelayMillis: Long): Long {
+        val network = Executors.newSingleThreadScheduledExecutor()
+        val queue = LinkedBlockingDeque(messages)
+        val done = CountDownLatch(MESSAGES)
+        val start = System.nanoTime()
+        val thread = Thread {
+            repeat(MESSAGES) {
+                queue.take()
+                val futureTask = FutureTask { done.countDown() }
+                network.schedule(futureTask, postDelayMillis, TimeUnit.MILLISECONDS)
+                futureTask.get()
+            }
+        }
+        thread.start()
+        done.await()
+        val elapsed = System.nanoTime() - start
+        network.shutdown()
+        return elapsed
+    }
+
+    private fun pipeline(): Long {
+        val network = Executors.newSingleThreadExecutor()
+        val queue = LinkedBlockingDeque(messages)
+        val done = CountDownLatch(MESSAGES)
+        val pipeline = MessageSendPipeline(network.asCoroutineDispatcher(), object : MessageSendPipeline.Queue {
+            override fun poll(metered: Boolean): MessageBase? = queue.poll()
+            override fun send(message: MessageBase) = done.countDown()
+            override fun requeue(message: MessageBase) {}
+            override fun onDone(message: MessageBase) {}
+        }, 1_000, 1_000)
+        val start = System.nanoTime()
+        pipeline.start()
+        done.await()
+        val elapsed = System.nanoTime() - start
+        pipeline.close()
+        network.shutdown()
+        return elapsed
+    }
+
+    @Test
+    fun `per-message overhead of the dequeue thread`() {
+        dequeueThread(0)
+        report("Dequeue thread, 1ms post delay", dequeueThread(1))
+        report("Dequeue thread, no post delay", dequeueThread(0))
+    }
+
+    @Test
+    fun `per-message overhead of the pipeline`() {
+        repeat(3) { pipeline() }
+        report("Pipeline", pipeline())
+    }
+
+    companion object {
+        private const val MESSAGES = 2_000
+    }
+}
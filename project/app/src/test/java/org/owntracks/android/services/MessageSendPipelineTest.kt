@@ -0,0 +1,196 @@
+package org.owntracks.android.services
+
+import kotlinx.coroutines.asCoroutineDispatcher
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.Parser
+import org.owntracks.android.support.awaitCondition
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingDeque
+
+class MessageSendPipelineTest {
+    private val executor = Executors.newSingleThreadExecutor { Thread(it, "network") }
+    private val queued = LinkedBlockingDeque<MessageBase>()
+    private val sent = CopyOnWriteArrayList<MessageBase>()
+    private val done = CopyOnWriteArrayList<MessageBase>()
+    private val sendThreads = CopyOnWriteArrayList<String>()
+
+    @Volatile
+    private var failures = 0
+
+    @Volatile
+    private var holdBackWhenMetered = false
+    private val polledMetered = CopyOnWriteArrayList<Boolean>()
+
+    private val queue = object : MessageSendPipeline.Queue {
+        override fun poll(metered: Boolean): MessageBase? {
+            polledMetered.add(metered)
+            return if (metered && holdBackWhenMetered) null else queued.poll()
+        }
+
+        override fun send(message: MessageBase) {
+            sendThreads.add(Thread.currentThread().name)
+            if (failures > 0) {
+                failures -= 1
+                throw OutgoingMessageSendingException(IOException("Broker unavailable"))
+            }
+            sent.add(message)
+        }
+
+        override fun requeue(message: MessageBase) {
+            queued.offerFirst(message)
+        }
+
+        override fun onDone(message: MessageBase) {
+            done.add(message)
+        }
+    }
+
+    private val pipeline = MessageSendPipeline(executor.asCoroutineDispatcher(), queue, 50, 200)
+
+    @After
+    fun tearDown() {
+        pipeline.close()
+        executor.shutdownNow()
+    }
+
+    private fun location(timestamp: Long) = MessageLocation().apply { this.timestamp = timestamp }
+
+    private fun enqueue(vararg messages: MessageBase) {
+        queued.addAll(messages)
+        pipeline.onMessageQueued()
+    }
+
+    @Test
+    fun `given queued messages, when the pipeline is started then they are all sent in order on the dispatcher's thread`() {
+        val messages = (1L..20L).map(::location)
+        enqueue(*messages.take(10).toTypedArray())
+        pipeline.start()
+        awaitCondition { done.size == 10 }
+        enqueue(*messages.drop(10).toTypedArray())
+        awaitCondition { done.size == 20 }
+
+        assertEquals(messages, sent.toList())
+        assertEquals(messages, done.toList())
+        assertEquals(setOf("network"), sendThreads.toSet())
+    }
+
+    @Test
+    fun `given a failing endpoint, when sending then the message is retried after a backoff`() {
+        failures = 2
+        val message = location(1)
+        val start = System.nanoTime()
+        pipeline.start()
+        enqueue(message)
+        awaitCondition { done.size == 1 }
+
+        // At least half of 50ms, then half of 100ms
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 75)
+        assertEquals(3, sendThreads.size)
+        assertEquals(listOf(message), sent.toList())
+    }
+
+    @Test
+    fun `given a queue that reads a requeued message back as a new object, when sending keeps failing then it is only retried its number of times`() {
+        val codec = MessageQueueCodec(Parser(null))
+        val requeuing = object : MessageSendPipeline.Queue by queue {
+            override fun requeue(message: MessageBase) {
+                queue.requeue(codec.decode(codec.encode(message)))
+            }
+        }
+        val pipeline = MessageSendPipeline(executor.asCoroutineDispatcher(), requeuing, 1, 1)
+        val message = location(1)
+        failures = message.numberOfRetries
+        enqueue(message)
+        pipeline.start()
+        // Given up on after its retries, then sent when it's next taken from the queue
+        awaitCondition { done.size == 2 }
+
+        assertEquals(message.numberOfRetries + 1, sendThreads.size)
+        assertEquals(listOf(message.messageId), sent.map { it.messageId })
+        pipeline.close()
+    }
+
+    @Test
+    fun `given a pipeline waiting to retry, when retrying now then the wait is cut short`() {
+        val slowPipeline = MessageSendPipeline(executor.asCoroutineDispatcher(), queue, 60_000, 60_000)
+        failures = 1
+        queued.add(location(1))
+        slowPipeline.start()
+        awaitCondition { sendThreads.size == 1 }
+
+        awaitCondition { slowPipeline.retryNow() }
+        awaitCondition { done.size == 1 }
+        assertFalse(slowPipeline.retryNow())
+        slowPipeline.close()
+    }
+
+    @Test
+    fun `given a pipeline waiting to retry, when it is stopped then the message stays queued until it is started again`() {
+        failures = Int.MAX_VALUE
+        val message = location(1)
+        pipeline.start()
+        enqueue(message)
+        awaitCondition { sendThreads.size == 1 }
+
+        pipeline.stop()
+        Thread.sleep(300)
+        assertEquals(1, sendThreads.size)
+        assertEquals(listOf(message), queued.toList())
+
+        failures = 0
+        pipeline.start()
+        awaitCondition { done.size == 1 }
+        assertEquals(listOf(message), sent.toList())
+    }
+
+    @Test
+    fun `given no network, when messages are queued then nothing is sent until a network is available`() {
+        pipeline.onNetworkStateChanged(NetworkState(online = false, unmetered = false))
+        pipeline.start()
+        enqueue(location(1), location(2))
+        Thread.sleep(200)
+        assertEquals(0, sendThreads.size)
+
+        pipeline.onNetworkStateChanged(NetworkState(online = true, unmetered = true))
+        awaitCondition { done.size == 2 }
+    }
+
+    @Test
+    fun `given a pipeline waiting to retry, when the network comes back then it retries straight away`() {
+        val slowPipeline = MessageSendPipeline(executor.asCoroutineDispatcher(), queue, 60_000, 60_000)
+        failures = 1
+        queued.add(location(1))
+        slowPipeline.start()
+        awaitCondition { sendThreads.size == 1 }
+        // Let it settle into waiting
+        Thread.sleep(100)
+
+        slowPipeline.onNetworkStateChanged(NetworkState(online = false, unmetered = false))
+        slowPipeline.onNetworkStateChanged(NetworkState(online = true, unmetered = false))
+        awaitCondition(1_000) { done.size == 1 }
+        slowPipeline.close()
+    }
+
+    @Test
+    fun `given only a metered network, when a backlog is held back then it is sent once an unmetered network is available`() {
+        holdBackWhenMetered = true
+        pipeline.onNetworkStateChanged(NetworkState(online = true, unmetered = false))
+        pipeline.start()
+        enqueue(location(1))
+        awaitCondition { polledMetered.isNotEmpty() }
+        Thread.sleep(100)
+        assertEquals(0, sendThreads.size)
+
+        pipeline.onNetworkStateChanged(NetworkState(online = true, unmetered = true))
+        awaitCondition { done.size == 1 }
+        assertEquals(false, polledMetered.last())
+    }
+}
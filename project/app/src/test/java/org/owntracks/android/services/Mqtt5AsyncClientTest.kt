@@ -0,0 +1,205 @@
+package org.owntracks.android.services
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.MqttException
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.LocalMqttBroker
+import org.owntracks.android.support.awaitCondition
+import java.util.concurrent.CopyOnWriteArrayList
+
+class Mqtt5AsyncClientTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val brokers = mutableListOf<LocalMqttBroker>()
+    private val clients = mutableListOf<Mqtt5AsyncClient>()
+
+    @After
+    fun tearDown() {
+        clients.forEach {
+            if (it.isConnected) {
+                it.disconnectForcibly(0, 1_000)
+            }
+            it.close()
+        }
+        brokers.forEach(LocalMqttBroker::close)
+    }
+
+    private fun broker(ackDelayMillis: Long = 0, receiveMaximum: Int = 0, topicAliasMaximum: Int = 0) =
+        LocalMqttBroker(ackDelayMillis, receiveMaximum, topicAliasMaximum).also { brokers.add(it) }
+
+    private fun client(broker: LocalMqttBroker) =
+        Mqtt5AsyncClient(broker.uri, "test", MqttFilePersistence(folder.root)).also { clients.add(it) }
+
+    private fun options(cleanSession: Boolean = true) = MqttConnectOptions().apply {
+        isCleanSession = cleanSession
+        isAutomaticReconnect = false
+    }
+
+    private val topic = "owntracks/someone@example.com/their-phone-with-a-long-name"
+    private val payload =
+        "{\"_type\":\"location\",\"acc\":10,\"batt\":80,\"lat\":51.5,\"lon\":-0.1,\"tid\":\"ab\",\"tst\":1600000000}".toByteArray()
+
+    @Test
+    fun `given a broker that takes topic aliases, when publishing to the same topic repeatedly then only the first publish carries the topic`() {
+        val broker = broker(topicAliasMaximum = 10)
+        val client = client(broker)
+        client.connect(options()).waitForCompletion(5_000)
+        assertEquals(10, client.serverTopicAliasMaximum)
+
+        repeat(100) { client.publish(topic, payload, 1, false).waitForCompletion(5_000) }
+
+        val first = broker.received.first()
+        val rest = broker.received.drop(1)
+        assertEquals(100, broker.received.size)
+        assertTrue(broker.received.all { it.topic == topic && it.payload.contentEquals(payload) })
+        assertTrue(first.topicAlias != null)
+        assertTrue(rest.all { it.topicAlias == first.topicAlias })
+        assertTrue(rest.all { it.size <= first.size - topic.length })
+
+        // The same publishes from an MQTT 3 client
+        val mqtt3Broker = broker()
+        MqttAsyncClient(mqtt3Broker.uri, "test", MemoryPersistence()).run {
+            // Paho's MQTT 3 client completes a token before it counts the publish as done
+            connect(options().apply { maxInflight = 100 }).waitForCompletion(5_000)
+            repeat(100) { publish(topic, payload, 1, false).waitForCompletion(5_000) }
+            disconnect().waitForCompletion(5_000)
+            close()
+        }
+        val mqtt5Bytes = broker.received.sumOf { it.size }
+        val mqtt3Bytes = mqtt3Broker.received.sumOf { it.size }
+        assertTrue("$mqtt5Bytes bytes with MQTT 5, $mqtt3Bytes with MQTT 3", mqtt5Bytes < mqtt3Bytes)
+    }
+
+    @Test
+    fun `given a broker that doesn't take topic aliases, when publishing then every publish carries the topic`() {
+        val broker = broker()
+        val client = client(broker)
+        client.connect(options()).waitForCompletion(5_000)
+
+        repeat(3) { client.publish(topic, payload, 0, false) }
+        awaitCondition { broker.received.size == 3 }
+
+        assertEquals(0, client.serverTopicAliasMaximum)
+        assertTrue(broker.received.all { it.topic == topic && it.topicAlias == null })
+    }
+
+    @Test
+    fun `given a session that isn't clean, when connecting then it is resumed and set to expire`() {
+        val broker = broker()
+        val client = client(broker)
+        client.connect(options(cleanSession = false)).waitForCompletion(5_000)
+        client.disconnect().waitForCompletion(5_000)
+        client.connect(options(cleanSession = true)).waitForCompletion(5_000)
+
+        val (resumed, clean) = broker.connects
+        assertEquals(5, resumed.protocolLevel)
+        assertFalse(resumed.cleanStart)
+        assertEquals(Mqtt5AsyncClient.DEFAULT_SESSION_EXPIRY_INTERVAL, resumed.sessionExpiryInterval)
+        assertEquals(Mqtt5AsyncClient.DEFAULT_RECEIVE_MAXIMUM, resumed.receiveMaximum)
+        assertEquals(Mqtt5AsyncClient.TOPIC_ALIAS_MAXIMUM, resumed.topicAliasMaximum)
+        assertTrue(clean.cleanStart)
+        assertEquals(0L, clean.sessionExpiryInterval ?: 0L)
+    }
+
+    @Test
+    fun `given a broker with a receive maximum, when draining a backlog through a window of that size then the broker is never sent more`() {
+        val broker = broker(ackDelayMillis = 20, receiveMaximum = 5)
+        val client = client(broker)
+        client.connect(options()).waitForCompletion(5_000)
+        assertEquals(5, client.serverReceiveMaximum)
+
+        val acknowledged = CopyOnWriteArrayList<MessageBase>()
+        val window = MqttInFlightWindow(minOf(32, client.serverReceiveMaximum), object : MqttInFlightWindow.Listener {
+            override fun onAcknowledged(message: MessageBase, elapsedNanos: Long) {
+                acknowledged.add(message)
+            }
+
+            override fun onFailed(unacknowledged: List<MessageBase>, cause: Throwable?) {
+                fail("$cause")
+            }
+        })
+        val messages = (0 until 50).map {
+            MessageLocation().apply {
+                this.topic = this@Mqtt5AsyncClientTest.topic
+                qos = 1
+                timestamp = it.toLong()
+            }
+        }
+        messages.forEach { assertTrue(window.publish(client, it, payload, 5_000)) }
+        awaitCondition { acknowledged.size == messages.size }
+
+        assertTrue("${broker.maxOutstanding} outstanding", broker.maxOutstanding in 2..5)
+        assertEquals(messages, acknowledged)
+    }
+
+    @Test
+    fun `given retained messages, when subscribing then they arrive through the MQTT 3 callback`() {
+        val broker = broker(topicAliasMaximum = 10)
+        broker.retain(topic, payload)
+        broker.retain("owntracks/someone/else", payload)
+        val client = client(broker)
+        val arrived = CopyOnWriteArrayList<Pair<String, MqttMessage>>()
+        var connected = false
+        client.setCallback(object : MqttCallbackExtended {
+            override fun connectComplete(reconnect: Boolean, serverURI: String) {
+                connected = true
+            }
+
+            override fun connectionLost(cause: Throwable?) {}
+            override fun deliveryComplete(token: IMqttDeliveryToken?) {}
+            override fun messageArrived(topic: String, message: MqttMessage) {
+                arrived.add(topic to message)
+            }
+        })
+        client.connect(options()).waitForCompletion(5_000)
+        client.subscribe(arrayOf("owntracks/+/+", "owntracks/+/+/event"), intArrayOf(1, 1)).waitForCompletion(5_000)
+        awaitCondition { arrived.size == 2 }
+
+        assertTrue(connected)
+        assertEquals(setOf(topic, "owntracks/someone/else"), arrived.map { it.first }.toSet())
+        assertTrue(arrived.all { it.second.isRetained && it.second.payload.contentEquals(payload) })
+    }
+
+    @Test
+    fun `given a subscription with a message listener, when a message arrives then it goes to that listener`() {
+        val broker = broker()
+        broker.retain(topic, payload)
+        val client = client(broker)
+        val arrived = CopyOnWriteArrayList<Pair<String, MqttMessage>>()
+        client.connect(options()).waitForCompletion(5_000)
+        client.subscribe("owntracks/+/+", 1) { topic, message -> arrived.add(topic to message) }.waitForCompletion(5_000)
+        awaitCondition { arrived.size == 1 }
+
+        assertEquals(topic, arrived.single().first)
+        assertTrue(arrived.single().second.payload.contentEquals(payload))
+    }
+
+    @Test
+    fun `given a connected client, when connecting again then the MQTT 3 reason code is thrown`() {
+        val client = client(broker())
+        client.connect(options()).waitForCompletion(5_000)
+        try {
+            client.connect(options()).waitForCompletion(5_000)
+            fail()
+        } catch (e: MqttException) {
+            assertEquals(MqttException.REASON_CODE_CLIENT_CONNECTED.toInt(), e.reasonCode)
+        }
+        assertNull(client.pendingDeliveryTokens.firstOrNull())
+    }
+}
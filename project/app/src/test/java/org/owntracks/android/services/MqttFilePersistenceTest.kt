@@ -0,0 +1,188 @@
+package org.owntracks.android.services
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.owntracks.android.support.LocalMqttBroker
+import org.owntracks.android.support.awaitCondition
+
+class MqttFilePersistenceTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private var broker: LocalMqttBroker? = null
+
+    @After
+    fun tearDown() {
+        broker?.close()
+    }
+
+    private fun persistable(key: String, header: String, payload: String?) =
+        MqttPersistentData(
+            key,
+            header.toByteArray(), 0, header.length,
+            payload?.toByteArray(), 0, payload?.length ?: 0
+        )
+
+    private fun MqttFilePersistence.keySet() = keys().toList().toSet()
+
+    @Test
+    fun `given an entry, when it is read back by a new instance then the header and payload are returned together`() {
+        MqttFilePersistence(folder.root).apply {
+            open("client", "tcp://example.com:1883")
+            put("s-1", persistable("s-1", "header", "payload"))
+            close()
+        }
+
+        val persistence = MqttFilePersistence(folder.root)
+        persistence.open("client", "tcp://example.com:1883")
+        val entry = persistence.get("s-1")
+        assertArrayEquals("headerpayload".toByteArray(), entry.headerBytes.copyOfRange(entry.headerOffset, entry.headerLength))
+        assertTrue(persistence.containsKey("s-1"))
+        assertEquals(setOf("s-1"), persistence.keySet())
+    }
+
+    @Test
+    fun `given entries for two clients, when one is cleared then the other is untouched`() {
+        val first = MqttFilePersistence(folder.root).apply { open("first", "tcp://example.com:1883") }
+        val second = MqttFilePersistence(folder.root).apply { open("second", "tcp://example.com:1883") }
+        first.put("r-1", persistable("r-1", "first", null))
+        second.put("r-1", persistable("r-1", "second", null))
+
+        first.clear()
+        assertEquals(emptySet<String>(), first.keySet())
+        assertEquals(setOf("r-1"), second.keySet())
+    }
+
+    private fun publish(payload: String, messageId: Int) =
+        MqttPublish("owntracks/test/device", MqttMessage(payload.toByteArray()).apply { qos = 1 }).also {
+            it.messageId = messageId
+        }
+
+    @Test
+    fun `given incoming and outgoing entries, when taking outbound then the unacknowledged payloads are returned and only the incoming entries are kept`() {
+        MqttFilePersistence(folder.root).apply {
+            open("client", "ssl://example.com:8883")
+            put("s-1", publish("sent", 1))
+            put("sc-2", publish("released", 2))
+            put("sb-3", publish("buffered", 3))
+            put("r-4", persistable("r-4", "r-4", null))
+            close()
+        }
+
+        val persistence = MqttFilePersistence(folder.root)
+        val payloads = persistence.takeOutbound("client", "ssl://example.com:8883", false)
+        assertEquals(setOf("sent", "buffered"), payloads.map { String(it) }.toSet())
+        persistence.open("client", "ssl://example.com:8883")
+        assertEquals(setOf("r-4"), persistence.keySet())
+        assertEquals(emptyList<ByteArray>(), persistence.takeOutbound("client", "ssl://example.com:8883", false))
+    }
+
+    @Test
+    fun `given an unacknowledged publish, when a new client resumes the session then it is only resent if it was not taken`() {
+        val broker = LocalMqttBroker().also { this.broker = it }
+        broker.acknowledging = false
+        val options = MqttConnectOptions().apply {
+            isCleanSession = false
+            isAutomaticReconnect = false
+        }
+        MqttAsyncClient(broker.uri, "client", MqttFilePersistence(folder.root)).run {
+            connect(options).waitForCompletion(5_000)
+            publish("owntracks/test/device", "{}".toByteArray(), 1, false)
+            awaitCondition { broker.received.size == 1 }
+            disconnectForcibly(0, 1_000)
+            close()
+        }
+
+        broker.acknowledging = true
+        MqttAsyncClient(broker.uri, "client", MqttFilePersistence(folder.root)).run {
+            connect(options).waitForCompletion(5_000)
+            awaitCondition { broker.received.size == 2 }
+            assertTrue(broker.received[1].qos == 1)
+            disconnectForcibly(0, 1_000)
+            close()
+        }
+
+        broker.acknowledging = false
+        MqttAsyncClient(broker.uri, "client", MqttFilePersistence(folder.root)).run {
+            connect(options).waitForCompletion(5_000)
+            publish("owntracks/test/device", "{\"n\":3}".toByteArray(), 1, false)
+            awaitCondition { broker.received.size == 3 }
+            disconnectForcibly(0, 1_000)
+            close()
+        }
+
+        val persistence = MqttFilePersistence(folder.root)
+        assertEquals(listOf("{\"n\":3}"), persistence.takeOutbound("client", broker.uri, false).map { String(it) })
+        MqttAsyncClient(broker.uri, "client", persistence).run {
+            connect(options).waitForCompletion(5_000)
+            Thread.sleep(200)
+            assertEquals(3, broker.received.size)
+            disconnectForcibly(0, 1_000)
+            close()
+        }
+    }
+
+    @Test
+    fun `given an unacknowledged MQTT 5 publish, when taking outbound then its payload is returned`() {
+        val broker = LocalMqttBroker().also { this.broker = it }
+        broker.acknowledging = false
+        Mqtt5AsyncClient(broker.uri, "client", MqttFilePersistence(folder.root)).run {
+            connect(MqttConnectOptions().apply {
+                isCleanSession = false
+                isAutomaticReconnect = false
+            }).waitForCompletion(5_000)
+            publish("owntracks/test/device", "{\"n\":5}".toByteArray(), 1, false)
+            awaitCondition { broker.received.size == 1 }
+            disconnectForcibly(0, 1_000)
+            close()
+        }
+
+        val payloads = MqttFilePersistence(folder.root).takeOutbound("client", broker.uri, true)
+        assertEquals(listOf("{\"n\":5}"), payloads.map { String(it) })
+    }
+
+    @Test
+    fun `given recorded subscriptions, when they are read back by a new instance then they are returned for that client only`() {
+        val subscriptions = MqttFilePersistence.Subscriptions(setOf("owntracks/+/+", "owntracks/u/d/cmd"), 1)
+        MqttFilePersistence(folder.root).writeSubscriptions("client", "tcp://example.com:1883", subscriptions)
+
+        val persistence = MqttFilePersistence(folder.root)
+        assertEquals(subscriptions, persistence.readSubscriptions("client", "tcp://example.com:1883"))
+        assertNull(persistence.readSubscriptions("other", "tcp://example.com:1883"))
+        assertNull(persistence.readSubscriptions("client", "ssl://example.com:8883"))
+
+        // A session's own entries are listed without the subscriptions
+        persistence.open("client", "tcp://example.com:1883")
+        assertEquals(emptySet<String>(), persistence.keySet())
+
+        persistence.writeSubscriptions("client", "tcp://example.com:1883", null)
+        assertNull(MqttFilePersistence(folder.root).readSubscriptions("client", "tcp://example.com:1883"))
+    }
+
+    @Test
+    fun `given a temporary file left by an interrupted write, when opening then it is not listed as an entry`() {
+        MqttFilePersistence(folder.root).apply {
+            open("client", "tcp://example.com:1883")
+            put("r-1", persistable("r-1", "header", null))
+            close()
+        }
+        folder.root.listFiles()!!.single().resolve("r-2.tmp").writeText("trunc")
+
+        val persistence = MqttFilePersistence(folder.root)
+        persistence.open("client", "tcp://example.com:1883")
+        assertEquals(setOf("r-1"), persistence.keySet())
+        assertFalse(persistence.containsKey("r-2"))
+    }
+}
@@ -0,0 +1,115 @@
+package org.owntracks.android.services
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient
+import org.eclipse.paho.client.mqttv3.MqttCallback
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.LocalMqttBroker
+import org.owntracks.android.support.awaitCondition
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class MqttInFlightWindowTest {
+    private lateinit var broker: LocalMqttBroker
+    private lateinit var client: MqttAsyncClient
+
+    private val acknowledged = CopyOnWriteArrayList<MessageBase>()
+    private val requeued = CopyOnWriteArrayList<MessageBase>()
+    private val listener = object : MqttInFlightWindow.Listener {
+        override fun onAcknowledged(message: MessageBase, elapsedNanos: Long) {
+            acknowledged.add(message)
+        }
+
+        override fun onFailed(unacknowledged: List<MessageBase>, cause: Throwable?) {
+            requeued.addAll(unacknowledged)
+        }
+    }
+
+    private fun connect(ackDelayMillis: Long = 0, onConnectionLost: () -> Unit = {}) {
+        broker = LocalMqttBroker(ackDelayMillis)
+        client = MqttAsyncClient(broker.uri, "test", MemoryPersistence())
+        client.setCallback(object : MqttCallback {
+            override fun connectionLost(cause: Throwable?) = onConnectionLost()
+            override fun messageArrived(topic: String?, message: MqttMessage?) {}
+            override fun deliveryComplete(token: IMqttDeliveryToken?) {}
+        })
+        client.connect(MqttConnectOptions().apply {
+            maxInflight = 100
+            isAutomaticReconnect = false
+        }).waitForCompletion(5_000)
+    }
+
+    @After
+    fun tearDown() {
+        if (client.isConnected) {
+            client.disconnectForcibly(0, 1_000)
+        }
+        client.close()
+        broker.close()
+    }
+
+    private fun message(index: Int) = MessageLocation().apply {
+        topic = "owntracks/test/device"
+        qos = 1
+        timestamp = index.toLong()
+    }
+
+    @Test
+    fun `given a slow broker, when publishing a backlog then the window is kept full and every message is acknowledged`() {
+        connect(ackDelayMillis = 50)
+        val window = MqttInFlightWindow(10, listener)
+        val messages = (0 until 100).map(::message)
+
+        messages.forEach { assertTrue(window.publish(client, it, byteArrayOf(it.timestamp.toByte()), 5_000)) }
+        awaitCondition { acknowledged.size == messages.size }
+
+        assertEquals(10, broker.maxOutstanding)
+        assertEquals(0, window.size)
+        assertEquals(messages.toSet(), acknowledged.toSet())
+        assertEquals(messages.map { it.timestamp.toByte() }, broker.received.map { it.payload.single() })
+    }
+
+    @Test
+    fun `given a full window, when publishing then it gives up after the timeout`() {
+        connect()
+        broker.acknowledging = false
+        val window = MqttInFlightWindow(2, listener)
+
+        assertTrue(window.publish(client, message(0), byteArrayOf(), 1_000))
+        assertTrue(window.publish(client, message(1), byteArrayOf(), 1_000))
+        assertFalse(window.publish(client, message(2), byteArrayOf(), 100))
+        assertEquals(2, window.size)
+    }
+
+    @Test
+    fun `given a dropped connection, when failing then exactly the unacknowledged messages are returned in order`() {
+        val lost = CountDownLatch(1)
+        connect(onConnectionLost = { lost.countDown() })
+        val window = MqttInFlightWindow(20, listener)
+        val messages = (0 until 15).map(::message)
+
+        messages.take(5).forEach { window.publish(client, it, byteArrayOf(), 1_000) }
+        awaitCondition { acknowledged.size == 5 }
+        broker.acknowledging = false
+        messages.drop(5).forEach { window.publish(client, it, byteArrayOf(), 1_000) }
+        awaitCondition { broker.received.size == messages.size }
+        broker.disconnectClients()
+        assertTrue(lost.await(5, TimeUnit.SECONDS))
+        // This is what the endpoint does when the connection is lost
+        requeued.addAll(window.drain())
+
+        assertEquals(messages.take(5), acknowledged.toList())
+        assertEquals(messages.drop(5), requeued.toList())
+        assertEquals(0, window.size)
+    }
+}
@@ -0,0 +1,90 @@
+package org.owntracks.android.services
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkInfo
+import android.net.NetworkRequest
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.argumentCaptor
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class NetworkStateMonitorTest {
+    private val wifi: Network = mock()
+    private val mobile: Network = mock()
+
+    private val wifiCapabilities = capabilities(unmetered = true)
+    private val mobileCapabilities = capabilities(unmetered = false)
+
+    @Suppress("DEPRECATION")
+    private val networkInfo: NetworkInfo = mock {
+        on { isConnected } doReturn true
+    }
+
+    private val connectivityManager: ConnectivityManager = mock {
+        @Suppress("DEPRECATION")
+        on { activeNetworkInfo } doReturn networkInfo
+        on { isActiveNetworkMetered } doReturn false
+        on { getNetworkCapabilities(wifi) } doReturn wifiCapabilities
+        on { getNetworkCapabilities(mobile) } doReturn mobileCapabilities
+    }
+
+    private val context: Context = mock {
+        on { getSystemService(Context.CONNECTIVITY_SERVICE) } doReturn connectivityManager
+    }
+
+    private val request: NetworkRequest = mock()
+
+    private fun capabilities(unmetered: Boolean): NetworkCapabilities = mock {
+        on { hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) } doReturn true
+        on { hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } doReturn true
+        on { hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) } doReturn unmetered
+    }
+
+    /**
+     * Starts a monitor and returns the callback it registered, along with every state it reported
+     */
+    private fun start(): Pair<ConnectivityManager.NetworkCallback, List<NetworkState>> {
+        val states = mutableListOf<NetworkState>()
+        NetworkStateMonitor(context, mock(), { request }).start { states.add(it) }
+        val callback = argumentCaptor<ConnectivityManager.NetworkCallback>()
+        verify(connectivityManager).registerNetworkCallback(any(), callback.capture())
+        return callback.firstValue to states
+    }
+
+    @Test
+    fun `given networks that are only announced as available, when wifi is lost then the monitor is online but metered`() {
+        val (callback, states) = start()
+        callback.onAvailable(wifi)
+        callback.onAvailable(mobile)
+        callback.onLost(wifi)
+
+        assertEquals(NetworkState(online = true, unmetered = false), states.last())
+    }
+
+    @Test
+    fun `given a single network, when it is lost then the monitor is offline`() {
+        val (callback, states) = start()
+        callback.onAvailable(wifi)
+        callback.onLost(wifi)
+
+        assertEquals(NetworkState(online = false, unmetered = false), states.last())
+    }
+
+    @Test
+    fun `given a network that loses internet access, when it changes then it no longer counts`() {
+        val (callback, states) = start()
+        callback.onAvailable(wifi)
+        callback.onAvailable(mobile)
+        whenever(wifiCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)).thenReturn(false)
+        callback.onCapabilitiesChanged(wifi, wifiCapabilities)
+
+        assertEquals(NetworkState(online = true, unmetered = false), states.last())
+    }
+}
@@ -0,0 +1,151 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import org.owntracks.android.services.PrioritizedMessageQueue.Lane
+import org.owntracks.android.support.Parser
+import java.nio.file.Files
+
+class PrioritizedMessageQueueTest {
+    private val parser = Parser(null)
+
+    private fun location(trigger: String? = null, timestamp: Long = 0) = MessageLocation().apply {
+        this.trigger = trigger
+        this.timestamp = timestamp
+    }
+
+    @Test
+    fun `given each kind of message, when classifying then it is put into the right lane`() {
+        assertEquals(Lane.TRANSITIONS, Lane.of(MessageTransition()))
+        assertEquals(Lane.TRANSITIONS, Lane.of(location(MessageLocation.REPORT_TYPE_CIRCULAR)))
+        assertEquals(Lane.RESPONSES, Lane.of(location(MessageLocation.REPORT_TYPE_RESPONSE)))
+        assertEquals(Lane.INTERACTIVE, Lane.of(location(MessageLocation.REPORT_TYPE_USER)))
+        assertEquals(Lane.INTERACTIVE, Lane.of(MessageCard()))
+        assertEquals(Lane.BACKGROUND, Lane.of(location()))
+        assertEquals(Lane.BACKGROUND, Lane.of(location(MessageLocation.REPORT_TYPE_PING)))
+    }
+
+    @Test
+    fun `given a background backlog, when a transition is queued then it is taken next`() {
+        val queue = PrioritizedMessageQueue(Files.createTempDirectory("").toFile(), parser)
+        repeat(50) { queue.offer(location()) }
+        val transition = MessageTransition()
+        queue.offer(transition)
+
+        assertEquals(transition, queue.poll())
+        assertEquals(50, queue.size())
+    }
+
+    @Test
+    fun `given busy higher lanes, when polling then the background lane is still served every round`() {
+        val queue = PrioritizedMessageQueue(Files.createTempDirectory("").toFile(), parser)
+        repeat(100) { queue.offer(MessageTransition()) }
+        repeat(100) { queue.offer(location(MessageLocation.REPORT_TYPE_USER)) }
+        repeat(10) { queue.offer(location()) }
+
+        val lanes = (1..2 * ROUND).map { Lane.of(queue.poll()!!) }
+
+        (0 until 2).forEach { round ->
+            val taken = lanes.subList(round * ROUND, (round + 1) * ROUND)
+            Lane.values().filter { it != Lane.RESPONSES }.forEach { lane ->
+                assertEquals("$lane in round $round", lane.weight, taken.count { it == lane })
+            }
+        }
+        assertEquals(Lane.TRANSITIONS, lanes.first())
+    }
+
+    @Test
+    fun `given a held back lane, when polling then only the other lanes are served`() {
+        val queue = PrioritizedMessageQueue(Files.createTempDirectory("").toFile(), parser)
+        repeat(5) { queue.offer(location()) }
+        val card = MessageCard()
+        queue.offer(card)
+
+        assertEquals(card, queue.pollExcept(Lane.BACKGROUND))
+        assertEquals(null, queue.pollExcept(Lane.BACKGROUND))
+        assertEquals(5, queue.size())
+        assertEquals(Lane.BACKGROUND, Lane.of(queue.poll()!!))
+    }
+
+    @Test
+    fun `given a single lane, when polling then messages come out in order`() {
+        val queue = PrioritizedMessageQueue(Files.createTempDirectory("").toFile(), parser)
+        val messages = (1L..20L).map { location(timestamp = it) }
+        messages.forEach(queue::offer)
+        assertEquals(messages, (1..20).map { queue.poll() })
+    }
+
+    @Test
+    fun `given messages in several lanes, when reopening the queue then each lane is recovered`() {
+        val dir = Files.createTempDirectory("").toFile()
+        PrioritizedMessageQueue(dir, parser).run {
+            repeat(3) { offer(location()) }
+            repeat(2) { offer(MessageTransition()) }
+            offer(location(MessageLocation.REPORT_TYPE_RESPONSE))
+        }
+
+        val queue = PrioritizedMessageQueue(dir, parser)
+
+        assertEquals(
+            mapOf(Lane.TRANSITIONS to 2, Lane.RESPONSES to 1, Lane.INTERACTIVE to 0, Lane.BACKGROUND to 3),
+            queue.laneSizes()
+        )
+        assertTrue(queue.poll() is MessageTransition)
+    }
+
+    @Test
+    fun `given a full lane, when offering then only that lane rejects messages`() {
+        val queue = PrioritizedMessageQueue(Files.createTempDirectory("").toFile(), parser)
+        repeat(Lane.RESPONSES.capacity) { assertTrue(queue.offer(location(MessageLocation.REPORT_TYPE_RESPONSE))) }
+
+        assertFalse(queue.offer(location(MessageLocation.REPORT_TYPE_RESPONSE)))
+        assertTrue(queue.offer(MessageTransition()))
+    }
+
+    @Test
+    fun `given a queue written by an earlier version, when opening then its messages are moved into lanes`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val legacy = SegmentedMessageQueue(10, dir, parser)
+        repeat(3) { legacy.offer(location(timestamp = it.toLong())) }
+        legacy.offer(MessageTransition())
+        legacy.close()
+
+        val queue = PrioritizedMessageQueue(dir, parser)
+
+        assertFalse(dir.resolve(SegmentedMessageQueue.QUEUE_DIRECTORY).exists())
+        assertEquals(4, queue.size())
+        assertTrue(queue.poll() is MessageTransition)
+        assertEquals(listOf(0L, 1L, 2L), (1..3).map { (queue.poll() as MessageLocation).timestamp })
+        assertEquals(0, PrioritizedMessageQueue(dir, parser).size())
+    }
+
+    @Test
+    fun `given an empty queue, when polling then null is returned`() {
+        assertNull(PrioritizedMessageQueue(Files.createTempDirectory("").toFile(), parser).poll())
+    }
+
+    @Test
+    fun `given a byte budget, when a lane's share is used up then only that lane rejects messages`() {
+        val queue = PrioritizedMessageQueue(Files.createTempDirectory("").toFile(), parser, maxBytes = 10_000)
+        var accepted = 0
+        while (queue.offer(location(MessageLocation.REPORT_TYPE_RESPONSE))) {
+            accepted += 1
+        }
+
+        assertTrue(queue.lane(Lane.RESPONSES).size == accepted)
+        assertTrue(queue.sizeInBytes() <= 10_000 * Lane.RESPONSES.byteShare / 100)
+        assertTrue(queue.offer(MessageTransition()))
+        assertEquals(accepted + 1, queue.size())
+    }
+
+    companion object {
+        // Responses has nothing queued in these tests
+        private val ROUND = Lane.values().filter { it != Lane.RESPONSES }.sumOf { it.weight }
+    }
+}
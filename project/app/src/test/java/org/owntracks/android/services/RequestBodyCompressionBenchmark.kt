@@ -0,0 +1,54 @@
+package org.owntracks.android.services
+
+import org.junit.Ignore
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.support.BenchmarkMessages
+import org.owntracks.android.support.Preferences
+import org.owntracks.android.support.Parser
+import kotlin.system.measureNanoTime
+
+/**
+ * Measures how much gzip and deflate shrink HTTP request bodies, and what it costs in CPU, for a
+ * single location and for batches of a realistic mix of messages.
+ */
+@Ignore("Benchmark")
+class RequestBodyCompressionBenchmark {
+    private val parser = Parser(null)
+    private val benchmarkMessages = BenchmarkMessages()
+
+    private fun body(messages: List<MessageBase>): ByteArray {
+        val batch = HttpMessageBatch(messages.size, Int.MAX_VALUE)
+        messages.forEach { batch.add(it, parser.toJsonBytes(it)) }
+        return batch.toByteArray()
+    }
+
+    private fun measure(name: String, body: ByteArray) {
+        listOf(Preferences.HTTP_COMPRESSION_GZIP, Preferences.HTTP_COMPRESSION_DEFLATE).forEach { encoding ->
+            repeat(WARMUP) { RequestBodyCompression.compress(body, encoding) }
+            var compressed = body
+            val nanos = measureNanoTime {
+                repeat(ITERATIONS) { compressed = RequestBodyCompression.compress(body, encoding) }
+            } / ITERATIONS
+            println(
+                "$name, $encoding: ${body.size} -> ${compressed.size} bytes " +
+                        "(${100 - compressed.size * 100 / body.size}% saved) in ${nanos / 1_000}µs"
+            )
+        }
+    }
+
+    @Test
+    fun `compression of a single location`() {
+        measure("1 location", body(listOf(benchmarkMessages.location())))
+    }
+
+    @Test
+    fun `compression of batches`() {
+        listOf(10, 50, 200).forEach { measure("$it-message batch", body(benchmarkMessages.mix(it))) }
+    }
+
+    companion object {
+        private const val WARMUP = 200
+        private const val ITERATIONS = 500
+    }
+}
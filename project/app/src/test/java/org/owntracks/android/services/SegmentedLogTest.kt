@@ -0,0 +1,281 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+class SegmentedLogTest {
+    private fun newDirectory(): File = Files.createTempDirectory("").toFile()
+
+    private fun File.segments(): List<File> =
+        listFiles { file -> file.name.endsWith(SegmentedLog.SEGMENT_SUFFIX) }!!.sortedBy { it.name }
+
+    @Test
+    fun `given an empty directory, when opening a log then there are no records`() {
+        SegmentedLog(newDirectory()).use {
+            assertEquals(0, it.sequences().size)
+            assertEquals(0, it.nextSequence)
+        }
+    }
+
+    @Test
+    fun `given a log with appended records, when reopening then the records are recovered in order`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 5L).forEach { log.append(it, "record $it".toByteArray()) }
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(0L, 1L, 2L, 3L, 4L), log.sequences())
+            assertArrayEquals("record 3".toByteArray(), log.read(3))
+            assertEquals(5, log.nextSequence)
+        }
+    }
+
+    @Test
+    fun `given a committed log, when reopening then only the uncommitted records are recovered`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 5L).forEach { log.append(it, ByteArray(10)) }
+            log.commit(3)
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(3L, 4L), log.sequences())
+        }
+    }
+
+    @Test
+    fun `given a record pushed back onto the head, when reopening then it is recovered first`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+            log.commit(1)
+            log.append(0, "requeued".toByteArray())
+            log.commit(0)
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(0L, 1L, 2L), log.sequences())
+            assertArrayEquals("requeued".toByteArray(), log.read(0))
+        }
+    }
+
+    @Test
+    fun `given a tombstoned record, when reopening then it is not recovered`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+            log.appendTombstone(2)
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(0L, 1L), log.sequences())
+            assertEquals(3, log.nextSequence)
+        }
+    }
+
+    @Test
+    fun `given a small segment size, when appending then records are spread across segments`() {
+        val dir = newDirectory()
+        SegmentedLog(dir, 100).use { log ->
+            (0L until 10L).forEach { log.append(it, ByteArray(30)) }
+        }
+        assertEquals(5, dir.segments().size)
+        SegmentedLog(dir, 100).use { log ->
+            assertEquals((0L until 10L).toList(), log.sequences())
+        }
+    }
+
+    @Test
+    fun `given multiple segments, when committing past a segment then it is deleted`() {
+        val dir = newDirectory()
+        SegmentedLog(dir, 100).use { log ->
+            (0L until 10L).forEach { log.append(it, ByteArray(30)) }
+            log.commit(4)
+            assertEquals(3, dir.segments().size)
+            log.commit(10)
+            assertEquals(1, dir.segments().size)
+        }
+        SegmentedLog(dir, 100).use { log ->
+            assertEquals(0, log.sequences().size)
+            assertEquals(10, log.nextSequence)
+        }
+    }
+
+    @Test
+    fun `given a torn write at the end of a segment, when reopening then the partial record is discarded`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 3L).forEach { log.append(it, ByteArray(10) { 1 }) }
+        }
+        val segment = dir.segments().last()
+        RandomAccessFile(segment, "rw").use { it.setLength(it.length() - 4) }
+
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(0L, 1L), log.sequences())
+            log.append(2, ByteArray(10) { 2 })
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(0L, 1L, 2L), log.sequences())
+            assertArrayEquals(ByteArray(10) { 2 }, log.read(2))
+        }
+    }
+
+    @Test
+    fun `given a corrupted record payload, when reopening then the log is truncated at that record`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+        }
+        val segment = dir.segments().last()
+        RandomAccessFile(segment, "rw").use {
+            it.seek(27 + 20)
+            it.write(0xff)
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(0L), log.sequences())
+        }
+        assertEquals(27L, dir.segments().last().length())
+    }
+
+    @Test
+    fun `given a corrupted commit pointer slot, when reopening then the previous commit is used`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 5L).forEach { log.append(it, ByteArray(10)) }
+            log.commit(2)
+            log.commit(3)
+        }
+        // The second commit is generation 2, which lands in slot 0
+        RandomAccessFile(dir.resolve(SegmentedLog.COMMIT_FILENAME), "rw").use {
+            it.seek(10)
+            it.write(0xff)
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(2L, 3L, 4L), log.sequences())
+        }
+    }
+
+    @Test
+    fun `given a missing commit pointer, when reopening then every record is recovered`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 5L).forEach { log.append(it, ByteArray(10)) }
+            log.commit(3)
+        }
+        assertTrue(dir.resolve(SegmentedLog.COMMIT_FILENAME).delete())
+        SegmentedLog(dir).use { log ->
+            assertEquals((0L until 5L).toList(), log.sequences())
+        }
+    }
+
+    @Test
+    fun `given a record that was rewritten with the same sequence, when reopening then the latest write wins`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            (0L until 4L).forEach { log.append(it, ByteArray(40)) }
+            log.commit(2)
+            log.append(1, "second".toByteArray())
+            log.commit(1)
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(1L, 2L, 3L), log.sequences())
+            assertArrayEquals("second".toByteArray(), log.read(1))
+        }
+    }
+
+    @Test
+    fun `given records across several segments, when reading by sequence then the payloads are returned`() {
+        val dir = newDirectory()
+        SegmentedLog(dir, 100).use { log ->
+            (0L until 10L).forEach { log.append(it, ByteArray(30) { _ -> it.toByte() }) }
+            assertArrayEquals(ByteArray(30) { 9 }, log.read(9))
+        }
+        SegmentedLog(dir, 100).use { log ->
+            (0L until 10L).forEach { assertArrayEquals(ByteArray(30) { _ -> it.toByte() }, log.read(it)) }
+        }
+    }
+
+    @Test
+    fun `given a consumed or tombstoned record, when reading it then null is returned`() {
+        SegmentedLog(newDirectory()).use { log ->
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+            log.commit(1)
+            log.appendTombstone(2)
+            assertNull(log.read(0))
+            assertArrayEquals(ByteArray(10), log.read(1))
+            assertNull(log.read(2))
+        }
+    }
+
+    @Test
+    fun `given group commit, when reading a buffered record then it is returned`() {
+        SegmentedLog(newDirectory()).use { log ->
+            log.groupCommit = SegmentedLog.GroupCommit(60_000, 1024 * 1024)
+            log.append(0, "buffered".toByteArray())
+            assertArrayEquals("buffered".toByteArray(), log.read(0))
+        }
+    }
+
+    @Test
+    fun `given group commit, when appending then records are not written until flushed`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            log.groupCommit = SegmentedLog.GroupCommit(60_000, 1024 * 1024)
+            (0L until 5L).forEach { log.append(it, ByteArray(10)) }
+            assertEquals(0L, dir.segments().last().length())
+            log.flush()
+            assertEquals(5 * 27L, dir.segments().last().length())
+        }
+    }
+
+    @Test
+    fun `given group commit, when the byte budget is exceeded then the buffered records are written`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            log.groupCommit = SegmentedLog.GroupCommit(60_000, 100)
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+            assertEquals(0L, dir.segments().last().length())
+            log.append(3, ByteArray(10))
+            assertEquals(4 * 27L, dir.segments().last().length())
+        }
+    }
+
+    @Test
+    fun `given group commit, when the window elapses then the buffered records are written`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            log.groupCommit = SegmentedLog.GroupCommit(50, 1024 * 1024)
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+            Thread.sleep(500)
+            assertEquals(3 * 27L, dir.segments().last().length())
+        }
+    }
+
+    @Test
+    fun `given group commit, when committing then the buffered records are written first`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            log.groupCommit = SegmentedLog.GroupCommit(60_000, 1024 * 1024)
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+            log.commit(1)
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(1L, 2L), log.sequences())
+        }
+    }
+
+    @Test
+    fun `given group commit, when closing then the buffered records are written`() {
+        val dir = newDirectory()
+        SegmentedLog(dir).use { log ->
+            log.groupCommit = SegmentedLog.GroupCommit(60_000, 1024 * 1024)
+            (0L until 3L).forEach { log.append(it, ByteArray(10)) }
+        }
+        SegmentedLog(dir).use { log ->
+            assertEquals(listOf(0L, 1L, 2L), log.sequences())
+        }
+    }
+}
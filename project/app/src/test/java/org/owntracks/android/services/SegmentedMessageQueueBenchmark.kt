@@ -0,0 +1,177 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Ignore
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.Parser
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.BlockingDeque
+import kotlin.random.Random
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares the throughput and startup time of the segmented queue with the tape-backed queue it
+ * replaces.
+ */
+@Ignore("Benchmark")
+class SegmentedMessageQueueBenchmark {
+    private val parser = Parser(null)
+    private val random = Random(1)
+    private val messages = (1..MESSAGE_COUNT).map {
+        MessageLocation().apply {
+            longitude = random.nextDouble()
+            latitude = random.nextDouble()
+            accuracy = random.nextInt()
+            timestamp = random.nextLong(1_000_000_000)
+            inregions = listOf("home", "work")
+        }
+    }
+
+    /**
+     * Makes sure everything offered so far is on disk before the queue is reopened
+     */
+    private fun BlockingDeque<MessageBase>.flush() {
+        (this as? SegmentedMessageQueue)?.flush()
+    }
+
+    private fun BlockingDeque<MessageBase>.close() {
+        (this as? SegmentedMessageQueue)?.close()
+    }
+
+    private fun benchmark(name: String, queueFactory: (File) -> BlockingDeque<MessageBase>) {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = queueFactory(dir)
+        val offerNanos = measureNanoTime { messages.forEach(queue::offer) }
+        val requeueNanos = measureNanoTime {
+            repeat(REQUEUE_COUNT) { queue.offerFirst(queue.take()) }
+        }
+        queue.flush()
+        val recovered: BlockingDeque<MessageBase>
+        val recoverNanos = measureNanoTime { recovered = queueFactory(dir) }
+        assertEquals(MESSAGE_COUNT, recovered.size)
+        recovered.close()
+        val takeNanos = measureNanoTime { repeat(MESSAGE_COUNT) { queue.take() } }
+        println(
+            "$name: offer ${opsPerSecond(MESSAGE_COUNT, offerNanos)} msg/s, " +
+                    "take ${opsPerSecond(MESSAGE_COUNT, takeNanos)} msg/s, " +
+                    "take+requeue ${opsPerSecond(REQUEUE_COUNT, requeueNanos)} ops/s, " +
+                    "recovery ${recoverNanos / 1_000_000}ms"
+        )
+        dir.deleteRecursively()
+    }
+
+    private fun opsPerSecond(count: Int, nanos: Long) = count * 1_000_000_000L / nanos
+
+    @Test
+    fun `tape-backed queue throughput`() {
+        benchmark("BlockingDequeThatAlsoSometimesPersistsThingsToDiskMaybe") {
+            BlockingDequeThatAlsoSometimesPersistsThingsToDiskMaybe(MESSAGE_COUNT, it, parser)
+        }
+    }
+
+    @Test
+    fun `segmented queue throughput`() {
+        benchmark("SegmentedMessageQueue") { SegmentedMessageQueue(MESSAGE_COUNT, it, parser) }
+    }
+
+    private fun burst(name: String, groupCommit: SegmentedLog.GroupCommit?) {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(MESSAGE_COUNT, dir, parser, groupCommit)
+        val nanos = measureNanoTime {
+            messages.forEach(queue::offer)
+            queue.flush()
+        }
+        println("$name: ${MESSAGE_COUNT}-message burst in ${nanos / 1_000_000}ms (${opsPerSecond(MESSAGE_COUNT, nanos)} msg/s)")
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun `segmented queue burst with per-message sync`() {
+        burst("Per-message sync", null)
+    }
+
+    @Test
+    fun `segmented queue burst with group commit`() {
+        burst("Group commit (100ms / 64KiB)", SegmentedLog.GroupCommit(100, 64 * 1024))
+    }
+
+    private fun startup(name: String, queueFactory: (File) -> BlockingDeque<MessageBase>) {
+        listOf(0, 1_000, 10_000).forEach { count ->
+            val dir = Files.createTempDirectory("").toFile()
+            queueFactory(dir).run {
+                messages.take(count).forEach(::offer)
+                close()
+            }
+            val recovered: BlockingDeque<MessageBase>
+            val nanos = measureNanoTime { recovered = queueFactory(dir) }
+            assertEquals(count, recovered.size)
+            recovered.close()
+            println("$name: startup with $count persisted messages in ${nanos / 1_000_000}ms")
+            dir.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun `tape-backed queue startup`() {
+        startup("BlockingDequeThatAlsoSometimesPersistsThingsToDiskMaybe") {
+            BlockingDequeThatAlsoSometimesPersistsThingsToDiskMaybe(MESSAGE_COUNT, it, parser)
+        }
+    }
+
+    @Test
+    fun `segmented queue startup`() {
+        startup("SegmentedMessageQueue") {
+            SegmentedMessageQueue(MESSAGE_COUNT, it, parser, SegmentedLog.GroupCommit(100, 64 * 1024))
+        }
+    }
+
+    private fun codec(name: String, encode: (MessageBase) -> ByteArray, decode: (ByteArray) -> MessageBase) {
+        val encoded = messages.map(encode)
+        val encodeNanos = measureNanoTime { messages.forEach { encode(it) } }
+        val decodeNanos = measureNanoTime { encoded.forEach { decode(it) } }
+        println(
+            "$name: ${encoded.sumOf { it.size } / MESSAGE_COUNT} bytes/msg, " +
+                    "encode ${opsPerSecond(MESSAGE_COUNT, encodeNanos)} msg/s, " +
+                    "decode ${opsPerSecond(MESSAGE_COUNT, decodeNanos)} msg/s"
+        )
+    }
+
+    @Test
+    fun `queue entry encoding`() {
+        val codec = MessageQueueCodec(parser)
+        repeat(3) {
+            codec("JSON", parser::toUnencryptedJsonBytes, parser::fromUnencryptedJson)
+            codec("MessageQueueCodec", codec::encode, codec::decode)
+        }
+    }
+
+    private fun usedHeap(): Long {
+        repeat(5) {
+            System.gc()
+            Thread.sleep(100)
+        }
+        return Runtime.getRuntime().run { totalMemory() - freeMemory() }
+    }
+
+    @Test
+    fun `queue heap usage by resident window`() {
+        listOf(Int.MAX_VALUE, SegmentedMessageQueue.DEFAULT_RESIDENT_WINDOW, 0).forEach { window ->
+            val dir = Files.createTempDirectory("").toFile()
+            SegmentedMessageQueue(MESSAGE_COUNT, dir, parser, SegmentedLog.GroupCommit(100, 64 * 1024))
+                .run { messages.forEach(::offer); flush() }
+            val before = usedHeap()
+            val queue = SegmentedMessageQueue(MESSAGE_COUNT, dir, parser, residentWindow = window)
+            val after = usedHeap()
+            println("Resident window $window: ${queue.size} messages use ${(after - before) / 1024}KiB of heap")
+            dir.deleteRecursively()
+        }
+    }
+
+    companion object {
+        private const val MESSAGE_COUNT = 10_000
+        private const val REQUEUE_COUNT = 1_000
+    }
+}
@@ -0,0 +1,352 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import org.owntracks.android.support.Parser
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class SegmentedMessageQueueTest {
+    private val parser = Parser(null)
+    private val random = Random(1)
+    private fun generateRandomMessageLocation(): MessageLocation {
+        return MessageLocation().apply {
+            longitude = random.nextDouble()
+            latitude = random.nextDouble()
+            accuracy = random.nextInt()
+        }
+    }
+
+    private fun MessageLocation?.coordinates() = this?.run { Pair(latitude, longitude) }
+
+    @Test
+    fun `given an empty queue when polling then null is returned`() {
+        val queue = SegmentedMessageQueue(10, Files.createTempDirectory("").toFile(), parser)
+        assertNull(queue.poll())
+    }
+
+    @Test
+    fun `given an empty queue when adding an item the queue size is 1`() {
+        val queue = SegmentedMessageQueue(10, Files.createTempDirectory("").toFile(), parser)
+        queue.offer(generateRandomMessageLocation())
+        assertEquals(1, queue.size)
+    }
+
+    @Test
+    fun `given a full queue when offering an item then it is rejected`() {
+        val queue = SegmentedMessageQueue(3, Files.createTempDirectory("").toFile(), parser)
+        repeat(3) { assertTrue(queue.offer(generateRandomMessageLocation())) }
+        assertFalse(queue.offer(generateRandomMessageLocation()))
+        assertFalse(queue.offerFirst(generateRandomMessageLocation()))
+        assertEquals(3, queue.size)
+    }
+
+    @Test
+    fun `given a non-empty queue, when pushing an item to the head then that same item is returned on poll`() {
+        val queue = SegmentedMessageQueue(10, Files.createTempDirectory("").toFile(), parser)
+        repeat(5) { queue.offer(generateRandomMessageLocation()) }
+
+        val headItem = generateRandomMessageLocation()
+        queue.addFirst(headItem)
+
+        assertEquals(6, queue.size)
+        assertEquals(headItem, queue.poll())
+    }
+
+    @Test
+    fun `given a file path, when initializing the queue the size and order are correct`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(10, dir, parser)
+        val messages = (1..5).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+
+        val newQueue = SegmentedMessageQueue(10, dir, parser)
+
+        assertEquals(5, newQueue.size)
+        messages.forEach {
+            assertEquals(it.coordinates(), (newQueue.take() as MessageLocation).coordinates())
+        }
+    }
+
+    @Test
+    fun `given a taken message that was re-queued at the head, when initializing the queue then it is first`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(10, dir, parser)
+        repeat(5) { queue.offer(generateRandomMessageLocation()) }
+
+        val failed = queue.take() as MessageLocation
+        queue.take()
+        queue.offerFirst(failed)
+
+        val newQueue = SegmentedMessageQueue(10, dir, parser)
+
+        assertEquals(4, newQueue.size)
+        assertEquals(failed.coordinates(), (newQueue.poll() as MessageLocation).coordinates())
+    }
+
+    @Test
+    fun `given messages removed from the tail, when initializing the queue then they are not recovered`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(10, dir, parser)
+        val messages = (1..5).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+
+        queue.removeLast()
+        queue.remove(messages[1])
+
+        val newQueue = SegmentedMessageQueue(10, dir, parser)
+
+        assertEquals(
+            listOf(messages[0], messages[2], messages[3]).map { it.coordinates() },
+            newQueue.map { (it as MessageLocation).coordinates() }
+        )
+    }
+
+    @Test
+    fun `given a drained queue, when initializing the queue then it is empty`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(10, dir, parser)
+        repeat(5) { queue.offer(generateRandomMessageLocation()) }
+        repeat(5) { queue.take() }
+
+        assertEquals(0, SegmentedMessageQueue(10, dir, parser).size)
+    }
+
+    @Test
+    fun `given a cleared queue, when initializing the queue then it is empty`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(10, dir, parser)
+        repeat(5) { queue.offer(generateRandomMessageLocation()) }
+        queue.clear()
+
+        assertEquals(0, SegmentedMessageQueue(10, dir, parser).size)
+    }
+
+    @Test
+    fun `given a legacy queue on disk, when initializing the queue then the messages are migrated`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val legacyQueue = BlockingDequeThatAlsoSometimesPersistsThingsToDiskMaybe(10, dir, parser)
+        repeat(5) { legacyQueue.offer(generateRandomMessageLocation()) }
+
+        val queue = SegmentedMessageQueue(10, dir, parser)
+
+        assertEquals(5, queue.size)
+        assertFalse(dir.resolve("messageQueue.dat").exists())
+        assertEquals(5, SegmentedMessageQueue(10, dir, parser).size)
+    }
+
+    @Test
+    fun `given an empty queue, when taking with a producer on another thread then the message is returned`() {
+        val queue = SegmentedMessageQueue(10, Files.createTempDirectory("").toFile(), parser)
+        val message = generateRandomMessageLocation()
+        Thread {
+            Thread.sleep(100)
+            queue.offer(message)
+        }.start()
+        assertEquals(message, queue.poll(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun `given a corrupt segment, when initializing the queue then an empty queue is created`() {
+        val dir = Files.createTempDirectory("").toFile()
+        dir.resolve(SegmentedMessageQueue.QUEUE_DIRECTORY).run {
+            mkdirs()
+            resolve("00000000000000000000${SegmentedLog.SEGMENT_SUFFIX}").writeBytes(random.nextBytes(100))
+        }
+        val queue = SegmentedMessageQueue(10, dir, parser)
+        assertEquals(0, queue.size)
+        queue.offer(generateRandomMessageLocation())
+        assertEquals(1, SegmentedMessageQueue(10, dir, parser).size)
+    }
+
+    @Test
+    fun `given an un-writable location, when initializing a queue then an in-memory empty queue is created`() {
+        val queue = SegmentedMessageQueue(10, File("/"), parser)
+        assertEquals(0, queue.size)
+    }
+
+    @Test
+    fun `given group commit, when offering a message that must be flushed then earlier messages are also on disk`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(
+            10,
+            dir,
+            parser,
+            SegmentedLog.GroupCommit(60_000, 1024 * 1024)
+        ) { it is MessageTransition }
+        repeat(3) { queue.offer(generateRandomMessageLocation()) }
+        assertEquals(0, SegmentedMessageQueue(10, dir, parser).size)
+
+        queue.offer(MessageTransition())
+        assertEquals(4, SegmentedMessageQueue(10, dir, parser).size)
+    }
+
+    @Test
+    fun `given group commit, when a message is requeued at the head then it is on disk immediately`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(10, dir, parser, SegmentedLog.GroupCommit(60_000, 1024 * 1024))
+        repeat(3) { queue.offer(generateRandomMessageLocation()) }
+        queue.offerFirst(queue.take())
+        assertEquals(3, SegmentedMessageQueue(10, dir, parser).size)
+    }
+
+    @Test
+    fun `given a backlog larger than the resident window, when draining the queue then every message is returned in order`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val messages = (1..25).map { generateRandomMessageLocation() }
+        SegmentedMessageQueue(50, dir, parser, residentWindow = 5).run { messages.forEach(::offer) }
+
+        val queue = SegmentedMessageQueue(50, dir, parser, residentWindow = 5)
+
+        assertEquals(25, queue.size)
+        assertEquals(25, queue.remainingCapacity())
+        assertEquals(
+            messages.map { it.coordinates() },
+            (1..25).map { (queue.take() as MessageLocation).coordinates() }
+        )
+        assertNull(queue.poll())
+    }
+
+    @Test
+    fun `given a paged queue, when requeueing at the head then the order is preserved`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(50, dir, parser, residentWindow = 3)
+        val messages = (1..10).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+
+        queue.offerFirst(queue.take())
+
+        assertEquals(messages.map { it.coordinates() }, queue.map { (it as MessageLocation).coordinates() })
+        assertEquals(
+            messages.map { it.coordinates() },
+            SegmentedMessageQueue(50, dir, parser, residentWindow = 3).map { (it as MessageLocation).coordinates() }
+        )
+    }
+
+    @Test
+    fun `given a paged queue, when removing from the tail then paged messages are removed first`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(50, dir, parser, residentWindow = 3)
+        val messages = (1..10).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+
+        assertEquals(messages[9].coordinates(), (queue.peekLast() as MessageLocation).coordinates())
+        assertEquals(messages[9].coordinates(), (queue.removeLast() as MessageLocation).coordinates())
+        assertEquals(9, queue.size)
+        assertEquals(9, SegmentedMessageQueue(50, dir, parser, residentWindow = 3).size)
+    }
+
+    @Test
+    fun `given a paged queue, when removing a paged message through the iterator then it is not recovered`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(50, dir, parser, residentWindow = 3)
+        val messages = (1..10).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+
+        assertTrue(queue.removeIf { (it as MessageLocation).coordinates() == messages[7].coordinates() })
+
+        val expected = (messages - messages[7]).map { it.coordinates() }
+        assertEquals(expected, queue.map { (it as MessageLocation).coordinates() })
+        assertEquals(
+            expected,
+            SegmentedMessageQueue(50, dir, parser, residentWindow = 3).map { (it as MessageLocation).coordinates() }
+        )
+    }
+
+    @Test
+    fun `given a paged queue, when visiting it through the collection views then paged messages are included`() {
+        val queue = SegmentedMessageQueue(50, Files.createTempDirectory("").toFile(), parser, residentWindow = 3)
+        val messages = (1..10).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+        val expected = messages.map { it.coordinates() }
+
+        assertEquals(expected, queue.toTypedArray().map { (it as MessageLocation).coordinates() })
+        val visited = mutableListOf<Pair<Double, Double>?>()
+        queue.forEach { visited.add((it as MessageLocation).coordinates()) }
+        assertEquals(expected, visited)
+        assertTrue(queue.contains(messages[0]))
+        assertTrue(queue.toString().contains(messages[9].messageId))
+    }
+
+    @Test
+    fun `given JSON entries written by an earlier version, when initializing the queue then they are recovered`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val messages = (1..3).map { generateRandomMessageLocation() }
+        SegmentedLog(dir.resolve(SegmentedMessageQueue.QUEUE_DIRECTORY)).use { log ->
+            messages.forEachIndexed { index, message -> log.append(index.toLong(), parser.toUnencryptedJsonBytes(message)) }
+        }
+
+        val queue = SegmentedMessageQueue(10, dir, parser)
+        queue.offer(generateRandomMessageLocation())
+
+        assertEquals(4, queue.size)
+        messages.forEach {
+            assertEquals(it.coordinates(), (queue.take() as MessageLocation).coordinates())
+        }
+    }
+
+    @Test
+    fun `given an index-only queue, when offering, requeueing and taking then the order is preserved`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(50, dir, parser, residentWindow = 0)
+        val messages = (1..10).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+
+        val first = queue.take() as MessageLocation
+        queue.offerFirst(first)
+
+        assertEquals(10, queue.size)
+        assertEquals(first.coordinates(), (queue.peek() as MessageLocation).coordinates())
+        assertEquals(
+            messages.map { it.coordinates() },
+            (1..10).map { (queue.take() as MessageLocation).coordinates() }
+        )
+        assertNull(queue.poll())
+        assertEquals(0, SegmentedMessageQueue(50, dir, parser, residentWindow = 0).size)
+    }
+
+    @Test
+    fun `given a byte budget, when it is used up then offers are rejected until a message is taken`() {
+        val dir = Files.createTempDirectory("").toFile()
+        // Generated message ids vary in length, so every message gets one of the same length
+        var id = 0
+        fun sameSizeMessage() = generateRandomMessageLocation().apply { messageId = "%08d".format(id++) }
+        val messageBytes = MessageQueueCodec(parser).encode(sameSizeMessage()).size.toLong()
+        val queue = SegmentedMessageQueue(Int.MAX_VALUE, dir, parser, residentWindow = 0, maxBytes = 3 * messageBytes)
+
+        repeat(3) { assertTrue(queue.offer(sameSizeMessage())) }
+        assertEquals(3 * messageBytes, queue.sizeInBytes())
+        assertEquals(0, queue.remainingCapacity())
+        assertFalse(queue.offer(sameSizeMessage()))
+
+        queue.take()
+        assertTrue(queue.offer(sameSizeMessage()))
+        assertEquals(3 * messageBytes, SegmentedMessageQueue(Int.MAX_VALUE, dir, parser, maxBytes = 3 * messageBytes).sizeInBytes())
+    }
+
+    @Test
+    fun `given a byte budget, when a message is removed from anywhere then its bytes are released`() {
+        val dir = Files.createTempDirectory("").toFile()
+        val queue = SegmentedMessageQueue(Int.MAX_VALUE, dir, parser, residentWindow = 2, maxBytes = 1024 * 1024)
+        val messages = (1..6).map { generateRandomMessageLocation() }
+        messages.forEach(queue::offer)
+
+        queue.remove(messages[1])
+        queue.removeLast()
+        queue.removeIf { (it as MessageLocation).coordinates() == messages[3].coordinates() }
+        queue.poll()
+        assertEquals(
+            MessageQueueCodec(parser).encode(messages[2]).size + MessageQueueCodec(parser).encode(messages[4]).size.toLong(),
+            queue.sizeInBytes()
+        )
+        queue.clear()
+        assertEquals(0, queue.sizeInBytes())
+    }
+}
@@ -0,0 +1,75 @@
+package org.owntracks.android.services
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class SendMetricsTest {
+    private var now = TimeUnit.SECONDS.toNanos(-1_000)
+    private val metrics = SendMetrics { now }
+
+    @Test
+    fun `given messages sent over time, when taking a snapshot then the rates cover only the last minute`() {
+        metrics.onDelivered(600)
+        metrics.onBytesSent(60_000)
+        now += TimeUnit.SECONDS.toNanos(90)
+        repeat(30) {
+            metrics.onDelivered(2)
+            metrics.onBytesSent(200)
+            now += TimeUnit.SECONDS.toNanos(1)
+        }
+
+        val snapshot = metrics.snapshot(0, null)
+        assertEquals(660, snapshot.messagesDelivered)
+        assertEquals(66_000, snapshot.bytesSent)
+        assertEquals(1.0, snapshot.messagesPerSecond, 0.001)
+        assertEquals(100.0, snapshot.bytesPerSecond, 0.001)
+        assertEquals(120, snapshot.periodSeconds)
+    }
+
+    @Test
+    fun `given retries, drops and a queued message, when taking a snapshot then they are reported`() {
+        metrics.onRetry()
+        metrics.onRetry()
+        metrics.onDropped()
+        val timestamp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - 300
+
+        val snapshot = metrics.snapshot(7, timestamp)
+        assertEquals(2, snapshot.retries)
+        assertEquals(1, snapshot.dropped)
+        assertEquals(7, snapshot.queueLength)
+        assertEquals(300.0, snapshot.oldestQueuedMessageAgeSeconds!!.toDouble(), 2.0)
+        assertNull(metrics.snapshot(0, null).oldestQueuedMessageAgeSeconds)
+    }
+
+    @Test
+    fun `given recorded phases, when exporting as JSON then every phase is included`() {
+        metrics.record(SendMetrics.Phase.PUBLISH, TimeUnit.MILLISECONDS.toNanos(40))
+        metrics.onDelivered(1)
+
+        val json = ObjectMapper().readTree(metrics.snapshot(0, null).toJson())
+        assertEquals(
+            SendMetrics.Phase.values().map { it.key },
+            json["phases"].fieldNames().asSequence().toList()
+        )
+        assertEquals(1, json["phases"]["publish"]["count"].asInt())
+        assertEquals(40_000.0, json["phases"]["publish"]["p50Micros"].asDouble(), 40_000.0 / 16)
+        assertEquals(1, json["messagesDelivered"].asInt())
+    }
+
+    @Test
+    fun `given recorded metrics, when reset then everything starts again from zero`() {
+        metrics.record(SendMetrics.Phase.CONNECT, 1_000_000)
+        metrics.onDelivered(3)
+        metrics.onRetry()
+        metrics.reset()
+
+        val snapshot = metrics.snapshot(0, null)
+        assertEquals(0, snapshot.messagesDelivered)
+        assertEquals(0, snapshot.retries)
+        assertEquals(0.0, snapshot.messagesPerSecond, 0.0)
+        assertEquals(0, snapshot.phases.getValue("connect").count)
+    }
+}
@@ -0,0 +1,15 @@
+package org.owntracks.android.support
+
+import org.junit.Assert.assertTrue
+
+/**
+ * Waits for something that happens on another thread, failing the test if it hasn't happened
+ * within [timeoutMillis]
+ */
+fun awaitCondition(timeoutMillis: Long = 10_000, condition: () -> Boolean) {
+    val deadline = System.currentTimeMillis() + timeoutMillis
+    while (!condition()) {
+        assertTrue("Timed out", System.currentTimeMillis() < deadline)
+        Thread.sleep(5)
+    }
+}
@@ -0,0 +1,65 @@
+package org.owntracks.android.support
+
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import kotlin.random.Random
+
+/**
+ * Realistic outgoing messages for the benchmarks: a device moving around a little, with every
+ * field the app normally fills in. The values come from a seeded [Random], so every run measures
+ * the same messages.
+ */
+class BenchmarkMessages(seed: Int = 1) {
+    private val random = Random(seed)
+
+    fun location(trigger: String? = null) = MessageLocation().apply {
+        trackerId = "ab"
+        this.trigger = trigger
+        topic = "owntracks/user/device"
+        latitude = 51.5 + random.nextDouble() / 100
+        longitude = -0.1 + random.nextDouble() / 100
+        accuracy = random.nextInt(5, 50)
+        altitude = random.nextInt(0, 100)
+        velocity = random.nextInt(0, 30)
+        battery = random.nextInt(1, 100)
+        timestamp = 1_640_000_000L + random.nextInt(100_000)
+        conn = MessageLocation.CONN_TYPE_WIFI
+        inregions = listOf("home", "neighbourhood")
+        ssid = "HomeNetwork"
+        bssid = "aa:bb:cc:dd:ee:ff"
+        setTopicVisible()
+    }
+
+    fun transition() = MessageTransition().apply {
+        trackerId = "ab"
+        setTransition(1)
+        description = "home"
+        trigger = MessageTransition.TRIGGER_CIRCULAR
+        timestamp = 1_640_000_000L + random.nextInt(100_000)
+        waypointTimestamp = 1_600_000_000
+        accuracy = 12.5f
+        latitude = 51.5
+        longitude = -0.1
+        topic = "owntracks/user/device/event"
+        setTopicVisible()
+    }
+
+    fun card() = MessageCard().apply {
+        trackerId = "ab"
+        name = "Someone"
+        face = "iVBORw0KGgoAAAANSUhEUgAAACgAAAAoCAYAAACM/rhtAAABIElEQVRYhe2XsQ2DMBBFvQkrUNEihvEOTMEU9IzAAuxAwxz3UxCIIxw58n0LC"
+    }
+
+    /**
+     * What a device sends over a while: mostly locations, with the odd ping and transition
+     */
+    fun mix(count: Int): List<MessageBase> = (1..count).map {
+        when (it % 10) {
+            0 -> transition()
+            1 -> location(MessageLocation.REPORT_TYPE_PING)
+            else -> location()
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.owntracks.android.support
+
+import org.junit.Ignore
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageEncrypted
+import java.lang.management.ManagementFactory
+import java.util.*
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares reading encrypted locations straight from the Base64 bytes with the way they used to be
+ * read: the wrapper by the mapper, the data decoded into a new array, split into nonce and
+ * cyphertext, decrypted into a string and that string parsed again. The crypto is the same stand-in
+ * on both sides, so the difference is everything around it.
+ */
+@Ignore("Benchmark")
+class EncryptedMessageBenchmark {
+    private val encryptionProvider = StandInEncryptionProvider()
+    private val parser = Parser(encryptionProvider)
+    private val benchmarkMessages = BenchmarkMessages()
+    private val key = EncryptionProvider.Key.of("stand-in key")!!.bytes
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    private fun readAsBefore(input: ByteArray): MessageBase {
+        val data = (parser.fromUnencryptedJson(input) as MessageEncrypted).data!!
+        val onTheWire = Base64.getMimeDecoder().decode(data.toByteArray())
+        val nonce = onTheWire.copyOfRange(0, StandInEncryptionProvider.NONCE_BYTES)
+        val cyphertext = onTheWire.copyOfRange(StandInEncryptionProvider.NONCE_BYTES, onTheWire.size)
+        val plaintext = ByteArray(cyphertext.size - StandInEncryptionProvider.MAC_BYTES)
+        encryptionProvider.open(plaintext, cyphertext, cyphertext.size, nonce, key)
+        return parser.fromUnencryptedJson(String(plaintext).toByteArray())
+    }
+
+    private fun allocatedBytes() = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().id)
+
+    @Test
+    fun `encrypted locations`() {
+        val messages = List(MESSAGES) {
+            val data = encryptionProvider.seal(parser.toUnencryptedJsonBytes(benchmarkMessages.location()))
+            """{"_type":"encrypted","data":"$data"}""".toByteArray()
+        }
+        repeat(WARMUP) {
+            messages.forEach { readAsBefore(it); parser.fromJson(it) }
+        }
+        var beforeAllocated = allocatedBytes()
+        val beforeNanos = measureNanoTime { repeat(ITERATIONS) { messages.forEach(::readAsBefore) } }
+        beforeAllocated = allocatedBytes() - beforeAllocated
+        var nowAllocated = allocatedBytes()
+        val nowNanos = measureNanoTime { repeat(ITERATIONS) { messages.forEach(parser::fromJson) } }
+        nowAllocated = allocatedBytes() - nowAllocated
+        val count = ITERATIONS * messages.size
+        println(
+            "encrypted location: %dns and %d bytes allocated as before, %dns and %d bytes now".format(
+                beforeNanos / count,
+                beforeAllocated / count,
+                nowNanos / count,
+                nowAllocated / count
+            )
+        )
+    }
+
+    companion object {
+        private const val MESSAGES = 10_000
+        private const val WARMUP = 20
+        private const val ITERATIONS = 20
+    }
+}
@@ -0,0 +1,259 @@
+package org.owntracks.android.support
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.Parser.EncryptionException
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.experimental.xor
+import kotlin.random.Random
+
+/**
+ * Stands in for libsodium, which can't be loaded off a device, with something that's just as
+ * particular about keys and nonces but isn't secret at all, so that everything around the crypto
+ * runs as it does for real.
+ */
+internal class StandInEncryptionProvider(key: String = "stand-in key") : EncryptionProvider(mock()) {
+    val opened = AtomicInteger()
+
+    init {
+        setKeys(key, emptyList())
+    }
+
+    public override fun open(plaintext: ByteArray, cyphertext: ByteArray, cyphertextLength: Int, nonce: ByteArray, key: ByteArray): Boolean {
+        opened.incrementAndGet()
+        if ((0 until MAC_BYTES).any { cyphertext[it] != mac(nonce, key, it) }) {
+            return false
+        }
+        for (i in 0 until cyphertextLength - MAC_BYTES) {
+            plaintext[i] = cyphertext[MAC_BYTES + i] xor pad(nonce, key, i)
+        }
+        return true
+    }
+
+    public override fun seal(cyphertext: ByteArray, plaintext: ByteArray, plaintextLength: Int, nonce: ByteArray, key: ByteArray) {
+        for (i in 0 until MAC_BYTES) {
+            cyphertext[i] = mac(nonce, key, i)
+        }
+        for (i in 0 until plaintextLength) {
+            cyphertext[MAC_BYTES + i] = plaintext[i] xor pad(nonce, key, i)
+        }
+    }
+
+    public override fun randomNonce(nonce: ByteArray) {
+        ThreadLocalRandom.current().nextBytes(nonce)
+    }
+
+    private fun mac(nonce: ByteArray, key: ByteArray, i: Int) = nonce[i] xor key[i] xor key[i + MAC_BYTES]
+
+    private fun pad(nonce: ByteArray, key: ByteArray, i: Int) = nonce[i % nonce.size] xor key[i % key.size]
+
+    fun seal(plaintext: ByteArray): String = encrypt(plaintext)!!.data!!
+
+    companion object {
+        const val NONCE_BYTES = 24
+        const val MAC_BYTES = 16
+    }
+}
+
+class EncryptionProviderTest {
+    private val random = Random(1)
+    private val encryptionProvider = StandInEncryptionProvider()
+
+    @Test
+    fun `given Base64 of any length, when decoding it then it's split between the two buffers`() {
+        repeat(500) {
+            val bytes = random.nextBytes(random.nextInt(0, 100))
+            listOf(
+                Base64.getEncoder().encodeToString(bytes),
+                Base64.getEncoder().withoutPadding().encodeToString(bytes),
+                Base64.getMimeEncoder(16, "\n".toByteArray()).encodeToString(bytes)
+            ).forEach { base64 ->
+                val first = ByteArray(24)
+                val rest = ByteArray(100)
+                val input = "xx${base64}yy".toCharArray()
+                val decoded = EncryptionProvider.decodeBase64(input, 2, base64.length, first, rest)
+                assertEquals(base64, bytes.size, decoded)
+                assertArrayEquals(base64, bytes, (first + rest).copyOf(decoded))
+            }
+        }
+    }
+
+    @Test
+    fun `given bytes in two buffers, when encoding them then it's the Base64 of them together`() {
+        repeat(500) {
+            val first = random.nextBytes(24)
+            val rest = random.nextBytes(random.nextInt(0, 100))
+            val restLength = random.nextInt(0, rest.size + 1)
+            assertEquals(
+                Base64.getEncoder().encodeToString(first + rest.copyOf(restLength)),
+                EncryptionProvider.encodeBase64(first, rest, restLength)
+            )
+        }
+    }
+
+    @Test(expected = EncryptionException::class)
+    fun `given something that isn't Base64, when decoding it then it's rejected`() {
+        EncryptionProvider.decodeBase64("abc-def_".toCharArray(), 0, 8, ByteArray(24), ByteArray(8))
+    }
+
+    @Test
+    fun `given sealed messages, when decrypting them then each thread reuses its plaintext buffer`() {
+        val first = "first message".toByteArray()
+        val second = "second".toByteArray()
+        val plaintext = encryptionProvider.decrypt(encryptionProvider.seal(first), null)
+        assertArrayEquals(first, plaintext.buffer.copyOf(plaintext.length))
+
+        val again = encryptionProvider.decrypt(encryptionProvider.seal(second), null)
+        assertSame(plaintext, again)
+        assertArrayEquals(second, again.buffer.copyOf(again.length))
+    }
+
+    @Test
+    fun `given a message bigger than the buffers, when decrypting it then they grow to fit`() {
+        val large = random.nextBytes(10_000)
+        val plaintext = encryptionProvider.decrypt(encryptionProvider.seal(large), null)
+        assertArrayEquals(large, plaintext.buffer.copyOf(plaintext.length))
+    }
+
+    @Test(expected = EncryptionException::class)
+    fun `given a message shorter than the nonce, when decrypting it then it's rejected`() {
+        encryptionProvider.decrypt(Base64.getEncoder().encodeToString(ByteArray(20)), null)
+    }
+
+    @Test(expected = EncryptionException::class)
+    fun `given a message that fails verification, when decrypting it then it's rejected`() {
+        encryptionProvider.decrypt(Base64.getEncoder().encodeToString(ByteArray(24) + ByteArray(16) { 1 }), null)
+    }
+
+    @Test
+    fun `given an encrypted location, when parsing it then it's decrypted and read`() {
+        val parser = Parser(encryptionProvider)
+        val location = """{"_type":"location","lat":51.5,"lon":-0.1,"tid":"ab","tst":1640000000}"""
+        val encrypted = """{"_type":"encrypted","data":"${encryptionProvider.seal(location.toByteArray())}"}"""
+
+        listOf(encrypted, encrypted.replace("\",\"data", "\",\"extra\":[1,{}],\"data")).forEach {
+            val message = parser.fromJson(it.toByteArray()) as MessageLocation
+            assertEquals("ab", message.trackerId)
+            assertEquals(1640000000L, message.timestamp)
+            assertEquals(51.5, message.latitude, 0.0)
+        }
+        // With the data before the type it goes through the mapper instead
+        val reordered = """{"data":"${encryptionProvider.seal(location.toByteArray())}","_type":"encrypted"}"""
+        assertEquals("ab", (parser.fromJson(reordered) as MessageLocation).trackerId)
+    }
+
+    @Test
+    fun `given a key, when encrypting then the key id is sent before the data`() {
+        val parser = Parser(encryptionProvider)
+        val json = parser.toJson(MessageLocation().apply { trackerId = "ab" })
+
+        assertTrue(json, json.matches(Regex("""\{"_type":"encrypted","kid":"[0-9a-f]{8}","data":"[A-Za-z0-9+/=]+"}""")))
+        assertEquals("ab", (parser.fromJson(json) as MessageLocation).trackerId)
+    }
+
+    @Test
+    fun `given a key rotation, when a message says which key it's encrypted with then only that key is tried`() {
+        val oldDevice = StandInEncryptionProvider("old key")
+        encryptionProvider.setKeys("new key", listOf("old key", "older key"))
+        val parser = Parser(encryptionProvider)
+        val json = Parser(oldDevice).toJson(MessageLocation().apply { trackerId = "ab" })
+
+        assertEquals("ab", (parser.fromJson(json) as MessageLocation).trackerId)
+        assertEquals(1, encryptionProvider.opened.get())
+
+        // Without the key id, as other clients send it, each key is tried in turn
+        encryptionProvider.opened.set(0)
+        assertEquals("ab", (parser.fromJson(json.replace(Regex(""""kid":"[0-9a-f]+","""), "")) as MessageLocation).trackerId)
+        assertEquals(2, encryptionProvider.opened.get())
+    }
+
+    @Test
+    fun `given a key rotation, when encrypting then the new key is used`() {
+        encryptionProvider.setKeys("new key", listOf("old key"))
+        val json = Parser(encryptionProvider).toJson(MessageLocation().apply { trackerId = "ab" })
+
+        assertEquals("ab", (Parser(StandInEncryptionProvider("new key")).fromJson(json) as MessageLocation).trackerId)
+        assertThrows(EncryptionException::class.java) { Parser(StandInEncryptionProvider("old key")).fromJson(json) }
+    }
+
+    @Test(expected = EncryptionException::class)
+    fun `given a key id that isn't in the key ring, when decrypting then it fails without trying any key`() {
+        val json = Parser(StandInEncryptionProvider("retired key")).toJson(MessageLocation())
+        encryptionProvider.setKeys("new key", listOf("old key"))
+        try {
+            Parser(encryptionProvider).fromJson(json)
+        } finally {
+            assertEquals(0, encryptionProvider.opened.get())
+        }
+    }
+
+    @Test
+    fun `given no current key, when encrypting then there is nothing to encrypt with`() {
+        encryptionProvider.setKeys("", listOf("old key"))
+        assertFalse(encryptionProvider.isPayloadEncryptionEnabled)
+        assertNull(encryptionProvider.encrypt("plaintext"))
+    }
+
+    @Test
+    fun `given keys being rotated, when encrypting and decrypting on many threads then every message comes back intact`() {
+        encryptionProvider.setKeys("new key", listOf("old key"))
+        val parser = Parser(encryptionProvider)
+        val failures = ConcurrentLinkedQueue<Throwable>()
+        val running = AtomicBoolean(true)
+        // Swaps which key is current as fast as it can, while both stay in the key ring
+        val rotator = thread {
+            var flipped = false
+            while (running.get()) {
+                encryptionProvider.setKeys(if (flipped) "old key" else "new key", listOf(if (flipped) "new key" else "old key"))
+                flipped = !flipped
+            }
+        }
+        val workers = List(THREADS) { worker ->
+            thread {
+                try {
+                    val threadRandom = Random(worker)
+                    repeat(MESSAGES_PER_THREAD) { i ->
+                        val location = MessageLocation().apply {
+                            trackerId = "t$worker"
+                            timestamp = i.toLong()
+                            inregions = List(threadRandom.nextInt(1, 20)) { "region $it" }
+                        }
+                        var json = parser.toJson(location)
+                        if (i % 2 == 0) {
+                            json = json.replace(Regex(""""kid":"[0-9a-f]+","""), "")
+                        }
+                        val read = parser.fromJson(json.toByteArray()) as MessageLocation
+                        assertEquals("t$worker", read.trackerId)
+                        assertEquals(i.toLong(), read.timestamp)
+                        assertEquals(location.inregions, read.inregions)
+                    }
+                } catch (e: Throwable) {
+                    failures.add(e)
+                }
+            }
+        }
+        workers.forEach { it.join() }
+        running.set(false)
+        rotator.join()
+
+        assertTrue(failures.joinToString(), failures.isEmpty())
+    }
+
+    companion object {
+        private const val THREADS = 8
+        private const val MESSAGES_PER_THREAD = 5_000
+    }
+}
@@ -0,0 +1,346 @@
+package org.owntracks.android.support
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+/**
+ * Just enough of an MQTT 3.1.1 and 5 broker to test publishing against: it accepts any connection,
+ * records every PUBLISH it receives and acknowledges QoS 1 publishes after [ackDelayMillis], to
+ * stand in for the round trip to a real broker. It doesn't route messages to subscribers, but
+ * anything added with [retain] is sent at QoS 0 to a client that subscribes to a matching filter.
+ *
+ * MQTT 5 clients are told the broker's [receiveMaximum] and [topicAliasMaximum], if they're set,
+ * and may publish with topic aliases.
+ */
+class LocalMqttBroker(
+    private val ackDelayMillis: Long = 0,
+    private val receiveMaximum: Int = 0,
+    private val topicAliasMaximum: Int = 0
+) : Closeable {
+    /**
+     * [size] is the whole packet as it came over the wire, and [topicAlias] the alias it was sent
+     * with, if any. [topic] is always the full topic.
+     */
+    class Publish(val topic: String, val payload: ByteArray, val qos: Int, val size: Int = 0, val topicAlias: Int? = null)
+
+    class Connect(
+        val protocolLevel: Int,
+        val cleanStart: Boolean,
+        val sessionExpiryInterval: Long?,
+        val receiveMaximum: Int?,
+        val topicAliasMaximum: Int?
+    )
+
+    private val serverSocket = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+    private val clients = CopyOnWriteArrayList<Socket>()
+    private val ackScheduler = Executors.newSingleThreadScheduledExecutor()
+    private val lock = Object()
+    private var outstanding = 0
+
+    val received: MutableList<Publish> = CopyOnWriteArrayList()
+    val connects: MutableList<Connect> = CopyOnWriteArrayList()
+    private val retained = Collections.synchronizedMap(LinkedHashMap<String, ByteArray>())
+
+    /**
+     * Keeps [payload] as the retained message on [topic], for clients that subscribe afterwards
+     */
+    fun retain(topic: String, payload: ByteArray) {
+        retained[topic] = payload
+    }
+
+    /**
+     * Whether QoS 1 publishes are acknowledged at all
+     */
+    @Volatile
+    var acknowledging = true
+
+    /**
+     * The most QoS 1 publishes that were received but not yet acknowledged at any one time
+     */
+    @Volatile
+    var maxOutstanding = 0
+        private set
+
+    val uri: String
+        get() = "tcp://127.0.0.1:${serverSocket.localPort}"
+
+    init {
+        thread(isDaemon = true, name = "LocalMqttBroker") {
+            while (!serverSocket.isClosed) {
+                val socket = try {
+                    serverSocket.accept()
+                } catch (e: IOException) {
+                    break
+                }
+                clients.add(socket)
+                thread(isDaemon = true) { serve(socket) }
+            }
+        }
+    }
+
+    private fun serve(socket: Socket) {
+        try {
+            val input = DataInputStream(socket.getInputStream().buffered())
+            val output = socket.getOutputStream()
+            var mqtt5 = false
+            val topicAliases = mutableMapOf<Int, String>()
+            while (true) {
+                val header = input.read()
+                if (header < 0) {
+                    break
+                }
+                val body = ByteArray(readRemainingLength(input))
+                input.readFully(body)
+                when (header shr 4) {
+                    CONNECT -> {
+                        val connect = readConnect(Reader(body))
+                        connects.add(connect)
+                        mqtt5 = connect.protocolLevel == 5
+                        send(output, if (mqtt5) connAck5() else byteArrayOf(0x20, 2, 0, 0))
+                    }
+                    PUBLISH -> onPublish(output, header, body, if (mqtt5) topicAliases else null)
+                    SUBSCRIBE -> onSubscribe(output, body, mqtt5)
+                    PINGREQ -> send(output, byteArrayOf(0xD0.toByte(), 0))
+                    DISCONNECT -> break
+                }
+            }
+        } catch (e: IOException) {
+            // Connection dropped
+        } finally {
+            socket.close()
+            clients.remove(socket)
+        }
+    }
+
+    private fun readConnect(reader: Reader): Connect {
+        reader.string() // "MQTT"
+        val protocolLevel = reader.byte()
+        val flags = reader.byte()
+        reader.short() // Keep alive
+        val properties = if (protocolLevel == 5) reader.properties() else emptyMap()
+        return Connect(
+            protocolLevel,
+            flags and 0x02 != 0,
+            properties[SESSION_EXPIRY_INTERVAL]?.toLong(),
+            properties[RECEIVE_MAXIMUM]?.toInt(),
+            properties[TOPIC_ALIAS_MAXIMUM]?.toInt()
+        )
+    }
+
+    private fun connAck5(): ByteArray {
+        val properties = ByteArrayOutputStream()
+        if (receiveMaximum > 0) {
+            properties.write(RECEIVE_MAXIMUM)
+            properties.write(receiveMaximum shr 8)
+            properties.write(receiveMaximum and 0xFF)
+        }
+        if (topicAliasMaximum > 0) {
+            properties.write(TOPIC_ALIAS_MAXIMUM)
+            properties.write(topicAliasMaximum shr 8)
+            properties.write(topicAliasMaximum and 0xFF)
+        }
+        // No session present, success, then the properties
+        return byteArrayOf(0x20, (3 + properties.size()).toByte(), 0, 0, properties.size().toByte()) +
+            properties.toByteArray()
+    }
+
+    /**
+     * [topicAliases] are the aliases the client has set up on this connection, or null for MQTT 3
+     */
+    private fun onPublish(output: OutputStream, header: Int, body: ByteArray, topicAliases: MutableMap<Int, String>?) {
+        val qos = (header shr 1) and 0x03
+        val reader = Reader(body)
+        var topic = reader.string()
+        val packetId = if (qos > 0) body.copyOfRange(reader.position, reader.position + 2).also { reader.short() } else null
+        val topicAlias = topicAliases?.let { reader.properties()[TOPIC_ALIAS]?.toInt() }
+        if (topicAlias != null) {
+            if (topic.isEmpty()) {
+                topic = topicAliases[topicAlias] ?: throw IOException("Unknown topic alias $topicAlias")
+            } else {
+                topicAliases[topicAlias] = topic
+            }
+        }
+        val size = 1 + remainingLengthSize(body.size) + body.size
+        received.add(Publish(topic, body.copyOfRange(reader.position, body.size), qos, size, topicAlias))
+        if (packetId == null || !acknowledging) {
+            return
+        }
+        synchronized(lock) {
+            outstanding += 1
+            maxOutstanding = maxOf(maxOutstanding, outstanding)
+        }
+        ackScheduler.schedule({
+            synchronized(lock) { outstanding -= 1 }
+            try {
+                send(output, byteArrayOf(0x40, 2, packetId[0], packetId[1]))
+            } catch (e: IOException) {
+                // Connection dropped before the ack went out
+            }
+        }, ackDelayMillis, TimeUnit.MILLISECONDS)
+    }
+
+    private fun onSubscribe(output: OutputStream, body: ByteArray, mqtt5: Boolean) {
+        val filters = mutableListOf<String>()
+        val reader = Reader(body)
+        reader.short() // Packet id
+        if (mqtt5) {
+            reader.properties()
+        }
+        while (reader.position < body.size) {
+            filters.add(reader.string())
+            reader.byte() // Options
+        }
+        // Granted QoS 0 for every filter, after an empty set of properties for MQTT 5
+        val properties = if (mqtt5) ByteArray(1) else ByteArray(0)
+        send(
+            output,
+            byteArrayOf(0x90.toByte(), (2 + properties.size + filters.size).toByte(), body[0], body[1]) +
+                properties + ByteArray(filters.size)
+        )
+
+        val matching = synchronized(retained) { retained.filterKeys { topic -> filters.any { matches(it, topic) } } }
+        val packets = ByteArrayOutputStream()
+        matching.forEach { (topic, payload) ->
+            val topicBytes = topic.toByteArray(Charsets.UTF_8)
+            // QoS 0 with the retain flag set
+            packets.write(0x31)
+            writeRemainingLength(packets, 2 + topicBytes.size + properties.size + payload.size)
+            packets.write(topicBytes.size shr 8)
+            packets.write(topicBytes.size and 0xFF)
+            packets.write(topicBytes)
+            packets.write(properties)
+            packets.write(payload)
+        }
+        send(output, packets.toByteArray())
+    }
+
+    private fun matches(filter: String, topic: String): Boolean {
+        val filterLevels = filter.split("/")
+        val topicLevels = topic.split("/")
+        filterLevels.forEachIndexed { index, level ->
+            when {
+                level == "#" -> return true
+                index >= topicLevels.size -> return false
+                level != "+" && level != topicLevels[index] -> return false
+            }
+        }
+        return filterLevels.size == topicLevels.size
+    }
+
+    private fun remainingLengthSize(length: Int) = ByteArrayOutputStream().also { writeRemainingLength(it, length) }.size()
+
+    private fun writeRemainingLength(output: ByteArrayOutputStream, length: Int) {
+        var remaining = length
+        do {
+            var byte = remaining % 128
+            remaining /= 128
+            if (remaining > 0) {
+                byte = byte or 0x80
+            }
+            output.write(byte)
+        } while (remaining > 0)
+    }
+
+    private fun send(output: OutputStream, packet: ByteArray) {
+        synchronized(output) {
+            output.write(packet)
+            output.flush()
+        }
+    }
+
+    private fun readRemainingLength(input: DataInputStream): Int {
+        var length = 0
+        var multiplier = 1
+        do {
+            val byte = input.read()
+            if (byte < 0) {
+                throw EOFException()
+            }
+            length += (byte and 0x7F) * multiplier
+            multiplier *= 128
+        } while (byte and 0x80 != 0)
+        return length
+    }
+
+    private class Reader(private val body: ByteArray) {
+        var position = 0
+            private set
+
+        fun byte() = body[position++].toInt() and 0xFF
+
+        fun short() = (byte() shl 8) or byte()
+
+        fun string(): String {
+            val length = short()
+            return String(body, position, length, Charsets.UTF_8).also { position += length }
+        }
+
+        fun variableInt(): Int {
+            var value = 0
+            var multiplier = 1
+            do {
+                val byte = byte()
+                value += (byte and 0x7F) * multiplier
+                multiplier *= 128
+            } while (byte and 0x80 != 0)
+            return value
+        }
+
+        /**
+         * Reads an MQTT 5 property list, keeping the numeric properties and skipping the rest
+         */
+        fun properties(): Map<Int, Number> {
+            val length = variableInt()
+            val end = position + length
+            val properties = mutableMapOf<Int, Number>()
+            while (position < end) {
+                when (val id = byte()) {
+                    SESSION_EXPIRY_INTERVAL, MAXIMUM_PACKET_SIZE -> properties[id] = (short().toLong() shl 16) or short().toLong()
+                    RECEIVE_MAXIMUM, TOPIC_ALIAS_MAXIMUM, TOPIC_ALIAS -> properties[id] = short()
+                    else -> break
+                }
+            }
+            position = end
+            return properties
+        }
+    }
+
+    /**
+     * Drops every client connection without sending anything further
+     */
+    fun disconnectClients() {
+        clients.forEach(Socket::close)
+    }
+
+    override fun close() {
+        serverSocket.close()
+        disconnectClients()
+        ackScheduler.shutdownNow()
+    }
+
+    companion object {
+        private const val CONNECT = 1
+        private const val PUBLISH = 3
+        private const val SUBSCRIBE = 8
+        private const val PINGREQ = 12
+        private const val DISCONNECT = 14
+
+        private const val SESSION_EXPIRY_INTERVAL = 0x11
+        private const val RECEIVE_MAXIMUM = 0x21
+        private const val TOPIC_ALIAS_MAXIMUM = 0x22
+        private const val TOPIC_ALIAS = 0x23
+        private const val MAXIMUM_PACKET_SIZE = 0x27
+    }
+}
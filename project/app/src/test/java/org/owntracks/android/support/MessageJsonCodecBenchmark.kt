@@ -0,0 +1,58 @@
+package org.owntracks.android.support
+
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializationFeature
+import org.junit.Ignore
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares the hand-written JSON for locations, transitions and cards with the polymorphic mapper
+ * they used to go through.
+ */
+@Ignore("Benchmark")
+class MessageJsonCodecBenchmark {
+    private val mapper = ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+    private val codec = MessageJsonCodec(mapper.factory)
+    private val benchmarkMessages = BenchmarkMessages()
+
+    private fun measure(name: String, messages: List<MessageBase>) {
+        val json = messages.map(mapper::writeValueAsBytes)
+        repeat(WARMUP) {
+            messages.forEach { mapper.writeValueAsBytes(it); codec.write(it) }
+            json.forEach { mapper.readValue(it, MessageBase::class.java); codec.read(it) }
+        }
+        val mapperWriteNanos = measureNanoTime { repeat(ITERATIONS) { messages.forEach(mapper::writeValueAsBytes) } }
+        val codecWriteNanos = measureNanoTime { repeat(ITERATIONS) { messages.forEach(codec::write) } }
+        val mapperReadNanos = measureNanoTime {
+            repeat(ITERATIONS) { json.forEach { mapper.readValue(it, MessageBase::class.java) } }
+        }
+        val codecReadNanos = measureNanoTime { repeat(ITERATIONS) { json.forEach(codec::read) } }
+        val count = ITERATIONS * messages.size
+        println(
+            "%s: write %dns with the mapper, %dns by hand; read %dns with the mapper, %dns by hand".format(
+                name,
+                mapperWriteNanos / count,
+                codecWriteNanos / count,
+                mapperReadNanos / count,
+                codecReadNanos / count
+            )
+        )
+    }
+
+    @Test
+    fun `locations, transitions and cards`() {
+        measure("location", List(100) { benchmarkMessages.location() })
+        measure("transition", List(100) { benchmarkMessages.transition() })
+        measure("card", List(100) { benchmarkMessages.card() })
+    }
+
+    companion object {
+        private const val WARMUP = 2_000
+        private const val ITERATIONS = 2_000
+    }
+}
@@ -0,0 +1,231 @@
+package org.owntracks.android.support
+
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializationFeature
+import com.fasterxml.jackson.databind.node.ObjectNode
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.location.geofencing.Geofence
+import org.owntracks.android.model.BatteryStatus
+import org.owntracks.android.model.messages.Clock
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageCreatedAtNow
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.model.messages.MessageTransition
+import org.owntracks.android.model.messages.MessageWaypoint
+import kotlin.random.Random
+
+class MessageJsonCodecTest {
+    // Configured the same as the Parser's mapper
+    private val mapper = ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+    private val codec = MessageJsonCodec(mapper.factory)
+    private val random = Random(1)
+
+    private val clock = object : Clock {
+        override val time: Long = 25
+    }
+
+    private fun golden(name: String) = this.javaClass.getResource("/messages/$name")!!.readBytes()
+
+    private fun assertWrittenAsGolden(name: String, message: MessageBase) {
+        val expected = golden(name)
+        assertEquals(String(expected), String(mapper.writeValueAsBytes(message)))
+        assertArrayEquals(expected, codec.write(message))
+    }
+
+    private fun assertReadAsMapperDoes(json: ByteArray) {
+        val expected = mapper.readValue(json, MessageBase::class.java)
+        val actual = codec.read(json)!!
+        assertEquals(expected.javaClass, actual.javaClass)
+        // Created at is when the message was read, not what it says
+        val expectedTree = (mapper.valueToTree(expected) as ObjectNode).apply { remove("created_at") }
+        val actualTree = (mapper.valueToTree(actual) as ObjectNode).apply { remove("created_at") }
+        assertEquals(expectedTree, actualTree)
+        assertEquals(expected.trackerId, actual.trackerId)
+        assertEquals(expected.visibleTopic, actual.visibleTopic)
+        if (expected is MessageLocation) {
+            assertEquals(expected.inregions, (actual as MessageLocation).inregions)
+        }
+    }
+
+    private fun randomString(): String? = when (random.nextInt(4)) {
+        0 -> null
+        1 -> ""
+        2 -> "plain ${random.nextInt()}"
+        else -> "escaped \"\\\n\t\u0001 ünïcødé ☕ 😀 ${random.nextInt()}"
+    }
+
+    private fun randomLocation() = MessageLocation(MessageCreatedAtNow(clock)).apply {
+        accuracy = random.nextInt()
+        altitude = random.nextInt(-100, 10_000)
+        battery = random.nextInt(0, 101)
+        batteryStatus = if (random.nextBoolean()) BatteryStatus.values().random(random) else null
+        bssid = randomString()
+        conn = randomString()
+        inregions = when (random.nextInt(3)) {
+            0 -> null
+            1 -> emptyList()
+            else -> List(random.nextInt(1, 4)) { randomString() ?: "region" }
+        }
+        latitude = random.nextDouble(-90.0, 90.0)
+        longitude = random.nextDouble(-180.0, 180.0)
+        monitoringMode = if (random.nextBoolean()) random.nextInt(-1, 3) else null
+        ssid = randomString()
+        timestamp = random.nextLong(0, 4_000_000_000)
+        trackerId = randomString()
+        trigger = randomString()
+        velocity = random.nextInt(0, 300)
+        verticalAccuracy = random.nextInt(0, 100)
+        if (random.nextBoolean()) {
+            topic = "owntracks/user/device"
+            setTopicVisible()
+        }
+    }
+
+    private fun randomTransition() = MessageTransition().apply {
+        accuracy = random.nextFloat() * 100
+        description = randomString()
+        event = randomString()
+        latitude = random.nextDouble(-90.0, 90.0)
+        longitude = if (random.nextBoolean()) random.nextDouble(-180.0, 180.0) else random.nextInt(-180, 180).toDouble()
+        timestamp = random.nextLong(0, 4_000_000_000)
+        trackerId = randomString()
+        trigger = randomString()
+        waypointTimestamp = random.nextLong(0, 4_000_000_000)
+        if (random.nextBoolean()) {
+            topic = "owntracks/user/device/event"
+            setTopicVisible()
+        }
+    }
+
+    private fun randomCard() = MessageCard().apply {
+        face = randomString()
+        name = randomString()
+        trackerId = randomString()
+        if (random.nextBoolean()) {
+            topic = "owntracks/user/device/info"
+            setTopicVisible()
+        }
+    }
+
+    @Test
+    fun `given the golden messages, when writing them then the codec and the mapper both match the golden files`() {
+        assertWrittenAsGolden("location.json", MessageLocation(MessageCreatedAtNow(clock)).apply {
+            bssid = "12:34:56:78"
+            ssid = "Wifi \"SSID\" ☕"
+            accuracy = 10
+            altitude = 20
+            battery = 30
+            batteryStatus = BatteryStatus.CHARGING
+            conn = MessageLocation.CONN_TYPE_WIFI
+            inregions = listOf("Testregion1", "Testregion2")
+            latitude = 50.1
+            longitude = -60.234567891
+            monitoringMode = 1
+            trigger = MessageLocation.REPORT_TYPE_PING
+            trackerId = "ab"
+            topic = "owntracks/testUsername/testDevice"
+            setTopicVisible()
+            timestamp = 123456789
+            verticalAccuracy = 1
+            velocity = 5
+        })
+        assertWrittenAsGolden("location-minimal.json", MessageLocation(MessageCreatedAtNow(clock)).apply {
+            trackerId = ""
+            inregions = emptyList()
+        })
+        assertWrittenAsGolden("transition.json", MessageTransition().apply {
+            latitude = 52.71234
+            longitude = -1.61234123
+            description = "myregion"
+            setTransition(Geofence.GEOFENCE_TRANSITION_EXIT)
+            accuracy = 3.075f
+            timestamp = 1603209966
+            waypointTimestamp = 1558351273
+            trackerId = "ce"
+            trigger = MessageTransition.TRIGGER_LOCATION
+            topic = "owntracks/testUsername/testDevice/event"
+            setTopicVisible()
+        })
+        assertWrittenAsGolden("card.json", MessageCard().apply {
+            face = String(golden("card.json")).substringAfter("\"face\":\"").substringBefore('"')
+            name = "My Name"
+        })
+    }
+
+    @Test
+    fun `given the golden files, when reading them then the codec reads what the mapper does`() {
+        listOf("location.json", "location-minimal.json", "transition.json", "card.json").forEach {
+            assertReadAsMapperDoes(golden(it))
+        }
+    }
+
+    @Test
+    fun `given random messages, when writing them then the codec matches the mapper byte for byte`() {
+        repeat(2_000) {
+            val message = when (it % 3) {
+                0 -> randomLocation()
+                1 -> randomTransition()
+                else -> randomCard()
+            }
+            val expected = mapper.writeValueAsBytes(message)
+            val actual = codec.write(message)!!
+            assertEquals(String(expected), String(actual))
+            assertArrayEquals(expected, actual)
+            assertReadAsMapperDoes(actual)
+        }
+    }
+
+    @Test
+    fun `given other message types, when writing them then they are left to the mapper`() {
+        assertNull(codec.write(MessageWaypoint()))
+        assertNull(codec.write(object : MessageLocation() {}))
+    }
+
+    @Test
+    fun `given JSON the mapper might read differently, when reading it then it is left to the mapper`() {
+        listOf(
+            """{"tst":1,"_type":"location"}""",
+            """{"_type":"location","lat":"51.5"}""",
+            """{"_type":"location","alt":12.7}""",
+            """{"_type":"location","tid":12}""",
+            """{"_type":"location","batt":null}""",
+            """{"_type":"location","bs":9}""",
+            """{"_type":"location","acc":3000000000}""",
+            """{"_type":"location","inregions":"home"}""",
+            """{"_type":"location","topic":null}""",
+            """{"_type":"transition","tst":"1"}""",
+            """{"_type":"card","name":["a"]}""",
+            """{"_type":"waypoint","desc":"home"}""",
+            """{"_type":"location","tst":1""",
+            """[{"_type":"location"}]"""
+        ).forEach { assertNull(it, codec.read(it.toByteArray())) }
+    }
+
+    @Test
+    fun `given unknown and nested fields, when reading then they are skipped`() {
+        val json = """{"_type":"location","extra":{"a":[1,{"b":2}]},"tst":5,"created_at":1,"list":[],"lat":1,"transition":1}"""
+        assertReadAsMapperDoes(json.toByteArray())
+        assertEquals(5L, (codec.read(json.toByteArray()) as MessageLocation).timestamp)
+        assertReadAsMapperDoes("""{"_type":"transition","transition":1,"tst":5}""".toByteArray())
+    }
+
+    @Test
+    fun `given a parser, when a location goes out and back in then it comes back the same`() {
+        val parser = Parser(null)
+        val message = randomLocation().apply { trackerId = "ab" }
+        val json = parser.toJsonBytes(message)
+        assertTrue(String(json).startsWith("{\"_type\":\"location\""))
+        val read = parser.fromJson(json) as MessageLocation
+        assertEquals(message.latitude, read.latitude, 0.0)
+        assertEquals(message.timestamp, read.timestamp)
+        assertEquals(String(json), parser.toUnencryptedJson(read).replace(Regex("\"created_at\":\\d+"), "\"created_at\":25"))
+    }
+}
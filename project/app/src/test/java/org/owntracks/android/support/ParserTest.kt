@@ -2,12 +2,15 @@ package org.owntracks.android.support
 
 import com.fasterxml.jackson.core.JsonParseException
 import com.fasterxml.jackson.databind.exc.InvalidFormatException
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.anyOrNull
 import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.mock
 import org.junit.Assert.*
 import org.junit.Before
 import org.junit.Test
 import org.mockito.Mock
+import org.mockito.ArgumentMatchers.anyInt
 import org.mockito.Mockito
 import org.owntracks.android.location.geofencing.Geofence
 import org.owntracks.android.model.BatteryStatus
@@ -188,7 +191,10 @@ class ParserTest {
         Mockito.`when`(encryptionProvider.isPayloadEncryptionEnabled).thenReturn(true)
         val messageLocationJSON =
             "{\"_type\":\"location\",\"tid\":\"s5\",\"acc\":1600,\"alt\":0.0,\"batt\":99,\"bs\":1,\"conn\":\"w\",\"lat\":52.3153748,\"lon\":5.0408462,\"t\":\"p\",\"tst\":1514455575,\"vac\":0,\"vel\":2}"
-        Mockito.`when`(encryptionProvider.decrypt("TestCipherText")).thenReturn(messageLocationJSON)
+        Mockito.`when`(encryptionProvider.decrypt(any(), anyInt(), anyInt(), anyOrNull())).thenAnswer {
+            assertEquals("TestCipherText", String(it.getArgument<CharArray>(0), it.getArgument(1), it.getArgument(2)))
+            EncryptionProvider.Plaintext(messageLocationJSON.toByteArray(), messageLocationJSON.length)
+        }
         val parser = Parser(encryptionProvider)
         val input = "{\"_type\":\"encrypted\",\"data\":\"TestCipherText\"}"
         val messageBase = parser.fromJson(input)
@@ -211,7 +217,7 @@ class ParserTest {
     fun `Parser can serialize an encrypted location message`() {
         Mockito.`when`(encryptionProvider.isPayloadEncryptionEnabled).thenReturn(true)
         Mockito.`when`(encryptionProvider.encrypt(locationWithRegionsJSON))
-            .thenReturn("TestCipherText")
+            .thenReturn(MessageEncrypted().apply { data = "TestCipherText" })
         val parser = Parser(encryptionProvider)
         val input = extendedMessageLocation
         val serialized = input.toJson(parser)
@@ -17,6 +17,7 @@ import org.owntracks.android.R
 import org.owntracks.android.model.messages.MessageConfiguration
 import org.owntracks.android.services.MessageProcessorEndpointHttp
 import org.owntracks.android.services.MessageProcessorEndpointMqtt
+import org.owntracks.android.services.Mqtt5AsyncClient.Companion.MQTT_VERSION_5
 import org.owntracks.android.support.preferences.PreferencesStore
 import kotlin.reflect.KClass
 
@@ -87,6 +88,19 @@ class PreferencesGettersAndSetters(
                     arrayOf("ReverseGeocodeProvider", "reverseGeocodeProvider", "None", "None", String::class, false),
                     arrayOf("ReverseGeocodeProvider", "reverseGeocodeProvider", "Nonsense", "None", String::class, false),
                     arrayOf("Host", "host", "testHost", "testHost", String::class, false),
+                    arrayOf("Http2", "http2", true, true, Boolean::class, true),
+                    arrayOf("HttpBatchMaxBytes", "httpBatchMaxBytes", 4096, 4096, Int::class, true),
+                    arrayOf("HttpBatchMaxBytes", "httpBatchMaxBytes", 0, 1, Int::class, true),
+                    arrayOf("HttpBatchMaxMessages", "httpBatchMaxMessages", 50, 50, Int::class, true),
+                    arrayOf("HttpBatchMaxMessages", "httpBatchMaxMessages", 0, 1, Int::class, true),
+                    arrayOf("HttpBatchMaxMessages", "httpBatchMaxMessages", 5000, 1000, Int::class, true),
+                    arrayOf("HttpCompression", "httpCompression", "gzip", "gzip", String::class, true),
+                    arrayOf("HttpCompression", "httpCompression", "deflate", "deflate", String::class, true),
+                    arrayOf("HttpCompression", "httpCompression", "zstd", "none", String::class, true),
+                    arrayOf("HttpCompressionMinBytes", "httpCompressionMinBytes", 512, 512, Int::class, true),
+                    arrayOf("HttpCompressionMinBytes", "httpCompressionMinBytes", -1, 0, Int::class, true),
+                    arrayOf("HttpKeepaliveSeconds", "httpKeepaliveSeconds", 300, 300, Int::class, true),
+                    arrayOf("HttpKeepaliveSeconds", "httpKeepaliveSeconds", -1, 0, Int::class, true),
                     arrayOf("IgnoreInaccurateLocations", "ignoreInaccurateLocations", 123, 123, Int::class, false),
                     arrayOf("IgnoreStaleLocations", "ignoreStaleLocations", 456.0, 456.0, Double::class, false),
                     arrayOf("Info", "info", true, true, Boolean::class, false),
@@ -103,7 +117,10 @@ class PreferencesGettersAndSetters(
                     arrayOf("Mode", "mode", -1, MessageProcessorEndpointMqtt.MODE_ID, Int::class, false),
                     arrayOf("Monitoring", "monitoring", 2, 2, Int::class, false),
                     arrayOf("MoveModeLocatorInterval", "moveModeLocatorInterval", 1500, 1500, Int::class, false),
+                    arrayOf("MqttMaxInflight", "mqttMaxInflight", 32, 32, Int::class, false),
+                    arrayOf("MqttMaxInflight", "mqttMaxInflight", 0, 1, Int::class, false),
                     arrayOf("MqttProtocolLevel", "mqttProtocolLevel", MQTT_VERSION_3_1_1, MQTT_VERSION_3_1_1, Int::class, false),
+                    arrayOf("MqttProtocolLevel", "mqttProtocolLevel", MQTT_VERSION_5, MQTT_VERSION_5, Int::class, false),
                     arrayOf("MqttProtocolLevel", "mqttProtocolLevel", -1, MQTT_VERSION_DEFAULT, Int::class, false),
                     arrayOf("NotificationEvents", "notificationEvents", true, true, Boolean::class, false),
                     arrayOf("NotificationHigherPriority", "notificationHigherPriority", true, true, Boolean::class, false),
@@ -120,6 +137,20 @@ class PreferencesGettersAndSetters(
                     arrayOf("PubQos", "pubQos", 1, 1, Int::class, false),
                     arrayOf("PubRetain", "pubRetain", true, true, Boolean::class, false),
                     arrayOf("PubTopicBaseFormatString", "pubTopicBase", "testDeviceTopic", "testDeviceTopic", String::class, false),
+                    arrayOf("QueueCompactionDepth", "queueCompactionDepth", 1000, 1000, Int::class, false),
+                    arrayOf("QueueCompactionDepth", "queueCompactionDepth", 20000, 10000, Int::class, false),
+                    arrayOf("QueueCompactionDistanceMeters", "queueCompactionDistanceMeters", 100, 100, Int::class, false),
+                    arrayOf("QueueCompactionDistanceMeters", "queueCompactionDistanceMeters", -1, 0, Int::class, false),
+                    arrayOf("QueueCompactionIntervalSeconds", "queueCompactionIntervalSeconds", 60, 60, Int::class, false),
+                    arrayOf("QueueCompactionIntervalSeconds", "queueCompactionIntervalSeconds", -1, 0, Int::class, false),
+                    arrayOf("QueueGroupCommitMaxBytes", "queueGroupCommitMaxBytes", 4096, 4096, Int::class, false),
+                    arrayOf("QueueGroupCommitMaxBytes", "queueGroupCommitMaxBytes", 0, 1, Int::class, false),
+                    arrayOf("QueueGroupCommitWindowMillis", "queueGroupCommitWindowMillis", 250, 250, Int::class, false),
+                    arrayOf("QueueGroupCommitWindowMillis", "queueGroupCommitWindowMillis", -1, 0, Int::class, false),
+                    arrayOf("QueueMaxBytes", "queueMaxBytes", 1048576, 1048576, Int::class, false),
+                    arrayOf("QueueMaxBytes", "queueMaxBytes", -1, 0, Int::class, false),
+                    arrayOf("QueueMeteredBacklogLimit", "queueMeteredBacklogLimit", 100, 100, Int::class, false),
+                    arrayOf("QueueMeteredBacklogLimit", "queueMeteredBacklogLimit", -1, 0, Int::class, false),
                     arrayOf("RemoteCommand", "cmd", true, true, Boolean::class, false),
                     arrayOf("RemoteConfiguration", "remoteConfiguration", true, true, Boolean::class, false),
                     arrayOf("Sub", "sub", true, true, Boolean::class, false),
@@ -155,6 +186,12 @@ class PreferencesGettersAndSetters(
                 on { getString(eq(R.string.preferenceKeyFusedRegionDetection)) } doReturn "fusedRegionDetection"
                 on { getString(eq(R.string.preferenceKeyGeocodeEnabled)) } doReturn "geocodeEnabled"
                 on { getString(eq(R.string.preferenceKeyHost)) } doReturn "host"
+                on { getString(eq(R.string.preferenceKeyHttp2)) } doReturn "http2"
+                on { getString(eq(R.string.preferenceKeyHttpBatchMaxBytes)) } doReturn "httpBatchMaxBytes"
+                on { getString(eq(R.string.preferenceKeyHttpBatchMaxMessages)) } doReturn "httpBatchMaxMessages"
+                on { getString(eq(R.string.preferenceKeyHttpCompression)) } doReturn "httpCompression"
+                on { getString(eq(R.string.preferenceKeyHttpCompressionMinBytes)) } doReturn "httpCompressionMinBytes"
+                on { getString(eq(R.string.preferenceKeyHttpKeepaliveSeconds)) } doReturn "httpKeepaliveSeconds"
                 on { getString(eq(R.string.preferenceKeyIgnoreInaccurateLocations)) } doReturn "ignoreInaccurateLocations"
                 on { getString(eq(R.string.preferenceKeyIgnoreStaleLocations)) } doReturn "ignoreStaleLocations"
                 on { getString(eq(R.string.preferenceKeyInfo)) } doReturn "info"
@@ -165,6 +202,7 @@ class PreferencesGettersAndSetters(
                 on { getString(eq(R.string.preferenceKeyModeId)) } doReturn "mode"
                 on { getString(eq(R.string.preferenceKeyMonitoring)) } doReturn "monitoring"
                 on { getString(eq(R.string.preferenceKeyMoveModeLocatorInterval)) } doReturn "moveModeLocatorInterval"
+                on { getString(eq(R.string.preferenceKeyMqttMaxInflight)) } doReturn "mqttMaxInflight"
                 on { getString(eq(R.string.preferenceKeyMqttProtocolLevel)) } doReturn "mqttProtocolLevel"
                 on { getString(eq(R.string.preferenceKeyNotificationEvents)) } doReturn "notificationEvents"
                 on { getString(eq(R.string.preferenceKeyNotificationHigherPriority)) } doReturn "notificationHigherPriority"
@@ -179,6 +217,13 @@ class PreferencesGettersAndSetters(
                 on { getString(eq(R.string.preferenceKeyPubQos)) } doReturn "pubQos"
                 on { getString(eq(R.string.preferenceKeyPubRetain)) } doReturn "pubRetain"
                 on { getString(eq(R.string.preferenceKeyPubTopicBase)) } doReturn "pubTopicBase"
+                on { getString(eq(R.string.preferenceKeyQueueCompactionDepth)) } doReturn "queueCompactionDepth"
+                on { getString(eq(R.string.preferenceKeyQueueCompactionDistanceMeters)) } doReturn "queueCompactionDistanceMeters"
+                on { getString(eq(R.string.preferenceKeyQueueCompactionIntervalSeconds)) } doReturn "queueCompactionIntervalSeconds"
+                on { getString(eq(R.string.preferenceKeyQueueGroupCommitMaxBytes)) } doReturn "queueGroupCommitMaxBytes"
+                on { getString(eq(R.string.preferenceKeyQueueGroupCommitWindowMillis)) } doReturn "queueGroupCommitWindowMillis"
+                on { getString(eq(R.string.preferenceKeyQueueMaxBytes)) } doReturn "queueMaxBytes"
+                on { getString(eq(R.string.preferenceKeyQueueMeteredBacklogLimit)) } doReturn "queueMeteredBacklogLimit"
                 on { getString(eq(R.string.preferenceKeyRemoteCommand)) } doReturn "cmd"
                 on { getString(eq(R.string.preferenceKeyRemoteConfiguration)) } doReturn "remoteConfiguration"
                 on { getString(eq(R.string.preferenceKeyReverseGeocodeProvider)) } doReturn "reverseGeocodeProvider"
@@ -200,6 +245,7 @@ class PreferencesGettersAndSetters(
                 on { getString(eq(R.string.defaultSubTopic)) } doReturn "owntracks/+/+"
                 on { getString(eq(R.string.valPubTopic)) } doReturn "owntracks/%u/%d"
                 on { getString(eq(R.string.valDefaultGeocoder)) } doReturn "None"
+                on { getString(eq(R.string.valHttpCompression)) } doReturn "none"
                 on { getInteger(any()) } doReturn 0
                 on { getBoolean(any()) } doReturn false
             }
@@ -0,0 +1,55 @@
+package org.owntracks.android.support
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class SocketFactoryCacheTest {
+    private val letsEncryptRootCert = this.javaClass.getResource("/letsEncryptRootCA.pem")!!.readBytes()
+    private val selfSignedCert = this.javaClass.getResource("/selfSignedX509Certificate.pem")!!.readBytes()
+    private val built = mutableListOf<SocketFactory.SocketFactoryOptions>()
+
+    // The real one needs Android's key manager
+    private val cache = SocketFactoryCache { options -> built.add(options); mock() }
+
+    @Test
+    fun `given the same CA certificate, when getting a socket factory twice then the same one is returned`() {
+        val first = cache.get(letsEncryptRootCert, null, null)
+        val second = cache.get(letsEncryptRootCert.copyOf(), null, null)
+
+        assertSame(first, second)
+        assertEquals(1, built.size)
+        assertEquals("CN=ISRG Root X1,O=Internet Security Research Group,C=US", first.caCertificate!!.subjectX500Principal.name)
+    }
+
+    @Test
+    fun `given a CA certificate whose contents have changed, when getting a socket factory then a new one is built`() {
+        val first = cache.get(letsEncryptRootCert, null, null)
+        val second = cache.get(selfSignedCert, null, null)
+
+        assertNotSame(first, second)
+        assertNotSame(first.caCertificate, second.caCertificate)
+        assertSame(second, cache.get(selfSignedCert, null, null))
+        assertEquals(2, built.size)
+    }
+
+    @Test
+    fun `given a client certificate, when its password changes then a new socket factory is built`() {
+        val first = cache.get(null, selfSignedCert, "one")
+        val second = cache.get(null, selfSignedCert, "two")
+
+        assertNotSame(first, second)
+        assertEquals(null, second.caCertificate)
+        assertEquals("two", built.last().caClientP12Password)
+    }
+
+    @Test
+    fun `given a cleared cache, when getting a socket factory then a new one is built`() {
+        val first = cache.get(letsEncryptRootCert, null, null)
+        cache.clear()
+
+        assertNotSame(first, cache.get(letsEncryptRootCert, null, null))
+    }
+}
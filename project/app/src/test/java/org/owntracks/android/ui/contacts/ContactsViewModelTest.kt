@@ -1,30 +1,43 @@
 package org.owntracks.android.ui.contacts
 
-import androidx.lifecycle.MutableLiveData
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule
+import androidx.lifecycle.Observer
 import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.mock
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
 import org.junit.Test
+import org.owntracks.android.data.repos.ContactChanges
+import org.owntracks.android.data.repos.ContactsDelta
 import org.owntracks.android.data.repos.ContactsRepo
 import org.owntracks.android.geocoding.GeocoderProvider
 import org.owntracks.android.model.FusedContact
 
 class ContactsViewModelTest {
-    private val testContacts = MutableLiveData(
-        mutableMapOf(
-            Pair("testContact1", FusedContact("testContact1")),
-            Pair("testContact2", FusedContact("testContact2")),
-            Pair("testContact3", FusedContact("testContact3")),
-            Pair("testContact4", FusedContact("testContact4")),
-            Pair("testContact5", FusedContact("testContact5")),
-        )
+    @get:Rule
+    val instantTaskExecutorRule = InstantTaskExecutorRule()
+
+    private val testContacts = mapOf(
+        Pair("testContact1", FusedContact("testContact1")),
+        Pair("testContact2", FusedContact("testContact2")),
+        Pair("testContact3", FusedContact("testContact3")),
+        Pair("testContact4", FusedContact("testContact4")),
+        Pair("testContact5", FusedContact("testContact5")),
     )
-    private val mockContactsRepo: ContactsRepo = mock { on { all } doReturn testContacts }
+    private val mockContactsRepo: ContactsRepo = mock {
+        on { all } doReturn testContacts
+        on { changes } doReturn ContactChanges()
+    }
     private val mockGeocoderProvider: GeocoderProvider = mock {}
 
     @Test
     fun `Contacts ViewModel outputs full list of contacts to view`() {
         val contactsViewModel = ContactsViewModel(mockContactsRepo, mockGeocoderProvider)
-        assertEquals(5, contactsViewModel.contacts.value?.keys?.size)
+        val observer = Observer<ContactsDelta> {}
+        contactsViewModel.contacts.observeForever(observer)
+        assertTrue(contactsViewModel.contacts.value!!.reset)
+        assertEquals(5, contactsViewModel.contacts.value?.changes?.size)
+        contactsViewModel.contacts.removeObserver(observer)
     }
-}
\ No newline at end of file
+}